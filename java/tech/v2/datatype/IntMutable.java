@@ -10,4 +10,14 @@ public interface IntMutable extends MutableRemove
   {
     insert(lsize(), value);
   }
+  /** Make room for nElems elements in total so appends do not reallocate. */
+  default void ensureCapacity(long nElems) {}
+  /** Append every element of values in order. */
+  default void appendReader(IntReader values)
+  {
+    long nValues = values.lsize();
+    ensureCapacity(lsize() + nValues);
+    for (long idx = 0; idx < nValues; ++idx)
+      append(values.read(idx));
+  }
 }
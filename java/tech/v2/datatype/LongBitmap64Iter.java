@@ -0,0 +1,25 @@
+package tech.v2.datatype;
+
+
+import clojure.lang.Keyword;
+import org.roaringbitmap.longlong.LongIterator;
+
+
+public class LongBitmap64Iter implements LongIter
+{
+  LongIterator iter;
+  long currentValue;
+  public LongBitmap64Iter(LongIterator _iter)
+  {
+    iter = _iter;
+  }
+  public Object getDatatype() { return Keyword.intern(null, "int64"); }
+  public boolean hasNext() { return iter.hasNext(); }
+  public long nextLong() {
+    currentValue = iter.next();
+    return currentValue;
+  }
+  public long current() {
+    return currentValue;
+  }
+};
@@ -0,0 +1,258 @@
+package tech.v2.datatype;
+
+import java.time.chrono.IsoChronology;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Allocation-free parsers from text directly into the packed datetime
+ * representations.  Only a fixed set of layouts is supported; anything else
+ * should go through a java.time DateTimeFormatter.
+ *
+ * <p>Dates: ISO (yyyy-MM-dd), BASIC_ISO (yyyyMMdd) and US (MM/dd/yyyy).
+ * Times: HH:mm[:ss[.fraction]].  Date times: an ISO date followed by 'T' or a
+ * space and a time.  Instants: a date time followed by 'Z' or an offset of the
+ * form +HH, +HHmm or +HH:mm.
+ */
+public class PackedDateTimeParser {
+
+  public static final int ISO_DATE = 0;
+  public static final int BASIC_ISO_DATE = 1;
+  public static final int US_DATE = 2;
+
+  private PackedDateTimeParser() {}
+
+  /**
+   * A reusable CharSequence view of an ascii byte range.  Parsing a block of
+   * byte ranges can reset one of these per range instead of allocating strings.
+   */
+  public static final class AsciiSequence implements CharSequence {
+    byte[] data;
+    int offset;
+    int length;
+
+    public AsciiSequence set(byte[] data, int offset, int length) {
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+      return this;
+    }
+    public int length() { return length; }
+    public char charAt(int idx) { return (char) (data[offset + idx] & 0xFF); }
+    public CharSequence subSequence(int start, int end) {
+      return new AsciiSequence().set(data, offset + start, end - start);
+    }
+    public String toString() {
+      return new String(data, offset, length, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+  }
+
+  static DateTimeParseException error(CharSequence s, int start, int end, int pos) {
+    return new DateTimeParseException("Unable to parse datetime text",
+                                      s.subSequence(start, end), pos - start);
+  }
+
+  static int digits(CharSequence s, int start, int end, int pos, int n) {
+    if (pos + n > end) {
+      throw error(s, start, end, pos);
+    }
+    int value = 0;
+    for (int idx = 0; idx < n; ++idx) {
+      char c = s.charAt(pos + idx);
+      if (c < '0' || c > '9') {
+        throw error(s, start, end, pos + idx);
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  static void expect(CharSequence s, int start, int end, int pos, char c) {
+    if (pos >= end || s.charAt(pos) != c) {
+      throw error(s, start, end, pos);
+    }
+  }
+
+  static int checkedDate(CharSequence s, int start, int end, int year, int month, int day) {
+    if (month < 1 || month > 12 || day < 1) {
+      throw error(s, start, end, start);
+    }
+    int monthLength;
+    switch (month) {
+      case 2:
+        monthLength = IsoChronology.INSTANCE.isLeapYear(year) ? 29 : 28;
+        break;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        monthLength = 30;
+        break;
+      default:
+        monthLength = 31;
+    }
+    if (day > monthLength) {
+      throw error(s, start, end, start);
+    }
+    return PackedLocalDate.pack(year, month, day);
+  }
+
+  /** Parse a packed local date from s[start,end) in one of the date formats. */
+  public static int parseLocalDate(CharSequence s, int start, int end, int format) {
+    switch (format) {
+      case ISO_DATE:
+        if (end - start != 10) {
+          throw error(s, start, end, start);
+        }
+        expect(s, start, end, start + 4, '-');
+        expect(s, start, end, start + 7, '-');
+        return checkedDate(s, start, end,
+                           digits(s, start, end, start, 4),
+                           digits(s, start, end, start + 5, 2),
+                           digits(s, start, end, start + 8, 2));
+      case BASIC_ISO_DATE:
+        if (end - start != 8) {
+          throw error(s, start, end, start);
+        }
+        return checkedDate(s, start, end,
+                           digits(s, start, end, start, 4),
+                           digits(s, start, end, start + 4, 2),
+                           digits(s, start, end, start + 6, 2));
+      case US_DATE:
+        if (end - start != 10) {
+          throw error(s, start, end, start);
+        }
+        expect(s, start, end, start + 2, '/');
+        expect(s, start, end, start + 5, '/');
+        return checkedDate(s, start, end,
+                           digits(s, start, end, start + 6, 4),
+                           digits(s, start, end, start, 2),
+                           digits(s, start, end, start + 3, 2));
+      default:
+        throw new IllegalArgumentException("Unrecognized date format: " + format);
+    }
+  }
+
+  public static int parseLocalDate(CharSequence s) {
+    return parseLocalDate(s, 0, s.length(), ISO_DATE);
+  }
+
+  /** Nanosecond of day of HH:mm[:ss[.fraction]] in s[pos,end). */
+  static long parseNanoOfDay(CharSequence s, int start, int end, int pos) {
+    int hour = digits(s, start, end, pos, 2);
+    expect(s, start, end, pos + 2, ':');
+    int minute = digits(s, start, end, pos + 3, 2);
+    int second = 0;
+    long nanos = 0;
+    pos += 5;
+    if (pos < end) {
+      expect(s, start, end, pos, ':');
+      second = digits(s, start, end, pos + 1, 2);
+      pos += 3;
+      if (pos < end) {
+        if (s.charAt(pos) != '.' && s.charAt(pos) != ',') {
+          throw error(s, start, end, pos);
+        }
+        int n = end - pos - 1;
+        if (n < 1 || n > 9) {
+          throw error(s, start, end, pos);
+        }
+        nanos = digits(s, start, end, pos + 1, n);
+        for (int idx = n; idx < 9; ++idx) {
+          nanos *= 10;
+        }
+      }
+    }
+    if (hour > 23 || minute > 59 || second > 59) {
+      throw error(s, start, end, start);
+    }
+    return ((hour * 3600L + minute * 60L + second) * 1_000_000_000L) + nanos;
+  }
+
+  static int nanoOfDayToPackedTime(long nanoOfDay) {
+    return PackedLocalTime.ofMillisecondOfDay((int) (nanoOfDay / 1_000_000L));
+  }
+
+  /** Parse a packed local time from s[start,end). */
+  public static int parseLocalTime(CharSequence s, int start, int end) {
+    return nanoOfDayToPackedTime(parseNanoOfDay(s, start, end, start));
+  }
+
+  public static int parseLocalTime(CharSequence s) {
+    return parseLocalTime(s, 0, s.length());
+  }
+
+  static void expectDateTimeSeparator(CharSequence s, int start, int end) {
+    if (end - start < 16) {
+      throw error(s, start, end, start);
+    }
+    char sep = s.charAt(start + 10);
+    if (sep != 'T' && sep != ' ') {
+      throw error(s, start, end, start + 10);
+    }
+  }
+
+  /** Parse a packed local date time from s[start,end). */
+  public static long parseLocalDateTime(CharSequence s, int start, int end) {
+    expectDateTimeSeparator(s, start, end);
+    int date = parseLocalDate(s, start, start + 10, ISO_DATE);
+    int time = nanoOfDayToPackedTime(parseNanoOfDay(s, start, end, start + 11));
+    return PackedLocalDateTime.create(date, time);
+  }
+
+  public static long parseLocalDateTime(CharSequence s) {
+    return parseLocalDateTime(s, 0, s.length());
+  }
+
+  /**
+   * Parse an instant from s[start,end).  The result is in the packed instant
+   * representation, microseconds since the epoch.
+   */
+  public static long parseInstant(CharSequence s, int start, int end) {
+    expectDateTimeSeparator(s, start, end);
+    int zonePos = start + 16;
+    while (zonePos < end) {
+      char c = s.charAt(zonePos);
+      if (c == 'Z' || c == '+' || c == '-') {
+        break;
+      }
+      ++zonePos;
+    }
+    if (zonePos == end) {
+      throw error(s, start, end, end);
+    }
+    int offsetSeconds = 0;
+    char zoneChar = s.charAt(zonePos);
+    if (zoneChar == 'Z') {
+      if (zonePos + 1 != end) {
+        throw error(s, start, end, zonePos + 1);
+      }
+    } else {
+      int hours = digits(s, start, end, zonePos + 1, 2);
+      int minutes = 0;
+      int minutePos = zonePos + 3;
+      if (minutePos < end && s.charAt(minutePos) == ':') {
+        ++minutePos;
+      }
+      if (minutePos < end) {
+        minutes = digits(s, start, end, minutePos, 2);
+        if (minutePos + 2 != end) {
+          throw error(s, start, end, minutePos + 2);
+        }
+      }
+      if (hours > 18 || minutes > 59) {
+        throw error(s, start, end, zonePos);
+      }
+      offsetSeconds = (hours * 3600 + minutes * 60) * (zoneChar == '-' ? -1 : 1);
+    }
+    int date = parseLocalDate(s, start, start + 10, ISO_DATE);
+    long nanoOfDay = parseNanoOfDay(s, start, zonePos, start + 11);
+    long epochSecond = PackedLocalDate.toEpochDay(date) * 86400L
+        + nanoOfDay / 1_000_000_000L
+        - offsetSeconds;
+    return epochSecond * 1_000_000L + (nanoOfDay % 1_000_000_000L) / 1000L;
+  }
+
+  public static long parseInstant(CharSequence s) {
+    return parseInstant(s, 0, s.length());
+  }
+}
@@ -27,7 +27,6 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.Month;
 import java.time.chrono.IsoChronology;
-import java.time.temporal.ChronoField;
 import java.time.temporal.TemporalField;
 import java.time.temporal.WeekFields;
 import java.util.Locale;
@@ -286,15 +285,48 @@ public class PackedLocalDateTime extends PackedInstant {
   }
 
   public static long getMillisecondOfDay(long packedLocalDateTime) {
-    LocalDateTime localDateTime = PackedLocalDateTime.asLocalDateTime(packedLocalDateTime);
-    if (localDateTime == null) {
-      throw new IllegalArgumentException("Cannot get millisecond of day for missing value");
+    return PackedLocalTime.getMillisecondOfDay(time(packedLocalDateTime));
+  }
+
+  public static long toEpochDay(long packedDateTime) {
+    return PackedLocalDate.toEpochDay(date(packedDateTime));
+  }
+
+  /** Milliseconds since the epoch treating the date time as UTC */
+  public static long toEpochMilli(long packedDateTime) {
+    return toEpochDay(packedDateTime) * PackedLocalTime.MILLIS_PER_DAY
+        + getMillisecondOfDay(packedDateTime);
+  }
+
+  /** Inverse of toEpochMilli */
+  public static long ofEpochMilli(long epochMilli) {
+    long epochDay = Math.floorDiv(epochMilli, (long) PackedLocalTime.MILLIS_PER_DAY);
+    long milliOfDay = Math.floorMod(epochMilli, (long) PackedLocalTime.MILLIS_PER_DAY);
+    return create(PackedLocalDate.ofEpochDay(epochDay),
+                  PackedLocalTime.ofMillisecondOfDay((int) milliOfDay));
+  }
+
+  public static long plusMilliseconds(long millisToAdd, long packedDateTime) {
+    if (millisToAdd == 0) {
+      return packedDateTime;
     }
-    long total = (long) localDateTime.get(ChronoField.MILLI_OF_SECOND);
-    total += localDateTime.getSecond() * 1000;
-    total += localDateTime.getMinute() * 60 * 1000;
-    total += localDateTime.getHour() * 60 * 60 * 1000;
-    return total;
+    return ofEpochMilli(Math.addExact(toEpochMilli(packedDateTime), millisToAdd));
+  }
+
+  public static long minusMilliseconds(long millisToSubtract, long packedDateTime) {
+    return plusMilliseconds(-millisToSubtract, packedDateTime);
+  }
+
+  public static long plusDays(int days, long packedDateTime) {
+    return create(PackedLocalDate.plusDays(days, date(packedDateTime)), time(packedDateTime));
+  }
+
+  public static long plusMonths(int months, long packedDateTime) {
+    return create(PackedLocalDate.plusMonths(months, date(packedDateTime)), time(packedDateTime));
+  }
+
+  public static long plusYears(int years, long packedDateTime) {
+    return create(PackedLocalDate.plusYears(years, date(packedDateTime)), time(packedDateTime));
   }
 
   public static int lengthOfYear(long packedDateTime) {
@@ -329,7 +329,15 @@ public class PackedLocalTime {
   }
 
   public static int getMillisecondOfDay(int packedLocalTime) {
-    return (int) (toNanoOfDay(packedLocalTime) / 1000_000);
+    return getHour(packedLocalTime) * 3_600_000
+        + getMinute(packedLocalTime) * 60_000
+        + getMillisecondOfMinute(packedLocalTime);
+  }
+
+  public static int ofMillisecondOfDay(int millisOfDay) {
+    return create(millisOfDay / 3_600_000,
+                  (millisOfDay / 60_000) % 60,
+                  millisOfDay % 60_000);
   }
 
   public static boolean isMidnight(int packedTime) {
@@ -0,0 +1,133 @@
+package tech.v2.datatype;
+
+import java.nio.charset.StandardCharsets;
+import sun.misc.Unsafe;
+import xerial.larray.buffer.UnsafeUtil;
+
+
+/**
+ * Byte level operations on UTF-8 encoded strings.  Byte ranges are addressed
+ * as an Unsafe (object, offset) pair so the same code runs over native memory
+ * (null object and an absolute address) and over byte arrays (the array and
+ * BYTE_ARRAY_OFFSET + index).  Unsigned byte order of UTF-8 is code point
+ * order.
+ */
+public class Utf8Bytes
+{
+  static final Unsafe unsafe = UnsafeUtil.unsafe;
+  public static final long BYTE_ARRAY_OFFSET = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+
+  private Utf8Bytes() {}
+
+  /** Index of the first differing byte of two ranges of len bytes or -1. */
+  public static long mismatch(Object lhs, long lhsOff, Object rhs, long rhsOff, long len) {
+    long idx = 0;
+    for (; idx + 8 <= len; idx += 8) {
+      if (unsafe.getLong(lhs, lhsOff + idx) != unsafe.getLong(rhs, rhsOff + idx))
+        break;
+    }
+    for (; idx < len; ++idx) {
+      if (unsafe.getByte(lhs, lhsOff + idx) != unsafe.getByte(rhs, rhsOff + idx))
+        return idx;
+    }
+    return -1;
+  }
+
+  public static int compare(Object lhs, long lhsOff, long lhsLen,
+                            Object rhs, long rhsOff, long rhsLen) {
+    long pos = mismatch(lhs, lhsOff, rhs, rhsOff, Math.min(lhsLen, rhsLen));
+    if (pos < 0)
+      return Long.compare(lhsLen, rhsLen);
+    return Integer.compare(unsafe.getByte(lhs, lhsOff + pos) & 0xFF,
+                           unsafe.getByte(rhs, rhsOff + pos) & 0xFF);
+  }
+
+  public static boolean equals(Object lhs, long lhsOff, long lhsLen,
+                               Object rhs, long rhsOff, long rhsLen) {
+    return lhsLen == rhsLen && mismatch(lhs, lhsOff, rhs, rhsOff, lhsLen) < 0;
+  }
+
+  public static boolean startsWith(Object data, long dataOff, long dataLen,
+                                   Object prefix, long prefixOff, long prefixLen) {
+    return dataLen >= prefixLen && mismatch(data, dataOff, prefix, prefixOff, prefixLen) < 0;
+  }
+
+  public static boolean endsWith(Object data, long dataOff, long dataLen,
+                                 Object suffix, long suffixOff, long suffixLen) {
+    return dataLen >= suffixLen
+      && mismatch(data, dataOff + dataLen - suffixLen, suffix, suffixOff, suffixLen) < 0;
+  }
+
+  /**
+   * Length of the UTF-8 encoding of value.  As with String.getBytes, unpaired
+   * surrogates encode as '?'.
+   */
+  public static long encodedLength(CharSequence value) {
+    int n = value.length();
+    long retval = 0;
+    for (int idx = 0; idx < n; ++idx) {
+      char c = value.charAt(idx);
+      if (c < 0x80)
+        retval += 1;
+      else if (c < 0x800)
+        retval += 2;
+      else if (Character.isHighSurrogate(c) && idx + 1 < n
+               && Character.isLowSurrogate(value.charAt(idx + 1))) {
+        retval += 4;
+        ++idx;
+      }
+      else if (Character.isSurrogate(c))
+        retval += 1;
+      else
+        retval += 3;
+    }
+    return retval;
+  }
+
+  /**
+   * Encode value into native memory at address without an intermediate array.
+   * Returns the number of bytes written, which is encodedLength(value).
+   */
+  public static long encode(CharSequence value, long address) {
+    int n = value.length();
+    long pos = address;
+    for (int idx = 0; idx < n; ++idx) {
+      char c = value.charAt(idx);
+      if (c < 0x80) {
+        unsafe.putByte(pos++, (byte) c);
+      }
+      else if (c < 0x800) {
+        unsafe.putByte(pos++, (byte) (0xC0 | (c >> 6)));
+        unsafe.putByte(pos++, (byte) (0x80 | (c & 0x3F)));
+      }
+      else if (Character.isHighSurrogate(c) && idx + 1 < n
+               && Character.isLowSurrogate(value.charAt(idx + 1))) {
+        int cp = Character.toCodePoint(c, value.charAt(++idx));
+        unsafe.putByte(pos++, (byte) (0xF0 | (cp >> 18)));
+        unsafe.putByte(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+        unsafe.putByte(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+        unsafe.putByte(pos++, (byte) (0x80 | (cp & 0x3F)));
+      }
+      else if (Character.isSurrogate(c)) {
+        unsafe.putByte(pos++, (byte) '?');
+      }
+      else {
+        unsafe.putByte(pos++, (byte) (0xE0 | (c >> 12)));
+        unsafe.putByte(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+        unsafe.putByte(pos++, (byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    return pos - address;
+  }
+
+  /** Copy len bytes of native memory at address into a new array. */
+  public static byte[] toBytes(long address, long len) {
+    byte[] retval = new byte[Math.toIntExact(len)];
+    unsafe.copyMemory(null, address, retval, BYTE_ARRAY_OFFSET, len);
+    return retval;
+  }
+
+  public static String decode(long address, long len) {
+    return new String(toBytes(address, len), StandardCharsets.UTF_8);
+  }
+}
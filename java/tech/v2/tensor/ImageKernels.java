@@ -0,0 +1,229 @@
+package tech.v2.tensor;
+
+
+/**
+ * Separable resampling and channel conversion kernels for interleaved
+ * [height width channels] image data.  All work methods take a row (or pixel)
+ * range so callers can split an image across threads.
+ *
+ * <p>Resampling runs a horizontal pass from the source into a float
+ * intermediate of shape [src-height dst-width channels] and then a vertical
+ * pass from the intermediate into the destination.
+ */
+public class ImageKernels
+{
+  public static final int AREA = 0;
+  public static final int BILINEAR = 1;
+  public static final int BICUBIC = 2;
+  public static final int LANCZOS3 = 3;
+
+  private ImageKernels() {}
+
+  static double support(int kernel) {
+    switch (kernel) {
+    case AREA: return 0.5;
+    case BILINEAR: return 1.0;
+    case BICUBIC: return 2.0;
+    case LANCZOS3: return 3.0;
+    default: throw new IllegalArgumentException("Unrecognized kernel: " + kernel);
+    }
+  }
+
+  static double sinc(double x) {
+    if (x == 0.0)
+      return 1.0;
+    x *= Math.PI;
+    return Math.sin(x) / x;
+  }
+
+  static double filter(int kernel, double x) {
+    switch (kernel) {
+    case AREA:
+      return (x >= -0.5 && x < 0.5) ? 1.0 : 0.0;
+    case BILINEAR:
+      x = Math.abs(x);
+      return x < 1.0 ? 1.0 - x : 0.0;
+    case BICUBIC: {
+      //Keys cubic with a = -0.5
+      final double a = -0.5;
+      x = Math.abs(x);
+      if (x < 1.0)
+        return ((a + 2.0) * x - (a + 3.0)) * x * x + 1.0;
+      if (x < 2.0)
+        return (((x - 5.0) * x + 8.0) * x - 4.0) * a;
+      return 0.0;
+    }
+    case LANCZOS3:
+      return (x > -3.0 && x < 3.0) ? sinc(x) * sinc(x / 3.0) : 0.0;
+    default: throw new IllegalArgumentException("Unrecognized kernel: " + kernel);
+    }
+  }
+
+  /**
+   * Normalized filter weights mapping every destination index along one axis
+   * to a run of source indexes.  Destination index i reads counts[i] source
+   * entries starting at starts[i] with weights starting at i * stride.
+   */
+  public static final class Contributions
+  {
+    public final int[] starts;
+    public final int[] counts;
+    public final float[] weights;
+    public final int stride;
+
+    Contributions(int[] starts, int[] counts, float[] weights, int stride) {
+      this.starts = starts;
+      this.counts = counts;
+      this.weights = weights;
+      this.stride = stride;
+    }
+  }
+
+  public static Contributions contributions(int srcSize, int dstSize, int kernel) {
+    double scale = (double) srcSize / dstSize;
+    //Widen the filter when downsampling so every source pixel contributes.
+    double filterScale = Math.max(scale, 1.0);
+    double support = support(kernel) * filterScale;
+    int stride = (int) Math.ceil(support) * 2 + 1;
+    int[] starts = new int[dstSize];
+    int[] counts = new int[dstSize];
+    float[] weights = new float[dstSize * stride];
+    double[] scratch = new double[stride];
+    for (int idx = 0; idx < dstSize; ++idx) {
+      double center = (idx + 0.5) * scale;
+      int start = Math.max(0, (int) (center - support + 0.5));
+      int end = Math.min(srcSize, (int) (center + support + 0.5));
+      int count = Math.min(end - start, stride);
+      double total = 0.0;
+      for (int widx = 0; widx < count; ++widx) {
+        double w = filter(kernel, (widx + start - center + 0.5) / filterScale);
+        scratch[widx] = w;
+        total += w;
+      }
+      if (total == 0.0) {
+        //Only possible at the edges with the box filter; fall back to nearest.
+        start = Math.min(srcSize - 1, (int) center);
+        count = 1;
+        scratch[0] = 1.0;
+        total = 1.0;
+      }
+      starts[idx] = start;
+      counts[idx] = count;
+      int woff = idx * stride;
+      for (int widx = 0; widx < count; ++widx)
+        weights[woff + widx] = (float) (scratch[widx] / total);
+    }
+    return new Contributions(starts, counts, weights, stride);
+  }
+
+  /** Horizontal pass over uint8 source rows [rowStart, rowEnd). */
+  public static void horizontalU8(byte[] src, int srcOffset, int srcWidth, int channels,
+                                  float[] dst, int dstWidth, Contributions c,
+                                  int rowStart, int rowEnd) {
+    int srcRowLen = srcWidth * channels;
+    int dstRowLen = dstWidth * channels;
+    for (int row = rowStart; row < rowEnd; ++row) {
+      int srcRow = srcOffset + row * srcRowLen;
+      int dstRow = row * dstRowLen;
+      for (int x = 0; x < dstWidth; ++x) {
+        int start = srcRow + c.starts[x] * channels;
+        int count = c.counts[x];
+        int woff = x * c.stride;
+        for (int chan = 0; chan < channels; ++chan) {
+          float sum = 0.0f;
+          for (int widx = 0; widx < count; ++widx)
+            sum += (src[start + widx * channels + chan] & 0xFF) * c.weights[woff + widx];
+          dst[dstRow + x * channels + chan] = sum;
+        }
+      }
+    }
+  }
+
+  /** Horizontal pass over float32 source rows [rowStart, rowEnd). */
+  public static void horizontalF32(float[] src, int srcOffset, int srcWidth, int channels,
+                                   float[] dst, int dstWidth, Contributions c,
+                                   int rowStart, int rowEnd) {
+    int srcRowLen = srcWidth * channels;
+    int dstRowLen = dstWidth * channels;
+    for (int row = rowStart; row < rowEnd; ++row) {
+      int srcRow = srcOffset + row * srcRowLen;
+      int dstRow = row * dstRowLen;
+      for (int x = 0; x < dstWidth; ++x) {
+        int start = srcRow + c.starts[x] * channels;
+        int count = c.counts[x];
+        int woff = x * c.stride;
+        for (int chan = 0; chan < channels; ++chan) {
+          float sum = 0.0f;
+          for (int widx = 0; widx < count; ++widx)
+            sum += src[start + widx * channels + chan] * c.weights[woff + widx];
+          dst[dstRow + x * channels + chan] = sum;
+        }
+      }
+    }
+  }
+
+  /**
+   * Vertical pass producing uint8 destination rows [rowStart, rowEnd).  Results
+   * are rounded and clamped to [0, 255].
+   */
+  public static void verticalU8(float[] src, int rowLen, byte[] dst, int dstOffset,
+                                Contributions c, int rowStart, int rowEnd) {
+    for (int row = rowStart; row < rowEnd; ++row) {
+      int start = c.starts[row] * rowLen;
+      int count = c.counts[row];
+      int woff = row * c.stride;
+      int dstRow = dstOffset + row * rowLen;
+      for (int idx = 0; idx < rowLen; ++idx) {
+        float sum = 0.0f;
+        for (int widx = 0; widx < count; ++widx)
+          sum += src[start + widx * rowLen + idx] * c.weights[woff + widx];
+        int value = Math.round(sum);
+        dst[dstRow + idx] = (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+      }
+    }
+  }
+
+  /** Vertical pass producing float32 destination rows [rowStart, rowEnd). */
+  public static void verticalF32(float[] src, int rowLen, float[] dst, int dstOffset,
+                                 Contributions c, int rowStart, int rowEnd) {
+    for (int row = rowStart; row < rowEnd; ++row) {
+      int start = c.starts[row] * rowLen;
+      int count = c.counts[row];
+      int woff = row * c.stride;
+      int dstRow = dstOffset + row * rowLen;
+      for (int idx = 0; idx < rowLen; ++idx) {
+        float sum = 0.0f;
+        for (int widx = 0; widx < count; ++widx)
+          sum += src[start + widx * rowLen + idx] * c.weights[woff + widx];
+        dst[dstRow + idx] = sum;
+      }
+    }
+  }
+
+  /**
+   * Convert pixels [pixelStart, pixelEnd) between interleaved uint8 channel
+   * layouts.  srcMap holds the source channel index of b, g, r and a; gray
+   * sources use the same index for b, g and r.  dstMap holds the destination
+   * channel index of b, g, r, a and gray.  A negative index means the channel
+   * is absent; absent source alpha is treated as opaque.  Gray is computed with
+   * the ITU-R BT.601 luma weights.
+   */
+  public static void convertPixels(byte[] src, int srcOffset, int srcChannels, int[] srcMap,
+                                   byte[] dst, int dstOffset, int dstChannels, int[] dstMap,
+                                   int pixelStart, int pixelEnd) {
+    int sb = srcMap[0], sg = srcMap[1], sr = srcMap[2], sa = srcMap[3];
+    int db = dstMap[0], dg = dstMap[1], dr = dstMap[2], da = dstMap[3], dgray = dstMap[4];
+    for (int pix = pixelStart; pix < pixelEnd; ++pix) {
+      int soff = srcOffset + pix * srcChannels;
+      int doff = dstOffset + pix * dstChannels;
+      int b = src[soff + sb] & 0xFF;
+      int g = src[soff + sg] & 0xFF;
+      int r = src[soff + sr] & 0xFF;
+      if (db >= 0) dst[doff + db] = (byte) b;
+      if (dg >= 0) dst[doff + dg] = (byte) g;
+      if (dr >= 0) dst[doff + dr] = (byte) r;
+      if (da >= 0) dst[doff + da] = sa >= 0 ? src[soff + sa] : (byte) 0xFF;
+      if (dgray >= 0) dst[doff + dgray] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+    }
+  }
+}
@@ -2,6 +2,7 @@
   (:require [tech.compute.driver :as drv]
             [tech.compute.registry :as registry]
             [tech.compute.context :as compute-ctx]
+            [tech.compute.host-buffer-pool :as host-pool]
             [tech.v2.datatype :as dtype]
             [clojure.test :refer :all]
             [tech.resource :as resource]))
@@ -63,6 +64,27 @@ intended usage of the buffer."
                                              :usage-type usage-type)))
 
 
+(defn release-host-buffer!
+  "Return a host buffer allocated with :usage-type :reusable to the host buffer pool.
+  Other buffers are ignored.  The buffer must not be used afterwards."
+  [host-buffer]
+  (host-pool/release! host-buffer))
+
+
+(defn host-buffer-pool-stats
+  "Hit/miss counts and pooled byte totals of the reusable host buffer pool."
+  []
+  (host-pool/stats))
+
+
+(defn trim-host-buffer-pool!
+  "Release pooled host buffers until at most target-bytes (default 0) remain pooled."
+  ([target-bytes]
+   (host-pool/trim! target-bytes))
+  ([]
+   (host-pool/trim!)))
+
+
 ;; Device API
 
 (defn supports-create-stream?
@@ -6,7 +6,11 @@
             [tech.resource :as resource]
             [tech.resource.stack :as stack]
             [tech.compute :as compute]
-            [tech.compute.registry :as registry]))
+            [tech.compute.registry :as registry]
+            [tech.compute.host-buffer-pool :as host-pool])
+  (:import [java.util.concurrent ForkJoinPool ForkJoinTask CompletableFuture
+            ConcurrentLinkedQueue]
+           [java.util.concurrent.atomic AtomicBoolean]))
 
 
 (set! *warn-on-reflection* true)
@@ -20,7 +24,7 @@
 
 
 (defrecord CPUDevice [driver-fn device-id error-atom default-stream])
-(defrecord CPUStream [device-fn input-chan exit-chan error-atom]
+(defrecord CPUStream [device-fn input-chan exit-chan error-atom executor]
   PToCPUStream
   (->cpu-stream [item] item))
 (defrecord CPUDriver [devices error-atom])
@@ -52,11 +56,80 @@
   (get-stream [stream] stream))
 
 
+(defprotocol PStreamExecutor
+  (submit! [executor f]
+    "Queue f to run after everything previously submitted.")
+  (submit-barrier! [executor ^CompletableFuture future]
+    "Nothing submitted afterwards runs until future completes.")
+  (shutdown! [executor]))
+
+
+(defn- drain-executor!
+  "Run queued work in submission order on the current pool thread.  Suspends
+  without blocking the thread when it reaches an incomplete barrier."
+  [^ForkJoinPool pool ^ConcurrentLinkedQueue queue ^AtomicBoolean scheduled?
+   error-atom]
+  (let [resume #(drain-executor! pool queue scheduled? error-atom)]
+    (if (loop []
+          (let [item (.peek queue)]
+            (cond
+              (nil? item)
+              true
+              (instance? CompletableFuture item)
+              (if (.isDone ^CompletableFuture item)
+                (do (.poll queue) (recur))
+                (do
+                  (.poll queue)
+                  (.thenRun ^CompletableFuture item
+                            (reify Runnable
+                              (run [this] (.execute pool ^Runnable resume))))
+                  false))
+              :else
+              (do
+                (.poll queue)
+                (try
+                  (item)
+                  (catch Throwable e
+                    (reset! error-atom e)))
+                (recur)))))
+      ;;Queue drained.  Release the schedule flag, then pick up anything that
+      ;;raced in between the last poll and the release.
+      (do
+        (.set scheduled? false)
+        (when (and (not (.isEmpty queue))
+                   (.compareAndSet scheduled? false true))
+          (.execute pool ^Runnable resume)))
+      ;;Suspended on a barrier; the flag stays set until the barrier resumes us.
+      nil)))
+
+
+(deftype WorkStealingExecutor [^ForkJoinPool pool
+                               ^ConcurrentLinkedQueue queue
+                               ^AtomicBoolean scheduled?
+                               ^AtomicBoolean shutdown?
+                               error-atom]
+  PStreamExecutor
+  (submit! [this f]
+    (when (.get shutdown?)
+      (throw (ex-info "Stream has been released" {})))
+    (.add queue f)
+    ;;Ops submitted while a drain is running are batched into that drain
+    (when (.compareAndSet scheduled? false true)
+      (.execute pool ^Runnable #(drain-executor! pool queue scheduled? error-atom))))
+  (submit-barrier! [this future]
+    (submit! this future))
+  ;;As with closing a thread stream's channel, work already queued still drains.
+  (shutdown! [this]
+    (.set shutdown? true)))
+
+
 (extend-type CPUStream
   stack/PResource
   (release-resource [impl]
-    (when (.input-chan impl)
-      (async/close! (.input-chan impl)))))
+    (when-let [input-chan (.input-chan impl)]
+      (async/close! input-chan))
+    (when-let [executor (.executor impl)]
+      (shutdown! executor))))
 
 
 (defn get-memory-info
@@ -68,7 +141,7 @@
 (defn cpu-stream
   ([device error-atom]
    (let [^CPUStream retval (->CPUStream (constantly device) (async/chan 16)
-                                        (async/chan) error-atom)]
+                                        (async/chan) error-atom nil)]
      (async/thread
        (loop [next-val (async/<!! (:input-chan retval))]
          (when next-val
@@ -81,13 +154,46 @@
      (resource/track retval)))
   ([device] (cpu-stream device (atom nil))))
 
+(def ^:dynamic *parallel-split-threshold*
+  "Element count above which work-stealing streams split copies across the pool."
+  65536)
+
+
+(def ^:dynamic *work-stealing-streams?*
+  "When true the cpu device creates work-stealing streams instead of streams with
+  a dedicated thread."
+  false)
+
+
+(defn work-stealing-stream
+  "Create a cpu stream that runs on a work-stealing pool instead of a dedicated
+  thread.  Submitted operations keep stream order but consecutive small
+  operations run as one batch on whichever pool thread picks them up, and large
+  operations are split across the pool.  Defaults to the common pool.  See
+  *work-stealing-streams?* to have the cpu device create these streams."
+  ([device error-atom ^ForkJoinPool pool]
+   (resource/track
+    (->CPUStream (constantly device) nil nil error-atom
+                 (WorkStealingExecutor. pool (ConcurrentLinkedQueue.)
+                                        (AtomicBoolean. false)
+                                        (AtomicBoolean. false) error-atom))))
+  ([device error-atom]
+   (work-stealing-stream device error-atom (ForkJoinPool/commonPool)))
+  ([device] (work-stealing-stream device (atom nil))))
+
+
+(defn- work-stealing-stream?
+  [stream]
+  (boolean (:executor (->cpu-stream stream))))
+
+
 (declare driver)
 
 (defn main-thread-cpu-stream
   "Create a cpu stream that will execute everything immediately inline.
 Use with care; the synchonization primitives will just hang with this stream."
   ^CPUStream []
-  (->CPUStream (constantly (compute/default-device (driver))) nil nil nil))
+  (->CPUStream (constantly (compute/default-device (driver))) nil nil nil nil))
 
 
 (defn is-main-thread-cpu-stream?
@@ -95,7 +201,8 @@ Use with care; the synchonization primitives will just hang with this stream."
   (let [^CPUStream stream (->cpu-stream stream)]
     (not (or (.input-chan stream)
              (.exit-chan stream)
-             (.error-atom stream)))))
+             (.error-atom stream)
+             (.executor stream)))))
 
 
 (defn is-thread-cpu-stream?
@@ -117,16 +224,57 @@ Use with care; the synchonization primitives will just hang with this stream."
   (check-stream-error-atom (->cpu-stream item)))
 
 
+(defn stream-dispatch!
+  [stream f]
+  (if (is-thread-cpu-stream? stream)
+    (do
+      (check-stream-error stream)
+      (let [^CPUStream stream (->cpu-stream stream)]
+        (if-let [executor (.executor stream)]
+          (submit! executor f)
+          (async/>!! (.input-chan stream) f))))
+    (f)))
+
+
 (defmacro with-stream-dispatch
   [stream & body]
-  `(if (is-thread-cpu-stream? ~stream)
-     (do
-       (check-stream-error ~stream)
-       (let [^CPUStream stream# (->cpu-stream ~stream)]
-         (async/>!! (.input-chan stream#)
-                    (fn [] ~@body))))
-     (do
-       ~@body)))
+  `(stream-dispatch! ~stream (fn [] ~@body)))
+
+
+(defn parallel-dispatch!
+  "Dispatch an elementwise operation over n-elems onto the stream.  (range-fn
+  start-idx n-indexes) is called for disjoint ranges covering [0, n-elems).
+  Work-stealing streams fork large ranges across their pool; other streams run
+  the whole range in one call."
+  [stream n-elems range-fn]
+  (let [n-elems (long n-elems)
+        split-threshold (long *parallel-split-threshold*)]
+    (if (and (work-stealing-stream? stream)
+             (> n-elems split-threshold))
+      (stream-dispatch!
+       stream
+       (fn []
+         (let [n-tasks (min (quot n-elems (max 1 (quot split-threshold 2)))
+                            (* 4 (.availableProcessors (Runtime/getRuntime))))
+               task-size (quot (+ n-elems (dec n-tasks)) n-tasks)]
+           ;;Forked from a pool thread so idle workers steal the pieces
+           (ForkJoinTask/invokeAll
+            ^java.util.Collection
+            (mapv (fn [^long start]
+                    (ForkJoinTask/adapt
+                     ^Runnable #(range-fn start (min task-size (- n-elems start)))))
+                  (range 0 n-elems task-size))))))
+      (stream-dispatch! stream #(range-fn 0 n-elems)))))
+
+
+(defn- stream-copy!
+  [stream src src-offset dst dst-offset elem-count]
+  (let [src-offset (long src-offset)
+        dst-offset (long dst-offset)]
+    (parallel-dispatch!
+     stream elem-count
+     (fn [^long start ^long n-elems]
+       (dtype/copy! src (+ src-offset start) dst (+ dst-offset start) n-elems)))))
 
 
 (defrecord CPUEvent [input-chan])
@@ -136,15 +284,12 @@ Use with care; the synchonization primitives will just hang with this stream."
   drv/PStream
   (copy-host->device [stream host-buffer host-offset
                       device-buffer device-offset elem-count]
-    (with-stream-dispatch stream
-      (dtype/copy! host-buffer host-offset device-buffer device-offset elem-count)))
+    (stream-copy! stream host-buffer host-offset device-buffer device-offset elem-count))
   (copy-device->host [stream device-buffer device-offset host-buffer
                       host-offset elem-count]
-    (with-stream-dispatch stream
-      (dtype/copy! device-buffer device-offset host-buffer host-offset elem-count)))
+    (stream-copy! stream device-buffer device-offset host-buffer host-offset elem-count))
   (copy-device->device [stream dev-a dev-a-off dev-b dev-b-off elem-count]
-    (with-stream-dispatch stream
-      (dtype/copy! dev-a dev-a-off dev-b dev-b-off elem-count)))
+    (stream-copy! stream dev-a dev-a-off dev-b dev-b-off elem-count))
   (sync-with-host [stream]
     ;;If main thread cpu stream then we are already syncced
     (when-not (is-main-thread-cpu-stream? stream)
@@ -156,15 +301,20 @@ Use with care; the synchonization primitives will just hang with this stream."
     (let [^CPUEvent event (->CPUEvent (async/chan))]
       (with-stream-dispatch src-stream
         (async/close! (.input-chan event)))
-      (with-stream-dispatch dst-stream
-        (async/<!! (.input-chan event))))))
+      (if (work-stealing-stream? dst-stream)
+        ;;Chain the dependency instead of parking a pool thread on the event
+        (let [barrier (CompletableFuture.)]
+          (async/take! (.input-chan event) (fn [_] (.complete barrier nil)))
+          (submit-barrier! (:executor (->cpu-stream dst-stream)) barrier))
+        (with-stream-dispatch dst-stream
+          (async/<!! (.input-chan event)))))))
 
 
 (defn make-cpu-device
   [driver-fn dev-number error-atom]
   (let [retval (->CPUDevice driver-fn dev-number error-atom (atom nil))
         ;;Default cpu stream runs in the main thread of execution
-        default-stream (->CPUStream (constantly retval) nil nil nil)]
+        default-stream (->CPUStream (constantly retval) nil nil nil nil)]
     (reset! (:default-stream retval) default-stream)
     retval))
 
@@ -181,7 +331,9 @@ Use with care; the synchonization primitives will just hang with this stream."
 
   (create-stream [impl]
     (check-stream-error-atom impl)
-    (cpu-stream impl (:error-atom impl)))
+    (if *work-stealing-streams?*
+      (work-stealing-stream impl (:error-atom impl))
+      (cpu-stream impl (:error-atom impl))))
 
   (allocate-device-buffer [impl elem-count elem-type options]
     (check-stream-error-atom impl)
@@ -203,7 +355,11 @@ Use with care; the synchonization primitives will just hang with this stream."
 
   (allocate-host-buffer [impl elem-count elem-type options]
     (check-stream-error-atom impl)
-    (dtype/make-container :native-buffer elem-type elem-count options))
+    (if (= :reusable (:usage-type options))
+      (host-pool/acquire! driver-name elem-type elem-count
+                          #(dtype/make-container :native-buffer elem-type %
+                                                 (dissoc options :usage-type)))
+      (dtype/make-container :native-buffer elem-type elem-count options)))
 
   (acceptable-host-buffer? [impl item]
     (dtype-proto/convertible-to-writer? item)))
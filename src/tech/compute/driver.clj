@@ -45,7 +45,9 @@ options:
 :usage-type
 usage-type: #{:one-time :reusable}
   Hint to allow implementations to allocate different types of host buffers each
-  optimized for the desired use case.  Default is one-time.")
+  optimized for the desired use case.  Default is one-time.  Reusable buffers may
+  come from a pool and should be handed back with
+  tech.compute/release-host-buffer! once no stream is using them.")
   (acceptable-host-buffer? [driver buffer]
     "Will this buffer work as a host buffer?"))
 
@@ -0,0 +1,213 @@
+(ns tech.compute.host-buffer-pool
+  "Size-classed pool of host buffers backing the :reusable host buffer usage type.
+  Buffers are rounded up to a power-of-two element count, keyed by driver and
+  datatype, and handed out as sub-buffers of the pooled allocation.  Returned
+  buffers are held through soft references so the garbage collector trims the
+  pool under memory pressure; trim! releases them explicitly."
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.casting :as casting])
+  (:import [java.util.concurrent ConcurrentHashMap ConcurrentLinkedDeque]
+           [java.util.concurrent.atomic AtomicLong LongAdder]
+           [java.util HashMap List ArrayList]
+           [java.lang.ref SoftReference WeakReference ReferenceQueue]
+           [java.util.function Function]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(def ^:dynamic *max-pooled-bytes*
+  "Buffers returned while the pool holds more than this many bytes are dropped."
+  (* 256 1024 1024))
+
+
+;;[driver-name datatype size-class] -> deque of soft references to buffers
+(defonce ^:private pools (ConcurrentHashMap.))
+;;Buffers that are checked out, keyed by identity hash code (nio buffers hash by
+;;content).  Each entry is [weak-ref-to-buffer pool-key pooled-buffer n-bytes];
+;;entries for buffers collected without being released are purged through
+;;outstanding-queue.
+(defonce ^:private outstanding (HashMap.))
+(defonce ^:private outstanding-queue (ReferenceQueue.))
+;;Weak reference of an outstanding entry -> its key in outstanding so collected
+;;entries are found without scanning.  References compare by identity.
+(defonce ^:private outstanding-keys (HashMap.))
+(defonce ^:private pooled-bytes (AtomicLong. 0))
+(defonce ^:private hits (LongAdder.))
+(defonce ^:private misses (LongAdder.))
+(defonce ^:private dropped (LongAdder.))
+
+
+(defn- size-class
+  ^long [^long elem-count]
+  (if (<= elem-count 1)
+    1
+    (Long/highestOneBit (unchecked-dec (* 2 elem-count)))))
+
+
+(defn- class-bytes
+  ^long [datatype ^long size-class]
+  (* size-class (long (casting/numeric-byte-width datatype))))
+
+
+(defn- pool-deque
+  ^ConcurrentLinkedDeque [pool-key]
+  (.computeIfAbsent ^ConcurrentHashMap pools pool-key
+                    (reify Function
+                      (apply [this k] (ConcurrentLinkedDeque.)))))
+
+
+(defn- poll-live!
+  "Poll the deque until a buffer that hasn't been collected is found."
+  [^ConcurrentLinkedDeque deque ^long n-bytes]
+  (loop []
+    (when-let [^SoftReference buf-ref (.pollFirst deque)]
+      (.addAndGet ^AtomicLong pooled-bytes (- n-bytes))
+      (if-let [buf (.get buf-ref)]
+        buf
+        (recur)))))
+
+
+(defn- entry-ref ^WeakReference [entry] (nth entry 0))
+
+
+(defn- purge-collected!
+  "Drop outstanding entries whose buffers were collected.  Must hold outstanding."
+  []
+  (loop []
+    (when-let [collected (.poll ^ReferenceQueue outstanding-queue)]
+      (let [^HashMap outstanding outstanding]
+        (when-let [k (.remove ^HashMap outstanding-keys collected)]
+          (when-let [^List entries (.get outstanding k)]
+            (let [iter (.iterator entries)]
+              (while (.hasNext iter)
+                (when (identical? collected (entry-ref (.next iter)))
+                  (.remove iter))))
+            (when (.isEmpty entries)
+              (.remove outstanding k)))))
+      (recur))))
+
+
+(defn- add-outstanding!
+  [buffer pool-key pooled n-bytes]
+  (let [^HashMap outstanding outstanding]
+    (locking outstanding
+      (purge-collected!)
+      (let [hash-code (System/identityHashCode buffer)
+            ^List entries (.computeIfAbsent
+                           outstanding hash-code
+                           (reify Function
+                             (apply [this k] (ArrayList. 1))))
+            buf-ref (WeakReference. buffer outstanding-queue)]
+        (.put ^HashMap outstanding-keys buf-ref hash-code)
+        (.add entries [buf-ref pool-key pooled n-bytes])))))
+
+
+(defn- find-outstanding
+  "Find (and remove when remove? is true) the outstanding entry of buffer."
+  [buffer remove?]
+  (let [^HashMap outstanding outstanding
+        hash-code (System/identityHashCode buffer)]
+    (locking outstanding
+      (when-let [^List entries (.get outstanding hash-code)]
+        (let [iter (.iterator entries)]
+          (loop []
+            (when (.hasNext iter)
+              (let [entry (.next iter)]
+                (if (identical? buffer (.get (entry-ref entry)))
+                  (do
+                    (when remove?
+                      (.remove iter)
+                      (.remove ^HashMap outstanding-keys (entry-ref entry))
+                      (when (.isEmpty entries)
+                        (.remove outstanding hash-code)))
+                    entry)
+                  (recur))))))))))
+
+
+(defn acquire!
+  "Get a buffer of elem-count elements of datatype from the pool, allocating a
+  new size-class buffer with (alloc-fn n-elems) when none is available."
+  [driver-name datatype elem-count alloc-fn]
+  (let [elem-count (long elem-count)
+        n-elems (size-class elem-count)
+        pool-key [driver-name datatype n-elems]
+        n-bytes (class-bytes datatype n-elems)
+        pooled (if-let [buf (poll-live! (pool-deque pool-key) n-bytes)]
+                 (do (.increment ^LongAdder hits)
+                     buf)
+                 (do (.increment ^LongAdder misses)
+                     (alloc-fn n-elems)))
+        retval (if (== n-elems elem-count)
+                 pooled
+                 (dtype/sub-buffer pooled 0 elem-count))]
+    ;;Holding retval strongly would keep the weak reference from ever clearing.
+    (add-outstanding! retval pool-key (when-not (identical? retval pooled) pooled)
+                      n-bytes)
+    retval))
+
+
+(defn release!
+  "Return a buffer obtained from acquire! to the pool.  Buffers that did not come
+  from the pool are ignored.  Returns true if the buffer was pooled."
+  [buffer]
+  (if-let [[_ pool-key pooled n-bytes] (find-outstanding buffer true)]
+    (let [n-bytes (long n-bytes)]
+      (if (<= (+ (.get ^AtomicLong pooled-bytes) n-bytes)
+              (long *max-pooled-bytes*))
+        (do
+          (.addAndGet ^AtomicLong pooled-bytes n-bytes)
+          (.offerFirst (pool-deque pool-key) (SoftReference. (or pooled buffer)))
+          true)
+        (do (.increment ^LongAdder dropped)
+            false)))
+    false))
+
+
+(defn pooled?
+  "True if buffer is currently checked out of the pool."
+  [buffer]
+  (boolean (find-outstanding buffer false)))
+
+
+(defn trim!
+  "Drop pooled buffers until at most target-bytes remain.  Returns the number of
+  bytes still pooled."
+  ([target-bytes]
+   (let [target-bytes (long target-bytes)]
+     (doseq [[[_ datatype n-elems] deque] pools]
+       (let [n-bytes (class-bytes datatype n-elems)]
+         (loop []
+           (when (and (> (.get ^AtomicLong pooled-bytes) target-bytes)
+                      (.pollLast ^ConcurrentLinkedDeque deque))
+             (.addAndGet ^AtomicLong pooled-bytes (- n-bytes))
+             (recur)))))
+     (.get ^AtomicLong pooled-bytes)))
+  ([]
+   (trim! 0)))
+
+
+(defn stats
+  "Pool statistics:
+  :hits :misses - acquisitions served from / missing the pool.
+  :dropped - releases rejected because the pool was full.
+  :bytes-pooled - bytes held by the pool, including buffers that have been
+    collected but not yet noticed.
+  :buffers-pooled - number of buffers held by the pool."
+  []
+  {:hits (.sum ^LongAdder hits)
+   :misses (.sum ^LongAdder misses)
+   :dropped (.sum ^LongAdder dropped)
+   :bytes-pooled (.get ^AtomicLong pooled-bytes)
+   :buffers-pooled (->> (vals pools)
+                        (map #(.size ^ConcurrentLinkedDeque %))
+                        (reduce + 0))})
+
+
+(defn reset-stats!
+  []
+  (.reset ^LongAdder hits)
+  (.reset ^LongAdder misses)
+  (.reset ^LongAdder dropped)
+  (stats))
@@ -2,6 +2,7 @@
   "Functions for dealing with tensors with the compute system"
   (:require [tech.compute.driver :as drv]
             [tech.compute.context :as compute-ctx]
+            [tech.compute.host-buffer-pool :as host-pool]
             [tech.v2.datatype :as dtype]
             [tech.v2.datatype.protocols :as dtype-proto]
             [tech.v2.tensor.impl :as dtt-impl]
@@ -77,20 +78,30 @@ no offset, no transpose, all data must be dense.")))
          input-tens-buf (dtt/tensor->buffer input-tens)
          {:keys [device stream]} (compute-ctx/options->context options)
          datatype (dtype/get-datatype input-tens-buf)
-         input-tens-buf (if (drv/acceptable-device-buffer? device input-tens-buf)
-                          input-tens-buf
-                          (dtype/make-container :native-buffer
-                                                datatype
-                                                input-tens-buf
-                                                {:unchecked? true}))
          n-elems (dtype/ecount input-tens-buf)
+         ;;A synchronized copy knows when the staging buffer is free again so it
+         ;;can borrow one from the host buffer pool.
+         staging-buf (when-not (drv/acceptable-device-buffer? device input-tens-buf)
+                       (if (:sync? options)
+                         (drv/allocate-host-buffer (drv/get-driver device)
+                                                   n-elems datatype
+                                                   {:usage-type :reusable})
+                         (dtype/make-container :native-buffer datatype n-elems)))
+         input-tens-buf (if staging-buf
+                          (do
+                            (dtype/copy-raw->item! input-tens-buf staging-buf 0
+                                                   {:unchecked? true})
+                            staging-buf)
+                          input-tens-buf)
          dev-buf (drv/allocate-device-buffer device n-elems datatype options)]
      (drv/copy-device->device stream
                               input-tens-buf 0
                               dev-buf 0
                               n-elems)
      (when (:sync? options)
-       (drv/sync-with-host stream))
+       (drv/sync-with-host stream)
+       (when staging-buf
+         (host-pool/release! staging-buf)))
      (dtt-impl/construct-tensor dev-buf (dtt/tensor->dimensions input-tens))))
   ([input-tens]
    (clone-to-device input-tens {})))
@@ -120,7 +131,11 @@ no offset, no transpose, all data must be dense.")))
 
 
 (defn clone-to-host
-  "Copy this tensor to the host.  Synchronized by default."
+  "Copy this tensor to the host.  Synchronized by default.
+  options:
+  :sync? Sync with stream to ensure copy operation is finished before moving forward.
+  :usage-type When :reusable the host buffer is borrowed from the host buffer pool.
+    Return it with release-host-tensor! once the host tensor is no longer used."
   ([device-tens options]
    (let [options (update options
                          :sync?
@@ -142,6 +157,14 @@ no offset, no transpose, all data must be dense.")))
    (clone-to-host device-tens {:sync? true})))
 
 
+(defn release-host-tensor!
+  "Return the buffer of a host tensor cloned with :usage-type :reusable to the host
+  buffer pool.  The tensor must not be used afterwards.  Returns true if the buffer
+  was pooled."
+  [host-tens]
+  (host-pool/release! (dtt/tensor->buffer host-tens)))
+
+
 (defn ensure-host
   "Ensure this tensor is a 'host' tensor.  Synchronized by default."
   ([device-tens options]
@@ -5,6 +5,7 @@
             [tech.v2.datatype :as dtype]
             [tech.v2.tensor :as dtt]
             [tech.compute.tensor :as ct]
+            [tech.compute :as compute]
             [tech.resource :as resource]
             [clojure.test :refer :all]))
 
@@ -33,6 +34,25 @@
        (is (dfn/equals sub-tens host-tens))))))
 
 
+(defn clone-reusable
+  [driver datatype]
+  (verify-context
+   driver datatype
+   (let [tensor (ct/->tensor (partition 3 (range 9)))
+         dev-tens (ct/clone-to-device tensor)
+         clone-host #(ct/clone-to-host dev-tens {:usage-type :reusable})
+         host-tens (clone-host)
+         {:keys [hits]} (compute/host-buffer-pool-stats)]
+     (is (dfn/equals tensor host-tens))
+     (is (ct/release-host-tensor! host-tens))
+     ;;Cloning the same shape again reuses the released buffer
+     (let [host-tens (clone-host)]
+       (is (= (inc (long hits)) (:hits (compute/host-buffer-pool-stats))))
+       (is (dfn/equals tensor host-tens))
+       (is (ct/release-host-tensor! host-tens))
+       (is (not (ct/release-host-tensor! (ct/clone-to-host dev-tens))))))))
+
+
 (defn assign!
   [driver datatype]
   (verify-context
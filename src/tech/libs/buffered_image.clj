@@ -7,6 +7,7 @@
             [tech.v2.datatype.typecast :as typecast]
             [tech.v2.datatype.casting :as casting]
             [tech.v2.tensor :as dtt]
+            [tech.parallel.for :as parallel-for]
             [clojure.java.io :as io]
             [clojure.set :as c-set]
             [clojure.string :as s])
@@ -17,6 +18,7 @@
            [java.awt RenderingHints Graphics2D]
            [java.io InputStream]
            [tech.v2.datatype ShortReader ShortWriter]
+           [tech.v2.tensor ImageKernels ImageKernels$Contributions]
            [javax.imageio ImageIO])
   (:refer-clojure :exclude [load]))
 
@@ -204,7 +206,7 @@
   (.. img getRaster getDataBuffer))
 
 
-(declare draw-image! as-ubyte-tensor)
+(declare draw-image! as-ubyte-tensor resize)
 
 
 (extend-type BufferedImage
@@ -506,6 +508,215 @@
     dst-image))
 
 
+(def resample-kernels
+  {:area ImageKernels/AREA
+   :bilinear ImageKernels/BILINEAR
+   :bicubic ImageKernels/BICUBIC
+   :lanczos3 ImageKernels/LANCZOS3})
+
+
+(defn- resample-kernel
+  [kernel src-height src-width new-height new-width]
+  (let [kernel (or kernel
+                   (if (< (* (long new-height) (long new-width))
+                          (* (long src-height) (long src-width)))
+                     :area
+                     :bilinear))]
+    (if-let [retval (get resample-kernels kernel)]
+      retval
+      (throw (Exception. (format "Unrecognized resample kernel: %s" kernel))))))
+
+
+(defn- resample-arrays!
+  "Separable resample of interleaved [h w c] data.  src and dst are sub-array maps
+  of either byte (uint8) or float arrays."
+  [src [src-height src-width n-channels] dst [new-height new-width] kernel]
+  (let [src-height (long src-height)
+        src-width (long src-width)
+        n-channels (long n-channels)
+        new-height (long new-height)
+        new-width (long new-width)
+        kernel (int (resample-kernel kernel src-height src-width
+                                     new-height new-width))
+        x-contribs (ImageKernels/contributions src-width new-width kernel)
+        y-contribs (ImageKernels/contributions src-height new-height kernel)
+        row-len (* new-width n-channels)
+        intermediate (float-array (* src-height row-len))
+        src-ary (:java-array src)
+        src-offset (int (:offset src))
+        dst-ary (:java-array dst)
+        dst-offset (int (:offset dst))]
+    (parallel-for/indexed-map-reduce
+     src-height
+     (fn [^long start-row ^long n-rows]
+       (let [end-row (+ start-row n-rows)]
+         (if (bytes? src-ary)
+           (ImageKernels/horizontalU8 src-ary src-offset src-width n-channels
+                                      intermediate new-width x-contribs
+                                      start-row end-row)
+           (ImageKernels/horizontalF32 src-ary src-offset src-width n-channels
+                                       intermediate new-width x-contribs
+                                       start-row end-row)))))
+    (parallel-for/indexed-map-reduce
+     new-height
+     (fn [^long start-row ^long n-rows]
+       (let [end-row (+ start-row n-rows)]
+         (if (bytes? dst-ary)
+           (ImageKernels/verticalU8 intermediate row-len dst-ary dst-offset
+                                    y-contribs start-row end-row)
+           (ImageKernels/verticalF32 intermediate row-len dst-ary dst-offset
+                                     y-contribs start-row end-row)))))
+    dst))
+
+
+(defn- array-view
+  "Sub-array map of a dense uint8 or float32 container or nil.  uint8 containers
+  are viewed through their nio buffer as their typed buffers do not expose the
+  backing byte array."
+  [item datatype]
+  (when (= (dtype/ecount item)
+           (apply * (dtype/shape item)))
+    (case datatype
+      :uint8 (when-let [{:keys [java-array] :as retval}
+                        (some-> (dtype/as-nio-buffer item)
+                                (dtype/->sub-array))]
+               (when (bytes? java-array)
+                 retval))
+      :float32 (when-let [{:keys [java-array] :as retval} (dtype/->sub-array item)]
+                 (when (instance? (Class/forName "[F") java-array)
+                   retval)))))
+
+
+(defn- dense-sub-array
+  "Sub-array map for item, copying it into a dense container when needed."
+  [item datatype]
+  (or (array-view item datatype)
+      (-> (case datatype
+            :uint8 (dtype/make-container :typed-buffer :uint8
+                                         (dtype/->reader item :uint8))
+            :float32 (dtype/make-container :java-array :float32
+                                           (dtype/->reader item :float32)))
+          (array-view datatype))))
+
+
+(defn resample
+  "Resample a [height width channels] or [height width] uint8 or float32 tensor
+  into a new tensor of the same datatype with shape [new-height new-width ...].
+  Resampling is separable and runs in parallel over rows.
+  Options:
+  :kernel - One of :area, :bilinear, :bicubic or :lanczos3.  Defaults to :area
+    when shrinking and :bilinear when growing."
+  ([src-tens new-height new-width {:keys [kernel]}]
+   (let [src-shape (dtype/shape src-tens)
+         [src-height src-width n-channels] src-shape
+         n-channels (long (or n-channels 1))
+         datatype (dtype/get-datatype src-tens)
+         _ (when-not (#{:uint8 :float32} datatype)
+             (throw (Exception. (format "Unsupported resample datatype: %s" datatype))))
+         dst-shape (vec (concat [new-height new-width] (drop 2 src-shape)))
+         n-elems (* (long new-height) (long new-width) n-channels)
+         dst (case datatype
+               :uint8 (dtype/make-container :typed-buffer :uint8 n-elems)
+               :float32 (dtype/make-container :java-array :float32 n-elems))]
+     (resample-arrays! (dense-sub-array src-tens datatype)
+                       [src-height src-width n-channels]
+                       (array-view dst datatype)
+                       [new-height new-width]
+                       kernel)
+     (dtt/reshape dst dst-shape)))
+  ([src-tens new-height new-width]
+   (resample src-tens new-height new-width {})))
+
+
+;;Premultiplied images are left out as their channels are not copied as is
+(def ^:private byte-image-types #{:byte-bgr :byte-abgr :byte-gray})
+
+
+(defn- byte-image-array
+  "The backing sub-array of byte images that own their entire data buffer."
+  [img]
+  (when (byte-image-types (image-type img))
+    (array-view img :uint8)))
+
+
+(def channel-layouts
+  "Channel index of b g r a for interleaved uint8 pixel layouts."
+  {:bgr {:b 0 :g 1 :r 2}
+   :rgb {:r 0 :g 1 :b 2}
+   :bgra {:b 0 :g 1 :r 2 :a 3}
+   :rgba {:r 0 :g 1 :b 2 :a 3}
+   :abgr {:a 0 :b 1 :g 2 :r 3}
+   :argb {:a 0 :r 1 :g 2 :b 3}
+   :gray {:gray 0}})
+
+
+(defn- channel-map->src-map
+  ^ints [chan-map]
+  (if-let [gray (:gray chan-map)]
+    (int-array [gray gray gray -1])
+    (int-array (map #(get chan-map % -1) [:b :g :r :a]))))
+
+
+(defn- channel-map->dst-map
+  ^ints [chan-map]
+  (int-array (map #(get chan-map % -1) [:b :g :r :a :gray])))
+
+
+(defn- convert-pixels!
+  [src src-chan-map dst dst-chan-map n-pixels]
+  (let [src-map (channel-map->src-map src-chan-map)
+        dst-map (channel-map->dst-map dst-chan-map)
+        src-ary (:java-array src)
+        src-offset (int (:offset src))
+        src-channels (count src-chan-map)
+        dst-ary (:java-array dst)
+        dst-offset (int (:offset dst))
+        dst-channels (count dst-chan-map)]
+    (parallel-for/indexed-map-reduce
+     n-pixels
+     (fn [^long start-pix ^long n-pix]
+       (ImageKernels/convertPixels src-ary src-offset src-channels src-map
+                                   dst-ary dst-offset dst-channels dst-map
+                                   start-pix (+ start-pix n-pix))))
+    dst))
+
+
+(defn convert-channels
+  "Convert a uint8 [height width channels] tensor between the pixel layouts in
+  channel-layouts, for example :bgr -> :rgb or :rgb -> :gray.  Returns a new
+  uint8 tensor.  Gray is computed with BT.601 luma weights and alpha defaults to
+  opaque."
+  [src-tens src-layout dst-layout]
+  (let [src-chan-map (get channel-layouts src-layout)
+        dst-chan-map (get channel-layouts dst-layout)
+        _ (when-not (and src-chan-map dst-chan-map)
+            (throw (Exception. (format "Unrecognized channel layouts: %s %s"
+                                       src-layout dst-layout))))
+        [height width] (dtype/shape src-tens)
+        n-pixels (* (long height) (long width))
+        dst-channels (count dst-chan-map)
+        dst (dtype/make-container :typed-buffer :uint8 (* n-pixels dst-channels))]
+    (convert-pixels! (dense-sub-array src-tens :uint8) src-chan-map
+                     (array-view dst :uint8) dst-chan-map n-pixels)
+    (dtt/reshape dst [height width dst-channels])))
+
+
+(defn convert-image
+  "Convert an image to a different image type.  Conversion between the byte
+  image types (:byte-bgr, :byte-abgr, :byte-gray) is done directly on the
+  backing arrays; other types are drawn through Graphics2D."
+  ^BufferedImage [^BufferedImage src-img dst-img-type]
+  (let [retval (new-image (.getHeight src-img) (.getWidth src-img) dst-img-type)
+        src-ary (byte-image-array src-img)
+        dst-ary (byte-image-array retval)]
+    (if (and src-ary dst-ary)
+      (convert-pixels! src-ary (image-channel-map src-img)
+                       dst-ary (image-channel-map retval)
+                       (* (.getHeight src-img) (.getWidth src-img)))
+      (draw-image! src-img retval))
+    retval))
+
+
 (defn downsample-bilinear
   ^BufferedImage [^BufferedImage src-img & {:keys [dst-img-width
                                                    dst-img-height
@@ -516,34 +727,58 @@
                                 (quot src-img-width 2)))
         dst-img-height (long (or dst-img-height
                                  (quot src-img-height 2)))
-        dst-img-type (or dst-img-type (image-type src-img))
-        resized (new-image dst-img-height dst-img-width dst-img-type)]
-    (draw-image! src-img resized
-                 :src-rect-width src-img-width
-                 :src-rect-height src-img-height
-                 :dst-rect-width dst-img-width
-                 :dst-rect-height dst-img-height
-                 :interpolation-type :bilinear)))
+        dst-img-type (or dst-img-type (image-type src-img))]
+    (if (byte-image-array src-img)
+      (resize src-img dst-img-width dst-img-height {:resize-algorithm :bilinear
+                                                    :dst-img-type dst-img-type})
+      (let [resized (new-image dst-img-height dst-img-width dst-img-type)]
+        (draw-image! src-img resized
+                     :src-rect-width src-img-width
+                     :src-rect-height src-img-height
+                     :dst-rect-width dst-img-width
+                     :dst-rect-height dst-img-height
+                     :interpolation-type :bilinear)))))
 
 
 (defn resize
+  "Resize an image.  The algorithm defaults to :nearest when shrinking and :bilinear
+  when growing.  Byte images (:byte-bgr, :byte-abgr, :byte-gray) are resampled in
+  parallel with the kernels in resample-kernels; pass :area explicitly for area
+  averaging when shrinking.  Other image types, and the :nearest algorithm, are
+  drawn through Graphics2D."
   [src-img new-width new-height {:keys [resize-algorithm
                                         dst-img-type]}]
-  (let [[src-height src-width _n-channels] (dtype/shape src-img)
-        retval (new-image new-height new-width
-                          (or dst-img-type
-                              (image-type src-img)))
-         resize-algorithm (or resize-algorithm
-                              (if (> (int new-width)
-                                     (int src-width))
-                                :bilinear
-                                :nearest))]
-    (draw-image! src-img retval
-                 :src-rect-width src-width
-                 :src-rect-height src-height
-                 :dst-rect-width new-width
-                 :dst-rect-height new-height
-                 :interpolation-type resize-algorithm)))
+  (let [[src-height src-width n-channels] (dtype/shape src-img)
+        src-img-type (image-type src-img)
+        dst-img-type (or dst-img-type src-img-type)
+        src-ary (byte-image-array src-img)
+        resize-algorithm (or resize-algorithm
+                             (if (> (int new-width)
+                                    (int src-width))
+                               :bilinear
+                               :nearest))]
+    (if (and src-ary
+             (byte-image-types dst-img-type)
+             (contains? resample-kernels resize-algorithm))
+      (let [retval (new-image new-height new-width src-img-type)]
+        (resample-arrays! src-ary [src-height src-width n-channels]
+                          (byte-image-array retval) [new-height new-width]
+                          resize-algorithm)
+        (if (= dst-img-type src-img-type)
+          retval
+          (convert-image retval dst-img-type)))
+      (let [retval (new-image new-height new-width dst-img-type)
+            resize-algorithm (case resize-algorithm
+                               :area :bilinear
+                               (:bicubic :lanczos3) :cubic
+                               resize-algorithm)]
+        (draw-image! src-img retval
+                     :src-rect-width src-width
+                     :src-rect-height src-height
+                     :dst-rect-width new-width
+                     :dst-rect-height new-height
+                     :interpolation-type resize-algorithm)))))
+
 
 (defn clone
   [src-img]
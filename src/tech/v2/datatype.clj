@@ -21,11 +21,17 @@
             [tech.v2.datatype.casting :as casting]
             [tech.v2.datatype.typecast :as typecast]
             [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.mutable :as mutable]
             [tech.v2.datatype.builtin-op-providers :as builtin-op-providers]
             ;;Support for base container types
             [tech.v2.datatype.bitmap :as bitmap]
             [tech.v2.datatype.clj-range :as clj-range]
             [tech.v2.datatype.vector-of]
+            [tech.v2.datatype.big-list]
+            [tech.v2.datatype.missing]
+            [tech.v2.datatype.chunked]
+            [tech.v2.datatype.codec]
+            [tech.v2.datatype.rle]
             [tech.v2.datatype.readers.indexed :as indexed-rdr]
             [tech.v2.datatype.readers.const :as const-rdr]
             [tech.v2.datatype.index-algebra :as idx-alg])
@@ -36,7 +42,8 @@
            [clojure.lang IPersistentVector]
            [java.util Iterator List RandomAccess Set]
            [org.roaringbitmap RoaringBitmap]
-           [tech.v2.datatype.bitmap BitmapSet]
+           [org.roaringbitmap.longlong Roaring64NavigableMap]
+           [tech.v2.datatype.bitmap BitmapSet LongBitmapSet]
            [clojure.lang Indexed])
   (:refer-clojure :exclude [cast]))
 
@@ -363,6 +370,13 @@ Calls clojure.core.matrix/ecount."
   item)
 
 
+(defn append-block!
+  "Append values to the end of a list-like item.  Readers are appended in bulk,
+  iterables element by element.  Returns item."
+  [item values & [options]]
+  (mutable/append-block! item values options))
+
+
 
 (defn ->buffer-backing-store
   "Convert to nio buffer that stores the data for the object.  This may have
@@ -753,6 +767,25 @@ user> (dtype/get-datatype *1)
    (bitmap/->unique-bitmap item-seq)))
 
 
+(defn ->long-bitmap-set
+  "Create a bitmap capable of storing any int64 value.  Use this when indexes may
+  exceed the uint32 range of ->bitmap-set.  Set operations between uint32 and
+  int64 bitmaps produce int64 bitmaps."
+  (^Roaring64NavigableMap []
+   (bitmap/->long-bitmap))
+  (^Roaring64NavigableMap [item-seq]
+   (bitmap/->long-bitmap item-seq)))
+
+
+(defn ->unique-long-bitmap-set
+  "Create a bitmap capable of storing any int64 value.  Bitmaps passed in are
+  cloned."
+  (^Roaring64NavigableMap []
+   (bitmap/->unique-long-bitmap))
+  (^Roaring64NavigableMap [item-seq]
+   (bitmap/->unique-long-bitmap item-seq)))
+
+
 ;; bitmap Set Operations
 (defn set-and
   "bitmap op"
@@ -807,7 +840,16 @@ user> (dtype/get-datatype *1)
   ^Set [bitmap]
   (BitmapSet. bitmap))
 
+(defn long-bitmap->set
+  ^Set [bitmap]
+  (LongBitmapSet. bitmap))
+
 (defn as-roaring-bitmap
   ^RoaringBitmap [item]
   (when (dtype-proto/convertible-to-bitmap? item)
     (dtype-proto/as-roaring-bitmap item)))
+
+(defn as-long-bitmap
+  ^Roaring64NavigableMap [item]
+  (when (dtype-proto/convertible-to-long-bitmap? item)
+    (dtype-proto/as-long-bitmap item)))
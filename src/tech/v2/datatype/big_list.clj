@@ -0,0 +1,394 @@
+(ns tech.v2.datatype.big-list
+  "Growable lists with long indexing.  Elements are stored in a list of primitive
+  array segments of a fixed power-of-two size so an index is a shift and a mask and
+  growth never copies more than one segment: full segments are never reallocated and
+  only the last segment grows, by doubling, until it reaches the segment size.
+  Lists are not synchronized."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.reader :as reader]
+            [tech.v2.datatype.writer :as writer]
+            [tech.v2.datatype.mutable :as mutable]
+            [tech.v2.datatype.readers.const :as const-reader]
+            [tech.v2.datatype.typed-buffer])
+  (:import [tech.v2.datatype
+            ObjectReader ObjectWriter ObjectMutable
+            ByteReader ByteWriter ByteMutable
+            ShortReader ShortWriter ShortMutable
+            IntReader IntWriter IntMutable
+            LongReader LongWriter LongMutable
+            FloatReader FloatWriter FloatMutable
+            DoubleReader DoubleWriter DoubleMutable
+            BooleanReader BooleanWriter BooleanMutable]
+           [tech.v2.datatype.typed_buffer TypedBuffer]
+           [java.util ArrayList Arrays]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(def ^:dynamic *default-segment-size*
+  "Elements per segment of lists created without a :segment-size option."
+  (bit-shift-left 1 20))
+
+
+;;Capacity of the first segment of an empty list
+(def ^:private initial-capacity 16)
+
+
+(def ^:private array-tags
+  {:int8 "[B" :int16 "[S" :int32 "[I" :int64 "[J"
+   :float32 "[F" :float64 "[D" :boolean "[Z" :object "[Ljava.lang.Object;"})
+
+
+(defn- check-index
+  [^long idx ^long n-elems]
+  (when-not (and (>= idx 0) (< idx n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Index %s out of range [0, %s)" idx n-elems)))))
+
+
+(defn- check-range
+  [^long offset ^long length ^long n-elems]
+  (when-not (and (>= offset 0) (>= length 0) (<= (+ offset length) n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Range [%s, %s) out of range [0, %s)"
+                    offset (+ offset length) n-elems)))))
+
+
+(defn- marshal-mutable
+  [item options]
+  (let [mut-dtype (or (:datatype options) (dtype-proto/get-datatype item))]
+    (if (= mut-dtype (dtype-proto/get-datatype item))
+      item
+      (if-let [mutable-fn (get mutable/marshalling-mutable-table
+                               [(casting/safe-flatten mut-dtype)
+                                (casting/safe-flatten
+                                 (dtype-proto/get-datatype item))])]
+        (mutable-fn item mut-dtype (:unchecked? options))
+        (throw (ex-info (format "Failed to find marshalling mutable: %s %s"
+                                (dtype-proto/get-datatype item) mut-dtype)
+                        {:src-datatype (dtype-proto/get-datatype item)
+                         :dst-datatype mut-dtype}))))))
+
+
+(defmacro ^:private make-sub-list
+  "Read/write view of length elements of list starting at offset."
+  [host-dtype list offset length]
+  `(let [list# ~list
+         ~(with-meta 'rdr {:tag (typecast/datatype->reader-type host-dtype)}) list#
+         ~(with-meta 'wtr {:tag (typecast/datatype->writer-type host-dtype)}) list#
+         offset# (long ~offset)
+         length# (long ~length)
+         datatype# (dtype-proto/get-datatype list#)]
+     (check-range offset# length# (.lsize ~'rdr))
+     (reify
+       ~(typecast/datatype->reader-type host-dtype)
+       (getDatatype [item#] datatype#)
+       (lsize [item#] length#)
+       (read [item# idx#]
+         (check-index idx# length#)
+         (.read ~'rdr (+ offset# idx#)))
+       ~(typecast/datatype->writer-type host-dtype)
+       (write [item# idx# value#]
+         (check-index idx# length#)
+         (.write ~'wtr (+ offset# idx#) value#))
+       dtype-proto/PDatatype
+       (get-datatype [item#] datatype#)
+       dtype-proto/PCountable
+       (ecount [item#] length#)
+       dtype-proto/PToReader
+       (convertible-to-reader? [item#] true)
+       (->reader [item# options#]
+         (reader/make-marshalling-reader item# options#))
+       dtype-proto/PToWriter
+       (convertible-to-writer? [item#] true)
+       (->writer [item# options#]
+         (writer/make-marshalling-writer item# options#))
+       dtype-proto/PToIterable
+       (convertible-to-iterable? [item#] true)
+       (->iterable [item# options#] (dtype-proto/->reader item# options#))
+       dtype-proto/PBuffer
+       (sub-buffer [item# sub-offset# sub-length#]
+         (check-range sub-offset# sub-length# length#)
+         (dtype-proto/sub-buffer list# (+ offset# (long sub-offset#)) sub-length#))
+       dtype-proto/PClone
+       (clone [item#]
+         (dtype-proto/insert-block! (dtype-proto/from-prototype list# datatype# [0])
+                                    0 item# {})))))
+
+
+(defmacro ^:private def-big-list
+  [type-name host-dtype]
+  (let [reader-type (typecast/datatype->reader-type host-dtype)
+        writer-type (typecast/datatype->writer-type host-dtype)
+        mutable-type (typecast/datatype->mutable-type host-dtype)
+        array-tag (get array-tags host-dtype)
+        segment (fn [idx-form]
+                  (with-meta `(.get ~'segments (unchecked-int
+                                                (unsigned-bit-shift-right
+                                                 ~idx-form ~'shift)))
+                    {:tag array-tag}))
+        make-array (fn [n-form]
+                     (case host-dtype
+                       :int8 `(byte-array ~n-form)
+                       :int16 `(short-array ~n-form)
+                       :int32 `(int-array ~n-form)
+                       :int64 `(long-array ~n-form)
+                       :float32 `(float-array ~n-form)
+                       :float64 `(double-array ~n-form)
+                       :boolean `(boolean-array ~n-form)
+                       :object `(object-array ~n-form)))]
+    `(deftype ~type-name [~'datatype ~(with-meta 'segments {:tag 'ArrayList})
+                          ~(with-meta 'shift {:tag 'long})
+                          ~(with-meta 'n-elems {:tag 'long
+                                                :unsynchronized-mutable true})]
+       ~reader-type
+       (getDatatype [item#] ~'datatype)
+       (lsize [item#] ~'n-elems)
+       (read [item# ~'idx]
+         (check-index ~'idx ~'n-elems)
+         (aget ~(segment 'idx)
+               (bit-and ~'idx (unchecked-dec (bit-shift-left 1 ~'shift)))))
+
+       ~writer-type
+       (write [item# ~'idx value#]
+         (check-index ~'idx ~'n-elems)
+         (aset ~(segment 'idx)
+               (bit-and ~'idx (unchecked-dec (bit-shift-left 1 ~'shift)))
+               value#))
+
+       ~mutable-type
+       (append [item# value#]
+         (let [~'idx ~'n-elems
+               ~'seg-idx (unsigned-bit-shift-right ~'idx ~'shift)
+               ~'seg-size (bit-shift-left 1 ~'shift)
+               offset# (bit-and ~'idx (unchecked-dec ~'seg-size))]
+           (when (== ~'seg-idx (.size ~'segments))
+             ;;Only the first segment starts small, a list that has filled a
+             ;;segment is expected to keep growing.
+             (.add ~'segments ~(make-array `(if (== 0 ~'seg-idx)
+                                              (min ~'seg-size ~initial-capacity)
+                                              ~'seg-size))))
+           (let [~(with-meta 'seg {:tag array-tag}) (.get ~'segments ~'seg-idx)]
+             (when (>= offset# (alength ~'seg))
+               (.set ~'segments ~'seg-idx
+                     (Arrays/copyOf ~'seg (unchecked-int
+                                           (min ~'seg-size (* 2 (alength ~'seg))))))))
+           (aset ~(segment 'idx) offset# value#)
+           (set! ~'n-elems (unchecked-inc ~'idx))))
+       (insert [item# idx# value#]
+         (let [old-n# ~'n-elems]
+           (when-not (and (>= idx# 0) (<= idx# old-n#))
+             (throw (IndexOutOfBoundsException.
+                     (format "Insert index %s out of range [0, %s]" idx# old-n#))))
+           (if (== idx# old-n#)
+             (.append item# value#)
+             (do
+               (.append item# (.read item# (unchecked-dec old-n#)))
+               (loop [dst-idx# (unchecked-dec old-n#)]
+                 (when (> dst-idx# idx#)
+                   (.write item# dst-idx# (.read item# (unchecked-dec dst-idx#)))
+                   (recur (unchecked-dec dst-idx#))))
+               (.write item# idx# value#)))))
+       (mremove [item# idx#]
+         (dtype-proto/remove-range! item# idx# 1))
+       (appendReader [item# values#]
+         (dtype-proto/insert-block! item# ~'n-elems values# {:unchecked? true}))
+
+       dtype-proto/PDatatype
+       (get-datatype [item#] ~'datatype)
+
+       dtype-proto/PCountable
+       (ecount [item#] ~'n-elems)
+
+       dtype-proto/PToReader
+       (convertible-to-reader? [item#] true)
+       (->reader [item# options#]
+         (reader/make-marshalling-reader item# options#))
+
+       dtype-proto/PToWriter
+       (convertible-to-writer? [item#] true)
+       (->writer [item# options#]
+         (writer/make-marshalling-writer item# options#))
+
+       dtype-proto/PToMutable
+       (convertible-to-mutable? [item#] true)
+       (->mutable [item# options#]
+         (marshal-mutable item# options#))
+
+       dtype-proto/PToIterable
+       (convertible-to-iterable? [item#] true)
+       (->iterable [item# options#] (dtype-proto/->reader item# options#))
+
+       dtype-proto/PBuffer
+       (sub-buffer [item# offset# length#]
+         (make-sub-list ~host-dtype item# offset# length#))
+
+       dtype-proto/PPrototype
+       (from-prototype [item# new-dtype# shape#]
+         (dtype-proto/make-container :big-list new-dtype#
+                                     (apply * 1 shape#)
+                                     {:segment-size (bit-shift-left 1 ~'shift)}))
+
+       dtype-proto/PClone
+       (clone [item#]
+         (let [segments# (ArrayList. (.size ~'segments))]
+           (doseq [~(with-meta 'seg {:tag array-tag}) ~'segments]
+             (.add segments# (Arrays/copyOf ~'seg (alength ~'seg))))
+           (new ~type-name ~'datatype segments# ~'shift ~'n-elems)))
+
+       dtype-proto/PInsertBlock
+       (insert-block! [item# idx# values# options#]
+         (let [idx# (long idx#)
+               old-n# ~'n-elems
+               src# (typecast/datatype->reader ~host-dtype values#
+                                               (:unchecked? options#))
+               n-values# (.lsize src#)
+               ~'seg-size (bit-shift-left 1 ~'shift)
+               mask# (unchecked-dec ~'seg-size)]
+           (when-not (and (>= idx# 0) (<= idx# old-n#))
+             (throw (IndexOutOfBoundsException.
+                     (format "Insert index %s out of range [0, %s]" idx# old-n#))))
+           ;;Append the block a segment at a time
+           (loop [src-idx# 0]
+             (when (< src-idx# n-values#)
+               (let [dst-idx# ~'n-elems
+                     ~'seg-idx (unsigned-bit-shift-right dst-idx# ~'shift)
+                     offset# (bit-and dst-idx# mask#)
+                     n-copy# (min (- ~'seg-size offset#) (- n-values# src-idx#))
+                     ~'needed (+ offset# n-copy#)]
+                 (if (== ~'seg-idx (.size ~'segments))
+                   (.add ~'segments ~(make-array `(if (== 0 ~'seg-idx)
+                                                    (max ~'needed ~initial-capacity)
+                                                    ~'seg-size)))
+                   (let [~(with-meta 'seg {:tag array-tag}) (.get ~'segments ~'seg-idx)]
+                     (when (> ~'needed (alength ~'seg))
+                       (.set ~'segments ~'seg-idx
+                             (Arrays/copyOf ~'seg
+                                            (unchecked-int
+                                             (min ~'seg-size
+                                                  (max ~'needed
+                                                       (* 2 (alength ~'seg))))))))))
+                 (let [~(with-meta 'seg {:tag array-tag}) (.get ~'segments ~'seg-idx)]
+                   (dotimes [copy-idx# n-copy#]
+                     (aset ~'seg (+ offset# copy-idx#)
+                           (.read src# (+ src-idx# copy-idx#)))))
+                 (set! ~'n-elems (+ dst-idx# n-copy#))
+                 (recur (+ src-idx# n-copy#)))))
+           ;;Rotate the appended block into place by reversing the moved tail, the
+           ;;block and then the whole range.  Done in place as the tail may be
+           ;;longer than any single array.
+           (when (< idx# old-n#)
+             (let [reverse-range!# (fn [^long start# ^long end#]
+                                     (loop [lhs# start#
+                                            rhs# (dec end#)]
+                                       (when (< lhs# rhs#)
+                                         (let [tmp# (.read item# lhs#)]
+                                           (.write item# lhs# (.read item# rhs#))
+                                           (.write item# rhs# tmp#))
+                                         (recur (inc lhs#) (dec rhs#)))))]
+               (reverse-range!# idx# old-n#)
+               (reverse-range!# old-n# ~'n-elems)
+               (reverse-range!# idx# ~'n-elems)))
+           item#))
+
+       dtype-proto/PRemoveRange
+       (remove-range! [~'item idx# count#]
+         (let [idx# (long idx#)
+               count# (long count#)
+               ~'old-n ~'n-elems
+               ~'new-n (- ~'old-n count#)]
+           (check-range idx# count# ~'old-n)
+           (loop [dst-idx# idx#]
+             (when (< dst-idx# ~'new-n)
+               (.write ~'item dst-idx# (.read ~'item (+ dst-idx# count#)))
+               (recur (unchecked-inc dst-idx#))))
+           ~(when (= :object host-dtype)
+              `(loop [dst-idx# ~'new-n]
+                 (when (< dst-idx# ~'old-n)
+                   (.write ~'item dst-idx# nil)
+                   (recur (unchecked-inc dst-idx#)))))
+           (set! ~'n-elems ~'new-n)
+           ;;Drop segments that no longer hold any elements
+           (let [n-segments# (unsigned-bit-shift-right
+                              (+ ~'new-n (unchecked-dec (bit-shift-left 1 ~'shift)))
+                              ~'shift)]
+             (while (> (.size ~'segments) n-segments#)
+               (.remove ~'segments (unchecked-int (unchecked-dec (.size ~'segments))))))
+           ~'item)))))
+
+
+(def-big-list BigByteList :int8)
+(def-big-list BigShortList :int16)
+(def-big-list BigIntList :int32)
+(def-big-list BigLongList :int64)
+(def-big-list BigFloatList :float32)
+(def-big-list BigDoubleList :float64)
+(def-big-list BigBooleanList :boolean)
+(def-big-list BigObjectList :object)
+
+
+(defn- segment-shift
+  ^long [segment-size]
+  (let [segment-size (long segment-size)]
+    (when-not (and (> segment-size 0)
+                   (== 0 (bit-and segment-size (dec segment-size)))
+                   (<= segment-size (bit-shift-left 1 30)))
+      (throw (ex-info (format "Segment size must be a power of two <= 2^30: %s"
+                              segment-size)
+                      {:segment-size segment-size})))
+    (Long/numberOfTrailingZeros segment-size)))
+
+
+(defn big-list
+  "Make an empty big list of datatype.  Object datatypes are stored as objects and
+  aliased numeric datatypes (such as datetime types) are stored as their host
+  datatype wrapped in a typed buffer.  Unsigned datatypes are not supported; store
+  them as the signed type of the same width.
+  Options:
+  :segment-size - Power of two elements per segment.  Defaults to
+    *default-segment-size*."
+  [datatype & [{:keys [segment-size]}]]
+  (when (casting/unsigned-integer-type? (casting/un-alias-datatype datatype))
+    (throw (ex-info (format "Big lists do not support unsigned datatype %s" datatype)
+                    {:datatype datatype})))
+  (let [shift (segment-shift (or segment-size *default-segment-size*))
+        host-dtype (casting/host-flatten datatype)
+        list-dtype (if (casting/numeric-type? datatype) host-dtype datatype)
+        retval (case host-dtype
+                 :int8 (BigByteList. list-dtype (ArrayList.) shift 0)
+                 :int16 (BigShortList. list-dtype (ArrayList.) shift 0)
+                 :int32 (BigIntList. list-dtype (ArrayList.) shift 0)
+                 :int64 (BigLongList. list-dtype (ArrayList.) shift 0)
+                 :float32 (BigFloatList. list-dtype (ArrayList.) shift 0)
+                 :float64 (BigDoubleList. list-dtype (ArrayList.) shift 0)
+                 :boolean (BigBooleanList. list-dtype (ArrayList.) shift 0)
+                 (BigObjectList. list-dtype (ArrayList.) shift 0))]
+    (if (= list-dtype datatype)
+      retval
+      (TypedBuffer. datatype retval))))
+
+
+(defmethod dtype-proto/make-container :big-list
+  [_container-type datatype elem-count-or-seq options]
+  (let [retval (big-list datatype options)
+        host-dtype (casting/host-flatten datatype)]
+    (cond
+      (number? elem-count-or-seq)
+      (dtype-proto/insert-block! retval 0
+                                 (const-reader/make-const-reader
+                                  (when-not (= :object host-dtype)
+                                    (casting/cast 0 host-dtype))
+                                  host-dtype
+                                  elem-count-or-seq)
+                                 {})
+      (dtype-proto/convertible-to-reader? elem-count-or-seq)
+      (dtype-proto/insert-block! retval 0 elem-count-or-seq options)
+      :else
+      (let [mutable (dtype-proto/->mutable retval {:datatype :object})]
+        (doseq [value elem-count-or-seq]
+          (.append ^ObjectMutable mutable value))))
+    retval))
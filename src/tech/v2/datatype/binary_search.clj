@@ -2,7 +2,8 @@
   (:require [tech.v2.datatype.typecast :as typecast]
             [tech.v2.datatype.casting :as casting]
             [tech.v2.datatype.base :as dtype-base]
-            [tech.v2.datatype.comparator :as dtype-comp]))
+            [tech.v2.datatype.comparator :as dtype-comp]
+            [tech.parallel.for :as parallel-for]))
 
 
 (set! *warn-on-reflection* true)
@@ -56,3 +57,130 @@
       (value-fn values target comparator)
       (throw (ex-info (format "No search mechanism found for datatype %s" datatype)
                       {})))))
+
+
+(defmacro ^:private before?
+  "True if value sorts before target; with right? values equal to target also sort
+  before it."
+  [comparator right? value target]
+  `(let [compare-result# (.compare ~comparator ~value ~target)]
+     (if ~right?
+       (<= compare-result# 0)
+       (< compare-result# 0))))
+
+
+(defmacro ^:private branchless-search
+  "Insertion position of target in values[lo, lo + len).  The loop runs a fixed
+  log2(len) iterations and only moves base conditionally, which the JIT can turn
+  into a conditional move."
+  [values comparator right? target lo len]
+  `(let [lo# (long ~lo)
+         len# (long ~len)]
+     (if (== 0 len#)
+       lo#
+       (loop [base# lo#
+              len# len#]
+         (if (> len# 1)
+           (let [half# (unsigned-bit-shift-right len# 1)
+                 mid# (+ base# half#)]
+             (recur (if (before? ~comparator ~right? (.read ~values mid#) ~target)
+                      mid#
+                      base#)
+                    (- len# half#)))
+           (if (before? ~comparator ~right? (.read ~values base#) ~target)
+             (unchecked-inc base#)
+             base#))))))
+
+
+(defmacro make-batch-binary-search
+  [datatype]
+  `(fn [values# targets# comparator# right?#]
+     (let [values# (typecast/datatype->reader ~datatype values# true)
+           targets# (typecast/datatype->reader ~datatype targets# true)
+           comparator# (or comparator#
+                           (dtype-comp/make-comparator
+                            ~datatype (dtype-comp/default-compare-fn
+                                       ~datatype ~'lhs ~'rhs)))
+           comparator# (dtype-comp/datatype->comparator ~datatype comparator#)
+           right?# (boolean right?#)
+           n-values# (.lsize values#)
+           n-targets# (.lsize targets#)
+           retval# (long-array n-targets#)
+           sorted?# (loop [idx# 1]
+                      (if (< idx# n-targets#)
+                        (if (> (.compare comparator#
+                                         (.read targets# (unchecked-dec idx#))
+                                         (.read targets# idx#))
+                               0)
+                          false
+                          (recur (unchecked-inc idx#)))
+                        true))]
+       (parallel-for/indexed-map-reduce
+        n-targets#
+        (fn [^long start-idx# ^long group-len#]
+          (let [end-idx# (+ start-idx# group-len#)]
+            (if sorted?#
+              ;;Merge - gallop forward from the previous target's position
+              (loop [idx# start-idx#
+                     pos# -1]
+                (when (< idx# end-idx#)
+                  (let [target# (.read targets# idx#)
+                        pos# (long
+                              (cond
+                                (== pos# -1)
+                                (branchless-search values# comparator# right?# target#
+                                                   0 n-values#)
+                                (or (>= pos# n-values#)
+                                    (not (before? comparator# right?#
+                                                  (.read values# pos#) target#)))
+                                pos#
+                                :else
+                                (let [bound# (long
+                                              (loop [bound# 1]
+                                                (if (and (< (+ pos# bound#) n-values#)
+                                                         (before? comparator# right?#
+                                                                  (.read values#
+                                                                         (+ pos# bound#))
+                                                                  target#))
+                                                  (recur (* 2 bound#))
+                                                  bound#)))
+                                      lo# (+ pos# (quot bound# 2) 1)
+                                      hi# (min (+ pos# bound#) n-values#)]
+                                  (branchless-search values# comparator# right?# target#
+                                                     lo# (- hi# lo#)))))]
+                    (aset retval# idx# pos#)
+                    (recur (unchecked-inc idx#) pos#))))
+              (loop [idx# start-idx#]
+                (when (< idx# end-idx#)
+                  (aset retval# idx#
+                        (long (branchless-search values# comparator# right?#
+                                                 (.read targets# idx#)
+                                                 0 n-values#)))
+                  (recur (unchecked-inc idx#))))))))
+       retval#)))
+
+
+(def batch-binary-search-table (casting/make-base-no-boolean-datatype-table
+                                make-batch-binary-search))
+
+
+(defn batch-binary-search
+  "Find the insertion position of every target in the sorted values.  Returns an
+  int64 array where entry i is the first index of values whose element does not
+  sort before target i (the leftmost insert position).  Targets that are
+  themselves sorted are merged against values; otherwise each target is searched
+  independently.  Both run in parallel over the targets.
+  Options:
+  :datatype - Datatype to compare in.  Defaults to the datatype of values.
+  :comparator - Comparator as per binary-search.
+  :side - :left (default) or :right for the position after any elements equal to
+    the target."
+  [values targets {:keys [datatype comparator side]
+                   :or {side :left}}]
+  (let [datatype (or datatype (dtype-base/get-datatype values))]
+    (if-let [search-fn (get batch-binary-search-table (casting/safe-flatten datatype))]
+      (search-fn values targets comparator (case side
+                                             :left false
+                                             :right true))
+      (throw (ex-info (format "No search mechanism found for datatype %s" datatype)
+                      {})))))
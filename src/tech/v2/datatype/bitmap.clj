@@ -7,8 +7,11 @@
             [tech.v2.datatype.array]
             [tech.v2.datatype.nio-buffer])
   (:import [it.unimi.dsi.fastutil.longs LongSet LongIterator]
-           [org.roaringbitmap RoaringBitmap ImmutableBitmapDataProvider]
-           [tech.v2.datatype SimpleLongSet LongReader LongBitmapIter BitmapMap]
+           [org.roaringbitmap RoaringBitmap ImmutableBitmapDataProvider IntConsumer]
+           [org.roaringbitmap.buffer MutableRoaringBitmapSupplier]
+           [org.roaringbitmap.longlong Roaring64NavigableMap]
+           [tech.v2.datatype SimpleLongSet LongReader LongBitmapIter LongBitmap64Iter
+            BitmapMap]
            [clojure.lang IFn LongRange]
            [tech.v2.datatype.typed_buffer TypedBuffer]
            [java.lang.reflect Field]))
@@ -18,6 +21,7 @@
 
 
 (def int-array-class (Class/forName "[I"))
+(def long-array-class (Class/forName "[J"))
 
 
 (defn ensure-int-array
@@ -32,6 +36,19 @@
         :java-array)))
 
 
+(defn ensure-long-array
+  ^longs [item]
+  (if (instance? long-array-class item)
+    item
+    (-> (dtype-proto/make-container
+         :typed-buffer
+         :int64
+         item {})
+        (dtype-proto/->buffer-backing-store)
+        (dtype-proto/->sub-array)
+        :java-array)))
+
+
 (defn long-range->bitmap
   [^LongRange item]
   (let [long-reader (typecast/datatype->reader :int64 item)
@@ -56,7 +73,12 @@
                                item)))))
 
 
-(declare ->bitmap)
+(declare ->bitmap ->long-bitmap)
+
+
+(defn- long-bitmap-arg?
+  [item]
+  (and item (dtype-proto/convertible-to-long-bitmap? item)))
 
 
 (extend-type RoaringBitmap
@@ -93,10 +115,22 @@
   (convertible-to-bitmap? [item] true)
   (as-roaring-bitmap [item] item)
   dtype-proto/PBitmapSet
-  (set-and [lhs rhs] (RoaringBitmap/and lhs (->bitmap rhs)))
-  (set-and-not [lhs rhs] (RoaringBitmap/andNot lhs (->bitmap rhs)))
-  (set-or [lhs rhs] (RoaringBitmap/or lhs (->bitmap rhs)))
-  (set-xor [lhs rhs] (RoaringBitmap/xor lhs (->bitmap rhs)))
+  (set-and [lhs rhs]
+    (if (long-bitmap-arg? rhs)
+      (dtype-proto/set-and (->long-bitmap lhs) rhs)
+      (RoaringBitmap/and lhs (->bitmap rhs))))
+  (set-and-not [lhs rhs]
+    (if (long-bitmap-arg? rhs)
+      (dtype-proto/set-and-not (->long-bitmap lhs) rhs)
+      (RoaringBitmap/andNot lhs (->bitmap rhs))))
+  (set-or [lhs rhs]
+    (if (long-bitmap-arg? rhs)
+      (dtype-proto/set-or (->long-bitmap lhs) rhs)
+      (RoaringBitmap/or lhs (->bitmap rhs))))
+  (set-xor [lhs rhs]
+    (if (long-bitmap-arg? rhs)
+      (dtype-proto/set-xor (->long-bitmap lhs) rhs)
+      (RoaringBitmap/xor lhs (->bitmap rhs))))
   (set-offset [bitmap offset] (RoaringBitmap/addOffset bitmap (unchecked-int offset)))
   (set-add-range! [bitmap start end]
     (.add bitmap (unchecked-int start) (unchecked-int end))
@@ -112,6 +146,104 @@
     bitmap))
 
 
+(defn- new-long-bitmap
+  "Range additions on Roaring64NavigableMap always create mutable (buffer) bitmaps so
+  all long bitmaps are created with mutable bitmaps to keep set operations compatible.
+  The supplier-only constructor orders members as unsigned longs so the signed
+  ordering is requested explicitly."
+  ^Roaring64NavigableMap []
+  (Roaring64NavigableMap. true (MutableRoaringBitmapSupplier.)))
+
+
+(defn- clone-long-bitmap
+  ^Roaring64NavigableMap [^Roaring64NavigableMap bitmap]
+  (doto (new-long-bitmap)
+    (.or bitmap)))
+
+
+(defn- long-bitmap-min
+  ^long [^Roaring64NavigableMap bitmap]
+  (.select bitmap 0))
+
+
+(defn- long-bitmap-max
+  ^long [^Roaring64NavigableMap bitmap]
+  (.select bitmap (dec (.getLongCardinality bitmap))))
+
+
+(extend-type Roaring64NavigableMap
+  dtype-proto/PDatatype
+  (get-datatype [bitmap] :int64)
+  dtype-proto/PCountable
+  (ecount [bitmap] (.getLongCardinality bitmap))
+  dtype-proto/PToReader
+  (convertible-to-reader? [bitmap] true)
+  (->reader [bitmap options]
+    (let [n-elems (.getLongCardinality bitmap)]
+      (-> (reify
+            LongReader
+            (lsize [rdr] n-elems)
+            (read [rdr idx] (.select bitmap idx))
+            dtype-proto/PConstantTimeMinMax
+            (has-constant-time-min-max? [rdr] (not (.isEmpty bitmap)))
+            (constant-time-min [rdr] (long-bitmap-min bitmap))
+            (constant-time-max [rdr] (long-bitmap-max bitmap))
+            dtype-proto/PToLongBitmap
+            (convertible-to-long-bitmap? [item] true)
+            (as-long-bitmap [item] bitmap)
+            Iterable
+            (iterator [rdr] (LongBitmap64Iter. (.getLongIterator bitmap))))
+          (dtype-proto/->reader options))))
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [bitmap] (not (.isEmpty bitmap)))
+  (constant-time-min [bitmap] (long-bitmap-min bitmap))
+  (constant-time-max [bitmap] (long-bitmap-max bitmap))
+  dtype-proto/PClone
+  (clone [bitmap] (clone-long-bitmap bitmap))
+  dtype-proto/PToLongBitmap
+  (convertible-to-long-bitmap? [item] true)
+  (as-long-bitmap [item] item)
+  dtype-proto/PBitmapSet
+  (set-and [lhs rhs] (doto (clone-long-bitmap lhs) (.and (->long-bitmap rhs))))
+  (set-and-not [lhs rhs] (doto (clone-long-bitmap lhs) (.andNot (->long-bitmap rhs))))
+  (set-or [lhs rhs] (doto (clone-long-bitmap lhs) (.or (->long-bitmap rhs))))
+  (set-xor [lhs rhs] (doto (clone-long-bitmap lhs) (.xor (->long-bitmap rhs))))
+  (set-offset [bitmap offset]
+    (let [offset (long offset)
+          retval (new-long-bitmap)
+          iter (.getLongIterator bitmap)]
+      (loop [continue? (.hasNext iter)]
+        (when continue?
+          (.addLong retval (+ offset (.next iter)))
+          (recur (.hasNext iter))))
+      retval))
+  (set-add-range! [bitmap start end]
+    (.add bitmap (long start) (long end))
+    bitmap)
+  (set-add-block! [bitmap data]
+    (.add bitmap ^longs (ensure-long-array data))
+    bitmap)
+  (set-remove-range! [bitmap start end]
+    (.andNot bitmap (doto (new-long-bitmap)
+                      (.add (long start) (long end))))
+    bitmap)
+  (set-remove-block! [bitmap data]
+    (let [^longs data (ensure-long-array data)
+          n-elems (alength data)]
+      (loop [idx 0]
+        (when (< idx n-elems)
+          (.removeLong bitmap (aget data idx))
+          (recur (unchecked-inc idx)))))
+    bitmap))
+
+
+(defmethod print-method Roaring64NavigableMap
+  [buf w]
+  (let [^java.io.Writer w w]
+    (.write w "#")
+    (.write w (.toString ^Object buf))))
+
+
 (extend-type BitmapMap
   dtype-proto/PToBitmap
   (convertible-to-bitmap? [item] true)
@@ -126,13 +258,18 @@
 
 
 (defn bitmap->typed-buffer
-  [^RoaringBitmap bitmap]
-  (TypedBuffer. :uint32 (.toArray bitmap)))
+  [bitmap]
+  (if (instance? Roaring64NavigableMap bitmap)
+    (TypedBuffer. :int64 (.toArray ^Roaring64NavigableMap bitmap))
+    (TypedBuffer. :uint32 (.toArray ^RoaringBitmap bitmap))))
+
+
+(declare bitmap-set-result)
 
 
 (deftype BitmapSet [^RoaringBitmap bitmap]
   SimpleLongSet
-  (getDatatype [item] :uin32)
+  (getDatatype [item] :uint32)
   (lsize [item] (.getLongCardinality bitmap))
   (lcontains [item arg] (.contains bitmap (unchecked-int arg)))
   (ladd [item arg] (.add bitmap (unchecked-int arg)) true)
@@ -153,25 +290,75 @@
   Iterable
   (iterator [item] (.iterator ^Iterable (dtype-proto/->reader bitmap {})))
   dtype-proto/PBitmapSet
-  (set-and [lhs rhs] (BitmapSet. (dtype-proto/set-and bitmap rhs)))
-  (set-and-not [lhs rhs] (BitmapSet. (dtype-proto/set-and-not bitmap rhs)))
-  (set-or [lhs rhs] (BitmapSet. (dtype-proto/set-or bitmap rhs)))
-  (set-xor [lhs rhs] (BitmapSet. (dtype-proto/set-xor bitmap rhs)))
+  (set-and [lhs rhs] (bitmap-set-result (dtype-proto/set-and bitmap rhs)))
+  (set-and-not [lhs rhs] (bitmap-set-result (dtype-proto/set-and-not bitmap rhs)))
+  (set-or [lhs rhs] (bitmap-set-result (dtype-proto/set-or bitmap rhs)))
+  (set-xor [lhs rhs] (bitmap-set-result (dtype-proto/set-xor bitmap rhs)))
   (set-offset [item offset] (BitmapSet. (dtype-proto/set-offset bitmap offset)))
   (set-add-range! [item start end]
     (dtype-proto/set-add-range! bitmap start end)
     item)
   (set-add-block! [item data]
-    (dtype-proto/set-add-block! item data)
+    (dtype-proto/set-add-block! bitmap data)
+    item)
+  (set-remove-range! [item start end]
+    (dtype-proto/set-remove-range! bitmap start end)
+    item)
+  (set-remove-block! [item data]
+    (dtype-proto/set-remove-block! bitmap data)
+    item))
+
+
+(deftype LongBitmapSet [^Roaring64NavigableMap bitmap]
+  SimpleLongSet
+  (getDatatype [item] :int64)
+  (lsize [item] (.getLongCardinality bitmap))
+  (lcontains [item arg] (.contains bitmap arg))
+  (ladd [item arg] (.addLong bitmap arg) true)
+  (lremove [item arg] (.removeLong bitmap arg) true)
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    (dtype-proto/->reader bitmap options))
+  dtype-proto/PClone
+  (clone [item] (LongBitmapSet. (dtype-proto/clone bitmap)))
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [item] (not (.isEmpty bitmap)))
+  (constant-time-min [item] (long-bitmap-min bitmap))
+  (constant-time-max [item] (long-bitmap-max bitmap))
+  dtype-proto/PToLongBitmap
+  (convertible-to-long-bitmap? [item] true)
+  (as-long-bitmap [item] bitmap)
+  Iterable
+  (iterator [item] (LongBitmap64Iter. (.getLongIterator bitmap)))
+  dtype-proto/PBitmapSet
+  (set-and [lhs rhs] (LongBitmapSet. (dtype-proto/set-and bitmap rhs)))
+  (set-and-not [lhs rhs] (LongBitmapSet. (dtype-proto/set-and-not bitmap rhs)))
+  (set-or [lhs rhs] (LongBitmapSet. (dtype-proto/set-or bitmap rhs)))
+  (set-xor [lhs rhs] (LongBitmapSet. (dtype-proto/set-xor bitmap rhs)))
+  (set-offset [item offset] (LongBitmapSet. (dtype-proto/set-offset bitmap offset)))
+  (set-add-range! [item start end]
+    (dtype-proto/set-add-range! bitmap start end)
+    item)
+  (set-add-block! [item data]
+    (dtype-proto/set-add-block! bitmap data)
     item)
   (set-remove-range! [item start end]
     (dtype-proto/set-remove-range! bitmap start end)
     item)
   (set-remove-block! [item data]
-    (dtype-proto/set-remove-block! item data)
+    (dtype-proto/set-remove-block! bitmap data)
     item))
 
 
+(defn- bitmap-set-result
+  "Set operations between a uint32 set and an int64 set produce int64 results."
+  [bitmap]
+  (if (instance? Roaring64NavigableMap bitmap)
+    (LongBitmapSet. bitmap)
+    (BitmapSet. bitmap)))
+
+
 (defn ->bitmap
   (^RoaringBitmap [item]
    (cond
@@ -179,6 +366,13 @@
      (RoaringBitmap.)
      (dtype-proto/convertible-to-bitmap? item)
      (dtype-proto/as-roaring-bitmap item)
+     (long-bitmap-arg? item)
+     (let [bitmap (dtype-proto/as-long-bitmap item)]
+       (when (and (dtype-proto/has-constant-time-min-max? bitmap)
+                  (or (< (long-bitmap-min bitmap) 0)
+                      (> (long-bitmap-max bitmap) 0xFFFFFFFF)))
+         (throw (Exception. "Long bitmap values are out of uint32 range")))
+       (construct-from-ints (.toArray ^Roaring64NavigableMap bitmap)))
      (instance? LongRange item)
      (long-range->bitmap item)
      :else
@@ -207,28 +401,96 @@
    (RoaringBitmap.)))
 
 
+(defn ->long-bitmap
+  "Create a bitmap capable of storing any int64 value.  uint32 bitmaps are
+  promoted to int64 bitmaps."
+  (^Roaring64NavigableMap [item]
+   (cond
+     (nil? item)
+     (new-long-bitmap)
+     (long-bitmap-arg? item)
+     (dtype-proto/as-long-bitmap item)
+     (dtype-proto/convertible-to-bitmap? item)
+     (let [retval (new-long-bitmap)]
+       (.forEach ^RoaringBitmap (dtype-proto/as-roaring-bitmap item)
+                 (reify IntConsumer
+                   (accept [this value]
+                     (.addLong retval (Integer/toUnsignedLong value)))))
+       retval)
+     (instance? LongRange item)
+     (let [long-reader (typecast/datatype->reader :int64 item)
+           step (long (.get ^Field clj-range/lr-step-field item))
+           n-elems (.lsize long-reader)]
+       (when-not (== 1 step)
+         (throw (Exception.
+                 "Only monotonically incrementing ranges can be made into bitmaps")))
+       (let [retval (new-long-bitmap)]
+         (when-not (== 0 n-elems)
+           (let [start (.read long-reader 0)]
+             (.add retval start (+ start n-elems))))
+         retval))
+     :else
+     (doto (new-long-bitmap)
+       (.add ^longs (ensure-long-array item)))))
+  (^Roaring64NavigableMap []
+   (new-long-bitmap)))
+
+
+(defn ->unique-long-bitmap
+  (^Roaring64NavigableMap [item]
+   (if (long-bitmap-arg? item)
+     (clone-long-bitmap (dtype-proto/as-long-bitmap item))
+     (->long-bitmap item)))
+  (^Roaring64NavigableMap []
+   (new-long-bitmap)))
+
+
+(defn- long-bitmap->efficient-random-access-reader
+  [bitmap]
+  (let [^Roaring64NavigableMap bitmap (dtype-proto/as-long-bitmap bitmap)
+        src-reader (typecast/datatype->reader :int64 (.toArray bitmap))
+        n-elems (.lsize src-reader)]
+    (if (== 0 n-elems)
+      src-reader
+      (let [cmin (long-bitmap-min bitmap)
+            cmax (long-bitmap-max bitmap)]
+        (reify
+          LongReader
+          (lsize [rdr] n-elems)
+          (read [rdr idx] (.read src-reader idx))
+          dtype-proto/PToLongBitmap
+          (convertible-to-long-bitmap? [item] true)
+          (as-long-bitmap [item] bitmap)
+          dtype-proto/PConstantTimeMinMax
+          (has-constant-time-min-max? [item] true)
+          (constant-time-min [item] cmin)
+          (constant-time-max [item] cmax))))))
+
+
 (defn bitmap->efficient-random-access-reader
   [bitmap]
-  (when (dtype-proto/convertible-to-bitmap? bitmap)
-    (let [^RoaringBitmap bitmap (dtype-proto/as-roaring-bitmap bitmap)
-          typed-buf (bitmap->typed-buffer bitmap)
-          src-reader (typecast/datatype->reader :int64 typed-buf)
-          n-elems (dtype-base/ecount typed-buf)]
-      (if (== 0 n-elems)
-        src-reader
-        (let [cmin (dtype-proto/constant-time-min bitmap)
-              cmax (dtype-proto/constant-time-max bitmap)]
-          (reify
-            LongReader
-            (lsize [rdr] n-elems)
-            (read [rdr idx] (.read src-reader idx))
-            dtype-proto/PToBitmap
-            (convertible-to-bitmap? [item] true)
-            (as-roaring-bitmap [item] bitmap)
-            dtype-proto/PConstantTimeMinMax
-            (has-constant-time-min-max? [item] true)
-            (constant-time-min [item] cmin)
-            (constant-time-max [item] cmax)))))))
+  (if (long-bitmap-arg? bitmap)
+    (long-bitmap->efficient-random-access-reader bitmap)
+    (when (dtype-proto/convertible-to-bitmap? bitmap)
+      (let [^RoaringBitmap bitmap (dtype-proto/as-roaring-bitmap bitmap)
+            typed-buf (bitmap->typed-buffer bitmap)
+            src-reader (typecast/datatype->reader :int64 typed-buf)
+            n-elems (dtype-base/ecount typed-buf)]
+        (if (== 0 n-elems)
+          src-reader
+          (let [cmin (dtype-proto/constant-time-min bitmap)
+                cmax (dtype-proto/constant-time-max bitmap)]
+            (reify
+              LongReader
+              (lsize [rdr] n-elems)
+              (read [rdr idx] (.read src-reader idx))
+              dtype-proto/PToBitmap
+              (convertible-to-bitmap? [item] true)
+              (as-roaring-bitmap [item] bitmap)
+              dtype-proto/PConstantTimeMinMax
+              (has-constant-time-min-max? [item] true)
+              (constant-time-min [item] cmin)
+              (constant-time-max [item] cmax))))))))
 
 
 (defn bitmap-value->bitmap-map
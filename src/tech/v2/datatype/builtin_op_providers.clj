@@ -12,7 +12,13 @@
             [tech.v2.datatype.operation-provider :as op-provider]
             [tech.v2.datatype.protocols :as dtype-proto]
             [tech.v2.datatype.argsort :refer [argsort]]
-            [tech.v2.datatype.bitmap :refer (->bitmap)])
+            [tech.v2.datatype.bitmap :refer (->bitmap bitmap->efficient-random-access-reader)]
+            [tech.v2.datatype.dictionary :as dictionary]
+            [tech.v2.datatype.utf8-buffer :as utf8-buffer]
+            [tech.v2.datatype.missing :as missing]
+            [tech.v2.datatype.chunked :as chunked]
+            [tech.v2.datatype.codec :as codec]
+            [tech.v2.datatype.rle :as rle])
   (:import [it.unimi.dsi.fastutil.longs LongArrayList]
            [it.unimi.dsi.fastutil.ints IntArrayList]
            [org.roaringbitmap RoaringBitmap]
@@ -42,20 +48,50 @@
     (throw (Exception. (format "Failed to find op: %s" op)))))
 
 
+(defn- missing-unary-op
+  "Elementwise ops on missing-aware items run on the data and the result is
+  missing wherever the argument was."
+  [op-fn op lhs options]
+  (missing/propagate-missing
+   (op-fn op (dtype-proto/missing-data lhs) options)
+   (dtype-proto/missing lhs)))
+
+
+(defn- rle-scalar-args?
+  "True when one argument is run length encoded and the other a scalar."
+  [lhs rhs]
+  (or (and (rle/rle? lhs) (= :scalar (base/operation-type rhs)))
+      (and (rle/rle? rhs) (= :scalar (base/operation-type lhs)))))
+
+
+(defn- missing-binary-op
+  [op-fn op lhs rhs options]
+  (let [[lhs lhs-missing] (missing/strip-missing lhs)
+        [rhs rhs-missing] (missing/strip-missing rhs)]
+    (missing/propagate-missing (op-fn op lhs rhs options)
+                               lhs-missing rhs-missing)))
+
+
 (defmethod op-provider/half-dispatch-unary-op :default
   [op lhs {:keys [datatype] :as options}]
-  (let [op (if (keyword? op)
-             (get-op op unary-op/builtin-unary-ops)
-             op)
-        op-space (:operation-space (meta op))
-        datatype (cond-> (or datatype (base/get-datatype lhs))
-                   op-space
-                   (widest-datatype op-space))
-        options (assoc options :datatype datatype)
-        op (dtype-proto/->unary-op op options)]
-    (if (= :scalar (base/operation-type lhs))
-      (op lhs)
-      (unary-op/unary-map options op lhs))))
+  (cond
+    (rle/rle? lhs)
+    (rle/run-unary-op op-provider/unary-op op lhs options)
+    (missing/missing-aware? lhs)
+    (missing-unary-op op-provider/unary-op op lhs options)
+    :else
+    (let [op (if (keyword? op)
+               (get-op op unary-op/builtin-unary-ops)
+               op)
+          op-space (:operation-space (meta op))
+          datatype (cond-> (or datatype (base/get-datatype lhs))
+                     op-space
+                     (widest-datatype op-space))
+          options (assoc options :datatype datatype)
+          op (dtype-proto/->unary-op op options)]
+      (if (= :scalar (base/operation-type lhs))
+        (op lhs)
+        (unary-op/unary-map options op lhs)))))
 
 
 (defmacro define-scalar-unary-ops
@@ -74,15 +110,21 @@
 
 (defmethod op-provider/half-dispatch-boolean-unary-op :default
   [op lhs {:keys [datatype] :as options}]
-  (let [datatype (or datatype (base/get-datatype lhs))
-        options (assoc options :datatype datatype)
-        op (-> (if (keyword? op)
-                 (get-op op boolean-op/builtin-boolean-unary-ops)
-                 op)
-               (dtype-proto/->unary-boolean-op options))]
-    (if (= :scalar (base/operation-type lhs))
-      (op lhs)
-      (boolean-op/boolean-unary-map options op lhs))))
+  (cond
+    (rle/rle? lhs)
+    (rle/run-unary-op op-provider/boolean-unary-op op lhs options)
+    (missing/missing-aware? lhs)
+    (missing-unary-op op-provider/boolean-unary-op op lhs options)
+    :else
+    (let [datatype (or datatype (base/get-datatype lhs))
+          options (assoc options :datatype datatype)
+          op (-> (if (keyword? op)
+                   (get-op op boolean-op/builtin-boolean-unary-ops)
+                   op)
+                 (dtype-proto/->unary-boolean-op options))]
+      (if (= :scalar (base/operation-type lhs))
+        (op lhs)
+        (boolean-op/boolean-unary-map options op lhs)))))
 
 
 (defmacro define-scalar-boolean-unary-ops
@@ -131,23 +173,29 @@
 
 (defmethod op-provider/half-dispatch-binary-op :default
   [op lhs rhs options]
-  (let [op-datatype (or (:datatype options)
-                        (widest-datatype (base/get-datatype lhs)
-                                         (base/get-datatype rhs)))
-        op (if (keyword? op)
-             (get-op op binary-op/builtin-binary-ops)
-             op)
-        op-datatype (if-let [op-space (:operation-space (meta op))]
-                      (widest-datatype op-datatype op-space)
-                      op-datatype)
-        options (assoc options :datatype op-datatype)
-
-        op (-> (if (keyword? op)
-                 (get-op op binary-op/builtin-binary-ops)
-                 op)
-               (dtype-proto/->binary-op options))
-        [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
-    (binary-op/binary-map options op lhs rhs)))
+  (cond
+    (rle-scalar-args? lhs rhs)
+    (rle/run-binary-op op-provider/binary-op op lhs rhs options)
+    (or (missing/missing-aware? lhs) (missing/missing-aware? rhs))
+    (missing-binary-op op-provider/binary-op op lhs rhs options)
+    :else
+    (let [op-datatype (or (:datatype options)
+                          (widest-datatype (base/get-datatype lhs)
+                                           (base/get-datatype rhs)))
+          op (if (keyword? op)
+               (get-op op binary-op/builtin-binary-ops)
+               op)
+          op-datatype (if-let [op-space (:operation-space (meta op))]
+                        (widest-datatype op-datatype op-space)
+                        op-datatype)
+          options (assoc options :datatype op-datatype)
+
+          op (-> (if (keyword? op)
+                   (get-op op binary-op/builtin-binary-ops)
+                   op)
+                 (dtype-proto/->binary-op options))
+          [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
+      (binary-op/binary-map options op lhs rhs))))
 
 
 (defmacro define-scalar-builtin-binary-ops
@@ -167,16 +215,25 @@
 
 (defmethod op-provider/half-dispatch-boolean-binary-op :default
   [op lhs rhs options]
-  (let [op-datatype (or (:datatype options)
-                        (widest-datatype (base/get-datatype lhs)
-                                         (base/get-datatype rhs)))
-        options (assoc options :datatype op-datatype)
-        op (-> (if (keyword? op)
-                 (get-op op boolean-op/builtin-boolean-binary-ops)
-                 op)
-               (dtype-proto/->binary-boolean-op options))
-        [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
-    (boolean-op/boolean-binary-map options op lhs rhs)))
+  (cond
+    (or (and (chunked/chunked? lhs) (= :scalar (base/operation-type rhs)))
+        (and (chunked/chunked? rhs) (= :scalar (base/operation-type lhs))))
+    (chunked/boolean-binary-op op lhs rhs options)
+    (rle-scalar-args? lhs rhs)
+    (rle/run-binary-op op-provider/boolean-binary-op op lhs rhs options)
+    (or (missing/missing-aware? lhs) (missing/missing-aware? rhs))
+    (missing-binary-op op-provider/boolean-binary-op op lhs rhs options)
+    :else
+    (let [op-datatype (or (:datatype options)
+                          (widest-datatype (base/get-datatype lhs)
+                                           (base/get-datatype rhs)))
+          options (assoc options :datatype op-datatype)
+          op (-> (if (keyword? op)
+                   (get-op op boolean-op/builtin-boolean-binary-ops)
+                   op)
+                 (dtype-proto/->binary-boolean-op options))
+          [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
+      (boolean-op/boolean-binary-map options op lhs rhs))))
 
 
 (defmacro define-scalar-builtin-boolean-binary-ops
@@ -194,11 +251,62 @@
 (define-scalar-builtin-boolean-binary-ops)
 
 
+(defn- encoded-equality
+  "Equality against dictionary encoded readers compares codes and equality against
+  utf8 buffers compares bytes instead of values."
+  [op lhs rhs options]
+  (let [negate? (= op :not-eq)
+        lhs-scalar? (= :scalar (base/operation-type lhs))
+        rhs-scalar? (= :scalar (base/operation-type rhs))]
+    (cond
+      (and (dictionary/dictionary-encoded? lhs)
+           (dictionary/dictionary-encoded? rhs))
+      (dictionary/eq-dictionary lhs rhs negate?)
+      (and (dictionary/dictionary-encoded? lhs) rhs-scalar?)
+      (dictionary/eq lhs rhs negate?)
+      (and (dictionary/dictionary-encoded? rhs) lhs-scalar?)
+      (dictionary/eq rhs lhs negate?)
+      (and (utf8-buffer/utf8-buffer? lhs)
+           (utf8-buffer/utf8-buffer? rhs))
+      (utf8-buffer/eq-buffers lhs rhs negate?)
+      (and (utf8-buffer/utf8-buffer? lhs) (string? rhs))
+      (utf8-buffer/eq lhs rhs negate?)
+      (and (utf8-buffer/utf8-buffer? rhs) (string? lhs))
+      (utf8-buffer/eq rhs lhs negate?)
+      :else
+      (op-provider/half-dispatch-boolean-binary-op op lhs rhs options))))
+
+
+(defmacro def-boolean-binary-op
+  [item-seq & body]
+  `(do
+     ~@(map (fn [item-triple]
+              `(defmethod op-provider/boolean-binary-op
+                 ~item-triple
+                 ~@body))
+            item-seq)))
+
+
+(def-boolean-binary-op
+  [[:reader :scalar :eq]
+   [:scalar :reader :eq]
+   [:reader :reader :eq]
+   [:reader :scalar :not-eq]
+   [:scalar :reader :not-eq]
+   [:reader :reader :not-eq]]
+  [op lhs rhs options]
+  (encoded-equality op lhs rhs options))
+
+
 (def commutative-ops (set [:* :+ :rem :min :max]))
 
+;;Ops for which a run of n equal values can be folded by repeated doubling
+(def ^:private run-foldable-ops #{:* :+ :min :max})
+
 (defmethod op-provider/half-dispatch-reduce-op :default
   [op lhs {:keys [datatype commutative?] :as options}]
-  (let [datatype (or datatype (base/get-datatype lhs))
+  (let [op-key op
+        datatype (or datatype (base/get-datatype lhs))
         commutative? (or commutative?
                          (and (keyword? op) (commutative-ops op)))
         op (if (keyword? op)
@@ -209,9 +317,28 @@
                    (widest-datatype datatype op-space)
                    datatype)
         options (assoc options :datatype datatype)
-        op (dtype-proto/->binary-op op options)]
-    (if commutative?
+        op (dtype-proto/->binary-op op options)
+        chunk-result (if (chunked/chunked? lhs)
+                       (chunked/reduce-chunks op-key lhs
+                                              (assoc options :commutative?
+                                                     (boolean commutative?)))
+                       ::chunked/not-chunkable)
+        encoded-result (when (codec/encoded? lhs)
+                         (codec/reduce-encoded op-key lhs options))]
+    (cond
+      (not= chunk-result ::chunked/not-chunkable)
+      chunk-result
+      (some? encoded-result)
+      encoded-result
+      ;;Runs are folded by repeated doubling of the op
+      (and (run-foldable-ops op-key) (rle/rle? lhs))
+      (rle/reduce-runs options op lhs)
+      ;;Missing elements are skipped
+      (missing/missing-aware? lhs)
+      (missing/reduce-valid options op lhs commutative?)
+      commutative?
       (reduce-op/commutative-reader-reduce options op lhs)
+      :else
       (reduce-op/iterable-reduce-map options op lhs))))
 
 
@@ -229,16 +356,39 @@
  [[:reader :argsort]
   [:iterable :argsort]]
   [op values options]
-  (argsort values options))
+  (cond
+    (dictionary/dictionary-encoded? values)
+    (dictionary/argsort values options)
+    (missing/missing-aware? values)
+    (missing/argsort values options)
+    ;;Byte order is only used when the caller didn't ask for a specific ordering
+    (and (utf8-buffer/utf8-buffer? values)
+         (nil? (:comparator options)))
+    (utf8-buffer/argsort values options)
+    :else
+    (argsort values options)))
 
 
 (def-unary-op
  [[:iterable :argfilter]
   [:reader :argfilter]]
   [op filter-seq bool-op]
-  (boolean-op/unary-argfilter {}
-                              bool-op
-                              filter-seq))
+  (cond
+    (chunked/chunked? filter-seq)
+    (chunked/argfilter bool-op filter-seq)
+    (rle/rle? filter-seq)
+    (rle/argfilter bool-op filter-seq)
+    (missing/missing-aware? filter-seq)
+    ;;Missing elements never pass the filter
+    (let [[data missing-bitmap] (missing/strip-missing filter-seq)]
+      (-> (boolean-op/bool-reader-indexes->bitmap
+           {} (boolean-op/boolean-unary-map {} bool-op data))
+          (doto (.andNot ^RoaringBitmap missing-bitmap))
+          (bitmap->efficient-random-access-reader)))
+    :else
+    (boolean-op/unary-argfilter {}
+                                bool-op
+                                filter-seq)))
 
 
 (defmacro def-binary-op
@@ -269,13 +419,19 @@
 (def-standard-binary-op
   :argfilter
   [op lhs rhs bool-op]
-  (let [op-datatype (widest-datatype (base/get-datatype lhs)
-                                     (base/get-datatype rhs))
-        [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
-    (boolean-op/binary-argfilter {:datatype op-datatype}
-                                 bool-op
-                                 lhs
-                                 rhs)))
+  (cond
+    (and (chunked/chunked? lhs) (= :scalar (base/operation-type rhs)))
+    (chunked/binary-argfilter bool-op lhs rhs)
+    (and (rle/rle? lhs) (= :scalar (base/operation-type rhs)))
+    (rle/binary-argfilter bool-op lhs rhs)
+    :else
+    (let [op-datatype (widest-datatype (base/get-datatype lhs)
+                                       (base/get-datatype rhs))
+          [lhs rhs] (generalize-binary-scalars lhs rhs op-datatype)]
+      (boolean-op/binary-argfilter {:datatype op-datatype}
+                                   bool-op
+                                   lhs
+                                   rhs))))
 
 
 
@@ -405,7 +561,9 @@
 (def-unary-op
  [[:reader :arggroup-by-int]]
   [op item-reader [partition-fn options]]
-  (arggroup-by-int partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :int32 partition-fn item-reader options)
+    (arggroup-by-int partition-fn item-reader options)))
 
 
 (def-unary-op
@@ -421,7 +579,9 @@
 (def-unary-op
  [[:reader :arggroup-by-bitmap]]
   [op item-reader [partition-fn options]]
-  (arggroup-by-bitmap partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :bitmap partition-fn item-reader options)
+    (arggroup-by-bitmap partition-fn item-reader options)))
 
 
 
@@ -439,7 +599,9 @@
 (def-unary-op
  [[:reader :arggroup-by]]
   [op item-reader [partition-fn options]]
-  (arggroup-by partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :int64 partition-fn item-reader options)
+    (arggroup-by partition-fn item-reader options)))
 
 
 (defmacro arggroup-by-stable-impl
@@ -518,7 +680,9 @@
 (def-unary-op
  [[:reader :arggroup-by-stable-int]]
   [op item-reader [partition-fn options]]
-  (arggroup-by-stable-int partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :int32 partition-fn item-reader options)
+    (arggroup-by-stable-int partition-fn item-reader options)))
 
 
 (def-unary-op
@@ -534,7 +698,9 @@
 (def-unary-op
  [[:reader :arggroup-by-stable-bitmap]]
   [op item-reader [partition-fn options]]
-  (arggroup-by-stable-bitmap partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :bitmap partition-fn item-reader options)
+    (arggroup-by-stable-bitmap partition-fn item-reader options)))
 
 
 
@@ -552,10 +718,14 @@
 (def-unary-op
  [[:reader :arggroup-by-stable]]
   [op item-reader [partition-fn options]]
-  (arggroup-by-stable partition-fn item-reader options))
+  (if (dictionary/dictionary-encoded? item-reader)
+    (dictionary/arggroup-by :int64 partition-fn item-reader options)
+    (arggroup-by-stable partition-fn item-reader options)))
 
 
 (def-binary-op
   [[:reader :scalar :binary-search]]
   [op item-reader target {:as options}]
-  (binary-search item-reader target options))
+  (if (chunked/chunked? item-reader)
+    (chunked/binary-search item-reader target options)
+    (binary-search item-reader target options)))
@@ -0,0 +1,522 @@
+(ns tech.v2.datatype.chunked
+  "Columns stored as a sequence of chunks.  Each chunk caches its min, max, number of
+  missing elements and whether it is sorted; min and max are exposed through
+  PConstantTimeMinMax.  Statistics are computed the first time they are needed.
+
+  Comparisons against a scalar, argfilter, binary-search and reductions consult the
+  chunk statistics to answer whole chunks without reading them and process the
+  remaining chunks in parallel.  A range query on sorted (e.g. time ordered) data
+  only reads the chunks at the range boundaries.  See
+  tech.v2.datatype.builtin-op-providers for where they hook in."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.binary-op :as binary-op]
+            [tech.v2.datatype.boolean-op :as boolean-op]
+            [tech.v2.datatype.binary-search :as dtype-search]
+            [tech.v2.datatype.operation-provider :as op-provider]
+            [tech.v2.datatype.readers.const :as const-rdr]
+            [tech.v2.datatype.missing :as missing]
+            [tech.v2.datatype.typed-buffer])
+  (:import [tech.v2.datatype ObjectReader]
+           [clojure.lang IDeref]
+           [java.util Arrays List]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(def ^:dynamic *default-chunk-size* 65536)
+
+
+(defmacro ^:private scan-stats
+  "min, max and sorted? of a reader of datatype (:int64 or :float64) in one pass.
+  NaN values are left out of min and max and counted in :n-nan when present."
+  [datatype data]
+  (let [float? (= :float64 datatype)
+        value (gensym "value")]
+    `(let [rdr# (typecast/datatype->reader ~datatype ~data)
+           n-elems# (.lsize rdr#)]
+       (loop [idx# 0
+              cmin# ~(if float? `Double/POSITIVE_INFINITY `Long/MAX_VALUE)
+              cmax# ~(if float? `Double/NEGATIVE_INFINITY `Long/MIN_VALUE)
+              prev# (.read rdr# 0)
+              n-nan# 0
+              sorted?# true]
+         (if (< idx# n-elems#)
+           (let [~value (.read rdr# idx#)]
+             (if ~(if float? `(Double/isNaN ~value) false)
+               (recur (unchecked-inc idx#) cmin# cmax# ~value (unchecked-inc n-nan#)
+                      false)
+               (recur (unchecked-inc idx#)
+                      (min cmin# ~value)
+                      (max cmax# ~value)
+                      ~value
+                      n-nan#
+                      (boolean (and sorted?# (<= prev# ~value))))))
+           (cond-> {:sorted? sorted?#}
+             (< n-nan# n-elems#) (assoc :min cmin# :max cmax#)
+             (> n-nan# 0) (assoc :n-nan n-nan#)))))))
+
+
+(defn- stats-datatype?
+  [datatype]
+  (and (casting/numeric-type? datatype)
+       (not= :uint64 datatype)))
+
+
+(defn- compute-stats
+  [data]
+  (let [datatype (dtype-base/get-datatype data)
+        n-elems (dtype-base/ecount data)
+        n-missing (.getCardinality (missing/->missing data))]
+    (merge {:n-elems n-elems
+            :n-missing n-missing}
+           (cond
+             (or (not (stats-datatype? datatype))
+                 (== n-elems n-missing))
+             nil
+             (== 0 n-missing)
+             (if (casting/integer-type? datatype)
+               (scan-stats :int64 data)
+               (scan-stats :float64 data))
+             (casting/float-type? datatype)
+             (assoc (scan-stats :float64 (missing/valid-double-array data))
+                    :sorted? false)
+             :else
+             (let [reduce-valid #(missing/reduce-valid
+                                  {:datatype datatype}
+                                  (get binary-op/builtin-binary-ops %)
+                                  data true)]
+               {:min (reduce-valid :min)
+                :max (reduce-valid :max)
+                :sorted? false})))))
+
+
+(deftype Chunk [data ^IDeref stats]
+  dtype-proto/PDatatype
+  (get-datatype [item] (dtype-base/get-datatype data))
+
+  dtype-proto/PCountable
+  (ecount [item] (dtype-base/ecount data))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options] (dtype-proto/->reader data options))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader data options))
+
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [item] (contains? @stats :min))
+  (constant-time-min [item] (:min @stats))
+  (constant-time-max [item] (:max @stats))
+
+  dtype-proto/PMissingValues
+  (missing-aware? [item] (missing/missing-aware? data))
+  (missing [item] (dtype-proto/missing data))
+  (missing-data [item] (dtype-proto/missing-data data)))
+
+
+(defn make-chunk
+  "Wrap data as a chunk.  Statistics are computed on first use unless given."
+  [data & [stats]]
+  (if (instance? Chunk data)
+    data
+    (Chunk. data (if stats
+                   (delay (merge {:n-elems (dtype-base/ecount data)
+                                  :n-missing 0}
+                                 stats))
+                   (delay (compute-stats data))))))
+
+
+(defn chunk-stats
+  "Map of :n-elems :n-missing and, for numeric chunks, :sorted? along with :min :max
+  when there are valid elements other than NaN.  NaN is counted in :n-nan."
+  [^Chunk chunk]
+  @(.stats chunk))
+
+
+(defn- chunk-data
+  [^Chunk chunk]
+  (.data chunk))
+
+
+(defn- chunk-index
+  "Index of the chunk containing idx.  offsets holds the start of every chunk
+  followed by the total element count and chunks are never empty."
+  ^long [^longs offsets ^long idx]
+  (let [pos (Arrays/binarySearch offsets idx)]
+    (if (>= pos 0)
+      pos
+      (- (- pos) 2))))
+
+
+(defn- check-index
+  [^long idx ^long n-elems]
+  (when-not (and (>= idx 0) (< idx n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Index %s out of range [0, %s)" idx n-elems)))))
+
+
+(defmacro ^:private make-chunked-reader
+  [datatype]
+  (let [reader-type (typecast/datatype->reader-type datatype)]
+    `(fn [datatype# chunks# ^"[J" offsets#]
+       (let [readers# (object-array (map #(typecast/datatype->reader
+                                           ~datatype
+                                           (dtype-proto/->reader % {:datatype datatype#}))
+                                         chunks#))
+             n-elems# (aget offsets# (unchecked-dec (alength offsets#)))]
+         (reify ~reader-type
+           (getDatatype [rdr#] datatype#)
+           (lsize [rdr#] n-elems#)
+           (read [rdr# idx#]
+             (check-index idx# n-elems#)
+             (let [chunk-idx# (chunk-index offsets# idx#)
+                   ~(with-meta 'chunk-reader {:tag reader-type}) (aget readers# chunk-idx#)]
+               (.read ~'chunk-reader (- idx# (aget offsets# chunk-idx#))))))))))
+
+
+(def ^:private chunked-reader-table
+  (casting/make-base-datatype-table make-chunked-reader))
+
+
+(declare chunked-column)
+
+
+(deftype ChunkedColumn [datatype ^List chunks ^longs offsets
+                        ^objects object-readers typed-reader]
+  ObjectReader
+  (getDatatype [item] datatype)
+  (lsize [item] (aget offsets (.size chunks)))
+  (read [item idx]
+    (check-index idx (.lsize item))
+    (let [chunk-idx (chunk-index offsets idx)]
+      (.read ^ObjectReader (aget object-readers chunk-idx)
+             (- idx (aget offsets chunk-idx)))))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] datatype)
+
+  dtype-proto/PCountable
+  (ecount [item] (aget offsets (.size chunks)))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    ;;As with missing buffers the object reader, and the default reader when any
+    ;;chunk has missing elements, return nil for missing elements.
+    (if (or (= :object (:datatype options))
+            (and (nil? (:datatype options))
+                 (some #(pos? (long (:n-missing (chunk-stats %)))) chunks)))
+      item
+      (dtype-proto/->reader typed-reader options)))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [item]
+    (every? dtype-proto/has-constant-time-min-max? chunks))
+  (constant-time-min [item]
+    (reduce min (pmap dtype-proto/constant-time-min chunks)))
+  (constant-time-max [item]
+    (reduce max (pmap dtype-proto/constant-time-max chunks)))
+
+  dtype-proto/PClone
+  (clone [item]
+    (chunked-column (map (comp dtype-proto/clone chunk-data) chunks)))
+
+  dtype-proto/PChunked
+  (chunked? [item] true)
+  (chunks [item] chunks)
+  (chunk-offsets [item] offsets))
+
+
+(defn chunked-column
+  "Make a chunked column out of a sequence of containers (or chunks).  Empty chunks
+  are dropped.  All chunks need to have the same datatype."
+  [chunks]
+  (let [chunks (->> chunks
+                    (remove #(== 0 (dtype-base/ecount %)))
+                    (mapv make-chunk))
+        datatypes (set (map dtype-base/get-datatype chunks))
+        _ (when (> (count datatypes) 1)
+            (throw (ex-info (format "Chunks have different datatypes: %s" datatypes)
+                            {:datatypes datatypes})))
+        datatype (or (first datatypes) :float64)
+        offsets (long-array (reductions + 0 (map dtype-base/ecount chunks)))
+        reader-fn (get chunked-reader-table (casting/safe-flatten datatype))]
+    (ChunkedColumn. datatype chunks offsets
+                    (object-array (map #(typecast/datatype->reader
+                                         :object (chunk-data %))
+                                       chunks))
+                    (reader-fn datatype chunks offsets))))
+
+
+(defn chunked?
+  [item]
+  (boolean (and item (dtype-proto/chunked? item))))
+
+
+(defn ->chunked
+  "Split data into chunks of chunk-size elements.  Options:
+  :chunk-size - defaults to *default-chunk-size*.
+  :container-type - container each chunk is copied into, defaults to :typed-buffer.
+    :missing chunks record nil entries as missing."
+  [data & [{:keys [datatype chunk-size container-type]
+            :or {container-type :typed-buffer}}]]
+  (let [datatype (or datatype (dtype-base/get-datatype data))
+        chunk-size (long (or chunk-size *default-chunk-size*))
+        data (if (dtype-proto/convertible-to-reader? data)
+               (dtype-proto/->reader data {:datatype :object})
+               (vec data))
+        n-elems (dtype-base/ecount data)]
+    (->> (range 0 n-elems chunk-size)
+         (pmap (fn [^long offset]
+                 (dtype-proto/make-container
+                  container-type datatype
+                  (dtype-proto/sub-buffer data offset
+                                          (min chunk-size (- n-elems offset)))
+                  {})))
+         (chunked-column))))
+
+
+(defmethod dtype-proto/make-container :chunked
+  [_container-type datatype elem-count-or-seq options]
+  (if (number? elem-count-or-seq)
+    (->chunked (const-rdr/make-const-reader
+                (when-not (= :object (casting/flatten-datatype datatype))
+                  (casting/cast 0 datatype))
+                datatype elem-count-or-seq)
+               options)
+    (->chunked elem-count-or-seq (assoc options :datatype datatype))))
+
+
+(defn- chunk-seq
+  "[offset chunk] pairs of a chunked column."
+  [item]
+  (let [^longs offsets (dtype-proto/chunk-offsets item)]
+    (map-indexed (fn [idx chunk] [(aget offsets idx) chunk])
+                 (dtype-proto/chunks item))))
+
+
+(defn- full-chunk?
+  "True when every element of the chunk is valid, none is NaN and stats exist."
+  [chunk]
+  (let [{:keys [n-missing n-nan] :as stats} (chunk-stats chunk)]
+    (and (== 0 (long n-missing))
+         (== 0 (long (or n-nan 0)))
+         (contains? stats :min))))
+
+
+(def ^:private flipped-comparison
+  {:> :<, :>= :<=, :< :>, :<= :>=, :eq :eq, :not-eq :not-eq})
+
+
+(def ^:private fn->comparison
+  {> :>, >= :>=, < :<, <= :<=, = :eq, == :eq, not= :not-eq})
+
+
+(defn- num-compare
+  ^long [lhs rhs]
+  (long (compare lhs rhs)))
+
+
+(defn- comparison-truth
+  "When (x op value) has the same result for every x in [cmin, cmax] return that
+  result, else nil."
+  [op cmin cmax value]
+  (let [all (fn [pred] (when pred true))
+        none (fn [pred] (when pred false))
+        min-cmp (num-compare cmin value)
+        max-cmp (num-compare cmax value)]
+    (case op
+      :> (or (all (pos? min-cmp)) (none (<= max-cmp 0)))
+      :>= (or (all (>= min-cmp 0)) (none (neg? max-cmp)))
+      :< (or (all (neg? max-cmp)) (none (>= min-cmp 0)))
+      :<= (or (all (<= max-cmp 0)) (none (pos? min-cmp)))
+      :eq (or (all (== 0 min-cmp max-cmp)) (none (or (pos? min-cmp) (neg? max-cmp))))
+      :not-eq (when-some [result (comparison-truth :eq cmin cmax value)]
+                (not result))
+      nil)))
+
+
+(defn- chunk-truth
+  "Result of (chunk[i] op value) shared by every element of the chunk or nil when it
+  has to be computed.  NaN values are always computed as compare orders NaN
+  unlike the numeric comparisons."
+  [op chunk value]
+  (when (and (number? value)
+             (not (and (float? value) (Double/isNaN (double value))))
+             (keyword? op)
+             (contains? flipped-comparison op)
+             (full-chunk? chunk))
+    (let [{:keys [min max]} (chunk-stats chunk)]
+      (comparison-truth op min max value))))
+
+
+(defn- const-boolean-chunk
+  [value n-elems]
+  (make-chunk (const-rdr/make-const-reader (boolean value) :boolean n-elems)
+              {:min (boolean value) :max (boolean value)}))
+
+
+(defn boolean-binary-op
+  "Boolean op between a chunked column and a scalar.  Comparison ops answer chunks
+  whose min and max decide the result with a constant reader.  Returns a chunked
+  boolean column."
+  [op lhs rhs options]
+  (let [lhs-chunked? (chunked? lhs)
+        [column value column-op] (if lhs-chunked?
+                                   [lhs rhs op]
+                                   [rhs lhs (get flipped-comparison op op)])]
+    (->> (dtype-proto/chunks column)
+         (pmap (fn [chunk]
+                 (let [truth (chunk-truth column-op chunk value)]
+                   (if (nil? truth)
+                     (let [data (chunk-data chunk)]
+                       (if lhs-chunked?
+                         (op-provider/boolean-binary-op op data rhs options)
+                         (op-provider/boolean-binary-op op lhs data options)))
+                     (const-boolean-chunk truth (dtype-base/ecount chunk))))))
+         (chunked-column))))
+
+
+(defn- offset-indexes
+  ^longs [indexes ^long offset]
+  (let [^longs indexes (if (instance? (Class/forName "[J") indexes)
+                         indexes
+                         (long-array indexes))]
+    (dotimes [idx (alength indexes)]
+      (aset indexes idx (+ offset (aget indexes idx))))
+    indexes))
+
+
+(defn- concat-indexes
+  ^longs [index-arrays]
+  (let [index-arrays (vec index-arrays)
+        retval (long-array (reduce + 0 (map #(alength ^longs %) index-arrays)))]
+    (reduce (fn [^long dst-offset ^longs indexes]
+              (System/arraycopy indexes 0 retval dst-offset (alength indexes))
+              (+ dst-offset (alength indexes)))
+            0
+            index-arrays)
+    retval))
+
+
+(defn- range-indexes
+  ^longs [^long offset ^long n-elems]
+  (let [retval (long-array n-elems)]
+    (dotimes [idx n-elems]
+      (aset retval idx (+ offset idx)))
+    retval))
+
+
+(defn- filter-chunks
+  "Concatenate the argfilter results of each chunk.  truth-fn returns true or false
+  when the whole chunk passes or fails and nil when chunk-fn has to run."
+  [item truth-fn chunk-fn]
+  (->> (chunk-seq item)
+       (pmap (fn [[offset chunk]]
+               (let [offset (long offset)
+                     truth (truth-fn chunk)]
+                 (cond
+                   (true? truth) (range-indexes offset (dtype-base/ecount chunk))
+                   (false? truth) (long-array 0)
+                   :else (offset-indexes (chunk-fn (chunk-data chunk)) offset)))))
+       (concat-indexes)))
+
+
+(defn argfilter
+  "Indexes of elements of a chunked column passing bool-op.  Chunks holding a single
+  value are decided with one call of bool-op.  Missing elements never pass."
+  [bool-op item]
+  (filter-chunks item
+                 (fn [chunk]
+                   (let [{:keys [min max] :as stats} (chunk-stats chunk)]
+                     (when (and (full-chunk? chunk) (= min max))
+                       (boolean (bool-op min)))))
+                 #(op-provider/unary-op :argfilter % bool-op)))
+
+
+(defn binary-argfilter
+  "Indexes where (bool-op item[idx] value) passes for a chunked column item and a
+  scalar value.  Comparisons (either builtin keywords such as :> or the clojure.core
+  functions) skip chunks decided by their min and max."
+  [bool-op item value]
+  (let [comparison (get fn->comparison bool-op bool-op)
+        bool-op (get boolean-op/builtin-boolean-binary-ops bool-op bool-op)]
+    (filter-chunks item
+                   #(chunk-truth comparison % value)
+                   #(op-provider/binary-op :argfilter % value bool-op))))
+
+
+(defn- sorted-chunks?
+  "True when the column is sorted: every chunk is and chunk ranges do not overlap."
+  [item]
+  (let [chunks (dtype-proto/chunks item)]
+    (and (every? #(and (full-chunk? %) (:sorted? (chunk-stats %))) chunks)
+         (->> (partition 2 1 chunks)
+              (every? (fn [[lhs rhs]]
+                        (<= (num-compare (:max (chunk-stats lhs))
+                                         (:min (chunk-stats rhs)))
+                            0)))))))
+
+
+(defn binary-search
+  "Binary search of a chunked column.  When the column is sorted only the chunk
+  that can hold target is searched, else the whole column is.  Returns
+  [found? elem-pos-or-insert-pos]."
+  [item target options]
+  (if (and (number? target) (sorted-chunks? item))
+    (let [^List chunks (dtype-proto/chunks item)
+          ^longs offsets (dtype-proto/chunk-offsets item)
+          n-chunks (.size chunks)
+          ;;First chunk whose max is >= target
+          chunk-idx (long
+                     (loop [low 0
+                            high n-chunks]
+                       (if (< low high)
+                         (let [mid (quot (+ low high) 2)]
+                           (if (neg? (num-compare (:max (chunk-stats (.get chunks mid)))
+                                                  target))
+                             (recur (inc mid) high)
+                             (recur low mid)))
+                         low)))]
+      (if (== chunk-idx n-chunks)
+        [false (aget offsets n-chunks)]
+        (let [[found? pos] (dtype-search/binary-search
+                            (chunk-data (.get chunks chunk-idx)) target options)]
+          [found? (+ (aget offsets chunk-idx) (long pos))])))
+    (dtype-search/binary-search item target options)))
+
+
+(defn reduce-chunks
+  "Reduce a chunked column.  :min and :max come straight from the chunk statistics
+  when every chunk has them.  Other commutative reductions reduce the chunks in
+  parallel and then reduce the per chunk results.  Returns ::not-chunkable for
+  reductions that have to run over the whole column in order."
+  [op item {:keys [commutative?] :as options}]
+  (let [chunks (dtype-proto/chunks item)]
+    (cond
+      (and (#{:min :max} op)
+           (every? dtype-proto/has-constant-time-min-max? chunks))
+      (casting/cast (if (= op :min)
+                      (dtype-proto/constant-time-min item)
+                      (dtype-proto/constant-time-max item))
+                    (or (:datatype options) (dtype-base/get-datatype item)))
+      commutative?
+      (let [results (->> chunks
+                         (pmap #(op-provider/reduce-op op (chunk-data %) options))
+                         (remove nil?)
+                         (vec))]
+        (when (seq results)
+          (op-provider/reduce-op op results options)))
+      :else
+      ::not-chunkable)))
@@ -0,0 +1,394 @@
+(ns tech.v2.datatype.codec
+  "Lightweight compression for integer containers, including the packed datetime
+  types such as :packed-instant.
+
+  :bit-packed - frame of reference; each element is stored as its offset from the
+    minimum using just enough bits for the range of the data.
+  :delta - the differences between consecutive elements are bit packed along with
+    the value at the start of every block of 64 elements.  Sorted or monotonic data
+    such as timestamps or ids needs only a few bits per element.
+
+  Encoded containers are immutable and are read through the standard typed readers.
+  decode-block! decodes a range of elements sequentially, min and max are recorded at
+  encode time and sums are computed on the encoded form; see
+  tech.v2.datatype.builtin-op-providers for where reductions hook in.  Run length
+  encoding lives in tech.v2.datatype.rle."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.typed-buffer]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype ObjectReader LongReader]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(def ^:private ^:const delta-block-shift 6)
+(def ^:private ^:const delta-block-size 64)
+
+
+(defn- check-index
+  [^long idx ^long n-elems]
+  (when-not (and (>= idx 0) (< idx n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Index %s out of range [0, %s)" idx n-elems)))))
+
+
+(defn- check-block
+  [^long offset ^long n-block ^long n-elems]
+  (when-not (and (>= offset 0) (<= (+ offset n-block) n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Block [%s, %s) out of range [0, %s)"
+                    offset (+ offset n-block) n-elems)))))
+
+
+(defn- check-datatype
+  [datatype]
+  (let [base-dtype (casting/un-alias-datatype datatype)]
+    (when-not (and (casting/integer-type? base-dtype)
+                   (not= :uint64 base-dtype))
+      (throw (ex-info (format "Datatype %s can not be encoded; integer datatypes only"
+                              datatype)
+                      {:datatype datatype})))
+    datatype))
+
+
+(defn- ->long-reader
+  ^LongReader [data datatype]
+  (typecast/datatype->reader :int64
+                             (if (dtype-proto/convertible-to-reader? data)
+                               data
+                               (dtype-proto/make-container :typed-buffer datatype
+                                                           (vec data) {}))))
+
+
+(defn- min-max
+  "[min max] of reader or nil when it is empty."
+  [^LongReader reader]
+  (parallel-for/indexed-map-reduce
+   (.lsize reader)
+   (fn [^long start-idx ^long group-len]
+     (when-not (== 0 group-len)
+       (let [end-idx (+ start-idx group-len)]
+         (loop [idx (unchecked-inc start-idx)
+                cmin (.read reader start-idx)
+                cmax cmin]
+           (if (< idx end-idx)
+             (let [value (.read reader idx)]
+               (recur (unchecked-inc idx) (min cmin value) (max cmax value)))
+             [cmin cmax])))))
+   (fn [results]
+     (when-let [results (seq (remove nil? results))]
+       [(apply min (map first results))
+        (apply max (map second results))]))))
+
+
+(defn- bit-width
+  "Bits needed to store offsets in [0, range] where range is unsigned."
+  ^long [^long range]
+  (- 64 (Long/numberOfLeadingZeros range)))
+
+
+(defn- width->mask
+  ^long [^long width]
+  (if (== width 64)
+    -1
+    (unchecked-dec (bit-shift-left 1 width))))
+
+
+(defn- read-bits
+  ^long [^longs packed ^long idx ^long width ^long mask]
+  (let [bit-idx (* idx width)
+        word (unsigned-bit-shift-right bit-idx 6)
+        shift (bit-and bit-idx 63)
+        low (unsigned-bit-shift-right (aget packed word) shift)]
+    (bit-and mask
+             (if (> (+ shift width) 64)
+               (bit-or low (bit-shift-left (aget packed (unchecked-inc word))
+                                           (- 64 shift)))
+               low))))
+
+
+(defn- pack-bits
+  "Pack (- (.read src idx) reference) into width bits per element.  Blocks of 64
+  elements fill exactly width words so they are packed in parallel."
+  ^longs [^LongReader src ^long reference ^long width]
+  (let [n-elems (.lsize src)
+        packed (long-array (max 1 (quot (+ (* n-elems width) 63) 64)))]
+    (when-not (== 0 width)
+      (parallel-for/parallel-for
+       block (quot (+ n-elems 63) 64)
+       (let [start-idx (* block 64)
+             end-idx (min n-elems (+ start-idx 64))]
+         (loop [idx start-idx]
+           (when (< idx end-idx)
+             (let [value (- (.read src idx) reference)
+                   bit-idx (* idx width)
+                   word (unsigned-bit-shift-right bit-idx 6)
+                   shift (bit-and bit-idx 63)]
+               (aset packed word (bit-or (aget packed word)
+                                         (bit-shift-left value shift)))
+               (when (> (+ shift width) 64)
+                 (aset packed (unchecked-inc word)
+                       (bit-or (aget packed (unchecked-inc word))
+                               (unsigned-bit-shift-right value (- 64 shift))))))
+             (recur (unchecked-inc idx)))))))
+    packed))
+
+
+(defmacro ^:private make-decoded-reader
+  [datatype]
+  (let [reader-type (typecast/datatype->reader-type datatype)]
+    `(fn [datatype# ~(with-meta 'decoder {:tag 'LongReader})]
+       (reify ~reader-type
+         (getDatatype [rdr#] datatype#)
+         (lsize [rdr#] (.lsize ~'decoder))
+         (read [rdr# idx#]
+           (casting/datatype->unchecked-cast-fn :int64 ~datatype
+                                                (.read ~'decoder idx#)))))))
+
+
+(def ^:private decoded-reader-table
+  {:int8 (make-decoded-reader :int8)
+   :int16 (make-decoded-reader :int16)
+   :int32 (make-decoded-reader :int32)
+   :int64 (make-decoded-reader :int64)})
+
+
+(deftype EncodedBuffer [datatype encoding ^LongReader decoder typed-reader
+                        ^ObjectReader object-reader cmin cmax
+                        decode-block-fn sum-fn]
+  ObjectReader
+  (getDatatype [item] datatype)
+  (lsize [item] (.lsize decoder))
+  (read [item idx] (.read object-reader idx))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] datatype)
+
+  dtype-proto/PCountable
+  (ecount [item] (.lsize decoder))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    (let [opt-dtype (:datatype options)]
+      (if (or (nil? opt-dtype) (= opt-dtype datatype))
+        typed-reader
+        (dtype-proto/->reader typed-reader options))))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [item] (some? cmin))
+  (constant-time-min [item] (casting/unchecked-cast cmin datatype))
+  (constant-time-max [item] (casting/unchecked-cast cmax datatype))
+
+  dtype-proto/PClone
+  ;;Encoded buffers are never written to
+  (clone [item] item)
+
+  dtype-proto/PEncoded
+  (encoded? [item] true)
+  (encoding [item] encoding)
+  (decode-block! [item offset dst]
+    (let [offset (long offset)
+          ^longs dst dst]
+      (check-block offset (alength dst) (.lsize decoder))
+      (decode-block-fn offset dst)
+      dst))
+  (encoded-reduce [item op]
+    (when (some? cmin)
+      (case op
+        :min (dtype-proto/constant-time-min item)
+        :max (dtype-proto/constant-time-max item)
+        :+ (casting/unchecked-cast (sum-fn) datatype)
+        nil))))
+
+
+(defn- encoded-buffer
+  [datatype encoding ^LongReader decoder [cmin cmax] decode-block-fn sum-fn]
+  (let [reader-fn (get decoded-reader-table (casting/safe-flatten datatype))
+        typed-reader (reader-fn datatype decoder)]
+    (EncodedBuffer. datatype encoding decoder typed-reader
+                    (typecast/datatype->reader :object typed-reader)
+                    cmin cmax decode-block-fn sum-fn)))
+
+
+(defn- sum-bits
+  "Unchecked sum of the first n-elems packed offsets."
+  ^long [^longs packed ^long n-elems ^long width ^long mask]
+  (parallel-for/indexed-map-reduce
+   n-elems
+   (fn [^long start-idx ^long group-len]
+     (let [end-idx (+ start-idx group-len)]
+       (loop [idx start-idx
+              sum 0]
+         (if (< idx end-idx)
+           (recur (unchecked-inc idx)
+                  (unchecked-add sum (read-bits packed idx width mask)))
+           sum))))
+   (partial reduce (fn [^long lhs ^long rhs] (unchecked-add lhs rhs)))))
+
+
+(defn bit-pack
+  "Frame of reference encode integer data: every element is stored as its offset
+  from the minimum in just enough bits for the range of the data.  Options:
+  :datatype - defaults to the datatype of data."
+  [data & [{:keys [datatype]}]]
+  (let [datatype (check-datatype (or datatype (dtype-base/get-datatype data)))
+        src (->long-reader data datatype)
+        n-elems (.lsize src)
+        [cmin cmax :as stats] (min-max src)
+        reference (long (or cmin 0))
+        width (bit-width (- (long (or cmax 0)) reference))
+        mask (width->mask width)
+        packed (pack-bits src reference width)
+        decoder (reify LongReader
+                  (lsize [rdr] n-elems)
+                  (read [rdr idx]
+                    (check-index idx n-elems)
+                    (+ reference (read-bits packed idx width mask))))]
+    (encoded-buffer datatype :bit-packed decoder stats
+                    (fn [^long offset ^longs dst]
+                      (dotimes [idx (alength dst)]
+                        (aset dst idx (+ reference
+                                         (read-bits packed (+ offset idx)
+                                                    width mask)))))
+                    (fn []
+                      (unchecked-add (unchecked-multiply n-elems reference)
+                                     (sum-bits packed n-elems width mask))))))
+
+
+(defn delta-encode
+  "Delta encode integer data: the differences between consecutive elements are bit
+  packed and the value at the start of every block of 64 elements is stored so a
+  random read decodes at most 63 deltas.  Options:
+  :datatype - defaults to the datatype of data."
+  [data & [{:keys [datatype]}]]
+  (let [datatype (check-datatype (or datatype (dtype-base/get-datatype data)))
+        src (->long-reader data datatype)
+        n-elems (.lsize src)
+        deltas (reify LongReader
+                 (lsize [rdr] n-elems)
+                 (read [rdr idx]
+                   (if (== 0 idx)
+                     0
+                     (- (.read src idx) (.read src (unchecked-dec idx))))))
+        [delta-min delta-max] (if (> n-elems 1)
+                                (min-max (reify LongReader
+                                           (lsize [rdr] (dec n-elems))
+                                           (read [rdr idx]
+                                             (.read deltas (unchecked-inc idx)))))
+                                [0 0])
+        reference (long delta-min)
+        width (bit-width (- (long delta-max) reference))
+        mask (width->mask width)
+        ;;The first element has no delta
+        packed (pack-bits (reify LongReader
+                            (lsize [rdr] n-elems)
+                            (read [rdr idx]
+                              (if (== 0 idx)
+                                reference
+                                (.read deltas idx))))
+                          reference width)
+        n-blocks (quot (+ n-elems (dec delta-block-size)) delta-block-size)
+        block-values (long-array n-blocks)
+        _ (parallel-for/parallel-for
+           block n-blocks
+           (aset block-values block (.read src (bit-shift-left block delta-block-shift))))
+        read-value (fn ^long [^long idx]
+                     (let [block-start (bit-and idx (bit-not (dec delta-block-size)))]
+                       (loop [src-idx (unchecked-inc block-start)
+                              value (aget block-values
+                                          (unsigned-bit-shift-right
+                                           idx delta-block-shift))]
+                         (if (<= src-idx idx)
+                           (recur (unchecked-inc src-idx)
+                                  (+ value reference
+                                     (read-bits packed src-idx width mask)))
+                           value))))
+        decoder (reify LongReader
+                  (lsize [rdr] n-elems)
+                  (read [rdr idx]
+                    (check-index idx n-elems)
+                    (.invokePrim ^clojure.lang.IFn$LL read-value idx)))
+        ;;Decode n-dst elements starting at offset sequentially into dst
+        decode-run! (fn [^long offset ^longs dst ^long n-dst]
+                      (when-not (== 0 n-dst)
+                        (loop [idx 1
+                               value (.invokePrim ^clojure.lang.IFn$LL read-value
+                                                  offset)]
+                          (aset dst (unchecked-dec idx) value)
+                          (when (< idx n-dst)
+                            (recur (unchecked-inc idx)
+                                   (+ value reference
+                                      (read-bits packed (+ offset idx)
+                                                 width mask)))))))]
+    (encoded-buffer datatype :delta decoder (min-max src)
+                    (fn [^long offset ^longs dst]
+                      (decode-run! offset dst (alength dst)))
+                    (fn []
+                      ;;Blocks decode independently from their start values
+                      (parallel-for/indexed-map-reduce
+                       n-blocks
+                       (fn [^long start-block ^long n-group-blocks]
+                         (let [start-idx (bit-shift-left start-block delta-block-shift)
+                               n-group (- (min n-elems
+                                               (bit-shift-left
+                                                (+ start-block n-group-blocks)
+                                                delta-block-shift))
+                                          start-idx)
+                               values (long-array n-group)]
+                           (decode-run! start-idx values n-group)
+                           (loop [idx 0
+                                  sum 0]
+                             (if (< idx n-group)
+                               (recur (unchecked-inc idx)
+                                      (unchecked-add sum (aget values idx)))
+                               sum))))
+                       (partial reduce (fn [^long lhs ^long rhs]
+                                         (unchecked-add lhs rhs))))))))
+
+
+(defmethod dtype-proto/make-container :bit-packed
+  [_container-type datatype elem-count-or-seq options]
+  (bit-pack (if (number? elem-count-or-seq)
+              (long-array elem-count-or-seq)
+              elem-count-or-seq)
+            (assoc options :datatype datatype)))
+
+
+(defmethod dtype-proto/make-container :delta
+  [_container-type datatype elem-count-or-seq options]
+  (delta-encode (if (number? elem-count-or-seq)
+                  (long-array elem-count-or-seq)
+                  elem-count-or-seq)
+                (assoc options :datatype datatype)))
+
+
+(defn encoded?
+  [item]
+  (boolean (and item (dtype-proto/encoded? item))))
+
+
+(defn decode-block!
+  "Decode (ecount dst) elements of an encoded container starting at offset into dst.
+  dst is a long array for the integer codecs.  Returns dst."
+  [item offset dst]
+  (dtype-proto/decode-block! item offset dst))
+
+
+(defn reduce-encoded
+  "Reduce an encoded container on its encoded form.  Returns nil for reductions or
+  datatypes that have to run over the decoded elements."
+  [op item {:keys [datatype]}]
+  (when (and (keyword? op)
+             (or (nil? datatype)
+                 (= datatype (dtype-base/get-datatype item))))
+    (dtype-proto/encoded-reduce item op)))
@@ -14,6 +14,7 @@
             [tech.v2.datatype.boolean-op :as boolean-op]
             [tech.v2.datatype.reduce-op :as reduce-op]
             [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.typecast :as typecast]
             [tech.v2.datatype.functional :as dfn]
             [clojure.pprint :as pp]
             [primitive-math :as pmath])
@@ -23,10 +24,13 @@
             OffsetTime Duration]
            [java.time.temporal TemporalUnit ChronoUnit
             Temporal TemporalAmount ChronoField]
+           [java.time.zone ZoneOffsetTransition]
+           [it.unimi.dsi.fastutil.longs LongArrayList]
+           [it.unimi.dsi.fastutil.ints IntArrayList]
            [tech.v2.datatype
             PackedInstant PackedLocalDate
             PackedLocalTime PackedLocalDateTime
-            ObjectReader LongReader IntReader
+            ObjectReader LongReader IntReader DoubleReader
             IterHelpers$LongIterConverter
             IterHelpers$IntIterConverter
             IterHelpers$ObjectIterConverter])
@@ -420,6 +424,112 @@
     dtype-dt/packed-local-time->milliseconds)})
 
 
+;;Operations that work directly on the packed int/long representations.  Readers
+;;produced here never allocate a java.time object per element.  They are lazy like
+;;the rest of the reader system; materializing them (make-container, copy!) runs in
+;;parallel.
+(defmacro ^:private packed-getter
+  [prim-dtype expr]
+  `(fn [src-reader#]
+     (let [src-reader# (typecast/datatype->reader ~prim-dtype src-reader# true)]
+       (reify LongReader
+         (getDatatype [rdr#] :int64)
+         (lsize [rdr#] (.lsize src-reader#))
+         (read [rdr# idx#]
+           (let [~'x (.read src-reader# idx#)]
+             (long ~expr)))))))
+
+
+(defmacro ^:private packed-numeric-op
+  [prim-dtype packed-dtype expr]
+  `(fn [src-reader# num-reader#]
+     (let [src-reader# (typecast/datatype->reader ~prim-dtype src-reader# true)
+           num-reader# (typecast/datatype->reader :float64 num-reader#)
+           n-elems# (clojure.core/min (.lsize src-reader#) (.lsize num-reader#))]
+       (reify ~(typecast/datatype->reader-type prim-dtype)
+         (getDatatype [rdr#] ~packed-dtype)
+         (lsize [rdr#] n-elems#)
+         (read [rdr# idx#]
+           (let [~'x (.read src-reader# idx#)
+                 ~'y (Math/round (.read num-reader# idx#))]
+             ~expr))))))
+
+
+(defmacro ^:private packed-plus-minus-ops
+  [prim-dtype packed-dtype unit->expr]
+  `(merge
+    ~@(map (fn [[unit expr]]
+             {(keyword (str "plus-" (name unit)))
+              `(packed-numeric-op ~prim-dtype ~packed-dtype ~expr)
+              (keyword (str "minus-" (name unit)))
+              `(packed-numeric-op ~prim-dtype ~packed-dtype
+                                  (let [~'y (- ~'y)] ~expr))})
+           unit->expr)))
+
+
+(def packed-time-ops
+  {:packed-local-date
+   {:int64-getters
+    {:years (packed-getter :int32 (PackedLocalDate/getYear x))
+     :months (packed-getter :int32 (PackedLocalDate/getMonthValue x))
+     :days (packed-getter :int32 (PackedLocalDate/getDayOfMonth x))
+     :day-of-year (packed-getter :int32 (PackedLocalDate/getDayOfYear x))
+     :day-of-week (packed-getter :int32 (.getValue (PackedLocalDate/getDayOfWeek x)))
+     :epoch-days (packed-getter :int32 (PackedLocalDate/toEpochDay x))
+     :epoch-milliseconds (packed-getter :int32
+                                        (* (PackedLocalDate/toEpochDay x)
+                                           (dtype-dt/milliseconds-in-day)))}
+    :numeric-ops
+    (packed-plus-minus-ops
+     :int32 :packed-local-date
+     {:years (PackedLocalDate/plusYears (unchecked-int y) x)
+      :months (PackedLocalDate/plusMonths (unchecked-int y) x)
+      :weeks (PackedLocalDate/plusWeeks (unchecked-int y) x)
+      :days (PackedLocalDate/plusDays (unchecked-int y) x)})}
+   :packed-local-date-time
+   {:int64-getters
+    {:years (packed-getter :int64 (PackedLocalDateTime/getYear x))
+     :months (packed-getter :int64 (PackedLocalDateTime/getMonthValue x))
+     :days (packed-getter :int64 (PackedLocalDateTime/getDayOfMonth x))
+     :day-of-year (packed-getter :int64 (PackedLocalDateTime/getDayOfYear x))
+     :day-of-week (packed-getter :int64
+                                 (.getValue (PackedLocalDateTime/getDayOfWeek x)))
+     :epoch-days (packed-getter :int64 (PackedLocalDateTime/toEpochDay x))
+     :hours (packed-getter :int64 (PackedLocalDateTime/getHour x))
+     :minutes (packed-getter :int64 (PackedLocalDateTime/getMinute x))
+     :seconds (packed-getter :int64 (PackedLocalDateTime/getSecond x))
+     :milliseconds (packed-getter :int64 (PackedLocalTime/getMilliseconds
+                                          (PackedLocalDateTime/time x)))
+     :epoch-milliseconds (packed-getter :int64 (PackedLocalDateTime/toEpochMilli x))}
+    :numeric-ops
+    (packed-plus-minus-ops
+     :int64 :packed-local-date-time
+     {:years (PackedLocalDateTime/plusYears (unchecked-int y) x)
+      :months (PackedLocalDateTime/plusMonths (unchecked-int y) x)
+      :weeks (PackedLocalDateTime/plusDays (unchecked-int (* 7 y)) x)
+      :days (PackedLocalDateTime/plusDays (unchecked-int y) x)
+      :hours (PackedLocalDateTime/plusMilliseconds
+              (* y (dtype-dt/milliseconds-in-hour)) x)
+      :minutes (PackedLocalDateTime/plusMilliseconds
+                (* y (dtype-dt/milliseconds-in-minute)) x)
+      :seconds (PackedLocalDateTime/plusMilliseconds
+                (* y (dtype-dt/milliseconds-in-second)) x)
+      :milliseconds (PackedLocalDateTime/plusMilliseconds y x)})}
+   ;;Packed instants are microseconds since the epoch
+   :packed-instant
+   {:int64-getters
+    {:epoch-milliseconds (packed-getter :int64 (Math/floorDiv x 1000))}
+    :numeric-ops
+    (packed-plus-minus-ops
+     :int64 :packed-instant
+     {:weeks (+ x (* y 604800000000))
+      :days (+ x (* y 86400000000))
+      :hours (+ x (* y 3600000000))
+      :minutes (+ x (* y 60000000))
+      :seconds (+ x (* y 1000000))
+      :milliseconds (+ x (* y 1000))})}})
+
+
 (defn- argtypes->operation-type
   [lhs-argtype rhs-argtype]
   (cond
@@ -445,7 +555,7 @@
     arg))
 
 
-(defn- perform-int64-getter
+(defn- perform-java-time-int64-getter
   [lhs unary-op-name]
   (let [lhs (dtype-dt/unpack lhs)
         lhs-argtype (arg->arg-type lhs)
@@ -472,6 +582,19 @@
      (dtype-proto/set-datatype result-dtype))))
 
 
+(defn- perform-int64-getter
+  [lhs unary-op-name]
+  (if-let [packed-getter (when (= :reader (arg->arg-type lhs))
+                           (get-in packed-time-ops
+                                   [(dtype-base/get-datatype lhs)
+                                    :int64-getters unary-op-name]))]
+    (-> (packed-getter lhs)
+        (dtype-proto/set-datatype (if (= unary-op-name :epoch-milliseconds)
+                                    :epoch-milliseconds
+                                    :int64)))
+    (perform-java-time-int64-getter lhs unary-op-name)))
+
+
 (defn- perform-duration-getter
   [lhs unary-op-name]
   (let [lhs (dtype-dt/unpack lhs)
@@ -515,7 +638,7 @@
        (promote-op-arg op-argtype rhs-argtype rhs lhs)))))
 
 
-(defn- with-packing-time-op
+(defn- java-time-packing-time-op
   [date-time-arg rhs op-category opname]
   (let [date-time-orig-dtype (collapse-date-datatype date-time-arg)
         date-time-arg (dtype-dt/unpack date-time-arg)
@@ -530,6 +653,28 @@
       result)))
 
 
+(defn- packed-numeric-time-op
+  "Returns nil if there is no packed implementation of this operation."
+  [date-time-arg rhs op-category opname]
+  (when-let [packed-op (and (= :reader (arg->arg-type date-time-arg))
+                            (#{:scalar :reader} (arg->arg-type rhs))
+                            (get-in packed-time-ops
+                                    [(dtype-base/get-datatype date-time-arg)
+                                     op-category opname]))]
+    (packed-op date-time-arg
+               (if (= :scalar (arg->arg-type rhs))
+                 (make-const-reader (double (or rhs 0.0)) :float64
+                                    (dtype-base/ecount date-time-arg))
+                 rhs))))
+
+
+(defn- with-packing-time-op
+  [date-time-arg rhs op-category opname]
+  (if-let [retval (packed-numeric-time-op date-time-arg rhs op-category opname)]
+    retval
+    (java-time-packing-time-op date-time-arg rhs op-category opname)))
+
+
 (defn- perform-commutative-numeric-op
   [lhs rhs opname]
   (let [lhs-dtype (collapse-date-datatype lhs)
@@ -1106,6 +1251,104 @@
    (milliseconds->datetime :local-date millis-data)))
 
 
+;;Bulk timezone conversion.  Instead of asking ZoneRules for the offset of every
+;;element we collect the zone's transitions over the data's min..max range once and
+;;binary search that (usually tiny) table per element.
+(defn- ->zone-id
+  ^ZoneId [zone-id]
+  (cond
+    (instance? ZoneId zone-id) zone-id
+    (string? zone-id) (ZoneId/of ^String zone-id)
+    :else
+    (throw (Exception. (format "Unrecognized zone id: %s" zone-id)))))
+
+
+(defn zone-offset-table
+  "Return {:transitions :offsets} for zone-id between the min-millis and max-millis
+  epoch milliseconds.  transitions are sorted epoch seconds and offsets are the
+  offset seconds in effect before the first transition followed by the offset
+  after each transition."
+  [zone-id min-millis max-millis]
+  (let [rules (.getRules (->zone-id zone-id))
+        start (Instant/ofEpochMilli (long min-millis))
+        end-second (Math/floorDiv (long max-millis) 1000)
+        transitions (LongArrayList.)
+        offsets (IntArrayList.)]
+    (.add offsets (.getTotalSeconds (.getOffset rules start)))
+    (when-not (.isFixedOffset rules)
+      (loop [trans (.nextTransition rules start)]
+        (when (and trans
+                   (clojure.core/<= (.toEpochSecond ^ZoneOffsetTransition trans)
+                                    end-second))
+          (.add transitions (.toEpochSecond ^ZoneOffsetTransition trans))
+          (.add offsets (.getTotalSeconds
+                         (.getOffsetAfter ^ZoneOffsetTransition trans)))
+          (recur (.nextTransition rules (.getInstant
+                                         ^ZoneOffsetTransition trans))))))
+    {:transitions (.toLongArray transitions)
+     :offsets (.toIntArray offsets)}))
+
+
+(defn- table-offset-millis
+  ^long [^longs transitions ^ints offsets ^long epoch-millis]
+  (let [epoch-second (Math/floorDiv epoch-millis 1000)
+        search-idx (java.util.Arrays/binarySearch transitions epoch-second)
+        offset-idx (if (clojure.core/>= search-idx 0)
+                     (inc search-idx)
+                     (- (inc search-idx)))]
+    (* 1000 (aget offsets offset-idx))))
+
+
+(defn- ->epoch-milliseconds-reader
+  ^LongReader [data]
+  (let [datatype (dtype-base/get-datatype data)]
+    (typecast/datatype->reader
+     :int64
+     (if (or (casting/numeric-type? datatype)
+             (= datatype :epoch-milliseconds))
+       data
+       (get-epoch-milliseconds data)))))
+
+
+(defn milliseconds-since-epoch->packed-local-date-time
+  "Convert instant-like data (epoch milliseconds, instants, packed instants,
+  zoned or offset date times) into packed local date times in zone-id.  The
+  offsets come from a transition table built once for the data's range so the
+  per-element work is a binary search and packed arithmetic."
+  [data zone-id]
+  (if (zero? (dtype-base/ecount data))
+    (dtype-proto/set-datatype (long-array 0) :packed-local-date-time)
+    (let [millis (->epoch-milliseconds-reader data)
+          n-elems (.lsize millis)
+          {:keys [transitions offsets]}
+          (zone-offset-table zone-id (dfn/reduce-min millis) (dfn/reduce-max millis))
+          ^longs transitions transitions
+          ^ints offsets offsets]
+      (reify LongReader
+        (getDatatype [rdr] :packed-local-date-time)
+        (lsize [rdr] n-elems)
+        (read [rdr idx]
+          (let [epoch-millis (.read millis idx)]
+            (PackedLocalDateTime/ofEpochMilli
+             (+ epoch-millis
+                (table-offset-millis transitions offsets epoch-millis)))))))))
+
+
+(defn milliseconds-since-epoch->packed-local-date
+  "Convert instant-like data into packed local dates in zone-id.  See
+  milliseconds-since-epoch->packed-local-date-time."
+  [data zone-id]
+  (let [ldt-rdr (typecast/datatype->reader
+                 :int64
+                 (milliseconds-since-epoch->packed-local-date-time data zone-id)
+                 true)]
+    (reify IntReader
+      (getDatatype [rdr] :packed-local-date)
+      (lsize [rdr] (.lsize ldt-rdr))
+      (read [rdr idx]
+        (PackedLocalDateTime/date (.read ldt-rdr idx))))))
+
+
 (defn millisecond-descriptive-stats
   "Get the descriptive stats.  Stats are calulated in milliseconds and
   then min, mean, max are returned as objects of the unpacked datetime
@@ -0,0 +1,121 @@
+(ns tech.v2.datatype.datetime.parse
+  "Bulk parsing of text directly into the packed datetime datatypes.  Parsing runs
+  in parallel and does not allocate java.time objects.  Only the layouts supported
+  by tech.v2.datatype.PackedDateTimeParser are recognized; use a
+  DateTimeFormatter for anything else."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.datetime]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype PackedDateTimeParser
+            PackedDateTimeParser$AsciiSequence ObjectReader]))
+
+
+(set! *warn-on-reflection* true)
+
+
+(def date-formats
+  {:iso PackedDateTimeParser/ISO_DATE
+   :basic-iso PackedDateTimeParser/BASIC_ISO_DATE
+   :us PackedDateTimeParser/US_DATE})
+
+
+(defn- date-format
+  ^long [options]
+  (if-let [retval (get date-formats (get options :format :iso))]
+    retval
+    (throw (Exception. (format "Unrecognized date format: %s" (:format options))))))
+
+
+(defmacro ^:private parse-strings
+  [ary-fn datatype strings parse-expr]
+  `(let [^ObjectReader strings# (typecast/datatype->reader :object ~strings)
+         n-elems# (.lsize strings#)
+         retval# (~ary-fn n-elems#)]
+     (parallel-for/parallel-for
+      ~'idx n-elems#
+      (let [~'text ^CharSequence (.read strings# ~'idx)]
+        (aset retval# ~'idx ~parse-expr)))
+     (dtype-proto/set-datatype retval# ~datatype)))
+
+
+(defn parse-packed-local-date
+  "Parse a sequence of strings into a :packed-local-date buffer.
+  Options:
+  :format - One of :iso (yyyy-MM-dd, the default), :basic-iso (yyyyMMdd) or
+    :us (MM/dd/yyyy)."
+  ([strings options]
+   (let [fmt (date-format options)]
+     (parse-strings int-array :packed-local-date strings
+                    (PackedDateTimeParser/parseLocalDate
+                     text 0 (.length ^CharSequence text) fmt))))
+  ([strings]
+   (parse-packed-local-date strings {})))
+
+
+(defn parse-packed-local-time
+  "Parse a sequence of HH:mm[:ss[.SSS]] strings into a :packed-local-time buffer."
+  [strings]
+  (parse-strings int-array :packed-local-time strings
+                 (PackedDateTimeParser/parseLocalTime ^CharSequence text)))
+
+
+(defn parse-packed-local-date-time
+  "Parse a sequence of ISO local date time strings (with either a 'T' or a space
+  between the date and time) into a :packed-local-date-time buffer."
+  [strings]
+  (parse-strings long-array :packed-local-date-time strings
+                 (PackedDateTimeParser/parseLocalDateTime ^CharSequence text)))
+
+
+(defn parse-packed-instant
+  "Parse a sequence of ISO instant strings ending in Z or an offset into a
+  :packed-instant buffer."
+  [strings]
+  (parse-strings long-array :packed-instant strings
+                 (PackedDateTimeParser/parseInstant ^CharSequence text)))
+
+
+(defmacro ^:private parse-byte-ranges
+  [ary-fn datatype data starts lengths parse-expr]
+  `(let [data# ~data
+         starts# (typecast/datatype->reader :int32 ~starts)
+         lengths# (typecast/datatype->reader :int32 ~lengths)
+         n-elems# (.lsize starts#)
+         retval# (~ary-fn n-elems#)]
+     (parallel-for/indexed-map-reduce
+      n-elems#
+      (fn [^long start-idx# ^long group-len#]
+        (let [~'text (PackedDateTimeParser$AsciiSequence.)
+              end-idx# (+ start-idx# group-len#)]
+          (loop [~'idx start-idx#]
+            (when (< ~'idx end-idx#)
+              (.set ~'text data# (.read starts# ~'idx) (.read lengths# ~'idx))
+              (aset retval# ~'idx ~parse-expr)
+              (recur (unchecked-inc ~'idx)))))))
+     (dtype-proto/set-datatype retval# ~datatype)))
+
+
+(defn parse-byte-ranges->packed
+  "Parse ascii text stored in a byte array without creating strings.  starts and
+  lengths describe each value's range in data.  datatype is one of
+  :packed-local-date, :packed-local-time, :packed-local-date-time or
+  :packed-instant; options are as per parse-packed-local-date."
+  ([datatype ^bytes data starts lengths options]
+   (case datatype
+     :packed-local-date
+     (let [fmt (date-format options)]
+       (parse-byte-ranges int-array :packed-local-date data starts lengths
+                          (PackedDateTimeParser/parseLocalDate
+                           text 0 (.length text) fmt)))
+     :packed-local-time
+     (parse-byte-ranges int-array :packed-local-time data starts lengths
+                        (PackedDateTimeParser/parseLocalTime text))
+     :packed-local-date-time
+     (parse-byte-ranges long-array :packed-local-date-time data starts lengths
+                        (PackedDateTimeParser/parseLocalDateTime text))
+     :packed-instant
+     (parse-byte-ranges long-array :packed-instant data starts lengths
+                        (PackedDateTimeParser/parseInstant text))))
+  ([datatype data starts lengths]
+   (parse-byte-ranges->packed datatype data starts lengths {})))
@@ -0,0 +1,424 @@
+(ns tech.v2.datatype.dictionary
+  "Dictionary encoded object containers.  Each element is stored as an integer code
+  into a table of the distinct values, so a column of heavily repeated strings or
+  keywords costs one int (or narrower) per row plus one object per distinct value.
+  Code 0 is always nil.
+
+  Grouping, sorting and equality against a dictionary encoded container run on the
+  codes; see tech.v2.datatype.builtin-op-providers for where they hook in."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.comparator :as dtype-comp]
+            [tech.v2.datatype.unary-op :as unary-op]
+            [tech.v2.datatype.reader :as reader]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype ObjectReader ObjectWriter IntReader IntWriter
+            BooleanReader]
+           [it.unimi.dsi.fastutil.ints IntArrayList]
+           [it.unimi.dsi.fastutil.longs LongArrayList]
+           [org.roaringbitmap RoaringBitmap]
+           [java.util List ArrayList HashMap Map Comparator Collections Arrays
+            RandomAccess]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function Function]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(def code-datatype->max-codes
+  {:uint8 256
+   :uint16 65536
+   :int32 Integer/MAX_VALUE})
+
+
+(deftype DictionaryValues [^:volatile-mutable ^objects data
+                           ^:volatile-mutable ^long n-values]
+  List
+  (size [this] n-values)
+  (isEmpty [this] (== 0 n-values))
+  (get [this idx]
+    ;;add writes n-values last so reading it first makes the value visible
+    (when-not (< (long idx) n-values)
+      (throw (IndexOutOfBoundsException. (str idx))))
+    (aget data (int idx)))
+  (add [this value]
+    (locking this
+      (let [code n-values]
+        (when (== code (alength data))
+          (set! data (Arrays/copyOf data (int (max 16 (* 2 code))))))
+        (aset data code value)
+        (set! n-values (unchecked-inc code))
+        true)))
+  (toArray [this]
+    (let [n-values n-values]
+      (Arrays/copyOf data (int n-values))))
+  (iterator [this] (.iterator (Arrays/asList (.toArray this))))
+  (contains [this value] (>= (.indexOf this value) 0))
+  (indexOf [this value]
+    (let [n-values n-values]
+      (loop [idx 0]
+        (cond
+          (== idx n-values) -1
+          (= value (aget data idx)) idx
+          :else (recur (unchecked-inc idx))))))
+  RandomAccess)
+
+
+(defn- make-dictionary-values
+  "Append only list of the distinct values.  Reads are lock free and safe while
+  other threads append."
+  ^DictionaryValues [values]
+  (let [data (object-array values)]
+    (DictionaryValues. data (alength data))))
+
+
+(defn- value->code!
+  "Code of value, adding it to the dictionary if necessary.  Codes are handed out
+  under the lock of values so concurrent writers agree on them."
+  ^long [^List values ^ConcurrentHashMap value->code max-codes value]
+  (if (nil? value)
+    0
+    (long
+     (.computeIfAbsent
+      value->code value
+      (reify Function
+        (apply [this value]
+          (locking values
+            (let [code (.size values)]
+              (when-not (< code (long max-codes))
+                (throw (ex-info (format "Dictionary exceeded %s distinct values"
+                                        max-codes)
+                                {:max-codes max-codes})))
+              (.add values value)
+              code))))))))
+
+
+(defn- datatype->cast-fn
+  "Values written are converted with the constructor of extended object datatypes
+  (so :keyword buffers accept strings) and casting/cast otherwise."
+  [datatype]
+  (if-let [constructor (:constructor (.get ^Map casting/datatype-extension-map
+                                           datatype))]
+    constructor
+    #(casting/cast % datatype)))
+
+
+(defn- cast-value
+  [value cast-fn]
+  (when-not (nil? value)
+    (cast-fn value)))
+
+
+(declare make-dictionary-buffer)
+
+
+(deftype DictionaryBuffer [datatype code-datatype codes
+                           ^IntReader code-reader ^IntWriter code-writer
+                           ^List values ^ConcurrentHashMap value->code
+                           max-codes cast-fn]
+  ObjectReader
+  (getDatatype [item] datatype)
+  (lsize [item] (.lsize code-reader))
+  (read [item idx] (.get values (.read code-reader idx)))
+
+  ObjectWriter
+  (write [item idx value]
+    (let [value (cast-value value cast-fn)]
+      (.write code-writer idx
+              (unchecked-int (value->code! values value->code max-codes value)))))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] datatype)
+
+  dtype-proto/PCountable
+  (ecount [item] (.lsize code-reader))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    (let [opt-dtype (:datatype options)]
+      (if (or (nil? opt-dtype) (= opt-dtype datatype))
+        item
+        (reader/make-marshalling-reader item options))))
+
+  dtype-proto/PToWriter
+  (convertible-to-writer? [item] true)
+  (->writer [item options] item)
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PClone
+  (clone [item]
+    (make-dictionary-buffer datatype
+                            (dtype-proto/clone codes)
+                            (make-dictionary-values values)
+                            (ConcurrentHashMap. value->code)
+                            code-datatype))
+
+  dtype-proto/PDictionaryEncoded
+  (dictionary-encoded? [item] true)
+  (dictionary-codes [item] codes)
+  (dictionary-values [item] values))
+
+
+(defn- make-dictionary-buffer
+  [datatype codes values value->code code-datatype]
+  (DictionaryBuffer. datatype code-datatype codes
+                     (typecast/datatype->reader :int32 codes)
+                     (typecast/datatype->writer :int32 codes)
+                     values value->code
+                     (code-datatype->max-codes code-datatype)
+                     (datatype->cast-fn datatype)))
+
+
+(defn- empty-dictionary
+  []
+  (make-dictionary-values [nil]))
+
+
+(defn- check-code-datatype
+  [code-datatype]
+  (when-not (contains? code-datatype->max-codes code-datatype)
+    (throw (ex-info (format "Unsupported code datatype %s" code-datatype)
+                    {:code-datatype code-datatype
+                     :supported (keys code-datatype->max-codes)})))
+  code-datatype)
+
+
+(defn dictionary-buffer
+  "Make an empty (all nil) dictionary encoded buffer of n-elems.
+  Options:
+  :code-datatype - :uint8, :uint16 or :int32 (the default).  Writing more distinct
+    values than the code datatype can index is an error."
+  [datatype n-elems & [{:keys [code-datatype]
+                        :or {code-datatype :int32}}]]
+  (let [code-datatype (check-code-datatype code-datatype)]
+    (make-dictionary-buffer datatype
+                            (dtype-proto/make-container :typed-buffer code-datatype
+                                                        (long n-elems) {})
+                            (empty-dictionary) (ConcurrentHashMap.) code-datatype)))
+
+
+(defn dictionary-encode
+  "Encode values into a new dictionary buffer.  Options are as per
+  dictionary-buffer along with :datatype which defaults to the datatype of values."
+  [values & [{:keys [datatype] :as options}]]
+  (let [datatype (or datatype (dtype-base/get-datatype values))
+        src-reader (typecast/datatype->reader
+                    :object
+                    (if (dtype-proto/convertible-to-reader? values)
+                      values
+                      (vec values)))
+        n-elems (.lsize src-reader)
+        ^DictionaryBuffer retval (dictionary-buffer datatype n-elems options)
+        ^IntWriter code-writer (.code-writer retval)
+        dict-values (.values retval)
+        value->code (.value->code retval)
+        max-codes (.max-codes retval)
+        cast-fn (.cast-fn retval)]
+    (dotimes [idx n-elems]
+      (.write code-writer idx
+              (unchecked-int
+               (value->code! dict-values value->code max-codes
+                             (cast-value (.read src-reader idx) cast-fn)))))
+    retval))
+
+
+(defmethod dtype-proto/make-container :dictionary
+  [_container-type datatype elem-count-or-seq options]
+  (if (number? elem-count-or-seq)
+    (dictionary-buffer datatype elem-count-or-seq options)
+    (dictionary-encode elem-count-or-seq (assoc options :datatype datatype))))
+
+
+(defn dictionary-encoded?
+  [item]
+  (boolean (and item (dtype-proto/dictionary-encoded? item))))
+
+
+(defn- code-reader
+  ^IntReader [item]
+  (typecast/datatype->reader :int32 (dtype-proto/dictionary-codes item)))
+
+
+(defn- bucket-counts
+  "Count elements per bucket in parallel chunks.  Returns a vector of
+  [chunk-start chunk-len counts]."
+  [^IntReader codes ^ints bucket-of-code ^long n-buckets]
+  (parallel-for/indexed-map-reduce
+   (.lsize codes)
+   (fn [^long start-idx ^long group-len]
+     (let [counts (int-array n-buckets)
+           end-idx (+ start-idx group-len)]
+       (loop [idx start-idx]
+         (when (< idx end-idx)
+           (let [bucket (aget bucket-of-code (.read codes idx))]
+             (aset counts bucket (unchecked-inc-int (aget counts bucket))))
+           (recur (unchecked-inc idx))))
+       [start-idx group-len counts]))
+   vec))
+
+
+(defn- bucket-indexes
+  "Stable bucket sort of the indexes of codes where each code maps to
+  (aget bucket-of-code code).  Returns a vector of one int array of indexes per
+  bucket."
+  [^IntReader codes ^ints bucket-of-code ^long n-buckets]
+  (let [chunks (bucket-counts codes bucket-of-code n-buckets)
+        totals (int-array n-buckets)
+        retval (object-array n-buckets)]
+    ;;Turn each chunk's counts into its write offset within each bucket
+    (doseq [[_ _ ^ints counts] chunks]
+      (dotimes [bucket n-buckets]
+        (let [n-items (aget counts bucket)]
+          (aset counts bucket (aget totals bucket))
+          (aset totals bucket (unchecked-add-int (aget totals bucket) n-items)))))
+    (dotimes [bucket n-buckets]
+      (aset retval bucket (int-array (aget totals bucket))))
+    (->> chunks
+         (pmap (fn [[start-idx group-len ^ints offsets]]
+                 (let [start-idx (long start-idx)
+                       end-idx (+ start-idx (long group-len))]
+                   (loop [idx start-idx]
+                     (when (< idx end-idx)
+                       (let [bucket (aget bucket-of-code (.read codes idx))
+                             offset (aget offsets bucket)]
+                         (aset ^ints (aget retval bucket) offset (unchecked-int idx))
+                         (aset offsets bucket (unchecked-inc-int offset)))
+                       (recur (unchecked-inc idx)))))))
+         (dorun))
+    (vec retval)))
+
+
+(defn- group-storage
+  [storage-datatype ^ints indexes]
+  (case storage-datatype
+    :int32 (IntArrayList/wrap indexes)
+    :int64 (let [retval (LongArrayList. (alength indexes))]
+             (dotimes [idx (alength indexes)]
+               (.add retval (aget indexes idx)))
+             retval)
+    :bitmap (RoaringBitmap/bitmapOf indexes)))
+
+
+(defn arggroup-by
+  "arggroup-by for dictionary encoded items.  partition-fn is applied once per
+  distinct value and grouping runs on the codes.  storage-datatype is :int32,
+  :int64 or :bitmap.  Index lists are in increasing order."
+  [storage-datatype partition-fn item {:keys [datatype]}]
+  (let [^List values (dtype-proto/dictionary-values item)
+        n-codes (.size values)
+        group-keys (if (or (= partition-fn :identity)
+                           (identical? partition-fn identity))
+                     (vec values)
+                     (vec (unary-op/unary-map partition-fn
+                                              (dtype-base/->reader
+                                               (vec values)
+                                               (or datatype :object)))))
+        key->bucket (HashMap.)
+        bucket-of-code (int-array n-codes)]
+    (dotimes [code n-codes]
+      (let [k (nth group-keys code)
+            bucket (or (.get key->bucket k)
+                       (let [bucket (.size key->bucket)]
+                         (.put key->bucket k bucket)
+                         bucket))]
+        (aset bucket-of-code code (int bucket))))
+    (let [codes (code-reader item)
+          groups (bucket-indexes codes bucket-of-code (.size key->bucket))
+          retval (HashMap.)]
+      (doseq [[k bucket] key->bucket]
+        (let [^ints indexes (nth groups bucket)]
+          (when-not (== 0 (alength indexes))
+            (.put retval k (group-storage storage-datatype indexes)))))
+      retval)))
+
+
+(defn argsort
+  "Stable argsort of a dictionary encoded item.  Only the distinct values are
+  compared; the indexes are produced by a bucket sort of the codes.  Options are as
+  per tech.v2.datatype.argsort/argsort."
+  [item {:keys [comparator reverse?]}]
+  (let [^List values (dtype-proto/dictionary-values item)
+        n-codes (.size values)
+        ^Comparator value-comp (dtype-comp/datatype->comparator
+                                :object
+                                (or comparator (dtype-comp/default-comparator :object)))
+        sorted-codes (ArrayList. ^java.util.Collection (range n-codes))
+        bucket-of-code (int-array n-codes)]
+    (Collections/sort sorted-codes
+                      (reify Comparator
+                        (compare [this lhs rhs]
+                          (let [result (.compare value-comp
+                                                 (.get values (int lhs))
+                                                 (.get values (int rhs)))]
+                            (if reverse? (- result) result)))))
+    (dotimes [rank n-codes]
+      (aset bucket-of-code (int (.get sorted-codes rank)) (int rank)))
+    (let [codes (code-reader item)
+          n-elems (.lsize codes)
+          retval (int-array n-elems)]
+      (reduce (fn [^long offset ^ints indexes]
+                (System/arraycopy indexes 0 retval offset (alength indexes))
+                (+ offset (alength indexes)))
+              0
+              (bucket-indexes codes bucket-of-code n-codes))
+      retval)))
+
+
+(defn- code-of
+  "Code of value in item's dictionary or -1 if the value isn't present."
+  ^long [^DictionaryBuffer item value]
+  (let [value (cast-value value (datatype->cast-fn (dtype-proto/get-datatype item)))]
+    (if (nil? value)
+      0
+      (long (.getOrDefault ^Map (.value->code item) value -1)))))
+
+
+(defn eq
+  "Lazy boolean reader of (= item[idx] value) on the codes of item.  When negate?
+  is true the reader is of (not= item[idx] value)."
+  ([item value negate?]
+   (let [codes (code-reader item)
+         target (code-of item value)
+         negate? (boolean negate?)
+         n-elems (.lsize codes)]
+     (reify BooleanReader
+       (lsize [rdr] n-elems)
+       (read [rdr idx]
+         (not= negate? (== target (.read codes idx)))))))
+  ([item value]
+   (eq item value false)))
+
+
+(defn eq-dictionary
+  "Lazy boolean reader of elementwise equality between two dictionary encoded items.
+  The rhs codes are translated into lhs codes once per distinct value."
+  ([lhs rhs negate?]
+   (let [lhs-codes (code-reader lhs)
+         rhs-codes (code-reader rhs)
+         ^List rhs-values (dtype-proto/dictionary-values rhs)
+         n-rhs-codes (.size rhs-values)
+         ^List lhs-values (dtype-proto/dictionary-values lhs)
+         lhs-value->code (HashMap.)
+         rhs->lhs (int-array n-rhs-codes)
+         negate? (boolean negate?)
+         n-elems (min (.lsize lhs-codes) (.lsize rhs-codes))]
+     (dotimes [code (.size lhs-values)]
+       (.put lhs-value->code (.get lhs-values code) code))
+     (dotimes [code n-rhs-codes]
+       (aset rhs->lhs code (int (.getOrDefault lhs-value->code
+                                              (.get rhs-values code) -1))))
+     (reify BooleanReader
+       (lsize [rdr] n-elems)
+       (read [rdr idx]
+         (not= negate? (== (.read lhs-codes idx)
+                           (aget rhs->lhs (.read rhs-codes idx))))))))
+  ([lhs rhs]
+   (eq-dictionary lhs rhs false)))
@@ -5,9 +5,12 @@
             [tech.v2.datatype.functional.impl :as impl]
             [tech.v2.datatype.operation-provider :as op-provider]
             [tech.v2.datatype.readers.indexed :as indexed-reader]
+            [tech.v2.datatype.binary-search :as dtype-search]
             [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.protocols :as dtype-proto]
             [tech.v2.datatype.typecast :as typecast]
             [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.rle :as rle]
             [tech.parallel.for :as parallel-for]
             [primitive-math :as pmath]
             ;;For functional to work right a lot of the requires in datatype
@@ -20,7 +23,7 @@
             [tech.v2.datatype.clj-range]
             [tech.v2.datatype.object-datatypes]
             [tech.v2.datatype.builtin-op-providers])
-  (:import [java.util Iterator List]
+  (:import [java.util Iterator List Arrays]
            [it.unimi.dsi.fastutil.longs LongArrayList]
            [it.unimi.dsi.fastutil.doubles DoubleArrayList]
            [it.unimi.dsi.fastutil.ints IntArrayList]
@@ -101,7 +104,27 @@
 
 
 (impl/export-symbols tech.v2.datatype.rolling
-                     fixed-rolling-window)
+                     fixed-rolling-window
+                     rolling-reduce
+                     time-rolling-reduce)
+
+
+(impl/export-symbols tech.v2.datatype.scan
+                     scan
+                     cumsum
+                     cumprod
+                     cummin
+                     cummax)
+
+
+(impl/export-symbols tech.v2.datatype.histogram
+                     bin-counts
+                     histogram
+                     digitize)
+
+
+(impl/export-symbols tech.v2.datatype.join
+                     argjoin)
 
 
 (defn indexed-reader
@@ -146,6 +169,13 @@
     (op-provider/binary-op :binary-search values target options)))
 
 
+(defn batch-binary-search
+  "Insertion positions of each of the targets in the sorted values as an int64
+  array.  See tech.v2.datatype.binary-search/batch-binary-search for options."
+  [values targets & {:as options}]
+  (dtype-search/batch-binary-search values targets options))
+
+
 (defn argfilter
   "Returns a (potentially infinite) sequence of indexes that pass the filter."
   [bool-op filter-seq & [second-seq]]
@@ -200,20 +230,83 @@
             (lazy-seq (do-argpartition-by end-idx item-iterable next-item))))))
 
 
+(defn argpartition-by-offsets
+  "Partition item into runs of consecutive equal partition keys.  Returns
+  [keys-reader start-offsets-reader] where start-offsets holds the int64 start index of
+  every partition; a partition ends where the next one starts or at the end of item.
+
+  Runs are found in parallel and keys are compared as primitives when the key
+  datatype is primitive.  A nil partition-fn partitions by the elements of item
+  themselves which is the fast path for sorted key columns.  Options:
+  :datatype - datatype item is read as.  Defaults to the datatype of item when
+    partition-fn is nil and :object otherwise.
+  :key-datatype - datatype of the keys.  Defaults to :datatype when partition-fn is
+    nil and :object otherwise; give a primitive datatype to compare the results of
+    partition-fn as primitives.
+  Run length encoded items are partitioned a run at a time."
+  [partition-fn item & [options]]
+  (let [rle? (rle/rle? item)
+        src (if rle? (rle/run-values item) item)
+        datatype (clojure.core/or (:datatype options)
+                                  (if partition-fn
+                                    :object
+                                    (dtype-base/get-datatype src)))
+        key-datatype (clojure.core/or (:key-datatype options)
+                                      (if partition-fn :object datatype))
+        src-rdr (dtype-base/->reader src datatype)
+        ;;partition-fn maps primitive to primitive only when both datatypes agree
+        key-rdr (-> (if partition-fn
+                      (unary-op/unary-map {:datatype (if (= key-datatype datatype)
+                                                       datatype
+                                                       :object)}
+                                          partition-fn src-rdr)
+                      src-rdr)
+                    (dtype-base/->reader key-datatype))
+        ^longs run-offsets (rle/run-offsets key-datatype key-rdr)
+        n-keys (dec (alength run-offsets))
+        run-starts (Arrays/copyOf run-offsets n-keys)
+        offsets (if rle?
+                  (let [starts (rle/run-starts item)]
+                    (amap run-starts idx _retval (aget starts (aget run-starts idx))))
+                  run-starts)]
+    [(-> (dtype-proto/make-container :typed-buffer key-datatype
+                                     (indexed-reader/make-indexed-reader
+                                      run-starts key-rdr {:datatype key-datatype})
+                                     {})
+         (dtype-base/->reader key-datatype))
+     (typecast/datatype->reader :int64 offsets)]))
+
+
 (defn argpartition-by
-  "Returns a sequence of [partition-key index-reader].  Index generation is not
-  parallelized.  This design allows group-by and partition-by to be used
-  interchangeably as they both result in a sequence of [partition-key idx-reader].
-  This design is lazy."
+  "Returns a sequence of [partition-key index-reader].  This design allows group-by
+  and partition-by to be used interchangeably as they both result in a sequence of
+  [partition-key idx-reader].  Readers are partitioned in parallel with
+  argpartition-by-offsets; other iterables are partitioned lazily."
   [partition-fn item-iterable & [options]]
-  (let [reader-dtype (clojure.core/or (:datatype options) :object)
-        item-reader (->> (dtype-base/->iterable item-iterable
-                                                reader-dtype
-                                                (assoc options :datatype reader-dtype))
-                         (unary-op/unary-map partition-fn))
-        iterator (.iterator ^Iterable item-reader)]
-    (when (.hasNext iterator)
-      (do-argpartition-by 0 iterator (.next iterator)))))
+  (if (clojure.core/or (rle/rle? item-iterable)
+                       (dtype-proto/convertible-to-reader? item-iterable))
+    (let [[part-keys offsets] (argpartition-by-offsets
+                               partition-fn item-iterable options)
+          part-keys (typecast/datatype->reader :object part-keys)
+          offsets (typecast/datatype->reader :int64 offsets)
+          n-keys (.lsize offsets)
+          n-elems (dtype-base/ecount item-iterable)]
+      (map (fn [^long idx]
+             (let [next-idx (inc idx)]
+               [(.read part-keys idx)
+                (range (.read offsets idx)
+                       (if (== next-idx n-keys)
+                         n-elems
+                         (.read offsets next-idx)))]))
+           (range n-keys)))
+    (let [reader-dtype (clojure.core/or (:datatype options) :object)
+          item-reader (->> (dtype-base/->iterable item-iterable
+                                                  reader-dtype
+                                                  (assoc options :datatype reader-dtype))
+                           (unary-op/unary-map partition-fn))
+          iterator (.iterator ^Iterable item-reader)]
+      (when (.hasNext iterator)
+        (do-argpartition-by 0 iterator (.next iterator))))))
 
 
 (defn magnitude-squared
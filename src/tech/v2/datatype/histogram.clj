@@ -0,0 +1,240 @@
+(ns tech.v2.datatype.histogram
+  "Histograms and binning of numeric readers.  Counting runs in parallel with a
+  primitive count array per thread; the arrays are summed once at the end.  Bins are
+  half open, [edge-i edge-i+1), except for the last bin which also includes its
+  upper edge.  Values outside the edges and NaN values are not counted."
+  (:require [tech.v2.datatype.typecast :as typecast]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype DoubleReader]
+           [java.util Arrays]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn- finite-range
+  "Min and max of the finite values of the reader."
+  [^DoubleReader reader]
+  (parallel-for/indexed-map-reduce
+   (.lsize reader)
+   (fn [^long start-idx ^long group-len]
+     (let [end-idx (+ start-idx group-len)]
+       (loop [idx start-idx
+              data-min Double/MAX_VALUE
+              data-max (- Double/MAX_VALUE)]
+         (if (< idx end-idx)
+           (let [value (.read reader idx)]
+             (if (Double/isFinite value)
+               (recur (unchecked-inc idx)
+                      (if (< value data-min) value data-min)
+                      (if (> value data-max) value data-max))
+               (recur (unchecked-inc idx) data-min data-max)))
+           [data-min data-max]))))
+   (fn [results]
+     (let [results (vec results)
+           data-min (double (apply min (map first results)))
+           data-max (double (apply max (map second results)))]
+       (if (> data-min data-max)
+         [0.0 1.0]
+         [data-min data-max])))))
+
+
+(defn- edge-bin
+  "Bin of value given sorted edges or -1 if value is outside the edges."
+  ^long [^doubles edges ^long n-bins ^double value]
+  (let [pos (Arrays/binarySearch edges value)]
+    (if (>= pos 0)
+      (if (< pos n-bins) pos (if (== pos n-bins) (dec n-bins) -1))
+      (let [bin (- (- pos) 2)]
+        (if (and (>= bin 0) (< bin n-bins)) bin -1)))))
+
+
+(defmacro ^:private fixed-bin
+  "Bin of value with n-bins equal bins spanning [lo hi] or -1."
+  [lo hi scale n-bins value]
+  `(let [value# ~value]
+     ;;Written to be false for NaN
+     (if (and (>= value# ~lo) (<= value# ~hi))
+       (let [bin# (long (* (- value# ~lo) ~scale))]
+         (if (>= bin# ~n-bins) (dec ~n-bins) bin#))
+       -1)))
+
+
+(defmacro ^:private count-bins
+  "Count (or sum weights of) the bin of every value.  bin-expr computes the bin of
+  the double 'value' and is -1 for values that are not counted."
+  [reader weights n-bins bin-expr]
+  `(let [^DoubleReader reader# ~reader
+         weights# (when ~weights
+                    (typecast/datatype->reader :float64 ~weights))
+         n-bins# (long ~n-bins)]
+     (if weights#
+       (let [^DoubleReader weights# weights#]
+         (parallel-for/indexed-map-reduce
+          (.lsize reader#)
+          (fn [^long start-idx# ^long group-len#]
+            (let [counts# (double-array n-bins#)
+                  end-idx# (+ start-idx# group-len#)]
+              (loop [idx# start-idx#]
+                (when (< idx# end-idx#)
+                  (let [~'value (.read reader# idx#)
+                        bin# ~bin-expr]
+                    (when (>= bin# 0)
+                      (aset counts# bin# (+ (aget counts# bin#)
+                                            (.read weights# idx#)))))
+                  (recur (unchecked-inc idx#))))
+              counts#))
+          (fn [results#]
+            (let [retval# (double-array n-bins#)]
+              (doseq [^"[D" counts# results#]
+                (dotimes [bin# n-bins#]
+                  (aset retval# bin# (+ (aget retval# bin#) (aget counts# bin#)))))
+              retval#))))
+       (parallel-for/indexed-map-reduce
+        (.lsize reader#)
+        (fn [^long start-idx# ^long group-len#]
+          (let [counts# (long-array n-bins#)
+                end-idx# (+ start-idx# group-len#)]
+            (loop [idx# start-idx#]
+              (when (< idx# end-idx#)
+                (let [~'value (.read reader# idx#)
+                      bin# ~bin-expr]
+                  (when (>= bin# 0)
+                    (aset counts# bin# (unchecked-inc (aget counts# bin#)))))
+                (recur (unchecked-inc idx#))))
+            counts#))
+        (fn [results#]
+          (let [retval# (long-array n-bins#)]
+            (doseq [^"[J" counts# results#]
+              (dotimes [bin# n-bins#]
+                (aset retval# bin# (+ (aget retval# bin#) (aget counts# bin#)))))
+            retval#))))))
+
+
+(defn- ->edges
+  ^doubles [edges]
+  (let [edges (typecast/datatype->reader :float64 edges)
+        n-edges (.lsize edges)
+        retval (double-array n-edges)]
+    (when (< n-edges 2)
+      (throw (Exception. "At least two bin edges are required")))
+    (dotimes [idx n-edges]
+      (aset retval idx (.read edges idx))
+      (when (and (> idx 0)
+                 (not (<= (aget retval (dec idx)) (aget retval idx))))
+        (throw (Exception. "Bin edges must be sorted least-to-greatest"))))
+    retval))
+
+
+(defn- bin-spec
+  "Resolve the options into {:edges :n-bins :scale :lo :hi} where lo and hi are in
+  the (possibly log) binning space."
+  [^DoubleReader reader {:keys [bins edges range scale]
+                         :or {bins 10 scale :linear}}]
+  (if edges
+    (let [edges (->edges edges)]
+      {:edges edges
+       :n-bins (dec (alength edges))
+       :scale :edges})
+    (let [n-bins (long bins)
+          _ (when-not (> n-bins 0)
+              (throw (Exception. (format "Invalid bin count: %s" bins))))
+          [lo hi] (or range (finite-range reader))
+          lo (double lo)
+          hi (double hi)
+          ;;Give a constant range some width so it lands in a single bin
+          hi (if (== lo hi) (+ lo 1.0) hi)
+          _ (when-not (< lo hi)
+              (throw (Exception. (format "Invalid bin range: [%s %s]" lo hi))))
+          [space-lo space-hi] (case scale
+                                :linear [lo hi]
+                                :log (if (> lo 0.0)
+                                       [(Math/log lo) (Math/log hi)]
+                                       (throw (Exception.
+                                               "Log bins require a positive range"))))
+          space-lo (double space-lo)
+          space-hi (double space-hi)
+          step (/ (- space-hi space-lo) n-bins)
+          edges (double-array (inc n-bins))]
+      (dotimes [idx (inc n-bins)]
+        (let [edge (+ space-lo (* step idx))]
+          (aset edges idx (if (= scale :log) (Math/exp edge) edge))))
+      (aset edges 0 lo)
+      (aset edges n-bins hi)
+      {:edges edges
+       :n-bins n-bins
+       :scale scale
+       :lo space-lo
+       :hi space-hi})))
+
+
+(defn bin-counts
+  "Count the values falling into each bin.  Returns a long array of counts or, when
+  weights are provided, a double array of summed weights.
+  Options:
+  :bins - Number of equal width bins (default 10).
+  :range - [min max] spanned by the bins.  Defaults to the range of the finite
+    values.
+  :scale - :linear (default) or :log for bins of equal width in log space.
+  :edges - Explicit sorted bin edges, overriding the above.
+  :weights - Reader of per-value weights."
+  [values & [options]]
+  (let [reader (typecast/datatype->reader :float64 values)
+        {:keys [^doubles edges n-bins scale lo hi]} (bin-spec reader options)
+        weights (:weights options)
+        n-bins (long n-bins)]
+    (case scale
+      :edges (count-bins reader weights n-bins (edge-bin edges n-bins value))
+      :linear (let [lo (double lo)
+                    hi (double hi)
+                    bin-scale (/ n-bins (- hi lo))]
+                (count-bins reader weights n-bins
+                            (fixed-bin lo hi bin-scale n-bins value)))
+      :log (let [lo (double lo)
+                 hi (double hi)
+                 bin-scale (/ n-bins (- hi lo))]
+             (count-bins reader weights n-bins
+                         (if (> value 0.0)
+                           (fixed-bin lo hi bin-scale n-bins (Math/log value))
+                           -1))))))
+
+
+(defn histogram
+  "Histogram of values.  Returns {:counts :edges} where counts is as per bin-counts
+  and edges is a double array of the n-bins + 1 bin edges.  Options are as per
+  bin-counts."
+  [values & [options]]
+  (let [reader (typecast/datatype->reader :float64 values)
+        options (if (or (:edges options) (:range options))
+                  options
+                  (assoc options :range (finite-range reader)))]
+    {:counts (bin-counts reader options)
+     :edges (:edges (bin-spec reader options))}))
+
+
+(defn digitize
+  "Return an int32 reader of the index of the bin each value falls into given
+  sorted edges: edges[i-1] <= value < edges[i] gives i.  Values below the first edge
+  are 0 and values at or above the last edge are (count edges).  NaN values map to
+  (count edges)."
+  [values edges]
+  (let [reader (typecast/datatype->reader :float64 values)
+        edges (->edges edges)
+        n-edges (alength edges)
+        n-elems (.lsize reader)
+        retval (int-array n-elems)]
+    (parallel-for/parallel-for
+     idx n-elems
+     (let [value (.read reader idx)
+           pos (Arrays/binarySearch edges value)]
+       (aset retval idx
+             (unchecked-int
+              (if (>= pos 0)
+                ;;Step past equal edges so value lands right of them
+                (loop [pos pos]
+                  (if (and (< pos n-edges) (== value (aget edges pos)))
+                    (recur (unchecked-inc pos))
+                    pos))
+                (- (- pos) 1))))))
+    retval))
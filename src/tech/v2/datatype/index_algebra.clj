@@ -267,7 +267,8 @@ back into Y global space indexes."))
     (dtype-proto/->range item-seq {})
     (instance? IndexAlg item-seq)
     item-seq
-    (dtype-proto/convertible-to-bitmap? item-seq)
+    (or (dtype-proto/convertible-to-bitmap? item-seq)
+        (dtype-proto/convertible-to-long-bitmap? item-seq))
     (bitmap/bitmap->efficient-random-access-reader item-seq)
     :else
     (let [item-seq (if (dtype-proto/convertible-to-reader? item-seq)
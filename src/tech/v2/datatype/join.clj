@@ -0,0 +1,511 @@
+(ns tech.v2.datatype.join
+  "Join index generation.  argjoin finds the pairs of matching rows of two key readers
+  and returns them as int64 index readers that can be used to gather the columns of
+  either side.  Two algorithms are provided:
+  * hash - one side is loaded into primitive hash tables, one per hash partition, in
+    parallel and the other side probes them in parallel chunks.
+  * merge - both sides are walked in sorted order in parallel chunks of the left
+    side.  Sides that are not sorted are argsorted first.
+  Integer keys are compared as longs, other numeric keys as doubles and anything else
+  as objects.  Missing keys never match; they are dropped before either algorithm
+  runs."
+  (:require [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.operation-provider :as op-provider]
+            [tech.v2.datatype.functional.impl :as impl]
+            [tech.v2.datatype.readers.range :as reader-range]
+            [tech.v2.datatype.readers.indexed :as indexed-rdr]
+            [tech.v2.datatype.missing :as missing]
+            [tech.v2.datatype.builtin-op-providers]
+            [tech.parallel.for :as parallel-for])
+  (:import [it.unimi.dsi.fastutil.longs LongArrayList Long2LongOpenHashMap]
+           [it.unimi.dsi.fastutil HashCommon]
+           [java.util HashMap]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn- key-kind
+  "Datatype keys of both sides are read as."
+  [lhs rhs]
+  (let [lhs-dtype (casting/un-alias-datatype (dtype-base/get-datatype lhs))
+        rhs-dtype (casting/un-alias-datatype (dtype-base/get-datatype rhs))]
+    (cond
+      (and (casting/integer-type? lhs-dtype) (casting/integer-type? rhs-dtype))
+      :int64
+      (and (casting/numeric-type? lhs-dtype) (casting/numeric-type? rhs-dtype))
+      :float64
+      :else
+      :object)))
+
+
+(defmacro ^:private read-key
+  "-0.0 is read as 0.0 so the two join."
+  [kind rdr idx]
+  (if (= kind :float64)
+    `(+ 0.0 (.read ~rdr ~idx))
+    `(.read ~rdr ~idx)))
+
+
+(defmacro ^:private compare-keys
+  [kind lhs rhs]
+  (case kind
+    :int64 `(Long/compare ~lhs ~rhs)
+    :float64 `(Double/compare ~lhs ~rhs)
+    `(compare ~lhs ~rhs)))
+
+
+(defmacro ^:private hash-key
+  "Double keys are hashed by their bits."
+  [kind value]
+  (if (= kind :float64)
+    `(Double/doubleToLongBits ~value)
+    value))
+
+
+(defmacro ^:private partition-idx
+  "The partition tables pick buckets from the low bits of the mixed hash so the
+  partition is taken from the high bits; otherwise every key of a partition
+  would land in the same fraction of its table's buckets."
+  [kind hkey n-partitions]
+  `(Math/floorMod (unsigned-bit-shift-right
+                   ~(if (= kind :object)
+                      `(HashCommon/mix (long (clojure.lang.Util/hash ~hkey)))
+                      `(HashCommon/mix (long ~hkey)))
+                   32)
+                  (long ~n-partitions)))
+
+
+(defmacro ^:private new-table
+  "Table sized to hold n-rows entries without rehashing."
+  [kind n-rows]
+  (if (= kind :object)
+    `(HashMap. (unchecked-int (inc (quot (* 4 (long ~n-rows)) 3))))
+    `(doto (Long2LongOpenHashMap. (unchecked-int ~n-rows))
+       (.defaultReturnValue -1))))
+
+
+(defmacro ^:private table-put!
+  "Map hkey to idx returning the index hkey was mapped to before or -1."
+  [kind table hkey idx]
+  (if (= kind :object)
+    `(let [prev# (.put ~(with-meta table {:tag `HashMap}) ~hkey ~idx)]
+       (if prev# (long prev#) -1))
+    `(.put ~(with-meta table {:tag `Long2LongOpenHashMap}) ~hkey ~idx)))
+
+
+(defmacro ^:private table-get
+  [kind table hkey]
+  (if (= kind :object)
+    `(let [idx# (.get ~(with-meta table {:tag `HashMap}) ~hkey)]
+       (if idx# (long idx#) -1))
+    `(.get ~(with-meta table {:tag `Long2LongOpenHashMap}) ~hkey)))
+
+
+(defn- concat-indexes
+  "Concatenate the [lhs-indexes rhs-indexes] lists of every chunk in order."
+  [chunk-indexes]
+  (let [lhs-indexes (LongArrayList.)
+        rhs-indexes (LongArrayList.)]
+    (doseq [[chunk-lhs chunk-rhs] chunk-indexes]
+      (.addAll lhs-indexes ^LongArrayList chunk-lhs)
+      (.addAll rhs-indexes ^LongArrayList chunk-rhs))
+    [(typecast/datatype->reader :int64 (.toLongArray lhs-indexes))
+     (typecast/datatype->reader :int64 (.toLongArray rhs-indexes))]))
+
+
+(defn- scatter-partitions
+  "One long array per partition holding, in ascending order, the rows part-of assigns
+  to it.  chunk-counts are the [start-idx group-len counts] of the parallel pass that
+  filled part-of and each chunk scatters its own rows in parallel."
+  ^objects [^ints part-of ^long n-partitions chunk-counts]
+  (let [chunk-counts (vec chunk-counts)
+        totals (long-array n-partitions)
+        retval (object-array n-partitions)]
+    ;;Turn each chunk's counts into its write offset within each partition
+    (doseq [[_ _ ^longs counts] chunk-counts]
+      (dotimes [part n-partitions]
+        (let [n-rows (aget counts part)]
+          (aset counts part (aget totals part))
+          (aset totals part (+ (aget totals part) n-rows)))))
+    (dotimes [part n-partitions]
+      (aset retval part (long-array (aget totals part))))
+    (parallel-for/parallel-for
+     chunk-idx (count chunk-counts)
+     (let [[start-idx group-len ^longs offsets] (nth chunk-counts chunk-idx)
+           start-idx (long start-idx)
+           end-idx (+ start-idx (long group-len))]
+       (loop [idx start-idx]
+         (when (< idx end-idx)
+           (let [part (aget part-of idx)
+                 offset (aget offsets part)]
+             (aset ^longs (aget retval part) offset idx)
+             (aset offsets part (unchecked-inc offset)))
+           (recur (unchecked-inc idx))))))
+    retval))
+
+
+(defmacro ^:private make-hash-join
+  [kind]
+  `(fn [probe# build# left?#]
+     (let [probe# (typecast/datatype->reader ~kind probe#)
+           build# (typecast/datatype->reader ~kind build#)
+           n-build# (.lsize build#)
+           n-partitions# (.availableProcessors (Runtime/getRuntime))
+           ;;Chains the build rows sharing a key in ascending order.  The table of a
+           ;;partition maps each key to the first row of its chain.
+           next-idx# (long-array n-build#)
+           tables# (object-array n-partitions#)
+           part-of# (int-array n-build#)
+           ;;One pass over the build side finds the partition of every row
+           chunk-counts# (parallel-for/indexed-map-reduce
+                          n-build#
+                          (fn [^long start-idx# ^long group-len#]
+                            (let [counts# (long-array n-partitions#)
+                                  end-idx# (+ start-idx# group-len#)]
+                              (loop [idx# start-idx#]
+                                (when (< idx# end-idx#)
+                                  (let [part# (partition-idx
+                                               ~kind
+                                               (hash-key ~kind (read-key ~kind build# idx#))
+                                               n-partitions#)]
+                                    (aset part-of# idx# (unchecked-int part#))
+                                    (aset counts# part# (unchecked-inc (aget counts# part#))))
+                                  (recur (unchecked-inc idx#))))
+                              [start-idx# group-len# counts#]))
+                          vec)
+           ^"[Ljava.lang.Object;" partition-rows# (scatter-partitions
+                                                   part-of# n-partitions# chunk-counts#)]
+       ;;Each partition inserts only its own rows, last to first so chains ascend
+       (parallel-for/parallel-for
+        part-idx# n-partitions#
+        (let [^"[J" rows# (aget partition-rows# part-idx#)
+              table# (new-table ~kind (alength rows#))]
+          (loop [row-pos# (unchecked-dec (alength rows#))]
+            (when (>= row-pos# 0)
+              (let [idx# (aget rows# row-pos#)
+                    hkey# (hash-key ~kind (read-key ~kind build# idx#))]
+                (aset next-idx# idx# (table-put! ~kind table# hkey# idx#)))
+              (recur (unchecked-dec row-pos#))))
+          (aset tables# part-idx# table#)))
+       (parallel-for/indexed-map-reduce
+        (.lsize probe#)
+        (fn [^long start-idx# ^long group-len#]
+          (let [probe-indexes# (LongArrayList.)
+                build-indexes# (LongArrayList.)
+                end-idx# (+ start-idx# group-len#)]
+            (loop [idx# start-idx#]
+              (when (< idx# end-idx#)
+                (let [hkey# (hash-key ~kind (read-key ~kind probe# idx#))
+                      table# (aget tables# (partition-idx ~kind hkey# n-partitions#))
+                      first-match# (table-get ~kind table# hkey#)]
+                  (if (== -1 first-match#)
+                    (when left?#
+                      (.add probe-indexes# idx#)
+                      (.add build-indexes# -1))
+                    (loop [match# first-match#]
+                      (when-not (== -1 match#)
+                        (.add probe-indexes# idx#)
+                        (.add build-indexes# match#)
+                        (recur (aget next-idx# match#))))))
+                (recur (unchecked-inc idx#))))
+            [probe-indexes# build-indexes#]))
+        concat-indexes))))
+
+
+(def ^:private hash-join-table
+  {:int64 (make-hash-join :int64)
+   :float64 (make-hash-join :float64)
+   :object (make-hash-join :object)})
+
+
+(defmacro ^:private search-sorted
+  "First position in sort order of rdr whose key is greater than value when upper?
+  and not less than value otherwise."
+  [kind rdr order n-elems value upper?]
+  (let [cmp (gensym "cmp")]
+    `(long
+      (loop [low# 0
+             high# ~n-elems]
+        (if (< low# high#)
+          (let [mid# (unsigned-bit-shift-right (+ low# high#) 1)
+                ~cmp (compare-keys ~kind (read-key ~kind ~rdr (.read ~order mid#))
+                                   ~value)]
+            (if ~(if upper? `(<= ~cmp 0) `(< ~cmp 0))
+              (recur (unchecked-inc mid#) high#)
+              (recur low# mid#)))
+          low#)))))
+
+
+(defmacro ^:private make-merge-join
+  [kind]
+  `(fn [lhs# rhs# lhs-order# rhs-order# left?#]
+     (let [lhs# (typecast/datatype->reader ~kind lhs#)
+           rhs# (typecast/datatype->reader ~kind rhs#)
+           lhs-order# (typecast/datatype->reader :int64 lhs-order#)
+           rhs-order# (typecast/datatype->reader :int64 rhs-order#)
+           n-rhs# (.lsize rhs-order#)]
+       (parallel-for/indexed-map-reduce
+        (.lsize lhs-order#)
+        (fn [^long start-pos# ^long group-len#]
+          (let [lhs-indexes# (LongArrayList.)
+                rhs-indexes# (LongArrayList.)
+                end-pos# (+ start-pos# group-len#)]
+            (when-not (== 0 group-len#)
+              (loop [lhs-pos# start-pos#
+                     rhs-pos# (search-sorted ~kind rhs# rhs-order# n-rhs#
+                                             (read-key ~kind lhs#
+                                                       (.read lhs-order# start-pos#))
+                                             false)]
+                (when (< lhs-pos# end-pos#)
+                  (let [lhs-idx# (.read lhs-order# lhs-pos#)
+                        lhs-key# (read-key ~kind lhs# lhs-idx#)
+                        rhs-pos# (long
+                                  (loop [rhs-pos# rhs-pos#]
+                                    (if (and (< rhs-pos# n-rhs#)
+                                             (< (compare-keys
+                                                 ~kind
+                                                 (read-key ~kind rhs#
+                                                           (.read rhs-order# rhs-pos#))
+                                                 lhs-key#)
+                                                0))
+                                      (recur (unchecked-inc rhs-pos#))
+                                      rhs-pos#)))]
+                    ;;Equal left keys match the same run of right keys so rhs-pos is
+                    ;;left at the start of the run.
+                    (loop [match-pos# rhs-pos#]
+                      (if (and (< match-pos# n-rhs#)
+                               (== 0 (compare-keys
+                                      ~kind
+                                      (read-key ~kind rhs#
+                                                (.read rhs-order# match-pos#))
+                                      lhs-key#)))
+                        (do
+                          (.add lhs-indexes# lhs-idx#)
+                          (.add rhs-indexes# (.read rhs-order# match-pos#))
+                          (recur (unchecked-inc match-pos#)))
+                        (when (and left?# (== match-pos# rhs-pos#))
+                          (.add lhs-indexes# lhs-idx#)
+                          (.add rhs-indexes# -1))))
+                    (recur (unchecked-inc lhs-pos#) rhs-pos#)))))
+            [lhs-indexes# rhs-indexes#]))
+        concat-indexes))))
+
+
+(def ^:private merge-join-table
+  {:int64 (make-merge-join :int64)
+   :float64 (make-merge-join :float64)
+   :object (make-merge-join :object)})
+
+
+(defmacro ^:private make-as-of-join
+  [kind]
+  `(fn [lhs# rhs# rhs-order#]
+     (let [lhs# (typecast/datatype->reader ~kind lhs#)
+           rhs# (typecast/datatype->reader ~kind rhs#)
+           rhs-order# (typecast/datatype->reader :int64 rhs-order#)
+           n-lhs# (.lsize lhs#)
+           n-rhs# (.lsize rhs-order#)
+           rhs-indexes# (long-array n-lhs#)]
+       (parallel-for/parallel-for
+        idx# n-lhs#
+        (let [pos# (search-sorted ~kind rhs# rhs-order# n-rhs#
+                                  (read-key ~kind lhs# idx#) true)]
+          (aset rhs-indexes# idx# (if (== 0 pos#)
+                                    -1
+                                    (.read rhs-order# (unchecked-dec pos#))))))
+       [(reader-range/reader-range :int64 0 n-lhs#)
+        (typecast/datatype->reader :int64 rhs-indexes#)])))
+
+
+(def ^:private as-of-join-table
+  {:int64 (make-as-of-join :int64)
+   :float64 (make-as-of-join :float64)
+   :object (make-as-of-join :object)})
+
+
+(defmacro ^:private make-sorted?
+  [kind]
+  `(fn [rdr#]
+     (let [rdr# (typecast/datatype->reader ~kind rdr#)]
+       (parallel-for/indexed-map-reduce
+        (.lsize rdr#)
+        (fn [^long start-idx# ^long group-len#]
+          (let [end-idx# (+ start-idx# group-len#)]
+            ;;Each chunk also checks its first element against the one before it.
+            (loop [idx# (max 1 start-idx#)]
+              (cond
+                (>= idx# end-idx#) true
+                (> (compare-keys ~kind
+                                 (read-key ~kind rdr# (unchecked-dec idx#))
+                                 (read-key ~kind rdr# idx#))
+                   0) false
+                :else (recur (unchecked-inc idx#))))))
+        #(every? true? %)))))
+
+
+(def ^:private sorted-table
+  {:int64 (make-sorted? :int64)
+   :float64 (make-sorted? :float64)})
+
+
+(defn- sorted-keys?
+  "Object keys are never checked as they may not be comparable."
+  [kind keys]
+  (if-let [sorted-fn (get sorted-table kind)]
+    (boolean (sorted-fn keys))
+    false))
+
+
+(defn- sort-order
+  "int64 reader of the indexes of keys in sorted order."
+  [keys sorted?]
+  (if sorted?
+    (reader-range/reader-range :int64 0 (dtype-base/ecount keys))
+    (op-provider/unary-op :argsort keys (impl/default-options keys {:parallel? true}))))
+
+
+(defn- strip-missing-keys
+  "[keys valid-indexes] where keys reads the valid keys of item and valid-indexes maps
+  their positions back to rows of item.  valid-indexes is nil when nothing is
+  missing."
+  [item]
+  (if (missing/missing-aware? item)
+    (let [data (dtype-proto/missing-data item)]
+      (if (.isEmpty (missing/->missing item))
+        [data nil]
+        (let [valid (missing/valid-indexes item)]
+          [(indexed-rdr/make-indexed-reader valid data {}) valid])))
+    [item nil]))
+
+
+(defn- restore-indexes
+  "Map indexes into the valid keys of a side back to its rows; -1 is kept."
+  [indexes valid]
+  (if valid
+    (let [^ints valid valid
+          indexes (typecast/datatype->reader :int64 indexes)
+          n-elems (.lsize indexes)
+          retval (long-array n-elems)]
+      (parallel-for/parallel-for
+       idx n-elems
+       (let [valid-idx (.read indexes idx)]
+         (aset retval idx (if (== -1 valid-idx)
+                            -1
+                            (long (aget valid valid-idx))))))
+      (typecast/datatype->reader :int64 retval))
+    indexes))
+
+
+(defn- restore-as-of
+  "Expand an as-of join of the valid lhs keys to every lhs row, pairing missing rows
+  with -1."
+  [[_ rhs-indexes] ^ints lhs-valid ^long n-lhs]
+  (if lhs-valid
+    (let [rhs-indexes (typecast/datatype->reader :int64 rhs-indexes)
+          retval (long-array n-lhs -1)]
+      (parallel-for/parallel-for
+       idx (alength lhs-valid)
+       (aset retval (aget lhs-valid idx) (.read rhs-indexes idx)))
+      [(reader-range/reader-range :int64 0 n-lhs)
+       (typecast/datatype->reader :int64 retval)])
+    [(reader-range/reader-range :int64 0 n-lhs) rhs-indexes]))
+
+
+(defn- append-unmatched
+  "Pair every missing lhs row with -1 after the joined rows."
+  [[lhs-indexes rhs-indexes] lhs]
+  (let [missing-rows (.toArray (missing/->missing lhs))
+        n-missing (alength missing-rows)]
+    (if (== 0 n-missing)
+      [lhs-indexes rhs-indexes]
+      (let [lhs-indexes (typecast/datatype->reader :int64 lhs-indexes)
+            rhs-indexes (typecast/datatype->reader :int64 rhs-indexes)
+            n-joined (.lsize lhs-indexes)
+            lhs-retval (long-array (+ n-joined n-missing))
+            rhs-retval (long-array (+ n-joined n-missing) -1)]
+        (parallel-for/parallel-for
+         idx n-joined
+         (aset lhs-retval idx (.read lhs-indexes idx))
+         (aset rhs-retval idx (.read rhs-indexes idx)))
+        (dotimes [idx n-missing]
+          (aset lhs-retval (+ n-joined idx) (long (aget missing-rows idx))))
+        [(typecast/datatype->reader :int64 lhs-retval)
+         (typecast/datatype->reader :int64 rhs-retval)]))))
+
+
+(def ^:private merge-size-ratio
+  "When only one side is sorted a merge join is used if the other side is smaller by
+  at least this factor as argsorting it is then cheaper than hashing."
+  16)
+
+
+(defn- merge-join?
+  [lhs-sorted? rhs-sorted? ^long n-lhs ^long n-rhs]
+  (cond
+    (and lhs-sorted? rhs-sorted?) true
+    lhs-sorted? (<= (* n-rhs (long merge-size-ratio)) n-lhs)
+    rhs-sorted? (<= (* n-lhs (long merge-size-ratio)) n-rhs)
+    :else false))
+
+
+(defn argjoin
+  "Find the matching rows of two key readers.  Returns [lhs-indexes rhs-indexes], int64
+  readers of the same length where each pair of indexes is a pair of matching rows.
+  Options:
+  :how - :inner (default), :left or :as-of.
+    :left - lhs rows without a match are paired with an rhs index of -1.
+    :as-of - every lhs row is paired with the rhs row with the greatest key not
+      greater than its own, or -1.  Keys must be comparable.
+  :algorithm - :hash or :merge.  By default both sides are merge joined when they are
+    already sorted or when the unsorted side is much smaller than the sorted one and
+    hash joined otherwise.  Only numeric keys are checked for sortedness.
+  Hash joins are ordered by the probe side; the lhs for left joins and the larger
+  side for inner joins.  Merge joins are ordered by key.  Missing keys match nothing;
+  left joins pair missing lhs rows with -1 after the joined rows and as-of joins pair
+  them with -1 in place."
+  [lhs rhs & [{:keys [how algorithm]
+               :or {how :inner}}]]
+  (when-not (contains? #{:inner :left :as-of} how)
+    (throw (ex-info (format "Unrecognized join type: %s" how) {:how how})))
+  (when-not (contains? #{nil :hash :merge} algorithm)
+    (throw (ex-info (format "Unrecognized join algorithm: %s" algorithm)
+                    {:algorithm algorithm})))
+  (let [kind (key-kind lhs rhs)
+        n-lhs (dtype-base/ecount lhs)
+        left? (= how :left)
+        original-lhs lhs
+        [lhs lhs-valid] (strip-missing-keys lhs)
+        [rhs rhs-valid] (strip-missing-keys rhs)
+        n-valid-lhs (dtype-base/ecount lhs)
+        n-valid-rhs (dtype-base/ecount rhs)]
+    (if (= how :as-of)
+      (-> ((get as-of-join-table kind) lhs rhs
+           (sort-order rhs (sorted-keys? kind rhs)))
+          (update 1 restore-indexes rhs-valid)
+          (restore-as-of lhs-valid n-lhs))
+      (let [lhs-sorted? (and (not= algorithm :hash) (sorted-keys? kind lhs))
+            rhs-sorted? (and (not= algorithm :hash) (sorted-keys? kind rhs))
+            [lhs-indexes rhs-indexes]
+            (if (or (= algorithm :merge)
+                    (and (nil? algorithm)
+                         (merge-join? lhs-sorted? rhs-sorted? n-valid-lhs n-valid-rhs)))
+              ((get merge-join-table kind) lhs rhs
+               (sort-order lhs lhs-sorted?)
+               (sort-order rhs rhs-sorted?)
+               left?)
+              (let [hash-join (get hash-join-table kind)]
+                ;;Inner joins build the table over the smaller side
+                (if (and (not left?) (< n-valid-lhs n-valid-rhs))
+                  (let [[rhs-indexes lhs-indexes] (hash-join rhs lhs false)]
+                    [lhs-indexes rhs-indexes])
+                  (hash-join lhs rhs left?))))
+            joined [(restore-indexes lhs-indexes lhs-valid)
+                    (restore-indexes rhs-indexes rhs-valid)]]
+        (if left?
+          (append-unmatched joined original-lhs)
+          joined)))))
@@ -0,0 +1,285 @@
+(ns tech.v2.datatype.missing
+  "Containers of primitive values with missing (null) elements.  The values live in
+  an unboxed buffer and the missing indexes in a RoaringBitmap, so an int64 column
+  with nulls costs 8 bytes per element plus the bitmap instead of a boxed object per
+  element.  Reading a missing element through the object interface returns nil.
+
+  Reductions and statistics skip missing elements and elementwise operations
+  propagate them; see tech.v2.datatype.builtin-op-providers and
+  tech.v2.datatype.statistics for where they hook in.  Valid elements are visited
+  as contiguous ranges found by searching the bitmap so there is no per element
+  missing check."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.binary-op :as binary-op]
+            [tech.v2.datatype.argsort :as argsort]
+            [tech.v2.datatype.readers.indexed :as indexed-rdr]
+            [tech.v2.datatype.typed-buffer]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype ObjectReader]
+           [org.roaringbitmap RoaringBitmap]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(declare missing-buffer)
+
+
+(deftype MissingBuffer [datatype data ^ObjectReader data-reader ^RoaringBitmap missing]
+  ObjectReader
+  (getDatatype [item] datatype)
+  (lsize [item] (.lsize data-reader))
+  (read [item idx]
+    (when-not (.contains missing (unchecked-int idx))
+      (.read data-reader idx)))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] datatype)
+
+  dtype-proto/PCountable
+  (ecount [item] (.lsize data-reader))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    ;;Typed readers read the data buffer and so see its fill values; the default
+    ;;and object readers return nil for missing elements.
+    (if (contains? #{nil :object} (:datatype options))
+      item
+      (dtype-proto/->reader data options)))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PBuffer
+  (sub-buffer [item offset length]
+    (let [offset (long offset)
+          length (long length)]
+      (missing-buffer (dtype-proto/sub-buffer data offset length)
+                      (-> (RoaringBitmap/and missing
+                                             (doto (RoaringBitmap.)
+                                               (.add offset (+ offset length))))
+                          (RoaringBitmap/addOffset (- offset))))))
+
+  dtype-proto/PClone
+  (clone [item]
+    (missing-buffer (dtype-proto/clone data) (.clone missing)))
+
+  dtype-proto/PMissingValues
+  (missing-aware? [item] true)
+  (missing [item] missing)
+  (missing-data [item] data))
+
+
+(defn missing-buffer
+  "Pair a data container with a RoaringBitmap of its missing indexes.  The bitmap is
+  not copied."
+  [data ^RoaringBitmap missing]
+  (let [datatype (dtype-base/get-datatype data)]
+    (MissingBuffer. datatype data
+                    (typecast/datatype->reader :object data)
+                    (or missing (RoaringBitmap.)))))
+
+
+(defn missing-aware?
+  [item]
+  (boolean (and item (dtype-proto/missing-aware? item))))
+
+
+(defn ->missing
+  "Bitmap of the missing indexes of item; empty for containers that have no missing
+  values."
+  ^RoaringBitmap [item]
+  (if (missing-aware? item)
+    (dtype-proto/missing item)
+    (RoaringBitmap.)))
+
+
+(defn missing-encode
+  "Store values into a primitive container of datatype recording nil entries as
+  missing.  Chunks are encoded in parallel."
+  [values & [{:keys [datatype]}]]
+  (let [datatype (or datatype (dtype-base/get-datatype values))
+        src (typecast/datatype->reader :object
+                                       (if (dtype-proto/convertible-to-reader? values)
+                                         values
+                                         (vec values)))
+        n-elems (.lsize src)
+        data (dtype-proto/make-container :typed-buffer datatype n-elems {})
+        dst (typecast/datatype->writer :object data)
+        missing (parallel-for/indexed-map-reduce
+                 n-elems
+                 (fn [^long start-idx ^long group-len]
+                   (let [missing (RoaringBitmap.)]
+                     (dotimes [idx group-len]
+                       (let [idx (+ start-idx idx)
+                             value (.read src idx)]
+                         (if (nil? value)
+                           (.add missing (unchecked-int idx))
+                           (.write dst idx value))))
+                     missing))
+                 (partial reduce (fn [^RoaringBitmap lhs ^RoaringBitmap rhs]
+                                   (.or lhs rhs)
+                                   lhs)))]
+    (missing-buffer data missing)))
+
+
+(defmethod dtype-proto/make-container :missing
+  [_container-type datatype elem-count-or-seq options]
+  (if (number? elem-count-or-seq)
+    ;;Everything starts out missing
+    (let [n-elems (long elem-count-or-seq)]
+      (missing-buffer (dtype-proto/make-container :typed-buffer datatype n-elems {})
+                      (doto (RoaringBitmap.)
+                        (.add 0 n-elems))))
+    (missing-encode elem-count-or-seq (assoc options :datatype datatype))))
+
+
+(defn- next-valid
+  "First index in [idx, end) that is not missing or end."
+  ^long [^RoaringBitmap missing ^long idx ^long end]
+  (if (< idx end)
+    (min end (.nextAbsentValue missing (unchecked-int idx)))
+    end))
+
+
+(defn- next-missing
+  "First index in [idx, end) that is missing or end."
+  ^long [^RoaringBitmap missing ^long idx ^long end]
+  (let [retval (.nextValue missing (unchecked-int idx))]
+    (if (or (< retval 0) (> retval end))
+      end
+      retval)))
+
+
+(defn n-valid
+  ^long [item]
+  (let [n-elems (dtype-base/ecount item)]
+    (- n-elems (.rangeCardinality (->missing item) 0 n-elems))))
+
+
+(defmacro ^:private make-valid-reduce-fn
+  [datatype]
+  `(fn [reduce-op# data# missing# commutative?# unchecked?#]
+     (let [reduce-op# (binary-op/datatype->binary-op ~datatype reduce-op# unchecked?#)
+           reader# (typecast/datatype->reader ~datatype data# unchecked?#)
+           ~(with-meta 'missing {:tag 'RoaringBitmap}) missing#
+           n-elems# (.lsize reader#)
+           n-valid# (- n-elems# (.rangeCardinality ~'missing 0 n-elems#))
+           reduce-chunk#
+           (fn [^long start-idx# ^long len#]
+             (let [end-idx# (+ start-idx# len#)
+                   first-idx# (next-valid ~'missing start-idx# end-idx#)]
+               (when (< first-idx# end-idx#)
+                 (loop [accum# (.read reader# first-idx#)
+                        idx# (unchecked-inc first-idx#)
+                        range-end# (next-missing ~'missing (unchecked-inc first-idx#)
+                                                 end-idx#)]
+                   (if (< idx# range-end#)
+                     (recur (.op reduce-op# accum# (.read reader# idx#))
+                            (unchecked-inc idx#)
+                            range-end#)
+                     (let [next-start# (next-valid ~'missing range-end# end-idx#)]
+                       (if (< next-start# end-idx#)
+                         (recur accum# next-start#
+                                (next-missing ~'missing next-start# end-idx#))
+                         accum#)))))))]
+       (when-not (== 0 n-valid#)
+         (-> (if commutative?#
+               (parallel-for/indexed-map-reduce
+                n-elems#
+                reduce-chunk#
+                (fn [reduced-items#]
+                  (->> (remove nil? reduced-items#)
+                       (reduce (fn [accum# next-elem#]
+                                 (.op reduce-op# accum# next-elem#))))))
+               (reduce-chunk# 0 n-elems#))
+             (#(.finalize reduce-op# % n-valid#)))))))
+
+
+(def ^:private valid-reduce-table
+  (casting/make-base-datatype-table make-valid-reduce-fn))
+
+
+(defn reduce-valid
+  "Reduce the valid elements of item.  Commutative reductions run in parallel chunks.
+  Finalize sees the number of valid elements and nil is returned when every element
+  is missing."
+  [{:keys [datatype unchecked?]} reduce-op item commutative?]
+  (let [datatype (or datatype (dtype-base/get-datatype item))
+        reduce-fn (get valid-reduce-table (casting/safe-flatten datatype))]
+    (reduce-fn reduce-op (dtype-proto/missing-data item) (->missing item)
+               commutative? unchecked?)))
+
+
+(defn valid-indexes
+  "int32 array of the indexes of item that are not missing, in increasing order."
+  ^ints [item]
+  (let [n-elems (dtype-base/ecount item)]
+    (-> (doto (RoaringBitmap.)
+          (.add 0 n-elems)
+          (.andNot (->missing item)))
+        (.toArray))))
+
+
+(defn valid-double-array
+  "double array of the valid values of item."
+  ^doubles [item]
+  (let [reader (typecast/datatype->reader :float64 (dtype-proto/missing-data item))
+        missing (->missing item)
+        n-elems (.lsize reader)
+        retval (double-array (n-valid item))]
+    (loop [range-start (next-valid missing 0 n-elems)
+           dst-idx 0]
+      (when (< range-start n-elems)
+        (let [range-end (next-missing missing range-start n-elems)
+              n-range (- range-end range-start)]
+          (dotimes [idx n-range]
+            (aset retval (+ dst-idx idx) (.read reader (+ range-start idx))))
+          (recur (next-valid missing range-end n-elems)
+                 (+ dst-idx n-range)))))
+    retval))
+
+
+(defn strip-missing
+  "Return [data missing] where data is the missing data of item (or item itself) and
+  missing its missing bitmap or nil."
+  [item]
+  (if (missing-aware? item)
+    [(dtype-proto/missing-data item) (dtype-proto/missing item)]
+    [item nil]))
+
+
+(defn propagate-missing
+  "Wrap the result of an elementwise operation on missing-aware arguments so the
+  result is missing wherever any argument was.  Scalar results are returned as is."
+  [result & missing-bitmaps]
+  (if (dtype-proto/convertible-to-reader? result)
+    (missing-buffer result (RoaringBitmap/or ^"[Lorg.roaringbitmap.RoaringBitmap;"
+                                             (into-array RoaringBitmap
+                                                         (remove nil? missing-bitmaps))))
+    result))
+
+
+(defn argsort
+  "argsort of the valid elements of item followed by the missing indexes in
+  increasing order.  Options are as per tech.v2.datatype.argsort/argsort."
+  [item options]
+  (let [data (dtype-proto/missing-data item)
+        valid (valid-indexes item)
+        ^ints order (argsort/argsort (indexed-rdr/make-indexed-reader valid data {})
+                                     (merge {:datatype (dtype-base/get-datatype data)}
+                                            options))
+        n-valid (alength valid)
+        missing-indexes (.toArray (->missing item))
+        retval (int-array (+ n-valid (alength missing-indexes)))]
+    (parallel-for/parallel-for
+     idx n-valid
+     (aset retval idx (aget valid (aget order idx))))
+    (System/arraycopy missing-indexes 0 retval n-valid (alength missing-indexes))
+    retval))
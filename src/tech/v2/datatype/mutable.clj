@@ -4,7 +4,9 @@
             [tech.v2.datatype.nio-access
              :refer [unchecked-full-cast
                      checked-full-write-cast]]
-            [tech.v2.datatype.typecast :as typecast])
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.mutable.iterable-to-list :as iter-list]
+            [tech.parallel.for :as parallel-for])
   (:import [tech.v2.datatype ObjectMutable ByteMutable
             ShortMutable IntMutable LongMutable
             FloatMutable DoubleMutable BooleanMutable]
@@ -15,7 +17,8 @@
            [it.unimi.dsi.fastutil.floats FloatList FloatArrayList]
            [it.unimi.dsi.fastutil.doubles DoubleList DoubleArrayList]
            [it.unimi.dsi.fastutil.booleans BooleanList BooleanArrayList]
-           [it.unimi.dsi.fastutil.objects ObjectList ObjectArrayList]))
+           [it.unimi.dsi.fastutil.objects ObjectList ObjectArrayList]
+           [java.util List]))
 
 
 (set! *warn-on-reflection* true)
@@ -35,6 +38,28 @@
     :object `(.remove ~item ~idx)))
 
 
+(defn- datatype->array-list-type
+  [datatype]
+  (case datatype
+    :int8 'it.unimi.dsi.fastutil.bytes.ByteArrayList
+    :int16 'it.unimi.dsi.fastutil.shorts.ShortArrayList
+    :int32 'it.unimi.dsi.fastutil.ints.IntArrayList
+    :int64 'it.unimi.dsi.fastutil.longs.LongArrayList
+    :float32 'it.unimi.dsi.fastutil.floats.FloatArrayList
+    :float64 'it.unimi.dsi.fastutil.doubles.DoubleArrayList
+    :boolean 'it.unimi.dsi.fastutil.booleans.BooleanArrayList
+    :object 'it.unimi.dsi.fastutil.objects.ObjectArrayList))
+
+
+(defmacro ensure-list-capacity
+  "Grow an array list buffer so it holds at least n-elems without reallocating.
+  Other list implementations are left alone."
+  [datatype buffer n-elems]
+  (let [list-type (datatype->array-list-type datatype)]
+    `(when (instance? ~list-type ~buffer)
+       (.ensureCapacity ~(with-meta buffer {:tag list-type}) (int ~n-elems)))))
+
+
 
 (defmacro make-mutable
   [mutable-cls _buffer-cls buffer mutable-dtype
@@ -52,7 +77,9 @@
                           `(unchecked-full-cast
                             ~'value ~mutable-dtype ~intermediate-dtype ~buffer-dtype))))
        (mremove [mut-item# idx#]
-         (datatype->single-remove-fn ~buffer-dtype ~buffer idx#)))
+         (datatype->single-remove-fn ~buffer-dtype ~buffer idx#))
+       (ensureCapacity [mut-item# n-elems#]
+         (ensure-list-capacity ~buffer-dtype ~buffer n-elems#)))
      (reify ~mutable-cls
        (getDatatype [mut-item#] ~intermediate-dtype)
        (lsize [mut-item#] (.size ~buffer))
@@ -65,7 +92,9 @@
                           `(checked-full-write-cast
                             ~'value ~mutable-dtype ~intermediate-dtype ~buffer-dtype))))
        (mremove [mut-item# idx#]
-         (datatype->single-remove-fn ~buffer-dtype ~buffer idx#)))))
+         (datatype->single-remove-fn ~buffer-dtype ~buffer idx#))
+       (ensureCapacity [mut-item# n-elems#]
+         (ensure-list-capacity ~buffer-dtype ~buffer n-elems#)))))
 
 
 (defmacro make-list-mutable-table
@@ -174,3 +203,104 @@
 (extend-mutable :float64)
 (extend-mutable :boolean)
 (extend-mutable :object)
+
+
+(defn- datatype->array-constructor
+  [datatype]
+  (case datatype
+    :int8 `byte-array
+    :int16 `short-array
+    :int32 `int-array
+    :int64 `long-array
+    :float32 `float-array
+    :float64 `double-array
+    :boolean `boolean-array
+    :object `object-array))
+
+
+(defmacro ^:private make-array-list-append
+  [datatype]
+  (let [list-type (datatype->array-list-type datatype)]
+    `(fn [list-buffer# values# unchecked?#]
+       (when (instance? ~list-type list-buffer#)
+         (let [~(with-meta 'dst-list {:tag list-type}) list-buffer#
+               src# (typecast/datatype->reader ~datatype values# unchecked?#)
+               n-values# (.lsize src#)
+               start# (.size ~'dst-list)
+               needed# (int (+ start# n-values#))
+               capacity# (alength (.elements ~'dst-list))
+               sub-array# (when (= ~datatype (dtype-proto/get-datatype values#))
+                            (dtype-proto/->sub-array values#))]
+           ;;Grow geometrically so repeated appends do not copy the list each time.
+           ;;ensureCapacity ignores the shared empty array of a default constructed
+           ;;list so that list is grown with addElements.
+           (when (> needed# capacity#)
+             (if (== 0 capacity#)
+               (.addElements ~'dst-list 0 (~(datatype->array-constructor datatype) needed#)
+                             0 needed#)
+               (.ensureCapacity ~'dst-list (int (max needed# (* 2 capacity#))))))
+           ;;One resize, then the values are written straight into the backing array.
+           (.size ~'dst-list needed#)
+           (let [~'elements (.elements ~'dst-list)]
+             (if sub-array#
+               (System/arraycopy (:java-array sub-array#) (int (:offset sub-array#))
+                                 ~'elements (int start#) (int n-values#))
+               (parallel-for/parallel-for
+                ~'idx n-values#
+                (aset ~'elements (+ start# ~'idx) (.read src# ~'idx)))))
+           list-buffer#)))))
+
+
+(def ^:private array-list-append-table
+  (casting/make-base-datatype-table make-array-list-append))
+
+
+(defmacro ^:private make-append-reader
+  [datatype]
+  `(fn [dst# values# unchecked?#]
+     (.appendReader (typecast/datatype->mutable ~datatype dst# unchecked?#)
+                    (typecast/datatype->reader ~datatype values# unchecked?#))
+     dst#))
+
+
+(def ^:private append-reader-table
+  (casting/make-base-datatype-table make-append-reader))
+
+
+(defn append-reader!
+  "Append every element of a reader to the end of dst.  Fastutil array lists of the
+  same datatype are resized once and filled in parallel (or with a single array copy
+  when values is array backed); other containers go through their mutable's
+  appendReader."
+  [dst values & [{:keys [unchecked?]}]]
+  (let [dst-dtype (dtype-proto/get-datatype dst)
+        flat-dtype (casting/safe-flatten dst-dtype)
+        list-buffer (when (= dst-dtype flat-dtype)
+                      (dtype-proto/as-list dst))]
+    (cond
+      (and list-buffer
+           (= flat-dtype (dtype-proto/get-datatype list-buffer))
+           ((get array-list-append-table flat-dtype)
+            list-buffer values unchecked?))
+      nil
+      ;;Typed object lists (strings, keywords) are plain java lists
+      (and (= :object flat-dtype)
+           (instance? List dst)
+           (not (dtype-proto/convertible-to-mutable? dst)))
+      (.addAll ^List dst (typecast/datatype->reader :object values unchecked?))
+      :else
+      ((get append-reader-table flat-dtype) dst values unchecked?))
+    dst))
+
+
+(defn append-block!
+  "Append values to the end of dst.  Readers and arrays are appended in bulk with
+  append-reader!.  Other iterables are appended element by element after reserving
+  space for them when their count is known."
+  [dst values & [{:keys [unchecked?] :as options}]]
+  (if (dtype-proto/convertible-to-reader? values)
+    (append-reader! dst values options)
+    (do
+      (iter-list/iterable->list values dst {:datatype (dtype-proto/get-datatype dst)
+                                            :unchecked? unchecked?})
+      dst)))
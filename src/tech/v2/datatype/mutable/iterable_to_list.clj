@@ -7,13 +7,16 @@
 (defmacro make-iter->list-table
   []
   `(->> [~@(for [dtype casting/base-marshal-types]
-             [dtype `(fn [iter# output# unchecked?#]
-                       (let [iter# (typecast/datatype->iter ~dtype iter# unchecked?#)
+             [dtype `(fn [iter-src# output# unchecked?#]
+                       (let [iter# (typecast/datatype->iter ~dtype iter-src# unchecked?#)
                              output# (or output#
                                          (dtype-proto/make-container
                                           :list ~dtype 0))
                              mutable# (typecast/datatype->mutable ~dtype output#
                                                                   unchecked?#)]
+                         (when (counted? iter-src#)
+                           (.ensureCapacity mutable# (+ (.lsize mutable#)
+                                                        (count iter-src#))))
                          (while (.hasNext iter#)
                            (.append mutable# (typecast/datatype->iter-next-fn
                                               ~dtype iter#)))
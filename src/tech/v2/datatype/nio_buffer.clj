@@ -132,7 +132,7 @@
           (cond
             (not (.isDirect item#))
             (let [java-array# (.array item#)
-                  offset# (.position item#)]
+                  offset# (+ (.arrayOffset item#) (.position item#) offset#)]
               (Arrays/fill java-array# offset# (unchecked-add offset# elem-count#) value#))
             (or (= value# zero-val#)
                 (= ~datatype :int8))
@@ -286,6 +286,12 @@ Note that this makes no mention of indianness; buffers are in the format of the
   (convertible-to-bitmap? [item])
   (as-roaring-bitmap [item]))
 
+(defprotocol PToLongBitmap
+  "Bitmaps backed by Roaring64NavigableMap; these are not limited to the uint32
+  range."
+  (convertible-to-long-bitmap? [item])
+  (as-long-bitmap [item]))
+
 (defprotocol PBitmapSet
   (set-and [lhs rhs])
   (set-and-not [lhs rhs])
@@ -307,6 +313,48 @@ Note that this makes no mention of indianness; buffers are in the format of the
     (as-nio-buffer item)))
 
 
+(defprotocol PDictionaryEncoded
+  "Containers storing an integer code per element along with a table of the distinct
+  values the codes index.  Operations that only need equality or ordering can run on
+  the codes."
+  (dictionary-encoded? [item])
+  (dictionary-codes [item]
+    "Integer container of the per-element codes.")
+  (dictionary-values [item]
+    "java.util.List of the distinct values indexed by code."))
+
+
+(defprotocol PMissingValues
+  "Containers pairing a data buffer with a bitmap of the indexes whose values are
+  missing.  The data buffer holds an arbitrary value at missing indexes."
+  (missing-aware? [item])
+  (missing [item]
+    "RoaringBitmap of the missing indexes.")
+  (missing-data [item]
+    "Container of the values including those at missing indexes."))
+
+
+(defprotocol PChunked
+  "Containers stored as a sequence of chunks."
+  (chunked? [item])
+  (chunks [item]
+    "java.util.List of the chunks; each supports PConstantTimeMinMax.")
+  (chunk-offsets [item]
+    "long array of the start index of each chunk followed by the element count."))
+
+
+(defprotocol PEncoded
+  "Compressed containers that decode their elements on read."
+  (encoded? [item])
+  (encoding [item]
+    "Keyword naming the codec, e.g. :bit-packed.")
+  (decode-block! [item offset dst]
+    "Decode (ecount dst) elements starting at offset into dst.  Returns dst.")
+  (encoded-reduce [item op]
+    "Reduce the elements with the keyword op working on the encoded form.  Returns
+  nil when op has to run over the decoded elements."))
+
+
 (defprotocol PConstantTimeMinMax
   (has-constant-time-min-max? [item])
   (constant-time-min [item])
@@ -517,6 +565,21 @@ and whose values are the indexes that produce those values in the reader."))
   PToBitmap
   (convertible-to-bitmap? [item] false)
 
+  PToLongBitmap
+  (convertible-to-long-bitmap? [item] false)
+
+  PDictionaryEncoded
+  (dictionary-encoded? [item] false)
+
+  PMissingValues
+  (missing-aware? [item] false)
+
+  PChunked
+  (chunked? [item] false)
+
+  PEncoded
+  (encoded? [item] false)
+
   PConstantTimeMinMax
   (has-constant-time-min-max? [item] (convertible-to-range? item))
   (constant-time-min [item] (constant-time-min (->range item {})))
@@ -1,7 +1,11 @@
 (ns tech.v2.datatype.readers.indexed
   (:require [tech.v2.datatype.casting :as casting]
             [tech.v2.datatype.protocols :as dtype-proto]
-            [tech.v2.datatype.typecast :as typecast]))
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.parallel.for :as parallel-for])
+  (:import [org.roaringbitmap RoaringBitmap ContainerPointer Container RunContainer]
+           [org.roaringbitmap.longlong Roaring64NavigableMap]
+           [java.util ArrayList List]))
 
 
 (defmacro make-int64-indexed-reader-impl
@@ -62,16 +66,183 @@
                                     make-int32-indexed-reader-impl))
 
 
+;;Bitmap indexes.  Random access goes through a lazily created array of the bitmap
+;;values as select is logarithmic per access.  Bulk copies instead walk the bitmap's
+;;containers; runs become contiguous (block) copies and the remaining containers
+;;become batch gathers.
+(def ^:private ^:const block-copy-min-run 256)
+
+
+(defn- bitmap-containers
+  "Return a list of [container high-bits output-offset] for each container in the
+  bitmap."
+  ^List [^RoaringBitmap bitmap]
+  (let [retval (ArrayList.)
+        cp (.getContainerPointer bitmap)]
+    (loop [container (.getContainer cp)
+           offset 0]
+      (if container
+        (do
+          (.add retval [container
+                        (bit-shift-left (int (.key cp)) 16)
+                        offset])
+          (let [card (.getCardinality cp)]
+            (.advance cp)
+            (recur (.getContainer cp) (+ offset card))))
+        retval))))
+
+
+(defmacro make-bitmap-gather-impl
+  [datatype]
+  `(fn [^RoaringBitmap bitmap# values# src-buf# dst# dst-offset# unchecked?#]
+     (let [dst-offset# (long dst-offset#)
+           values# (typecast/datatype->reader ~datatype values# unchecked?#)
+           dst-buf# (typecast/as-nio-buffer dst#)
+           block-copy?# (boolean
+                         (and src-buf# dst-buf#
+                              (= (dtype-proto/get-datatype src-buf#)
+                                 (dtype-proto/get-datatype dst-buf#))))
+           dst# (typecast/datatype->writer ~datatype dst# unchecked?#)
+           containers# (bitmap-containers bitmap#)]
+       (parallel-for/indexed-map-reduce
+        (.size containers#)
+        (fn [^long start-idx# ^long group-len#]
+          (let [idx-buf# (int-array 65536)
+                end-idx# (+ start-idx# group-len#)]
+            (loop [container-idx# start-idx#]
+              (when (< container-idx# end-idx#)
+                (let [[container# high-bits# offset#] (.get containers# container-idx#)
+                      high-bits# (long high-bits#)
+                      out-offset# (+ dst-offset# (long offset#))]
+                  (if (instance? RunContainer container#)
+                    (let [^RunContainer container# container#
+                          n-runs# (.numberOfRuns container#)]
+                      (loop [run-idx# 0
+                             out-offset# out-offset#]
+                        (when (< run-idx# n-runs#)
+                          (let [run-start# (+ high-bits#
+                                              (int (.getValue container# run-idx#)))
+                                run-len# (inc (int (.getLength container# run-idx#)))]
+                            (if (and block-copy?#
+                                     (>= run-len# block-copy-min-run))
+                              (dtype-proto/copy!
+                               (dtype-proto/sub-buffer dst-buf# out-offset# run-len#)
+                               (dtype-proto/sub-buffer src-buf# run-start# run-len#)
+                               {:unchecked? true})
+                              (loop [idx# 0]
+                                (when (< idx# run-len#)
+                                  (.write dst# (+ out-offset# idx#)
+                                          (.read values# (+ run-start# idx#)))
+                                  (recur (unchecked-inc idx#)))))
+                            (recur (unchecked-inc run-idx#)
+                                   (+ out-offset# run-len#))))))
+                    (let [^Container container# container#
+                          n-elems# (.getCardinality container#)]
+                      (.fillLeastSignificant16bits container# idx-buf# 0
+                                                   (unchecked-int high-bits#))
+                      (loop [idx# 0]
+                        (when (< idx# n-elems#)
+                          (.write dst# (+ out-offset# idx#)
+                                  (.read values# (Integer/toUnsignedLong
+                                                  (aget idx-buf# idx#))))
+                          (recur (unchecked-inc idx#))))))
+                  (recur (unchecked-inc container-idx#))))))))
+       dst#)))
+
+
+(def bitmap-gather-table (casting/make-base-datatype-table make-bitmap-gather-impl))
+
+
+(defn- block-copy-src
+  "Runs may be block copied when the values have a nio buffer of the same datatype."
+  [values datatype]
+  (when (= datatype (dtype-proto/get-datatype values))
+    (typecast/as-nio-buffer values)))
+
+
+(defn bitmap-gather!
+  "Copy the values at the bitmap's indexes into dst starting at dst-offset.
+  src-buf, when provided, is a nio buffer containing the same data as values."
+  [bitmap values src-buf dst dst-offset options]
+  (let [bitmap (typecast/->roaring-bitmap bitmap)
+        datatype (or (:datatype options) (dtype-proto/get-datatype values))
+        gather-fn (get bitmap-gather-table (casting/safe-flatten datatype))]
+    (gather-fn bitmap values
+               (when (= datatype (dtype-proto/get-datatype dst))
+                 src-buf)
+               dst dst-offset (:unchecked? options))
+    dst))
+
+
+(defn- bitmap-index
+  ^long [^ints indexes ^long idx]
+  (Integer/toUnsignedLong (aget indexes idx)))
+
+
+(defmacro make-bitmap-indexed-reader-impl
+  [datatype]
+  `(fn [^RoaringBitmap bitmap# values# src-buf# unchecked?#]
+     (let [values-dtype# (dtype-proto/get-datatype values#)
+           src-values# values#
+           values# (typecast/datatype->reader ~datatype values# unchecked?#)
+           indexes# (delay (.toArray bitmap#))
+           n-elems# (.getLongCardinality bitmap#)]
+       (reify ~(typecast/datatype->reader-type datatype)
+         (getDatatype [item#] values-dtype#)
+         (lsize [item#] n-elems#)
+         (read [item# idx#]
+           (.read values# (bitmap-index @indexes# idx#)))
+         dtype-proto/PConstantTimeMinMax
+         (has-constant-time-min-max? [item#]
+           (dtype-proto/has-constant-time-min-max? values#))
+         (constant-time-min [item#]
+           (dtype-proto/constant-time-min values#))
+         (constant-time-max [item#]
+           (dtype-proto/constant-time-max values#))
+         dtype-proto/PBufferType
+         (buffer-type [item#] :bitmap-indexed)
+         dtype-proto/PCopyRawData
+         (copy-raw->item! [item# ary-target# target-offset# options#]
+           (bitmap-gather! bitmap# src-values# src-buf# ary-target# target-offset#
+                           (assoc options# :datatype values-dtype#))
+           [ary-target# (+ (long target-offset#) n-elems#)])
+         dtype-proto/PToBackingStore
+         (->backing-store-seq [item]
+           (dtype-proto/->backing-store-seq values#))))))
+
+
+(def bitmap-indexed-reader-creators (casting/make-base-datatype-table
+                                     make-bitmap-indexed-reader-impl))
+
+
+(defmethod dtype-proto/copy! [:bitmap-indexed :dense]
+  [dst src options]
+  (dtype-proto/copy-raw->item! src dst 0 options)
+  dst)
+
+
 (defn make-indexed-reader
   ([indexes values options]
-   (let [values (dtype-proto/->reader values options)
-         datatype (dtype-proto/get-datatype values)
-         reader-fn (if (= :int32 (dtype-proto/get-datatype indexes))
-                     (get int32-indexed-reader-creators
-                          (casting/safe-flatten datatype))
-                     (get int64-indexed-reader-creators
-                          (casting/safe-flatten datatype)))]
-     (reader-fn indexes values (:unchecked? options))))
+   (let [src-values values
+         values (dtype-proto/->reader values options)
+         datatype (dtype-proto/get-datatype values)]
+     (cond
+       (dtype-proto/convertible-to-bitmap? indexes)
+       ((get bitmap-indexed-reader-creators (casting/safe-flatten datatype))
+        (dtype-proto/as-roaring-bitmap indexes) values
+        (block-copy-src src-values datatype)
+        (:unchecked? options))
+       (dtype-proto/convertible-to-long-bitmap? indexes)
+       (make-indexed-reader (.toArray ^Roaring64NavigableMap
+                                      (dtype-proto/as-long-bitmap indexes))
+                            values options)
+       :else
+       (let [reader-fn (if (= :int32 (dtype-proto/get-datatype indexes))
+                         (get int32-indexed-reader-creators
+                              (casting/safe-flatten datatype))
+                         (get int64-indexed-reader-creators
+                              (casting/safe-flatten datatype)))]
+         (reader-fn indexes values (:unchecked? options))))))
   ([indexes values]
    (make-indexed-reader indexes values {})))
 
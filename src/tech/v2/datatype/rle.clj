@@ -0,0 +1,428 @@
+(ns tech.v2.datatype.rle
+  "Run length encoded containers.  Each run of equal elements is stored once as its
+  start index and value so a column of long runs (status codes, sorted keys) costs
+  one long and one value per run.  Reads binary search the run starts.
+
+  Like the containers of tech.v2.datatype.codec they are immutable and support
+  decode-block!.  Work is done once per run instead of once per element:
+  * min, max and sums along with any other commutative reduction.
+  * elementwise ops of a run length encoded item, or of one and a scalar, produce a
+    run length encoded result with the same runs.
+  * argfilter adds the range of every passing run to a bitmap.
+  See tech.v2.datatype.builtin-op-providers for where they hook in.  Runs are found
+  in parallel when encoding."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.binary-op :as binary-op]
+            [tech.v2.datatype.boolean-op :as boolean-op]
+            [tech.v2.datatype.operation-provider :as op-provider]
+            [tech.v2.datatype.readers.indexed :as indexed-rdr]
+            [tech.v2.datatype.bitmap :as bitmap]
+            [tech.v2.datatype.typed-buffer]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype ObjectReader]
+           [it.unimi.dsi.fastutil.longs LongArrayList]
+           [java.util Arrays]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn- run-index
+  "Index of the run containing idx.  starts holds the start of every run followed by
+  the element count and runs are never empty."
+  ^long [^longs starts ^long idx]
+  (let [pos (Arrays/binarySearch starts idx)]
+    (if (>= pos 0)
+      pos
+      (- (- pos) 2))))
+
+
+(defn- check-index
+  [^long idx ^long n-elems]
+  (when-not (and (>= idx 0) (< idx n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Index %s out of range [0, %s)" idx n-elems)))))
+
+
+(defmacro ^:private make-rle-reader
+  [datatype]
+  (let [reader-type (typecast/datatype->reader-type datatype)]
+    `(fn [datatype# values# ^"[J" starts#]
+       (let [~(with-meta 'values {:tag reader-type})
+             (typecast/datatype->reader ~datatype
+                                        (dtype-proto/->reader values# {:datatype datatype#}))
+             n-elems# (aget starts# (unchecked-dec (alength starts#)))]
+         (reify ~reader-type
+           (getDatatype [rdr#] datatype#)
+           (lsize [rdr#] n-elems#)
+           (read [rdr# idx#]
+             (check-index idx# n-elems#)
+             (.read ~'values (run-index starts# idx#))))))))
+
+
+(def ^:private rle-reader-table
+  (casting/make-base-datatype-table make-rle-reader))
+
+
+(defn- run-sum
+  "Sum of value * run-length over the runs."
+  [datatype values ^longs starts]
+  (let [n-runs (dec (alength starts))]
+    (if (casting/integer-type? (casting/un-alias-datatype datatype))
+      (let [values (typecast/datatype->reader :int64 values)]
+        (loop [run 0
+               sum 0]
+          (if (< run n-runs)
+            (recur (unchecked-inc run)
+                   (unchecked-add sum (unchecked-multiply
+                                       (.read values run)
+                                       (- (aget starts (unchecked-inc run))
+                                          (aget starts run)))))
+            sum)))
+      (let [values (typecast/datatype->reader :float64 values)]
+        (loop [run 0
+               sum 0.0]
+          (if (< run n-runs)
+            (recur (unchecked-inc run)
+                   (+ sum (* (.read values run)
+                             (- (aget starts (unchecked-inc run))
+                                (aget starts run)))))
+            sum))))))
+
+
+(deftype RunLengthBuffer [datatype values ^ObjectReader object-values
+                          ^longs starts typed-reader]
+  ObjectReader
+  (getDatatype [item] datatype)
+  (lsize [item] (aget starts (dec (alength starts))))
+  (read [item idx]
+    (check-index idx (.lsize item))
+    (.read object-values (run-index starts idx)))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] datatype)
+
+  dtype-proto/PCountable
+  (ecount [item] (.lsize item))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    (let [opt-dtype (:datatype options)]
+      (if (or (nil? opt-dtype) (= opt-dtype datatype))
+        typed-reader
+        (dtype-proto/->reader typed-reader options))))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PConstantTimeMinMax
+  (has-constant-time-min-max? [item]
+    (and (casting/numeric-type? (casting/un-alias-datatype datatype))
+         (> (alength starts) 1)))
+  (constant-time-min [item] (reduce min (dtype-proto/->reader values {})))
+  (constant-time-max [item] (reduce max (dtype-proto/->reader values {})))
+
+  dtype-proto/PClone
+  ;;Run length encoded buffers are never written to
+  (clone [item] item)
+
+  dtype-proto/PEncoded
+  (encoded? [item] true)
+  (encoding [item] :rle)
+  (decode-block! [item offset dst]
+    (let [offset (long offset)
+          n-block (dtype-base/ecount dst)
+          end-idx (+ offset n-block)]
+      (when-not (and (>= offset 0) (<= end-idx (.lsize item)))
+        (throw (IndexOutOfBoundsException.
+                (format "Block [%s, %s) out of range [0, %s)"
+                        offset end-idx (.lsize item)))))
+      (when-not (== 0 n-block)
+        (loop [run (run-index starts offset)]
+          (let [run-start (max offset (aget starts run))
+                run-end (min end-idx (aget starts (unchecked-inc run)))]
+            (dtype-base/set-constant! dst (- run-start offset)
+                                      (.read object-values run)
+                                      (- run-end run-start))
+            (when (< run-end end-idx)
+              (recur (unchecked-inc run))))))
+      dst))
+  (encoded-reduce [item op]
+    (when (dtype-proto/has-constant-time-min-max? item)
+      (case op
+        :min (casting/cast (dtype-proto/constant-time-min item) datatype)
+        :max (casting/cast (dtype-proto/constant-time-max item) datatype)
+        :+ (casting/unchecked-cast (run-sum datatype values starts) datatype)
+        nil))))
+
+
+(defn rle-buffer
+  "Make a run length encoded buffer from the value of every run and a long array of
+  the start of every run followed by the element count."
+  [datatype values ^longs starts]
+  (let [reader-fn (get rle-reader-table (casting/safe-flatten datatype))]
+    (RunLengthBuffer. datatype values
+                      (typecast/datatype->reader :object values)
+                      starts
+                      (reader-fn datatype values starts))))
+
+
+(defmacro ^:private loop-value
+  "Widen a value of datatype to the long or double used for loop locals."
+  [datatype value]
+  (case datatype
+    (:int8 :int16 :int32) `(long ~value)
+    :float32 `(double ~value)
+    value))
+
+
+(defmacro ^:private values-equal?
+  [datatype lhs rhs]
+  (case datatype
+    (:float32 :float64) `(== 0 (Double/compare ~lhs ~rhs))
+    (:boolean :object) `(= ~lhs ~rhs)
+    `(== ~lhs ~rhs)))
+
+
+(defmacro ^:private make-find-runs
+  [datatype]
+  `(fn [data# ^long n-elems#]
+     (let [rdr# (typecast/datatype->reader ~datatype data#)]
+       (parallel-for/indexed-map-reduce
+        n-elems#
+        (fn [^long start-idx# ^long group-len#]
+          (let [starts# (LongArrayList.)
+                end-idx# (+ start-idx# group-len#)]
+            (when-not (== 0 group-len#)
+              ;;The first element of a chunk is compared against the last element of
+              ;;the previous chunk so runs spanning chunks are stitched together.
+              (let [first-value# (loop-value ~datatype (.read rdr# start-idx#))]
+                (when (or (== 0 start-idx#)
+                          (not (values-equal?
+                                ~datatype first-value#
+                                (loop-value ~datatype
+                                            (.read rdr# (unchecked-dec start-idx#))))))
+                  (.add starts# start-idx#))
+                (loop [idx# (unchecked-inc start-idx#)
+                       prev-value# first-value#]
+                  (when (< idx# end-idx#)
+                    (let [value# (loop-value ~datatype (.read rdr# idx#))]
+                      (when-not (values-equal? ~datatype value# prev-value#)
+                        (.add starts# idx#))
+                      (recur (unchecked-inc idx#) value#))))))
+            starts#))
+        (fn [group-starts#]
+          (let [retval# (LongArrayList.)]
+            (doseq [starts# group-starts#]
+              (.addAll retval# ^LongArrayList starts#))
+            (.add retval# n-elems#)
+            (.toLongArray retval#)))))))
+
+
+(def ^:private find-runs-table
+  (casting/make-base-datatype-table make-find-runs))
+
+
+(defn run-offsets
+  "Start of every run of equal elements of data followed by the element count as a
+  long array.  Runs are found in parallel chunks; primitive elements are compared by
+  value (NaN equals NaN) and objects with =."
+  ^longs [datatype data]
+  (let [find-runs (get find-runs-table (casting/safe-flatten datatype))]
+    (find-runs (dtype-base/->reader data datatype) (dtype-base/ecount data))))
+
+
+(defn run-length-encode
+  "Run length encode data.  Runs are found in parallel chunks; primitive elements are
+  compared by value (NaN equals NaN) and objects with =.  Options:
+  :datatype - defaults to the datatype of data."
+  [data & [{:keys [datatype]}]]
+  (let [datatype (or datatype (dtype-base/get-datatype data))
+        data (if (dtype-proto/convertible-to-reader? data)
+               data
+               (dtype-proto/make-container :typed-buffer datatype (vec data) {}))
+        ^longs starts (run-offsets datatype data)
+        n-runs (dec (alength starts))]
+    (rle-buffer datatype
+                (dtype-proto/make-container
+                 :typed-buffer datatype
+                 (indexed-rdr/make-indexed-reader (Arrays/copyOf starts n-runs)
+                                                  data {:datatype datatype})
+                 {})
+                starts)))
+
+
+(defmethod dtype-proto/make-container :rle
+  [_container-type datatype elem-count-or-seq options]
+  (if (number? elem-count-or-seq)
+    (let [n-elems (long elem-count-or-seq)]
+      (rle-buffer datatype
+                  (dtype-proto/make-container :typed-buffer datatype
+                                              (if (== 0 n-elems) 0 1) {})
+                  (if (== 0 n-elems)
+                    (long-array [0])
+                    (long-array [0 n-elems]))))
+    (run-length-encode elem-count-or-seq (assoc options :datatype datatype))))
+
+
+(defn rle?
+  [item]
+  (instance? RunLengthBuffer item))
+
+
+(defn run-starts
+  "long array of the start of every run followed by the element count."
+  ^longs [^RunLengthBuffer item]
+  (.starts item))
+
+
+(defn run-values
+  "Container of the value of every run."
+  [^RunLengthBuffer item]
+  (.values item))
+
+
+(defn n-runs
+  ^long [^RunLengthBuffer item]
+  (dec (alength ^longs (.starts item))))
+
+
+(defn- map-runs
+  "Run length encoded item with the runs of item and the values (f run-values)."
+  [f item]
+  (let [values (f (run-values item))]
+    (rle-buffer (dtype-base/get-datatype values) values (run-starts item))))
+
+
+(defn run-unary-op
+  "Elementwise unary op computed once per run."
+  [op-fn op item options]
+  (map-runs #(op-fn op % options) item))
+
+
+(defn run-binary-op
+  "Elementwise binary op between a run length encoded item and a scalar computed once
+  per run.  Either argument may be the scalar."
+  [op-fn op lhs rhs options]
+  (if (rle? lhs)
+    (map-runs #(op-fn op % rhs options) lhs)
+    (map-runs #(op-fn op lhs % options) rhs)))
+
+
+(defn- runs->bitmap
+  "Bitmap of the elements of the runs listed in run-indexes."
+  [^RunLengthBuffer item run-indexes]
+  (let [^longs starts (run-starts item)
+        retval (if (<= (aget starts (dec (alength starts))) Integer/MAX_VALUE)
+                 (bitmap/->bitmap)
+                 (bitmap/->long-bitmap nil))]
+    (doseq [run run-indexes]
+      (let [run (long run)]
+        (dtype-proto/set-add-range! retval
+                                    (aget starts run)
+                                    (aget starts (unchecked-inc run)))))
+    retval))
+
+
+(defn argfilter
+  "Bitmap of the indexes of item passing bool-op.  bool-op runs once per run."
+  [bool-op item]
+  (runs->bitmap item (op-provider/unary-op :argfilter (run-values item) bool-op)))
+
+
+(defn binary-argfilter
+  "Bitmap of the indexes where (bool-op item[idx] value) passes for a scalar value."
+  [bool-op item value]
+  (runs->bitmap item (op-provider/binary-op
+                      :argfilter (run-values item) value
+                      (get boolean-op/builtin-boolean-binary-ops bool-op bool-op))))
+
+
+(defmacro ^:private apply-op
+  "Apply the binary op of datatype to two widened loop values, narrowing them to
+  datatype for the call and widening the result again."
+  [datatype op lhs rhs]
+  (let [narrow (case datatype
+                 :int8 `unchecked-byte
+                 :int16 `unchecked-short
+                 :int32 `unchecked-int
+                 :float32 `unchecked-float
+                 `identity)]
+    `(loop-value ~datatype (.op ~op (~narrow ~lhs) (~narrow ~rhs)))))
+
+
+(defmacro ^:private make-run-reduce-fn
+  [datatype]
+  `(fn [reduce-op# values# ^"[J" starts# unchecked?#]
+     (let [~(with-meta 'reduce-op {:tag (binary-op/datatype->binary-op-type datatype)})
+           (binary-op/datatype->binary-op ~datatype reduce-op# unchecked?#)
+           values# (typecast/datatype->reader ~datatype values# unchecked?#)
+           n-runs# (unchecked-dec (alength starts#))
+           ;;A run of n equal values is folded with O(log n) applications of the op
+           ;;by repeated doubling.
+           reduce-runs#
+           (fn [^long start-run# ^long n-group#]
+             (when-not (== 0 n-group#)
+               (let [end-run# (+ start-run# n-group#)
+                     first-value# (loop-value ~datatype (.read values# start-run#))]
+                 (loop [run# start-run#
+                        remaining# (- (aget starts# (unchecked-inc start-run#))
+                                      (aget starts# start-run#))
+                        power# first-value#
+                        accum# first-value#
+                        has-accum?# false]
+                   (cond
+                     (> remaining# 0)
+                     (let [odd?# (== 1 (bit-and remaining# 1))]
+                       (recur run#
+                              (bit-shift-right remaining# 1)
+                              (if (> remaining# 1)
+                                (apply-op ~datatype ~'reduce-op power# power#)
+                                power#)
+                              (if odd?#
+                                (if has-accum?#
+                                  (apply-op ~datatype ~'reduce-op accum# power#)
+                                  power#)
+                                accum#)
+                              (boolean (or has-accum?# odd?#))))
+                     (< (unchecked-inc run#) end-run#)
+                     (let [next-run# (unchecked-inc run#)]
+                       (recur next-run#
+                              (- (aget starts# (unchecked-inc next-run#))
+                                 (aget starts# next-run#))
+                              (loop-value ~datatype (.read values# next-run#))
+                              accum#
+                              has-accum?#))
+                     :else
+                     accum#)))))]
+       (when-not (== 0 n-runs#)
+         (-> (parallel-for/indexed-map-reduce
+              n-runs#
+              reduce-runs#
+              (fn [reduced-items#]
+                (->> (remove nil? reduced-items#)
+                     (reduce (fn [accum# next-elem#]
+                               (apply-op ~datatype ~'reduce-op accum# next-elem#))))))
+             (#(.finalize ~'reduce-op (casting/datatype->unchecked-cast-fn
+                                       :unknown ~datatype %)
+                          (aget starts# n-runs#))))))))
+
+
+(def ^:private run-reduce-table
+  (casting/make-base-datatype-table make-run-reduce-fn))
+
+
+(defn reduce-runs
+  "Reduce a run length encoded item with a commutative, associative reduce-op (such
+  as :+ :* :min or :max) folding each run with O(log run-length) applications of
+  reduce-op.  Returns nil when item is empty."
+  [{:keys [datatype unchecked?]} reduce-op item]
+  (let [datatype (or datatype (dtype-base/get-datatype item))
+        reduce-fn (get run-reduce-table (casting/safe-flatten datatype))]
+    (reduce-fn reduce-op (run-values item) (run-starts item) unchecked?)))
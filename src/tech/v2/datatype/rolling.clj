@@ -4,7 +4,10 @@
             [tech.v2.datatype.binary-op :as binary-op]
             [tech.v2.datatype.reduce-op :as reduce-op]
             [tech.v2.datatype.argtypes :as argtypes]
-            [tech.v2.datatype.casting :as casting]))
+            [tech.v2.datatype.casting :as casting]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype DoubleReader LongReader
+            PackedLocalDate PackedLocalDateTime]))
 
 
 (set! *warn-on-reflection* true)
@@ -106,6 +109,290 @@
                window-size (dtype-base/get-datatype item) item window-fn n-pad))))
 
 
+;;Incremental kernels.  These run in O(n) regardless of window size: sum, mean and
+;;variance keep running moments that are updated as values enter and leave the
+;;window and min/max use a monotonic deque of indexes.  The output is split into
+;;chunks computed in parallel; each chunk primes its own window from the
+;;overlapping input before it starts emitting values.
+(def rolling-reductions #{:sum :mean :variance :min :max})
+
+
+(defn- check-reduction
+  [reduction]
+  (when-not (rolling-reductions reduction)
+    (throw (ex-info (format "Unrecognized rolling reduction: %s" reduction)
+                    {:reduction reduction
+                     :available rolling-reductions}))))
+
+
+(defn- moments->value
+  ^double [reduction ^long n-elems ^double sum ^double m2]
+  (case reduction
+    :sum sum
+    :mean (/ sum (double n-elems))
+    :variance (if (> n-elems 1)
+                (/ m2 (double (dec n-elems)))
+                0.0)))
+
+
+(defn- padded-idx
+  "The padded input repeats the first and last values n-pad times."
+  ^long [^long idx ^long n-pad ^long last-idx]
+  (-> (- idx n-pad)
+      (max 0)
+      (min last-idx)))
+
+
+(defn- fixed-moments-chunk!
+  [reduction ^DoubleReader src ^doubles result window-size n-pad start n-chunk]
+  (let [window-size (long window-size)
+        n-pad (long n-pad)
+        start (long start)
+        n-chunk (long n-chunk)
+        last-idx (dec (.lsize src))
+        w-dbl (double window-size)
+        end (+ start n-chunk)]
+    ;;Prime the window for the first output index with Welford's algorithm
+    (loop [idx 0
+           sum 0.0
+           mean 0.0
+           m2 0.0]
+      (if (< idx window-size)
+        (let [x (.read src (padded-idx (+ start idx) n-pad last-idx))
+              delta (- x mean)
+              mean (+ mean (/ delta (double (inc idx))))]
+          (recur (inc idx) (+ sum x) mean (+ m2 (* delta (- x mean)))))
+        ;;Slide: drop the value at the window start and add the one past its end.
+        (loop [out-idx start
+               sum sum
+               m2 m2]
+          (when (< out-idx end)
+            (aset result out-idx (moments->value reduction window-size sum m2))
+            (let [x-old (.read src (padded-idx out-idx n-pad last-idx))
+                  x-new (.read src (padded-idx (+ out-idx window-size) n-pad last-idx))
+                  old-mean (/ sum w-dbl)
+                  new-sum (+ sum (- x-new x-old))
+                  new-mean (/ new-sum w-dbl)]
+              (recur (inc out-idx)
+                     new-sum
+                     (max 0.0 (+ m2 (* (- x-new x-old)
+                                       (+ (- x-new new-mean) (- x-old old-mean)))))))))))))
+
+
+(defn- dominated?
+  "True if a value already in the deque can never again be the extreme of a window
+  once x has been added."
+  [max? ^double existing ^double x]
+  (if max?
+    (<= existing x)
+    (>= existing x)))
+
+
+(defn- fixed-extreme-chunk!
+  "Min/max with a monotonic deque.  Indexes are pushed in increasing order; values
+  that can no longer be the extreme of any window are dropped from the back and
+  indexes that have left the window are dropped from the front."
+  [max? ^DoubleReader src ^doubles result window-size n-pad start n-chunk]
+  (let [window-size (long window-size)
+        n-pad (long n-pad)
+        start (long start)
+        n-chunk (long n-chunk)
+        last-idx (dec (.lsize src))
+        deque (long-array (+ n-chunk window-size))
+        values (double-array (+ n-chunk window-size))
+        n-input (+ n-chunk (dec window-size))]
+    (loop [input-idx 0
+           head 0
+           tail 0]
+      (when (< input-idx n-input)
+        (let [x (.read src (padded-idx (+ start input-idx) n-pad last-idx))
+              tail (long (loop [tail tail]
+                           (if (and (> tail head)
+                                    (dominated? max? (aget values (dec tail)) x))
+                             (recur (dec tail))
+                             tail)))
+              _ (do (aset deque tail input-idx)
+                    (aset values tail x))
+              tail (inc tail)
+              window-start (- input-idx (dec window-size))
+              head (long (loop [head head]
+                           (if (< (aget deque head) window-start)
+                             (recur (inc head))
+                             head)))]
+          (when (>= window-start 0)
+            (aset result (+ start window-start) (aget values head)))
+          (recur (inc input-idx) head tail))))))
+
+
+(defn rolling-reduce
+  "Rolling window reduction computed incrementally in O(n).  reduction is one of
+  :sum, :mean, :variance, :min or :max.  Windows are centered and padded exactly
+  as in fixed-rolling-window so the result has the same number of elements as data.
+  Returns a double array."
+  [reduction window-size data]
+  (check-reduction reduction)
+  (let [window-size (long window-size)
+        _ (when-not (> window-size 0)
+            (throw (ex-info "Window size must be positive" {:window-size window-size})))
+        src (typecast/datatype->reader :float64 data)
+        n-elems (.lsize src)
+        n-pad (quot window-size 2)
+        result (double-array n-elems)]
+    (parallel-for/indexed-map-reduce
+     n-elems
+     (fn [^long start ^long n-chunk]
+       (case reduction
+         :min (fixed-extreme-chunk! false src result window-size n-pad
+                                    start n-chunk)
+         :max (fixed-extreme-chunk! true src result window-size n-pad
+                                    start n-chunk)
+         (fixed-moments-chunk! reduction src result window-size n-pad
+                               start n-chunk))))
+    result))
+
+
+(defn- ->time-reader
+  "Times as longs.  Packed dates and datetimes are converted to epoch milliseconds;
+  packed instants are epoch microseconds."
+  ^LongReader [times]
+  (let [src (typecast/datatype->reader :int64 times true)]
+    (case (dtype-base/get-datatype times)
+      :packed-local-date
+      (reify LongReader
+        (getDatatype [rdr] :int64)
+        (lsize [rdr] (.lsize src))
+        (read [rdr idx]
+          (* (PackedLocalDate/toEpochDay (unchecked-int (.read src idx)))
+             86400000)))
+      :packed-local-date-time
+      (reify LongReader
+        (getDatatype [rdr] :int64)
+        (lsize [rdr] (.lsize src))
+        (read [rdr idx]
+          (PackedLocalDateTime/toEpochMilli (.read src idx))))
+      src)))
+
+
+(defn- first-in-window
+  "Binary search for the first index whose time is within the window ending at
+  end-time.  times must be sorted."
+  ^long [^LongReader times ^long end-idx ^long window-start-time]
+  (loop [low 0
+         high end-idx]
+    (if (< low high)
+      (let [mid (quot (+ low high) 2)]
+        (if (> (.read times mid) window-start-time)
+          (recur low mid)
+          (recur (inc mid) high)))
+      low)))
+
+
+(defn- time-moments-chunk!
+  [reduction ^LongReader times ^DoubleReader src ^doubles result
+   window-span start n-chunk]
+  (let [window-span (long window-span)
+        start (long start)
+        end (+ start (long n-chunk))
+        first-idx (first-in-window times start (- (.read times start) window-span))]
+    ;;Welford add/remove as values enter and leave the window.
+    (loop [out-idx start
+           lo first-idx
+           hi first-idx
+           n-elems 0
+           sum 0.0
+           mean 0.0
+           m2 0.0]
+      (when (< out-idx end)
+        (cond
+          (<= hi out-idx)
+          (let [x (.read src hi)
+                n-elems (inc n-elems)
+                delta (- x mean)
+                mean (+ mean (/ delta (double n-elems)))]
+            (recur out-idx lo (inc hi) n-elems (+ sum x) mean
+                   (+ m2 (* delta (- x mean)))))
+          (<= (.read times lo) (- (.read times out-idx) window-span))
+          (let [x (.read src lo)
+                n-elems (dec n-elems)]
+            (if (== 0 n-elems)
+              (recur out-idx (inc lo) hi 0 0.0 0.0 0.0)
+              (let [delta (- x mean)
+                    mean (- mean (/ delta (double n-elems)))]
+                (recur out-idx (inc lo) hi n-elems (- sum x) mean
+                       (max 0.0 (- m2 (* delta (- x mean))))))))
+          :else
+          (do
+            (aset result out-idx (moments->value reduction n-elems sum m2))
+            (recur (inc out-idx) lo hi n-elems sum mean m2)))))))
+
+
+(defn- time-extreme-chunk!
+  [max? ^LongReader times ^DoubleReader src ^doubles result
+   window-span start n-chunk]
+  (let [window-span (long window-span)
+        start (long start)
+        end (+ start (long n-chunk))
+        first-idx (first-in-window times start (- (.read times start) window-span))
+        deque-size (- end first-idx)
+        deque (long-array deque-size)
+        values (double-array deque-size)]
+    (loop [input-idx first-idx
+           head 0
+           tail 0]
+      (when (< input-idx end)
+        (let [x (.read src input-idx)
+              tail (long (loop [tail tail]
+                           (if (and (> tail head)
+                                    (dominated? max? (aget values (dec tail)) x))
+                             (recur (dec tail))
+                             tail)))
+              _ (do (aset deque tail input-idx)
+                    (aset values tail x))
+              tail (inc tail)
+              window-start (- (.read times input-idx) window-span)
+              head (long (loop [head head]
+                           (if (<= (.read times (aget deque head)) window-start)
+                             (recur (inc head))
+                             head)))]
+          (when (>= input-idx start)
+            (aset result input-idx (aget values head)))
+          (recur (inc input-idx) head tail))))))
+
+
+(defn time-rolling-reduce
+  "Trailing time based rolling window reduction computed incrementally in O(n).
+  The window for index i holds every value whose time is in
+  (times[i] - window-span, times[i]].  times must be sorted ascending and may be
+  integers, epoch milliseconds or one of the packed date/datetime/instant
+  datatypes.  window-span is in the same units as times: milliseconds for packed
+  dates and datetimes, microseconds for packed instants.
+  reduction is one of :sum, :mean, :variance, :min or :max.  Returns a double array."
+  [reduction window-span times data]
+  (check-reduction reduction)
+  (let [window-span (long window-span)
+        _ (when-not (> window-span 0)
+            (throw (ex-info "Window span must be positive" {:window-span window-span})))
+        times (->time-reader times)
+        src (typecast/datatype->reader :float64 data)
+        n-elems (.lsize src)
+        result (double-array n-elems)]
+    (when-not (== n-elems (.lsize times))
+      (throw (ex-info "Times and data must have the same number of elements"
+                      {:n-times (.lsize times)
+                       :n-elems n-elems})))
+    (parallel-for/indexed-map-reduce
+     n-elems
+     (fn [^long start ^long n-chunk]
+       (case reduction
+         :min (time-extreme-chunk! false times src result window-span
+                                   start n-chunk)
+         :max (time-extreme-chunk! true times src result window-span
+                                   start n-chunk)
+         (time-moments-chunk! reduction times src result window-span
+                              start n-chunk))))
+    result))
+
+
 (defn iterator-time-test
   "How much does boxing/iterating actually cost?
   - time this function a few times."
@@ -0,0 +1,180 @@
+(ns tech.v2.datatype.scan
+  "Inclusive prefix scans (cumulative sum, product, min and max) over readers.
+  Scans run as two parallel passes: each chunk is scanned independently and then
+  every chunk after the first is offset by the combined totals of the chunks
+  before it."
+  (:require [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.base :as dtype-base]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.binary-op :as binary-op]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.missing :as missing]
+            [tech.v2.datatype.readers.indexed :as indexed-rdr]
+            [tech.v2.datatype.writers.indexed :as indexed-wtr]
+            [tech.parallel.for :as parallel-for])
+  (:import [java.util Arrays]
+           [org.roaringbitmap RoaringBitmap]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn- chunk-of
+  "Index of the chunk containing idx given the sorted chunk starts."
+  ^long [^longs starts ^long idx]
+  (let [pos (Arrays/binarySearch starts idx)]
+    (if (>= pos 0)
+      pos
+      (- (- pos) 2))))
+
+
+(defmacro make-scan-fn
+  [datatype]
+  `(fn [bin-op# values# result#]
+     (let [bin-op# (binary-op/datatype->binary-op ~datatype bin-op# true)
+           reader# (typecast/datatype->reader ~datatype values# true)
+           res-reader# (typecast/datatype->reader ~datatype result# true)
+           writer# (typecast/datatype->writer ~datatype result# true)
+           n-elems# (.lsize reader#)
+           ;;Pass 1 - scan each chunk on its own, keeping [chunk-start chunk-total]
+           chunks# (parallel-for/indexed-map-reduce
+                    n-elems#
+                    (fn [^long start# ^long len#]
+                      (when (> len# 0)
+                        (let [end-idx# (+ start# len#)
+                              first-val# (.read reader# start#)]
+                          (.write writer# start# first-val#)
+                          (loop [accum# first-val#
+                                 idx# (unchecked-inc start#)]
+                            (if (< idx# end-idx#)
+                              (let [accum# (.op bin-op# accum# (.read reader# idx#))]
+                                (.write writer# idx# accum#)
+                                (recur accum# (unchecked-inc idx#)))
+                              [start# accum#])))))
+                    (partial into [] (remove nil?)))
+           n-chunks# (count chunks#)]
+       (when (> n-chunks# 1)
+         (let [starts# (long-array (map first chunks#))
+               carries# (dtype-proto/make-container :java-array ~datatype n-chunks# {})
+               carry-writer# (typecast/datatype->writer ~datatype carries# true)
+               carry-reader# (typecast/datatype->reader ~datatype carries# true)
+               fixup-start# (aget starts# 1)]
+           ;;carry i combines the totals of chunks [0, i)
+           (.write carry-writer# 1 (second (first chunks#)))
+           (loop [chunk-idx# 2]
+             (when (< chunk-idx# n-chunks#)
+               (.write carry-writer# chunk-idx#
+                       (.op bin-op#
+                            (.read carry-reader# (unchecked-dec chunk-idx#))
+                            (second (nth chunks# (unchecked-dec chunk-idx#)))))
+               (recur (unchecked-inc chunk-idx#))))
+           ;;Pass 2 - combine the carry into everything after the first chunk
+           (parallel-for/indexed-map-reduce
+            (- n-elems# fixup-start#)
+            (fn [^long start# ^long len#]
+              (let [start# (+ start# fixup-start#)
+                    end-idx# (+ start# len#)]
+                (loop [chunk-idx# (chunk-of starts# start#)
+                       idx# start#]
+                  (when (< idx# end-idx#)
+                    (let [next-chunk# (unchecked-inc chunk-idx#)
+                          seg-end# (min end-idx#
+                                        (if (< next-chunk# n-chunks#)
+                                          (aget starts# next-chunk#)
+                                          n-elems#))
+                          carry# (.read carry-reader# chunk-idx#)]
+                      (loop [idx# idx#]
+                        (when (< idx# seg-end#)
+                          (.write writer# idx#
+                                  (.op bin-op# carry# (.read res-reader# idx#)))
+                          (recur (unchecked-inc idx#))))
+                      (recur next-chunk# seg-end#)))))))))
+       result#)))
+
+
+(def scan-table (casting/make-base-datatype-table make-scan-fn))
+
+
+(defn- scan-values
+  [bin-op values datatype container-type]
+  (let [datatype (casting/safe-flatten
+                  (or datatype
+                      (let [src-dtype (dtype-base/get-datatype values)]
+                        (cond
+                          (casting/integer-type? src-dtype) :int64
+                          (casting/float-type? src-dtype) :float64
+                          :else src-dtype))))
+        bin-op (if (keyword? bin-op)
+                 (if-let [op (get binary-op/builtin-binary-ops bin-op)]
+                   op
+                   (throw (Exception. (format "Unrecognized binary op: %s" bin-op))))
+                 bin-op)
+        result (dtype-proto/make-container container-type datatype
+                                           (dtype-base/ecount values) {})]
+    ((get scan-table datatype) bin-op values result)))
+
+
+(defn scan
+  "Inclusive prefix scan of values with an associative binary operator:
+  result[i] = (op values[0] ... values[i]).  bin-op is either a binary operator
+  or the name of a builtin binary op.  The scan is computed in parallel chunks so
+  the operator must be associative; floating point results may differ in the last
+  bits from a sequential loop.
+  Options:
+  :datatype - Datatype of the scan.  Integer values default to :int64 and floating
+    point values to :float64 so running totals do not overflow the input type;
+    anything else scans in its host datatype.
+  :container-type - Container to write the result into, :java-array (default) or
+    :native-buffer.
+  Missing elements of missing-aware values are skipped and stay missing in the
+  result."
+  ([bin-op values {:keys [datatype container-type]
+                   :or {container-type :java-array}
+                   :as options}]
+   (if (missing/missing-aware? values)
+     (let [[data missing-bitmap] (missing/strip-missing values)
+           valid (missing/valid-indexes values)
+           valid-result (scan bin-op (indexed-rdr/make-indexed-reader valid data {})
+                              options)
+           result (dtype-proto/make-container container-type
+                                              (dtype-base/get-datatype valid-result)
+                                              (dtype-base/ecount values) {})]
+       (dtype-base/copy! valid-result
+                         (indexed-wtr/make-indexed-writer valid result {}))
+       (missing/missing-buffer result (.clone ^RoaringBitmap missing-bitmap)))
+     (scan-values bin-op values datatype container-type)))
+  ([bin-op values]
+   (scan bin-op values {})))
+
+
+(defn cumsum
+  "Cumulative sum.  Options are as per scan."
+  ([values options]
+   (scan :+ values options))
+  ([values]
+   (scan :+ values {})))
+
+
+(defn cumprod
+  "Cumulative product.  Options are as per scan."
+  ([values options]
+   (scan :* values options))
+  ([values]
+   (scan :* values {})))
+
+
+(defn cummin
+  "Cumulative minimum.  Options are as per scan."
+  ([values options]
+   (scan :min values options))
+  ([values]
+   (scan :min values {})))
+
+
+(defn cummax
+  "Cumulative maximum.  Options are as per scan."
+  ([values options]
+   (scan :max values options))
+  ([values]
+   (scan :max values {})))
@@ -4,6 +4,7 @@
             [tech.v2.datatype.boolean-op :as boolean-op]
             [tech.v2.datatype.unary-op :as unary-op]
             [tech.v2.datatype.reduce-op :as reduce-op]
+            [tech.v2.datatype.missing :as missing]
             [tech.v2.datatype.array]
             [kixi.stats.core :as kixi])
   (:refer-clojure :exclude [min max])
@@ -37,6 +38,14 @@
        (reduce-op/commutative-reduce :float64 (* accum next))))
 
 
+(defn- ->stats-array
+  "Values used for statistics.  Missing elements are left out."
+  ^doubles [item]
+  (if (missing/missing-aware? item)
+    (missing/valid-double-array item)
+    (dtype-base/->double-array item)))
+
+
 (def supported-stats-map
   {:mean #(.getMean ^DescriptiveStatistics %)
    :min #(.getMin ^DescriptiveStatistics %)
@@ -69,7 +78,7 @@
   [item & [stats-set]]
   (let [stats-set (set (or stats-set [:mean :median :min :max :ecount :standard-deviation
                                       :skew]))
-        stats-desc (DescriptiveStatistics. (dtype-base/->double-array item))]
+        stats-desc (DescriptiveStatistics. (->stats-array item))]
     (->> stats-set
          (map (fn [stats-key]
                 (if-let [supported-stat (get supported-stats-map stats-key)]
@@ -82,7 +91,7 @@
 (defn percentile
   "Get the nth percentile.  Percent ranges from 0-100."
   [item percent]
-  (-> (DescriptiveStatistics. (dtype-base/->double-array item))
+  (-> (DescriptiveStatistics. (->stats-array item))
       (.getPercentile (double percent))))
 
 
@@ -103,8 +112,10 @@
 
 (defn- kixi-apply
   [kixi-fn item]
-  (transduce identity kixi-fn (or (dtype-proto/as-reader item)
-                                  (dtype-proto/as-iterable item))))
+  (transduce identity kixi-fn (if (missing/missing-aware? item)
+                                (missing/valid-double-array item)
+                                (or (dtype-proto/as-reader item)
+                                    (dtype-proto/as-iterable item)))))
 
 (defn harmonic-mean
   [item]
@@ -162,7 +173,7 @@
 (defn quartiles
   "return [min, 25 50 75 max] of item"
   [item]
-  (let [stats (DescriptiveStatistics. (dtype-base/->double-array item))]
+  (let [stats (DescriptiveStatistics. (->stats-array item))]
     [(.getMin stats)
      (.getPercentile stats 25.0)
      (.getPercentile stats 50.0)
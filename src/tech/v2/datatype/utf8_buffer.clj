@@ -0,0 +1,429 @@
+(ns tech.v2.datatype.utf8-buffer
+  "Variable length strings stored off-heap as UTF-8.  A buffer of n strings is an
+  int64 offsets region of n + 1 entries and a byte payload; string i is the bytes
+  [offsets[i], offsets[i+1]) of the payload.  Strings are only decoded when read so a
+  column of many short strings costs its encoded size plus 8 bytes per string and
+  puts nothing on the garbage collected heap.
+
+  Equality, prefix/suffix tests, comparison and argsort work on the bytes.  Byte
+  order of UTF-8 is code point order, which differs from String/compareTo only for
+  strings containing both supplementary characters and characters above U+E000.
+
+  Buffers can be written to a file with write-utf8-file! and memory mapped back with
+  mmap-utf8-file.  nil is stored as the empty string."
+  (:require [clojure.java.io :as io]
+            [tech.v2.datatype.protocols :as dtype-proto]
+            [tech.v2.datatype.casting :as casting]
+            [tech.v2.datatype.typecast :as typecast]
+            [tech.v2.datatype.reader :as reader]
+            [tech.v2.datatype.comparator :as dtype-comp]
+            [tech.v2.datatype.mmap :as mmap]
+            [tech.parallel.for :as parallel-for])
+  (:import [tech.v2.datatype ObjectReader BooleanReader Utf8Bytes]
+           [tech.v2.datatype.mmap NativeBuffer]
+           [it.unimi.dsi.fastutil.ints IntArrays IntComparator]
+           [java.nio ByteBuffer ByteOrder]
+           [java.nio.channels FileChannel]
+           [java.nio.charset StandardCharsets]
+           [java.io FileOutputStream]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+
+
+;;"UTF8BUF1" in little endian byte order
+(def ^:private file-magic 0x3146554238465455)
+(def ^:private header-bytes 16)
+
+
+(defn- offset-at
+  ^long [^long offsets-addr ^long idx]
+  (.getLong (mmap/unsafe) (+ offsets-addr (* 8 idx))))
+
+
+(defn- check-index
+  [^long idx ^long n-elems]
+  (when-not (and (>= idx 0) (< idx n-elems))
+    (throw (IndexOutOfBoundsException.
+            (format "Index %s out of range [0, %s)" idx n-elems)))))
+
+
+(declare copy-buffer)
+
+
+;;offsets-addr is the address of this buffer's first offset and data-addr the
+;;address the offsets are relative to.  owner keeps the memory behind both
+;;reachable, so sub buffers share it with their parent.
+(deftype Utf8Buffer [^long offsets-addr ^long data-addr ^long n-elems owner]
+  ObjectReader
+  (getDatatype [item] :string)
+  (lsize [item] n-elems)
+  (read [item idx]
+    (check-index idx n-elems)
+    (let [start (offset-at offsets-addr idx)]
+      (Utf8Bytes/decode (+ data-addr start)
+                        (- (offset-at offsets-addr (inc idx)) start))))
+
+  dtype-proto/PDatatype
+  (get-datatype [item] :string)
+
+  dtype-proto/PCountable
+  (ecount [item] n-elems)
+
+  dtype-proto/PBuffer
+  (sub-buffer [item offset length]
+    (let [offset (long offset)
+          length (long length)]
+      (when-not (and (>= offset 0) (>= length 0) (<= (+ offset length) n-elems))
+        (throw (Exception.
+                (format "Offset+length (%s) > n-elems (%s)"
+                        (+ offset length) n-elems))))
+      (Utf8Buffer. (+ offsets-addr (* 8 offset)) data-addr length owner)))
+
+  dtype-proto/PToReader
+  (convertible-to-reader? [item] true)
+  (->reader [item options]
+    (let [opt-dtype (:datatype options)]
+      (if (or (nil? opt-dtype) (= opt-dtype :string))
+        item
+        (reader/make-marshalling-reader item options))))
+
+  dtype-proto/PToIterable
+  (convertible-to-iterable? [item] true)
+  (->iterable [item options] (dtype-proto/->reader item options))
+
+  dtype-proto/PClone
+  (clone [item] (copy-buffer item {})))
+
+
+(defn utf8-buffer?
+  [item]
+  (instance? Utf8Buffer item))
+
+
+(defn- ->utf8-buffer
+  ^Utf8Buffer [item]
+  (if (utf8-buffer? item)
+    item
+    (throw (ex-info "Item is not a utf8 buffer" {:item-type (type item)}))))
+
+
+(defn- allocate
+  "Allocate offsets for n-elems strings and n-bytes of payload."
+  [^long n-elems ^long n-bytes resource-type]
+  (let [offsets (mmap/malloc (* 8 (inc n-elems)) {:resource-type resource-type})
+        ;;Keep the payload address distinct from 0 so an empty payload is still
+        ;;valid memory.
+        data (mmap/malloc (max n-bytes 1) {:resource-type resource-type})]
+    [offsets data]))
+
+
+(defn- make-buffer
+  ^Utf8Buffer [[^NativeBuffer offsets ^NativeBuffer data :as owner] ^long n-elems]
+  (Utf8Buffer. (.address offsets) (.address data) n-elems owner))
+
+
+(defn- ->char-seq
+  ^CharSequence [value]
+  (cond
+    (nil? value) ""
+    (instance? CharSequence value) value
+    :else (str value)))
+
+
+(defn utf8-buffer
+  "Encode strings into a new utf8 buffer.  Values that are not strings are converted
+  with str and nil is stored as the empty string.  Encoding runs in parallel and
+  writes straight into native memory.
+  Options:
+  :resource-type - Resource management of the native memory as per
+    tech.v2.datatype.mmap/malloc.  Defaults to :gc."
+  [strings & [{:keys [resource-type]
+               :or {resource-type :gc}}]]
+  (let [^ObjectReader src (typecast/datatype->reader
+                           :object
+                           (if (dtype-proto/convertible-to-reader? strings)
+                             strings
+                             (vec strings)))
+        n-elems (.lsize src)
+        ;;Pass 1 - encoded length of each chunk
+        chunks (parallel-for/indexed-map-reduce
+                n-elems
+                (fn [^long start-idx ^long group-len]
+                  (let [end-idx (+ start-idx group-len)]
+                    [start-idx end-idx
+                     (loop [idx start-idx
+                            n-bytes 0]
+                       (if (< idx end-idx)
+                         (recur (unchecked-inc idx)
+                                (+ n-bytes (Utf8Bytes/encodedLength
+                                            (->char-seq (.read src idx)))))
+                         n-bytes))]))
+                vec)
+        chunk-starts (vec (reductions + 0 (map #(nth % 2) chunks)))
+        n-bytes (long (last chunk-starts))
+        owner (allocate n-elems n-bytes resource-type)
+        ^Utf8Buffer retval (make-buffer owner n-elems)
+        offsets-addr (.offsets-addr retval)
+        data-addr (.data-addr retval)
+        unsafe (mmap/unsafe)]
+    ;;Pass 2 - encode each chunk at its byte offset
+    (->> (map vector chunks chunk-starts)
+         (pmap (fn [[[start-idx end-idx] byte-start]]
+                 (let [end-idx (long end-idx)]
+                   (loop [idx (long start-idx)
+                          byte-offset (long byte-start)]
+                     (when (< idx end-idx)
+                       (.putLong unsafe (+ offsets-addr (* 8 idx)) byte-offset)
+                       (recur (unchecked-inc idx)
+                              (+ byte-offset
+                                 (Utf8Bytes/encode (->char-seq (.read src idx))
+                                                   (+ data-addr byte-offset)))))))))
+         (dorun))
+    (.putLong unsafe (+ offsets-addr (* 8 n-elems)) n-bytes)
+    retval))
+
+
+(defn- payload-range
+  "[first-offset n-bytes] of the payload spanned by buf."
+  [^Utf8Buffer buf]
+  (let [start (offset-at (.offsets-addr buf) 0)]
+    [start (- (offset-at (.offsets-addr buf) (.n-elems buf)) start)]))
+
+
+(defn- copy-buffer
+  "Copy buf into newly allocated memory, rebasing the offsets to 0."
+  ^Utf8Buffer [^Utf8Buffer buf {:keys [resource-type]
+                                :or {resource-type :gc}}]
+  (let [n-elems (.n-elems buf)
+        [base n-bytes] (payload-range buf)
+        base (long base)
+        n-bytes (long n-bytes)
+        ^Utf8Buffer retval (make-buffer (allocate n-elems n-bytes resource-type)
+                                        n-elems)
+        unsafe (mmap/unsafe)]
+    (.copyMemory unsafe (+ (.data-addr buf) base) (.data-addr retval) n-bytes)
+    (dotimes [idx (inc n-elems)]
+      (.putLong unsafe (+ (.offsets-addr retval) (* 8 idx))
+                (- (offset-at (.offsets-addr buf) idx) base)))
+    retval))
+
+
+(defmethod dtype-proto/make-container :utf8-buffer
+  [_container-type datatype elem-count-or-seq options]
+  (when-not (= :string datatype)
+    (throw (ex-info (format "utf8 buffers only store strings, not %s" datatype)
+                    {:datatype datatype})))
+  (utf8-buffer (if (number? elem-count-or-seq)
+                 (repeat elem-count-or-seq "")
+                 elem-count-or-seq)
+               options))
+
+
+(defn string-bytes
+  "UTF-8 bytes of string idx of buf."
+  ^bytes [buf ^long idx]
+  (let [buf (->utf8-buffer buf)
+        offsets-addr (.offsets-addr buf)]
+    (check-index idx (.n-elems buf))
+    (let [start (offset-at offsets-addr idx)]
+      (Utf8Bytes/toBytes (+ (.data-addr buf) start)
+                         (- (offset-at offsets-addr (inc idx)) start)))))
+
+
+(defn- ->utf8-bytes
+  ^bytes [value]
+  (.getBytes (.toString (->char-seq value)) StandardCharsets/UTF_8))
+
+
+(defmacro ^:private with-string
+  "Bind start-sym to the payload address and len-sym to the byte length of string
+  idx of the Utf8Buffer buf."
+  [buf idx [start-sym len-sym] & body]
+  `(let [buf# ~buf
+         offsets-addr# (.offsets-addr buf#)
+         offset# (offset-at offsets-addr# ~idx)
+         ~start-sym (+ (.data-addr buf#) offset#)
+         ~len-sym (- (offset-at offsets-addr# (unchecked-inc ~idx)) offset#)]
+     ~@body))
+
+
+(defn compare-strings
+  "Compare string lhs-idx of buf with string rhs-idx by bytes."
+  ^long [buf ^long lhs-idx ^long rhs-idx]
+  (let [buf (->utf8-buffer buf)
+        n-elems (.n-elems buf)]
+    (check-index lhs-idx n-elems)
+    (check-index rhs-idx n-elems)
+    (with-string buf lhs-idx [lhs-start lhs-len]
+      (with-string buf rhs-idx [rhs-start rhs-len]
+        (Utf8Bytes/compare nil lhs-start lhs-len nil rhs-start rhs-len)))))
+
+
+(defmacro ^:private byte-predicate-reader
+  "Lazy boolean reader applying a Utf8Bytes predicate between every string of buf and
+  the byte array target."
+  [buf target negate? pred]
+  `(let [buf# (->utf8-buffer ~buf)
+         ^"[B" target# ~target
+         target-len# (alength target#)
+         negate?# (boolean ~negate?)
+         n-elems# (.n-elems buf#)]
+     (reify BooleanReader
+       (lsize [rdr#] n-elems#)
+       (read [rdr# idx#]
+         (check-index idx# n-elems#)
+         (with-string buf# idx# [start# len#]
+           (not= negate?#
+                 (~pred nil start# len#
+                  target# Utf8Bytes/BYTE_ARRAY_OFFSET target-len#)))))))
+
+
+(defn eq
+  "Lazy boolean reader of (= buf[idx] value) computed on the encoded bytes.  When
+  negate? is true the reader is of (not= buf[idx] value)."
+  ([buf value negate?]
+   (byte-predicate-reader buf (->utf8-bytes value) negate? Utf8Bytes/equals))
+  ([buf value]
+   (eq buf value false)))
+
+
+(defn starts-with
+  "Lazy boolean reader of whether each string of buf starts with prefix."
+  [buf prefix]
+  (byte-predicate-reader buf (->utf8-bytes prefix) false Utf8Bytes/startsWith))
+
+
+(defn ends-with
+  "Lazy boolean reader of whether each string of buf ends with suffix."
+  [buf suffix]
+  (byte-predicate-reader buf (->utf8-bytes suffix) false Utf8Bytes/endsWith))
+
+
+(defn eq-buffers
+  "Lazy boolean reader of elementwise equality of two utf8 buffers."
+  ([lhs rhs negate?]
+   (let [lhs (->utf8-buffer lhs)
+         rhs (->utf8-buffer rhs)
+         negate? (boolean negate?)
+         n-elems (min (.n-elems lhs) (.n-elems rhs))]
+     (reify BooleanReader
+       (lsize [rdr] n-elems)
+       (read [rdr idx]
+         (check-index idx n-elems)
+         (with-string lhs idx [lhs-start lhs-len]
+           (with-string rhs idx [rhs-start rhs-len]
+             (not= negate?
+                   (Utf8Bytes/equals nil lhs-start lhs-len
+                                     nil rhs-start rhs-len))))))))
+  ([lhs rhs]
+   (eq-buffers lhs rhs false)))
+
+
+(defn argsort
+  "Argsort of the strings of buf by their bytes.  Returns an int array.
+  Options:
+  :parallel? - Sort in parallel (default true).
+  :reverse? - Sort greatest-to-least."
+  [buf {:keys [parallel? reverse?]
+        :or {parallel? true}}]
+  (let [buf (->utf8-buffer buf)
+        n-elems (.n-elems buf)
+        index-array (int-array (range n-elems))
+        sign (if reverse? -1 1)
+        comparator (dtype-comp/make-comparator
+                    :int32
+                    (with-string buf lhs [lhs-start lhs-len]
+                      (with-string buf rhs [rhs-start rhs-len]
+                        (unchecked-int
+                         (* sign (Utf8Bytes/compare nil lhs-start lhs-len
+                                                    nil rhs-start rhs-len))))))]
+    (if parallel?
+      (IntArrays/parallelQuickSort index-array ^IntComparator comparator)
+      (IntArrays/quickSort index-array ^IntComparator comparator))
+    index-array))
+
+
+(defn- write-fully!
+  [^FileChannel channel ^ByteBuffer block]
+  (.flip block)
+  (while (.hasRemaining block)
+    (.write channel block))
+  (.clear block))
+
+
+(defn write-utf8-file!
+  "Write buf to fpath so it can be mapped with mmap-utf8-file.  The file is a 16 byte
+  header (magic number and element count) followed by the n-elems + 1 int64 offsets
+  and the UTF-8 payload, all in native byte order."
+  [buf fpath]
+  (let [buf (->utf8-buffer buf)
+        n-elems (.n-elems buf)
+        offsets-addr (.offsets-addr buf)
+        [base n-bytes] (payload-range buf)
+        base (long base)
+        n-bytes (long n-bytes)
+        block-size (* 64 1024)
+        block (doto (ByteBuffer/allocate block-size)
+                (.order (ByteOrder/nativeOrder)))
+        block-data (.array block)
+        unsafe (mmap/unsafe)]
+    (with-open [channel (.getChannel (FileOutputStream. (io/file fpath)))]
+      (.putLong block file-magic)
+      (.putLong block n-elems)
+      (dotimes [idx (inc n-elems)]
+        (when-not (.hasRemaining block)
+          (write-fully! channel block))
+        (.putLong block (- (offset-at offsets-addr idx) base)))
+      (write-fully! channel block)
+      (loop [offset 0]
+        (when (< offset n-bytes)
+          (let [n-copy (min block-size (- n-bytes offset))]
+            (.copyMemory unsafe nil (+ (.data-addr buf) base offset)
+                         block-data Utf8Bytes/BYTE_ARRAY_OFFSET n-copy)
+            (.position block (int n-copy))
+            (write-fully! channel block)
+            (recur (+ offset n-copy))))))
+    fpath))
+
+
+(defn native-buffer->utf8-buffer
+  "Utf8 buffer over native memory laid out as by write-utf8-file!.  The memory is
+  used in place; the returned buffer keeps native-buffer reachable."
+  [native-buffer]
+  (let [^NativeBuffer native-buffer (mmap/as-native-buffer native-buffer)
+        _ (when-not native-buffer
+            (throw (Exception. "Item is not convertible to a native buffer")))
+        address (.address native-buffer)
+        n-bytes (* (.n-elems native-buffer)
+                   (casting/numeric-byte-width
+                    (casting/un-alias-datatype (.datatype native-buffer))))
+        unsafe (mmap/unsafe)
+        _ (when-not (and (>= n-bytes (long header-bytes))
+                         (== (long file-magic) (.getLong unsafe address)))
+            (throw (Exception. "Native buffer does not hold a utf8 buffer")))
+        n-elems (.getLong unsafe (+ address 8))
+        offsets-addr (+ address (long header-bytes))
+        data-addr (+ offsets-addr (* 8 (inc n-elems)))
+        truncated #(Exception. (format "Utf8 buffer of %s strings is truncated" n-elems))]
+    ;;The offsets table has to fit before its last entry is read.  Written as a
+    ;;quotient so a corrupt count cannot overflow.
+    (when-not (and (>= n-elems 0)
+                   (< n-elems (quot (- n-bytes (long header-bytes)) 8)))
+      (throw (truncated)))
+    (let [n-data-bytes (offset-at offsets-addr n-elems)]
+      (when-not (and (>= n-data-bytes 0)
+                     (<= n-data-bytes (- n-bytes (- data-addr address))))
+        (throw (truncated))))
+    (Utf8Buffer. offsets-addr data-addr n-elems native-buffer)))
+
+
+(defn mmap-utf8-file
+  "Memory map a file written by write-utf8-file!.  Options are as per
+  tech.v2.datatype.mmap/mmap-file; with the default :stack resource type the call
+  must be wrapped in tech.resource/stack-resource-context."
+  ([fpath options]
+   (native-buffer->utf8-buffer (mmap/mmap-file fpath options)))
+  ([fpath]
+   (mmap-utf8-file fpath {})))
@@ -4,14 +4,13 @@
             [tech.v2.tensor :as dtt]
             [tech.v2.datatype :as dtype]
             [tech.v2.datatype.functional :as dfn]
-            [tech.v2.datatype.unary-op :as unary-op]
             [tech.v2.tensor.typecast :as tens-typecast]
             [tech.v2.datatype.typecast :as typecast]
             [clojure.edn :as edn]
             [tech.parallel.for :as pfor]
             [tech.libs.buffered-image :as bufimg])
-  (:import [java.awt.image BufferedImage]
-           [tech.v2.datatype ObjectReader]
+  (:import [java.awt.image BufferedImage DataBufferByte]
+           [tech.v2.datatype ObjectReader DoubleReader]
            [clojure.lang IFn]))
 
 
@@ -23,12 +22,6 @@
                               (dtt/ensure-tensor))))
 
 
-(defn- flp-close
-  [val desired & [error]]
-  (< (Math/abs (- (double val) (double desired)))
-     (double (or error 0.001))))
-
-
 (defn gradient-name->gradient-line
   [gradient-name invert-gradient? gradient-default-n]
   (let [gradient-default-n (long gradient-default-n)
@@ -72,6 +65,52 @@ function returned: %s"
         (dtt/ensure-tensor))))
 
 
+(defn- finite-min-max
+  "One parallel pass finding the min and max of the finite values in the reader
+  along with the number of NaN/Inf values."
+  [^DoubleReader src-reader]
+  (pfor/indexed-map-reduce
+   (.lsize src-reader)
+   (fn [^long start-idx ^long group-len]
+     (let [end-idx (+ start-idx group-len)]
+       (loop [idx start-idx
+              data-min Double/MAX_VALUE
+              data-max (- Double/MAX_VALUE)
+              n-invalid 0]
+         (if (< idx end-idx)
+           (let [src-val (.read src-reader idx)]
+             (if (Double/isFinite src-val)
+               (recur (unchecked-inc idx)
+                      (if (< src-val data-min) src-val data-min)
+                      (if (> src-val data-max) src-val data-max)
+                      n-invalid)
+               (recur (unchecked-inc idx) data-min data-max
+                      (unchecked-inc n-invalid))))
+           {:min data-min
+            :max data-max
+            :n-invalid n-invalid}))))
+   (fn [results]
+     (let [results (vec results)
+           ;;Groups without finite values keep their initial inverted range.
+           finite (remove #(< (double (:max %)) (double (:min %))) results)]
+       {:min (if (seq finite) (apply min (map :min finite)) Double/NaN)
+        :max (if (seq finite) (apply max (map :max finite)) Double/NaN)
+        :n-invalid (reduce + 0 (map :n-invalid results))}))))
+
+
+(defn- gradient-lut
+  "Flatten the gradient into a byte array of bgr triples."
+  ^bytes [gradient-line]
+  (let [gradient-line (tens-typecast/datatype->tensor-reader :uint8 gradient-line)
+        n-increments (long (first (dtype/shape gradient-line)))
+        lut (byte-array (* n-increments 3))]
+    (dotimes [line-idx n-increments]
+      (dotimes [chan 3]
+        (aset lut (+ (* line-idx 3) chan)
+              (unchecked-byte (.read2d gradient-line line-idx chan)))))
+    lut))
+
+
 (defn colorize
   "Apply a color gradient to a tensor returning an image.  Takes A 1 or 2d tensor.
    If data-min, data-max aren't provided they are found in the data.
@@ -105,92 +144,68 @@ function returned: %s"
                              :or {gradient-default-n 200}}]
   (let [src-tens (dtt/ensure-tensor src-tens)
         img-shape (dtype/shape src-tens)
+        src-reader (typecast/datatype->reader :float64 src-tens)
+        n-pixels (.lsize src-reader)
         {data-min :min
-         data-max :max
-         valid-indexes :valid-indexes
-         src-reader :src-reader}
+         data-max :max}
         (if (and data-min data-max)
           {:min data-min
-           :max data-max
-           :src-reader src-tens}
-          ;;If we have to min/max check then we have to filter out invalid indexes.
-          ;;In that case we prefilter the data and trim it.  We always check for
-          ;;invalid data in the main loops below and this is faster than
-          ;;pre-checking and indexing.
-          (let [valid-indexes (when check-invalid?
-                                (dfn/argfilter dfn/valid?
-                                               (dtype/->reader src-tens
-                                                               :float64)))
-               src-reader (if (and valid-indexes
-                                        (not= (dtype/ecount valid-indexes)
-                                              (dtype/ecount src-tens)))
-                            (dtype/indexed-reader valid-indexes src-tens)
-                            src-tens)]
-            (merge
-             (dfn/descriptive-stats src-reader [:min :max])
-             {:src-reader src-reader
-              :valid-indexes valid-indexes})))
-        n-pixels (if valid-indexes
-                   (dtype/ecount valid-indexes)
-                   (dtype/ecount src-reader))
+           :max data-max}
+          (let [{:keys [n-invalid] :as stats} (finite-min-max src-reader)]
+            ;;Invalid data is only allowed when the caller has asked for it to be
+            ;;checked.  Those pixels are left unwritten (transparent with alpha?).
+            (when (and (not check-invalid?)
+                       (not= 0 (long n-invalid)))
+              (throw (Exception. "NAN or INF in src data detected!")))
+            stats))
         data-min (double data-min)
         data-max (double data-max)
         _ (when (or (dfn/invalid? data-min)
                     (dfn/invalid? data-max))
             (throw (Exception. "NAN or INF in src data detected!")))
         data-range (- data-max data-min)
-        src-reader (if-not (and (flp-close 0.0 data-min)
-                                (flp-close 1.0 data-max))
-                     (unary-op/unary-reader :float64
-                                            (-> (- x data-min)
-                                                (/ data-range))
-                                            src-reader)
-                     src-reader)
-        src-reader (typecast/datatype->reader :float64 src-reader)
         img-type (if alpha?
                    :byte-abgr
                    :byte-bgr)
         res-image (case (count img-shape)
                     2 (bufimg/new-image (first img-shape) (second img-shape) img-type)
                     1 (bufimg/new-image 1 (first img-shape) img-type))
-        ;;Flatten out src-tens and res-tens and make them readers
         n-channels (long (if alpha? 4 3))
-        res-tens (dtt/reshape res-image [n-pixels n-channels])
-        res-tens (tens-typecast/datatype->tensor-writer
-                  :uint8 res-tens)
+        ;;New byte images have a single bank starting at offset 0.
+        ^bytes res-bytes (.getData ^DataBufferByte
+                                   (bufimg/buffered-image->data-buffer res-image))
         gradient-line (gradient-name->gradient-line gradient-name invert-gradient?
                                                     gradient-default-n)
         n-gradient-increments (long (first (dtype/shape gradient-line)))
-        gradient-line (tens-typecast/datatype->tensor-reader
-                       :uint8
-                       gradient-line)
+        ^bytes lut (gradient-lut gradient-line)
+        alpha-offset (- n-channels 3)
         line-last-idx (double (dec n-gradient-increments))
-        n-pixels (long (if valid-indexes
-                         (dtype/ecount valid-indexes)
-                         n-pixels))]
-    (if alpha?
-      (pfor/parallel-for
-       idx
-       n-pixels
-       (let [src-val (.read src-reader idx)]
-         (when (Double/isFinite src-val)
-           (let [p-value (min 1.0 (max 0.0 src-val))
-                 line-idx (long (Math/round (* p-value line-last-idx)))]
-             ;;alpha channel first
-             (.write2d res-tens idx 0 255)
-             (.write2d res-tens idx 1 (.read2d gradient-line line-idx 0))
-             (.write2d res-tens idx 2 (.read2d gradient-line line-idx 1))
-             (.write2d res-tens idx 3 (.read2d gradient-line line-idx 2))))))
-      (pfor/parallel-for
-       idx
-       n-pixels
-       (let [src-val (.read src-reader idx)]
-         (when (Double/isFinite src-val)
-           (let [p-value (min 1.0 (max 0.0 (.read src-reader idx)))
-                 line-idx (long (Math/round (* p-value line-last-idx)))]
-             (.write2d res-tens idx 0 (.read2d gradient-line line-idx 0))
-             (.write2d res-tens idx 1 (.read2d gradient-line line-idx 1))
-             (.write2d res-tens idx 2 (.read2d gradient-line line-idx 2)))))))
+        ;;Avoid producing NaN for constant data.
+        idx-scale (if (== 0.0 data-range)
+                    0.0
+                    (/ line-last-idx data-range))]
+    (pfor/indexed-map-reduce
+     n-pixels
+     (fn [^long start-idx ^long group-len]
+       (let [end-idx (+ start-idx group-len)]
+         (loop [idx start-idx]
+           (when (< idx end-idx)
+             (let [src-val (.read src-reader idx)]
+               (when (Double/isFinite src-val)
+                 (let [line-pos (* (- src-val data-min) idx-scale)
+                       line-pos (double (cond
+                                          (< line-pos 0.0) 0.0
+                                          (> line-pos line-last-idx) line-last-idx
+                                          :else line-pos))
+                       lut-offset (* (Math/round line-pos) 3)
+                       ;;bgr follows the alpha byte in abgr images
+                       img-offset (+ (* idx n-channels) alpha-offset)]
+                   (when alpha?
+                     (aset res-bytes (* idx n-channels) (unchecked-byte 255)))
+                   (aset res-bytes img-offset (aget lut lut-offset))
+                   (aset res-bytes (+ img-offset 1) (aget lut (+ lut-offset 1)))
+                   (aset res-bytes (+ img-offset 2) (aget lut (+ lut-offset 2))))))
+             (recur (unchecked-inc idx)))))))
     res-image))
 
 
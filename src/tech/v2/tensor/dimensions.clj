@@ -439,11 +439,18 @@ https://cloojure.github.io/doc/core.matrix/clojure.core.matrix.html#var-select"
       {:dimensions original-dims
        :offsets (long-array [0])}
       (let [sub-dims (dimensions (vec (drop n-elems shape))
-                                 (vec (drop n-elems strides)))
-            offset-dims (dimensions (vec (take n-elems shape))
-                                    (vec (take n-elems strides)))]
+                                 (vec (drop n-elems strides)))]
         {:dimensions sub-dims
-         :offsets (->global->local offset-dims)}))))
+         :offsets (if (native? original-dims)
+                    ;;Dense row-major slices are contiguous so their offsets are
+                    ;;a simple multiple of the sub-dimension ecount.
+                    (let [n-offsets (long (apply * (take n-elems shape)))
+                          sub-ecount (long (ecount sub-dims))]
+                      (reify LongReader
+                        (lsize [rdr] n-offsets)
+                        (read [rdr idx] (* idx sub-ecount))))
+                    (->global->local (dimensions (vec (take n-elems shape))
+                                                 (vec (take n-elems strides)))))}))))
 
 
 (defn slice-right
@@ -11,13 +11,19 @@
             [insn.op :as insn-op]
             [insn.clojure :as insn-clj]
             [camel-snake-kebab.core :as csk]
+            [clojure.java.io :as io]
             [clojure.pprint :as pp])
   (:import [tech.v2.datatype LongReader]
            [tech.v2.tensor LongTensorReader]
            [java.util List ArrayList Map HashMap]
            [java.lang.reflect Constructor]
            [java.util.function Function]
-           [java.util.concurrent ConcurrentHashMap]))
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic LongAdder]
+           [java.io File ByteArrayOutputStream]
+           [java.util.zip CRC32]
+           [java.nio.file Files OpenOption]
+           [clojure.lang DynamicClassLoader RT]))
 
 (set! *unchecked-math* :warn-on-boxed)
 (set! *warn-on-reflection* true)
@@ -463,6 +469,163 @@
                 :emit (vec read-instructions)}]}))
 
 
+(def ^{:doc "System property naming a directory used to persist generated
+  global->local classes across runs.  The environment variable
+  TECH_GTOL_CLASS_CACHE is used when the property is not set."}
+  class-cache-property "tech.v2.tensor.global-to-local.class-cache")
+
+
+(def ^{:doc "Hash of the code generating the global->local classes.  Cached classes
+  are stored under a subdirectory of this name so classes written by another
+  version of the library are never loaded."}
+  class-cache-version
+  (if-let [src (or (io/resource "tech/v2/tensor/dimensions/global_to_local.clj")
+                   (io/resource "tech/v2/tensor/dimensions/global_to_local__init.class"))]
+    (let [src-bytes (with-open [in (io/input-stream src)]
+                      (let [out (ByteArrayOutputStream.)]
+                        (io/copy in out)
+                        (.toByteArray out)))
+          crc (CRC32.)]
+      (.update crc ^bytes src-bytes)
+      (format "%08x" (.getValue crc)))
+    "unversioned"))
+
+
+(defn- class-cache-dir
+  ^File []
+  (when-let [dirname (or (System/getProperty class-cache-property)
+                         (System/getenv "TECH_GTOL_CLASS_CACHE"))]
+    (File. (File. ^String dirname) ^String class-cache-version)))
+
+
+(defn- class-file
+  ^File [^File dir ^String class-name]
+  (File. dir (str class-name ".class")))
+
+
+(def ^:private metrics
+  {:lookups (LongAdder.)
+   :misses (LongAdder.)
+   :classpath-loads (LongAdder.)
+   :disk-loads (LongAdder.)
+   :generated (LongAdder.)
+   :generation-ns (LongAdder.)})
+
+
+(defn- inc-metric!
+  [metric-name ^long amount]
+  (.add ^LongAdder (metrics metric-name) amount))
+
+
+(defn class-generation-metrics
+  "Return a map describing the global->local class cache:
+  :hits, :misses - lookups served from/missing the in-memory cache.
+  :classpath-loads - misses satisfied by a class already on the classpath
+    (see write-class-cache!).
+  :disk-loads - misses satisfied by the persistent class cache directory.
+  :generated - misses that required bytecode generation.
+  :generation-ns - total nanoseconds spent resolving misses."
+  []
+  (let [values (->> metrics
+                    (map (fn [[k ^LongAdder v]] [k (.sum v)]))
+                    (into {}))]
+    (-> (dissoc values :lookups)
+        (assoc :hits (- (long (:lookups values)) (long (:misses values)))))))
+
+
+(defn reset-class-generation-metrics!
+  []
+  (doseq [^LongAdder adder (vals metrics)]
+    (.reset adder))
+  (class-generation-metrics))
+
+
+(defn- load-classpath-class
+  ^Class [^String class-name]
+  (try
+    (Class/forName class-name false (RT/baseLoader))
+    (catch ClassNotFoundException e
+      nil)))
+
+
+(defn- define-class-bytes
+  ^Class [^String class-name ^bytes class-bytes]
+  (.defineClass (DynamicClassLoader.) class-name class-bytes nil))
+
+
+(defn- signature->class
+  "Find or build the class for a signature.  Classes are searched for on the
+  classpath, then in the persistent cache directory and are only generated when
+  both of those fail.  Newly generated classes are written to the cache
+  directory when one is configured."
+  ^Class [signature]
+  (let [ast-data (global->local-ast nil (:broadcast? signature) signature)
+        cname (ast-sig->class-name ast-data)
+        class-name (format "tech.v2.datatype.%s" cname)
+        cache-dir (class-cache-dir)
+        cached-file (when cache-dir (class-file cache-dir cname))]
+    (if-let [class-obj (load-classpath-class class-name)]
+      (do (inc-metric! :classpath-loads 1)
+          class-obj)
+      (if (and cached-file (.exists cached-file))
+        (do (inc-metric! :disk-loads 1)
+            (define-class-bytes class-name
+              (Files/readAllBytes (.toPath cached-file))))
+        (let [class-def (gen-ast-class-def ast-data)
+              visited (insn/visit class-def)]
+          (when cached-file
+            (.mkdirs cache-dir)
+            ;;Write to a temp file first so concurrent processes never see a
+            ;;partially written class.
+            (let [tmp-file (File/createTempFile cname ".tmp" cache-dir)]
+              (Files/write (.toPath tmp-file) ^bytes (:bytes visited)
+                           ^"[Ljava.nio.file.OpenOption;" (make-array OpenOption 0))
+              (when-not (.renameTo tmp-file cached-file)
+                (.delete tmp-file))))
+          (inc-metric! :generated 1)
+          (insn/define visited))))))
+
+
+(defn- constructor-fn-builder
+  "Function used with computeIfAbsent to build a signature's constructor fn.
+  reduced-dims is only used for error reporting and may be nil."
+  ^Function [reduced-dims]
+  (reify Function
+    (apply [this signature]
+      (inc-metric! :misses 1)
+      (let [start-ns (System/nanoTime)]
+        ;;nested so we capture the class definition
+        (try
+          (let [^Class class-obj (signature->class signature)
+                ^Constructor first-constructor
+                (first (.getDeclaredConstructors
+                        class-obj))]
+            #(try
+               (.newInstance first-constructor %)
+               (catch Throwable e
+                 (throw (ex-info (format "Error instantiating ast object: %s\n%s"
+                                         e
+                                         (with-out-str
+                                           (clojure.pprint/pprint signature)))
+                                 {:error e
+                                  :class-name (.getName class-obj)
+                                  :signature signature})))))
+          (catch Throwable e
+            (throw (ex-info (format "Error generating ast object: %s\n%s"
+                                    e
+                                    (with-out-str
+                                      (clojure.pprint/pprint signature)))
+                            {:error e
+                             :reduced-dims (->> reduced-dims
+                                                (map (fn [[k v]]
+                                                       [k (vec v)]))
+                                                (into {}))
+                             :signature signature})))
+          (finally
+            (inc-metric! :generation-ns (- (System/nanoTime)
+                                           start-ns))))))))
+
+
 (def defined-classes (ConcurrentHashMap.))
 (defn get-or-create-reader
   (^LongReader [reduced-dims broadcast? force-default-reader?]
@@ -470,47 +633,11 @@
      (if (and (not force-default-reader?)
               (<= n-dims 4))
        (let [signature (reduced-dims->signature reduced-dims broadcast?)
-             reader-constructor-fn
-             (.computeIfAbsent
-              ^ConcurrentHashMap defined-classes
-              signature
-              (reify Function
-                (apply [this signature]
-                  (let [ast-data (global->local-ast reduced-dims broadcast? signature)
-                        class-def (gen-ast-class-def ast-data)]
-                    ;;nested so we capture the class definition
-                    (try
-                      (let [^Class class-obj (insn/define class-def)
-                            ^Constructor first-constructor
-                            (first (.getDeclaredConstructors
-                                    class-obj))]
-                        #(try
-                           (.newInstance first-constructor %)
-                              (catch Throwable e
-                                (throw (ex-info (format "Error instantiating ast object: %s\n%s"
-                                                        e
-                                                        (with-out-str
-                                                          (clojure.pprint/pprint (:ast ast-data))))
-                                                {:error e
-                                                 :reduced-dims (->> reduced-dims
-                                                                    (map (fn [[k v]]
-                                                                           [k (vec v)]))
-                                                                    (into {}))
-                                                 :class-def class-def
-                                                 :signature signature})))))
-                      (catch Throwable e
-                        (throw (ex-info (format "Error generating ast object: %s\n%s"
-                                                e
-                                                (with-out-str
-                                                  (clojure.pprint/pprint (:ast ast-data)))
-                                                ast-data)
-                                        {:error e
-                                         :reduced-dims (->> reduced-dims
-                                                            (map (fn [[k v]]
-                                                                   [k (vec v)]))
-                                                            (into {}))
-                                         :class-def class-def
-                                         :signature signature}))))))))
+             _ (inc-metric! :lookups 1)
+             reader-constructor-fn (.computeIfAbsent
+                                    ^ConcurrentHashMap defined-classes
+                                    signature
+                                    (constructor-fn-builder reduced-dims))
              constructor-args (reduced-dims->constructor-args reduced-dims)]
          (reader-constructor-fn constructor-args))
        (elem-idx->addr-fn reduced-dims))))
@@ -520,6 +647,58 @@
                          false)))
 
 
+(def common-signatures
+  "Signatures of the readers produced for dense, sliced, broadcast and
+  transposed tensors where every dimension is a scalar shape.  These cover the
+  majority of tensors seen in practice."
+  (vec (for [n-dims (range 1 5)
+             offsets? [false true]
+             broadcast? [false true]
+             trivial-last-stride? [true false]]
+         {:n-dims n-dims
+          :direct-vec (vec (repeat n-dims true))
+          :offsets? offsets?
+          :broadcast? broadcast?
+          :trivial-last-stride? trivial-last-stride?})))
+
+
+(defn pregenerate!
+  "Resolve the classes for a sequence of signatures (as produced by
+  reduced-dims->signature) ahead of time so the first tensor operations of a
+  process do not pay for bytecode generation.  Returns the number of signatures
+  that were not already cached."
+  ([signatures]
+   (let [n-before (.size ^ConcurrentHashMap defined-classes)]
+     (doseq [signature signatures]
+       (inc-metric! :lookups 1)
+       (.computeIfAbsent ^ConcurrentHashMap defined-classes
+                         signature
+                         (constructor-fn-builder nil)))
+     (- (.size ^ConcurrentHashMap defined-classes) n-before)))
+  ([]
+   (pregenerate! common-signatures)))
+
+
+(defn write-class-cache!
+  "Write the class files for signatures to dirname.  Adding the directory to the
+  classpath (or packaging it into a jar) lets later processes load these classes
+  without generating them."
+  ([dirname signatures]
+   (let [dir (File. (str dirname))]
+     (doseq [signature signatures]
+       (let [ast-data (global->local-ast nil (:broadcast? signature) signature)
+             {class-bytes :bytes} (insn/visit (gen-ast-class-def ast-data))
+             class-file (File. dir (str "tech/v2/datatype/"
+                                        (ast-sig->class-name ast-data)
+                                        ".class"))]
+         (.mkdirs (.getParentFile class-file))
+         (Files/write (.toPath class-file) ^bytes class-bytes
+                      ^"[Ljava.nio.file.OpenOption;" (make-array OpenOption 0))))
+     dirname))
+  ([dirname]
+   (write-class-cache! dirname common-signatures)))
+
+
 (defn dims->global->local-reader
   ^LongReader [dims]
   (-> (dims-analytics/dims->reduced-dims dims)
@@ -539,7 +718,14 @@
         n-dims-dec (dec n-dims)
         n-dims-dec-1 (max 0 (dec n-dims-dec))
         n-dims-dec-2 (max 0 (dec n-dims-dec-1))
-        elemwise-reader (dims->global->local-reader dims)
+        ;;Native (dense row-major) dimensions map global indexes to themselves.
+        ^LongReader elemwise-reader (if (:native? dims)
+                                      (let [n-elems (* (aget shape-ecounts 0)
+                                                       (aget shape-ecount-strides 0))]
+                                        (reify LongReader
+                                          (lsize [rdr] n-elems)
+                                          (read [rdr idx] idx)))
+                                      (dims->global->local-reader dims))
         n-elems (.lsize elemwise-reader)
 
         ;;Bounds checking
@@ -104,106 +104,104 @@
 
 
 
-(defmacro make-tensor-reader
-  [reader-datatype datatype item-shape indexer reader sparse-reader
-   base-tensor]
-  `(let [^tech.v2.tensor.LongTensorReader indexer# ~indexer
-         data# (typecast/datatype->reader ~reader-datatype ~reader)
-         shape# ~item-shape
-         n-elems# (long (apply * 1 shape#))
-         n-dims# (count shape#)
-         base-tensor# ~base-tensor]
-     (reify
+(defn- tensor-reader-form
+  "reify form for make-tensor-reader.  Dense row-major tensors read the buffer with
+  the global index; others map it through the indexer first."
+  [reader-datatype datatype dense? indexer data shape n-elems base-tensor]
+  (let [idx (gensym "idx")]
+    `(reify
        ~(tens-typecast/datatype->tensor-reader-type reader-datatype)
        (getDatatype [item#] ~datatype)
-       (lsize [item#] n-elems#)
-       (read [item# idx#]
-         (.read data# (.read indexer# idx#)))
+       (lsize [item#] ~n-elems)
+       (read [item# ~idx]
+         ~(if dense?
+            `(.read ~data ~idx)
+            `(.read ~data (.read ~indexer ~idx))))
        (read2d [reader# row# col#]
-         (.read data# (.read2d indexer# row# col#)))
+         (.read ~data (.read2d ~indexer row# col#)))
        (read3d [reader# row# col# chan#]
-         (.read data# (.read3d indexer# row# col# chan#)))
+         (.read ~data (.read3d ~indexer row# col# chan#)))
        (tensorRead [reader# indexes#]
-         (.read data# (.tensorRead indexer# indexes#)))
+         (.read ~data (.tensorRead ~indexer indexes#)))
        (applyTo [item# arglist#]
-         (.read data# (apply indexer# arglist#)))
+         (.read ~data (apply ~indexer arglist#)))
 
        dtype-proto/PShape
-       (shape [m] shape#)
+       (shape [m] ~shape)
 
        tens-proto/PTensor
        (is-tensor? [item#] true)
-       (dimensions [item#] (tens-proto/dimensions base-tensor#))
-       (buffer [item#] (tens-proto/buffer base-tensor#))
+       (dimensions [item#] (tens-proto/dimensions ~base-tensor))
+       (buffer [item#] (tens-proto/buffer ~base-tensor))
 
        tens-proto/PToTensor
        (convertible-to-tensor? [item#] true)
-       (convert-to-tensor [item#] base-tensor#)
+       (convert-to-tensor [item#] ~base-tensor)
 
        dtype-proto/PPrototype
        (from-prototype [m# datatype# shape#]
-         (dtype-proto/from-prototype base-tensor# datatype# shape#))
+         (dtype-proto/from-prototype ~base-tensor datatype# shape#))
 
        dtype-proto/PToNioBuffer
        (convertible-to-nio-buffer? [item#]
-         (dtype-proto/convertible-to-nio-buffer?  base-tensor#))
+         (dtype-proto/convertible-to-nio-buffer?  ~base-tensor))
        (->buffer-backing-store [item#]
-         (dtype-proto/->buffer-backing-store base-tensor#))
+         (dtype-proto/->buffer-backing-store ~base-tensor))
 
        dtype-proto/PToList
        (convertible-to-fastutil-list? [item#]
-         (dtype-proto/convertible-to-fastutil-list? base-tensor#))
+         (dtype-proto/convertible-to-fastutil-list? ~base-tensor))
        (->list-backing-store [item#]
-         (dtype-proto/->list-backing-store base-tensor#))
+         (dtype-proto/->list-backing-store ~base-tensor))
 
        jna/PToPtr
        (is-jna-ptr-convertible? [item#]
-         (jna/is-jna-ptr-convertible? base-tensor#))
+         (jna/is-jna-ptr-convertible? ~base-tensor))
        (->ptr-backing-store [item#]
-         (jna/->ptr-backing-store base-tensor#))
+         (jna/->ptr-backing-store ~base-tensor))
 
 
        dtype-proto/PToBufferDesc
        (convertible-to-buffer-desc? [item#]
-         (dtype-proto/convertible-to-buffer-desc? base-tensor#))
+         (dtype-proto/convertible-to-buffer-desc? ~base-tensor))
        (->buffer-descriptor [item#]
-         (dtype-proto/->buffer-descriptor base-tensor#))
+         (dtype-proto/->buffer-descriptor ~base-tensor))
 
 
        dtype-proto/PBuffer
        (sub-buffer [item# offset# length#]
-         (dtype-proto/sub-buffer base-tensor# offset# length#))
+         (dtype-proto/sub-buffer ~base-tensor offset# length#))
 
        dtype-proto/PSetConstant
        (set-constant! [item# offset# value# elem-count#]
-         (dtype-proto/set-constant! base-tensor# offset# value# elem-count#))
+         (dtype-proto/set-constant! ~base-tensor offset# value# elem-count#))
 
        dtype-proto/PWriteIndexes
        (write-indexes! [item# indexes# values# options#]
-         (dtype-proto/write-indexes! base-tensor# indexes# values# options#))
+         (dtype-proto/write-indexes! ~base-tensor indexes# values# options#))
 
 
        dtype-proto/PToWriter
        (convertible-to-writer? [item#]
-         (dtype-proto/convertible-to-writer? base-tensor#))
+         (dtype-proto/convertible-to-writer? ~base-tensor))
        (->writer [item# options#]
-         (dtype-proto/->writer base-tensor# options#))
+         (dtype-proto/->writer ~base-tensor options#))
 
 
        dtype-proto/PBufferType
        (buffer-type [item#]
-         (dtype-proto/buffer-type base-tensor#))
+         (dtype-proto/buffer-type ~base-tensor))
 
        Object
        (toString [item]
          ;;Can't think of a better way of doing this.
          ;;pprint requires the tensor methods *but* tostring requires
          ;;pprint...
-         (.toString base-tensor#))
+         (.toString ~base-tensor))
        #_(comment
          sparse-proto/PSparse
          (index-seq [item#]
-                    (sparse-reader->index-seq ~sparse-reader shape# strides#))
+                    (sparse-reader->index-seq ~sparse-reader ~shape strides#))
          (sparse-value [item#] (sparse-proto/sparse-value ~sparse-reader))
          (sparse-ecount [item#] (sparse-proto/sparse-ecount ~sparse-reader))
          (readers [item#] (sparse-proto/readers ~sparse-reader))
@@ -215,6 +213,26 @@
          (->sparse [item#] item#)))))
 
 
+(defmacro make-tensor-reader
+  [reader-datatype datatype item-shape indexer reader sparse-reader
+   base-tensor]
+  (let [indexer-sym (with-meta (gensym "indexer") {:tag 'tech.v2.tensor.LongTensorReader})
+        data (gensym "data")
+        shape (gensym "shape")
+        n-elems (gensym "n-elems")
+        base-tensor-sym (gensym "base-tensor")
+        reader-form (partial tensor-reader-form reader-datatype datatype)]
+    `(let [~indexer-sym ~indexer
+           ~data (typecast/datatype->reader ~reader-datatype ~reader)
+           ~shape ~item-shape
+           ~n-elems (long (apply * 1 ~shape))
+           ~base-tensor-sym ~base-tensor]
+       ;;The reader is chosen once so dense reads never branch
+       (if (simple-dimensions? (tens-proto/dimensions ~base-tensor-sym))
+         ~(reader-form true indexer-sym data shape n-elems base-tensor-sym)
+         ~(reader-form false indexer-sym data shape n-elems base-tensor-sym)))))
+
+
 (defmacro make-tensor-writer
   [writer-datatype datatype item-shape indexer writer base-tensor]
   `(let [^tech.v2.tensor.LongTensorReader indexer# ~indexer
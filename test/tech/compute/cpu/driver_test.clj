@@ -3,7 +3,11 @@
             [clojure.test :refer :all]
             [tech.compute.verify.utils :refer [def-all-dtype-test
                                                 def-double-float-test] :as test-utils]
-            [tech.compute.verify.driver :as verify-driver]))
+            [tech.compute.verify.driver :as verify-driver]
+            [tech.compute.driver :as drv]
+            [tech.compute :as compute]
+            [tech.resource.stack :as stack]
+            [tech.v2.datatype :as dtype]))
 
 
 (use-fixtures :each test-utils/test-wrapper)
@@ -11,3 +15,76 @@
 
 (deftest simple-stream
   (verify-driver/simple-stream (cpu/driver) test-utils/*datatype*))
+
+
+(deftest work-stealing-stream-ordering
+  (let [device (first (tech.compute/get-devices (cpu/driver)))
+        stream-a (cpu/work-stealing-stream device)
+        stream-b (cpu/work-stealing-stream device)
+        results (java.util.concurrent.ConcurrentLinkedQueue.)
+        n-elems 200000
+        src (double-array (range n-elems))
+        dst (double-array n-elems)
+        final (double-array n-elems)]
+    (dotimes [idx 1000]
+      (cpu/with-stream-dispatch stream-a
+        (.add results idx)))
+    (drv/copy-device->device stream-a src 0 dst 0 n-elems)
+    ;;stream-b may only copy out of dst after stream-a has filled it
+    (drv/sync-with-stream stream-a stream-b)
+    (drv/copy-device->device stream-b dst 0 final 0 n-elems)
+    (drv/sync-with-host stream-b)
+    (is (= (range 1000) (vec results)))
+    (is (= (vec src) (vec final)))
+    (let [counter (java.util.concurrent.atomic.AtomicLong.)]
+      (cpu/parallel-dispatch! stream-a n-elems
+                              (fn [_start n-indexes]
+                                (.addAndGet counter (long n-indexes))))
+      (drv/sync-with-host stream-a)
+      (is (= n-elems (.get counter)))))
+  ;;The device only creates work-stealing streams when asked to
+  (let [device (first (tech.compute/get-devices (cpu/driver)))]
+    (is (nil? (:executor (compute/create-stream device))))
+    (binding [cpu/*work-stealing-streams?* true]
+      (is (:executor (compute/create-stream device))))))
+
+
+(deftest work-stealing-stream-release
+  (let [device (first (tech.compute/get-devices (cpu/driver)))
+        stream (cpu/work-stealing-stream device)
+        gate (java.util.concurrent.CountDownLatch. 1)
+        counter (java.util.concurrent.atomic.AtomicLong.)]
+    (cpu/with-stream-dispatch stream (.await gate))
+    (dotimes [idx 10]
+      (cpu/with-stream-dispatch stream (.incrementAndGet counter)))
+    ;;Releasing the stream stops new work but lets queued work drain
+    (stack/release-resource stream)
+    (is (thrown? Exception (cpu/with-stream-dispatch stream nil)))
+    (.countDown gate)
+    (loop [n-waits 0]
+      (when (and (< (.get counter) 10) (< n-waits 100))
+        (Thread/sleep 10)
+        (recur (inc n-waits))))
+    (is (= 10 (.get counter)))))
+
+
+(deftest reusable-host-buffers
+  (let [driver (cpu/driver)
+        _ (compute/trim-host-buffer-pool!)
+        {:keys [hits misses]} (compute/host-buffer-pool-stats)
+        buf-a (compute/allocate-host-buffer driver 100 :float64 :usage-type :reusable)]
+    (is (= 100 (dtype/ecount buf-a)))
+    (dtype/copy! (double-array (range 100)) buf-a)
+    (is (compute/release-host-buffer! buf-a))
+    ;;Rounded up to the same 128 element size class
+    (let [buf-b (compute/allocate-host-buffer driver 120 :float64 :usage-type :reusable)
+          stats (compute/host-buffer-pool-stats)]
+      (is (= 120 (dtype/ecount buf-b)))
+      (is (= (inc hits) (:hits stats)))
+      (is (= (inc misses) (:misses stats)))
+      (is (compute/release-host-buffer! buf-b))
+      (is (not (compute/release-host-buffer! buf-b)))
+      (is (= (* 128 8) (:bytes-pooled (compute/host-buffer-pool-stats))))
+      (is (= 0 (compute/trim-host-buffer-pool!))))
+    (is (not (compute/release-host-buffer!
+              (compute/allocate-host-buffer driver 10 :float64))))))
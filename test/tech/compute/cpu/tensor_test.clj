@@ -8,5 +8,9 @@
   (verify-tens/clone (cpu/driver) :float64))
 
 
+(deftest clone-reusable
+  (verify-tens/clone-reusable (cpu/driver) :float64))
+
+
 (deftest assign!
   (verify-tens/assign! (cpu/driver) :float64))
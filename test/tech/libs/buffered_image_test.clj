@@ -63,6 +63,71 @@
           (format "Format %s failed channel order test" img-type)))))
 
 
+(deftest resample-kernels
+  (let [src (dtt/->tensor (->> (range 16)
+                               (map #(vector (* 10 (long %)) 100 200))
+                               (partition 4))
+                          :datatype :uint8)]
+    (doseq [kernel (keys bufimg/resample-kernels)]
+      (let [same (bufimg/resample src 4 4 {:kernel kernel})]
+        (is (= (dtt/->jvm src) (dtt/->jvm same)) (str kernel))))
+    (let [halved (bufimg/resample src 2 2 {:kernel :area})]
+      (is (= [2 2 3] (dtype/shape halved)))
+      (is (= [[[25 100 200] [45 100 200]]
+              [[105 100 200] [125 100 200]]]
+             (dtt/->jvm halved))))
+    (let [float-src (dtt/->tensor [[0 1] [2 3]] :datatype :float32)
+          grown (bufimg/resample float-src 4 4 {:kernel :bilinear})]
+      (is (= :float32 (dtype/get-datatype grown)))
+      (is (= [4 4] (dtype/shape grown)))
+      (is (dfn/equals [0.0 0.25 0.75 1.0] (dtt/select grown 0 :all))))))
+
+
+(deftest resize-and-convert
+  (let [test-img (bufimg/load "test/data/test.jpg")
+        [height width] (dtype/shape test-img)
+        resized (bufimg/resize test-img (quot (long width) 2) (quot (long height) 2)
+                               {:resize-algorithm :area})
+        awt-resized (bufimg/resize test-img (quot (long width) 2) (quot (long height) 2)
+                                   {:resize-algorithm :nearest})
+        default-resized (bufimg/resize test-img (quot (long width) 2)
+                                       (quot (long height) 2) {})]
+    (is (= (dtype/shape awt-resized) (dtype/shape resized)))
+    ;;Shrinking defaults to nearest neighbour
+    (is (dfn/equals (bufimg/as-ubyte-tensor awt-resized)
+                    (bufimg/as-ubyte-tensor default-resized)))
+    (is (< (Math/abs (- (double (dfn/mean resized))
+                        (double (dfn/mean test-img))))
+           2.0))
+    (let [rgba (bufimg/convert-image test-img :byte-abgr)
+          gray (bufimg/convert-image test-img :byte-gray)
+          rgb (bufimg/convert-channels test-img :bgr :rgb)]
+      (is (= [170 170 172 255]
+             (mapv #(dtype/get-value (dtt/select (bufimg/as-ubyte-tensor rgba) 0 0 :all)
+                                     (get (bufimg/image-channel-map rgba) %))
+                   [:r :g :b :a])))
+      (is (= [170 170 172] (dtt/->jvm (dtt/select rgb 0 0 :all))))
+      (is (= 170 (dtype/get-value gray 0))))))
+
+
+(deftest convert-premultiplied
+  (let [src (bufimg/new-image 1 1 :byte-abgr)
+        _ (.setRGB ^java.awt.image.BufferedImage src 0 0 (unchecked-int 0x80C86432))
+        pre (bufimg/convert-image src :byte-abgr-pre)
+        pre-pixel (dtt/select (bufimg/as-ubyte-tensor pre) 0 0 :all)
+        argb (bufimg/convert-image pre :int-argb)]
+    ;;Premultiplied channels are scaled by alpha, 200 * 128/255
+    (is (<= 99 (dtype/get-value pre-pixel (:r (bufimg/image-channel-map pre))) 101))
+    (is (= 128 (dtype/get-value pre-pixel (:a (bufimg/image-channel-map pre)))))
+    (is (every? #(<= (Math/abs (- (bit-and (bit-shift-right 0x80C86432 (long %)) 0xFF)
+                                  (bit-and (bit-shift-right
+                                            (.getRGB ^java.awt.image.BufferedImage argb 0 0)
+                                            (long %))
+                                           0xFF)))
+                     2)
+                [0 8 16 24]))))
+
+
 (defn strided-tensor-copy-time-test
   []
   (let [src-tens (-> (bufimg/new-image 2048 2048 :byte-abgr)
@@ -0,0 +1,53 @@
+(ns tech.v2.datatype.big-list-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.big-list :as big-list]
+            [clojure.test :refer [deftest is]])
+  (:import [tech.v2.datatype LongMutable LongReader ObjectMutable]))
+
+
+(deftest big-list-append-insert-remove
+  (let [data (big-list/big-list :int64 {:segment-size 4})]
+    (dotimes [idx 10]
+      (.append ^LongMutable data idx))
+    (is (= 10 (dtype/ecount data)))
+    (is (= (range 10) (vec data)))
+    (.insert ^LongMutable data 3 100)
+    (.mremove ^LongMutable data 0)
+    (is (= [1 2 100 3 4 5 6 7 8 9] (vec data)))
+    (dtype/insert-block! data 2 (long-array [-1 -2 -3]))
+    (is (= [1 2 -1 -2 -3 100 3 4 5 6 7 8 9] (vec data)))
+    (dtype/remove-range! data 0 6)
+    (is (= [3 4 5 6 7 8 9] (vec data)))
+    ;;Emptied segments are released
+    (is (= 2 (count (.segments data))))
+    (is (= [4 5 6] (vec (dtype/sub-buffer data 1 3))))
+    (dtype/set-value! (dtype/sub-buffer data 1 3) 0 40)
+    (is (= 40 (.read ^LongReader data 1)))
+    (let [cloned (dtype/clone data)]
+      (dtype/set-value! cloned 0 -1)
+      (is (= [3 40 5 6 7 8 9] (vec data)))
+      (is (= [-1 40 5 6 7 8 9] (vec cloned))))
+    (is (thrown? IndexOutOfBoundsException (.read ^LongReader data 7)))
+    (is (thrown? Exception (big-list/big-list :int32 {:segment-size 3})))))
+
+
+(deftest big-list-containers
+  (is (= [0.0 0.0 0.0] (vec (dtype/make-container :big-list :float64 3))))
+  (is (= [1.0 2.0 3.0]
+         (vec (dtype/->array-copy (dtype/make-container :big-list :float32 [1 2 3])))))
+  (is (= [true false] (vec (dtype/make-container :big-list :boolean [true false]))))
+  (let [strs (dtype/make-container :big-list :string (list "a" "b"))]
+    (is (= :string (dtype/get-datatype strs)))
+    (.append ^ObjectMutable (dtype/->mutable strs) "c")
+    (is (= ["a" "b" "c"] (vec strs)))
+    (dtype/remove-range! strs 1 1)
+    (is (= ["a" "c"] (vec strs))))
+  (is (= :packed-instant
+         (dtype/get-datatype (dtype/make-container :big-list :packed-instant [1 2]))))
+  (is (thrown? Exception (dtype/make-container :big-list :uint8 3)))
+  ;;Block appends spanning many segments
+  (let [data (big-list/big-list :float64 {:segment-size 1024})]
+    (dtype/insert-block! data 0 (double-array (range 5000)))
+    (dtype/insert-block! data 5000 (double-array (range 5000 6000)))
+    (is (= (mapv double (range 6000)) (vec data)))
+    (is (= 6 (count (.segments data))))))
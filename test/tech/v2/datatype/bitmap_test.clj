@@ -26,3 +26,75 @@
 (deftest empty-bitmap-as-random-access-reader
   (is (== 0 (dtype/ecount (bitmap/bitmap->efficient-random-access-reader
                            (bitmap/->bitmap))))))
+
+
+(deftest long-bitmap-test
+  (let [base (long 5000000000)
+        ba (bitmap/->long-bitmap (range base (+ base 5)))
+        bb (bitmap/->long-bitmap (filter even? (range base (+ base 10))))]
+    (is (= :int64 (dtype/get-datatype ba)))
+    (is (= 5 (dtype/ecount ba)))
+    (is (= (mapv #(+ base %) [0 2 4])
+           (vec (dtype/->reader (dtype-proto/set-and ba bb)))))
+    (is (= (set (map #(+ base %) [0 1 2 3 4 6 8]))
+           (set (dtype/->reader (dtype-proto/set-or ba bb)))))
+    (is (= (mapv #(+ base 5 %) (range 5))
+           (vec (dtype/->reader (dtype-proto/set-offset ba 5)))))
+    (is (= (vec (range base (+ base 5)))
+           (vec (dtype/->reader ba))))
+    (is (= base (dtype-proto/constant-time-min ba)))
+    (is (= (+ base 4) (dtype-proto/constant-time-max ba))))
+  (testing "Negative members"
+    (let [neg (bitmap/->long-bitmap [5 -1 -5000000000])]
+      (is (= [-5000000000 -1 5] (vec (dtype/->reader neg))))
+      (is (= -5000000000 (dtype-proto/constant-time-min neg)))
+      (is (= 5 (dtype-proto/constant-time-max neg)))
+      (is (thrown? Exception (bitmap/->bitmap (bitmap/->long-bitmap [-1 5]))))))
+  (testing "Set operations across uint32 and int64 bitmaps"
+    (let [small (bitmap/->bitmap (range 10))
+          big (bitmap/->long-bitmap [2 4 6 5000000000])]
+      (is (= [0 1 2 3 4 5 6 7 8 9 5000000000]
+             (vec (dtype/->reader (dtype-proto/set-or small big)))))
+      (is (= [2 4 6]
+             (vec (dtype/->reader (dtype-proto/set-and small big)))))
+      (is (= [2 4 6]
+             (vec (dtype/->reader (dtype-proto/set-and big small)))))
+      (is (= [5000000000]
+             (vec (dtype/->reader (dtype-proto/set-and-not big small)))))
+      (is (= [0 1 2 3 4 5 6 7 8 9 5000000000]
+             (vec (dtype-proto/set-or
+                   (dtype/bitmap->set small)
+                   (dtype/long-bitmap->set big)))))))
+  (testing "Long bitmap sets"
+    (let [bset (dtype/long-bitmap->set (bitmap/->long-bitmap))]
+      (.add bset 5000000000)
+      (.add bset 1)
+      (is (.contains bset 5000000000))
+      (is (not (.contains bset 5)))
+      (dtype/set-add-range! bset 10 13)
+      (dtype/set-remove-range! bset 11 12)
+      (is (= [1 10 12 5000000000] (vec bset))))))
+
+
+(deftest bitmap-indexed-reader-test
+  (let [values (dtype/make-container :java-array :float64 (range 300000))
+        ;;A long run, a short run, sparse values and a second container
+        indexes (bitmap/->bitmap (concat (range 10 2010)
+                                         (range 3000 3010)
+                                         (range 5000 9000 7)
+                                         (range 70000 70500)
+                                         [299999]))
+        idx-vec (vec (dtype/->reader indexes))
+        expected (mapv double idx-vec)
+        rdr (dtype/indexed-reader indexes values)]
+    (is (= (count expected) (dtype/ecount rdr)))
+    (is (= expected (vec rdr)))
+    (is (= (expected 2500) (.read ^tech.v2.datatype.DoubleReader rdr 2500)))
+    (is (= expected (vec (dtype/make-container :java-array :float64 rdr))))
+    (is (= expected (vec (dtype/copy! rdr (double-array (count expected))))))
+    (testing "Values without a nio buffer and datatype conversion"
+      (is (= (mapv long idx-vec)
+             (vec (dtype/copy! (dtype/indexed-reader indexes (vec (range 300000)))
+                               (long-array (count expected))))))
+      (is (= (mapv float idx-vec)
+             (vec (dtype/copy! rdr (float-array (count expected)))))))))
@@ -0,0 +1,73 @@
+(ns tech.v2.datatype.chunked-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.chunked :as chunked]
+            [tech.v2.datatype.protocols :as dtype-proto]
+            [clojure.test :refer [deftest is]]))
+
+
+(deftest chunked-column-basics
+  (let [col (chunked/->chunked (range 10) {:datatype :int64 :chunk-size 4})]
+    (is (chunked/chunked? col))
+    (is (= :int64 (dtype/get-datatype col)))
+    (is (= 10 (dtype/ecount col)))
+    (is (= (range 10) (vec col)))
+    (is (= 7 (.read ^tech.v2.datatype.LongReader (dtype/->reader col) 7)))
+    (is (= 3 (count (dtype-proto/chunks col))))
+    (is (= [{:n-elems 4 :n-missing 0 :min 0 :max 3 :sorted? true}
+            {:n-elems 4 :n-missing 0 :min 4 :max 7 :sorted? true}
+            {:n-elems 2 :n-missing 0 :min 8 :max 9 :sorted? true}]
+           (map chunked/chunk-stats (dtype-proto/chunks col))))
+    (is (= [0 9] [(dtype-proto/constant-time-min col)
+                  (dtype-proto/constant-time-max col)]))
+    (is (thrown? IndexOutOfBoundsException (.read col 10))))
+  (let [col (dtype/make-container :chunked :float64 [3 nil 1 2]
+                                  {:chunk-size 2 :container-type :missing})]
+    (is (= [3.0 nil 1.0 2.0] (vec col)))
+    (is (= [3.0 nil 1.0 2.0] (vec (dtype/->reader col))))
+    (is (= [{:n-elems 2 :n-missing 1 :min 3.0 :max 3.0 :sorted? false}
+            {:n-elems 2 :n-missing 0 :min 1.0 :max 2.0 :sorted? true}]
+           (map chunked/chunk-stats (dtype-proto/chunks col))))))
+
+
+(deftest chunked-column-ops
+  (let [n-elems 10000
+        col (chunked/->chunked (long-array (range n-elems)) {:chunk-size 1000})
+        plain (long-array (range n-elems))]
+    (is (= (dfn/reduce-+ plain) (dfn/reduce-+ col)))
+    (is (= (dfn/reduce-max plain) (dfn/reduce-max col)))
+    (is (= (dfn/reduce-min plain) (dfn/reduce-min col)))
+    (is (= (vec (dfn/argfilter #(< 4990 % 5010) plain))
+           (vec (dfn/argfilter #(< 4990 % 5010) col))))
+    (is (= (range 9995 n-elems) (vec (dfn/argfilter :>= col 9995))))
+    (let [result (dfn/> col 2500)]
+      (is (chunked/chunked? result))
+      (is (= (vec (dfn/> plain 2500)) (vec result)))
+      (is (= (range 2501 n-elems) (vec (dfn/argfilter identity result)))))
+    (is (= (vec (dfn/< 2500 plain)) (vec (dfn/< 2500 col))))
+    (is (= (vec (dfn/eq plain 10)) (vec (dfn/eq col 10))))
+    (is (= [true 4321] (dfn/binary-search col 4321)))
+    (is (= [false 10000] (dfn/binary-search col 20000)))
+    (is (= [false 0] (dfn/binary-search col -5))))
+  ;;Unsorted chunks fall back to searching the whole column
+  (let [col (chunked/chunked-column [(long-array [5 6]) (long-array [1 2])])]
+    (is (= [6 1] [(dfn/reduce-max col) (dfn/reduce-min col)]))
+    (is (= [0 1] (vec (dfn/argfilter :> col 4))))
+    (is (= [false 0] (dfn/binary-search col 0)))))
+
+
+(deftest chunked-column-nan
+  (let [col (chunked/->chunked (double-array [5.0 ##NaN 6.0 1.0]) {:chunk-size 2})]
+    (is (= [true false true true] (vec (dfn/> col 0.0))))
+    (is (= [0 2 3] (vec (dfn/argfilter #(> % 0.0) col))))
+    (is (= 6.0 (dfn/reduce-max col)))
+    (is (= 1.0 (dfn/reduce-min col)))
+    (is (= {:n-elems 2 :n-missing 0 :n-nan 1 :min 5.0 :max 5.0 :sorted? false}
+           (chunked/chunk-stats (first (dtype-proto/chunks col))))))
+  ;;Every comparison against NaN is false, even over chunks whose stats are known
+  (let [col (chunked/->chunked (double-array [1.0 2.0 3.0 4.0]) {:chunk-size 2})
+        plain (double-array [1.0 2.0 3.0 4.0])]
+    (is (= [false false false false] (vec (dfn/eq col ##NaN))))
+    (is (= (vec (dfn/>= plain ##NaN)) (vec (dfn/>= col ##NaN))))
+    (is (= (vec (dfn/<= plain ##NaN)) (vec (dfn/<= col ##NaN))))
+    (is (= [] (vec (dfn/argfilter :eq col ##NaN))))))
@@ -0,0 +1,72 @@
+(ns tech.v2.datatype.codec-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.codec :as codec]
+            [tech.v2.datatype.rle :as rle]
+            [tech.v2.datatype.datetime :as dtype-dt]
+            [tech.v2.datatype.protocols :as dtype-proto]
+            [clojure.test :refer [deftest is]])
+  (:import [tech.v2.datatype IntReader LongReader]))
+
+
+(deftest bit-packed
+  (let [data (long-array (map #(+ 1000000 (rem (* % 7919) 1000)) (range 10000)))
+        buf (codec/bit-pack data)]
+    (is (codec/encoded? buf))
+    (is (= :bit-packed (dtype-proto/encoding buf)))
+    (is (= :int64 (dtype/get-datatype buf)))
+    (is (= (vec data) (vec buf)))
+    (is (= (aget data 4321) (.read ^LongReader (dtype/->reader buf) 4321)))
+    (is (= (vec (take 100 (drop 500 data)))
+           (vec (codec/decode-block! buf 500 (long-array 100)))))
+    (is (= (dfn/reduce-+ data) (dfn/reduce-+ buf)))
+    (is (= [1000000 1000999] [(dfn/reduce-min buf) (dfn/reduce-max buf)]))
+    (is (thrown? IndexOutOfBoundsException (.read ^LongReader (dtype/->reader buf) 10000))))
+  ;;Full 64 bit range, narrow datatypes and constant data
+  (let [data (long-array [Long/MIN_VALUE -1 0 1 Long/MAX_VALUE])]
+    (is (= (vec data) (vec (codec/bit-pack data)))))
+  (let [buf (dtype/make-container :bit-packed :int32 [-5 3 7 -5])]
+    (is (= :int32 (dtype/get-datatype buf)))
+    (is (= 7 (.read ^IntReader (dtype/->reader buf) 2)))
+    (is (= [-5 3 7 -5] (vec buf)))
+    (is (= 0 (dfn/reduce-+ buf))))
+  (is (= [0 0 0] (vec (dtype/make-container :bit-packed :uint8 3))))
+  (is (thrown? Exception (codec/bit-pack (double-array 3)))))
+
+
+(deftest delta-encoded
+  (let [start (dtype-dt/milliseconds-since-epoch->packed-instant 1577836800000)
+        data (long-array (map #(+ start (* 1000 %) (rem % 3)) (range 10000)))
+        buf (codec/delta-encode (dtype/make-container :typed-buffer :packed-instant data))]
+    (is (= :delta (dtype-proto/encoding buf)))
+    (is (= :packed-instant (dtype/get-datatype buf)))
+    (is (= (vec data) (vec (dtype/->reader buf :int64))))
+    (is (= (aget data 9999) (.read ^LongReader (dtype/->reader buf) 9999)))
+    (is (= (vec (take 300 (drop 63 data)))
+           (vec (codec/decode-block! buf 63 (long-array 300)))))
+    (is (= (dfn/reduce-+ data) (dfn/reduce-+ (dtype/->reader buf :int64))
+           (dtype-proto/encoded-reduce buf :+)))
+    (is (= [(aget data 0) (aget data 9999)]
+           [(dtype-proto/constant-time-min buf) (dtype-proto/constant-time-max buf)])))
+  (let [data [5 -3 100 100 7]]
+    (is (= data (vec (dtype/make-container :delta :int16 data))))
+    (is (= 209 (dfn/reduce-+ (dtype/make-container :delta :int16 data)))))
+  (is (= [] (vec (codec/delta-encode (long-array 0))))))
+
+
+(deftest run-length-encoded
+  (let [data (long-array (mapcat #(repeat (inc %) %) (range 100)))
+        buf (rle/run-length-encode data)]
+    (is (= :rle (dtype-proto/encoding buf)))
+    (is (= 100 (rle/n-runs buf)))
+    (is (= (vec data) (vec buf)))
+    (is (= (aget data 2000) (.read ^LongReader (dtype/->reader buf) 2000)))
+    (is (= (vec (take 50 (drop 1000 data)))
+           (vec (codec/decode-block! buf 1000 (long-array 50)))))
+    (is (= (dfn/reduce-+ data) (dfn/reduce-+ buf)))
+    (is (= [0 99] [(dfn/reduce-min buf) (dfn/reduce-max buf)])))
+  (let [buf (dtype/make-container :rle :keyword [:a :a :b :b :b :a])]
+    (is (= 3 (rle/n-runs buf)))
+    (is (= [:a :a :b :b :b :a] (vec buf)))
+    (is (= [:b :b :a] (vec (codec/decode-block! buf 3 (object-array 3))))))
+  (is (= [0.0 0.0] (vec (dtype/make-container :rle :float64 2)))))
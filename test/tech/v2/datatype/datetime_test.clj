@@ -2,6 +2,7 @@
   (:require [tech.v2.datatype :as dtype]
             [tech.v2.datatype.datetime :as dtype-dt]
             [tech.v2.datatype.datetime.operations :as dtype-dt-ops]
+            [tech.v2.datatype.datetime.parse :as dtype-dt-parse]
             [tech.v2.datatype.functional :as dfn]
             [tech.v2.tensor :as dtt]
             [clojure.test :refer [deftest is]])
@@ -332,3 +333,103 @@
     (let [data
           (dtype-dt/from-milliseconds 0 dtype)]
       (is (= 0 (dtype-dt/to-milliseconds data dtype))))))
+
+
+(deftest packed-operations-match-unpacked
+  (let [ldts (mapv #(dtype-dt-ops/plus-seconds
+                     (java.time.LocalDateTime/of 1969 12 30 23 59 58 123000000)
+                     (* (long %) 40000))
+                   (range 50))
+        lds (mapv #(.toLocalDate ^java.time.LocalDateTime %) ldts)
+        packed-ldts (-> (dtype/make-container :java-array :int64
+                                              (map dtype-dt/pack-local-date-time ldts))
+                        (dtype/set-datatype :packed-local-date-time))
+        packed-lds (-> (dtype/make-container :java-array :int32
+                                             (map dtype-dt/pack-local-date lds))
+                       (dtype/set-datatype :packed-local-date))]
+    (doseq [getter [dtype-dt-ops/get-years dtype-dt-ops/get-months
+                    dtype-dt-ops/get-days dtype-dt-ops/get-day-of-year
+                    dtype-dt-ops/get-day-of-week dtype-dt-ops/get-epoch-days
+                    dtype-dt-ops/get-epoch-milliseconds]]
+      (is (= (vec (getter ldts)) (vec (getter packed-ldts))))
+      (is (= (vec (getter lds)) (vec (getter packed-lds)))))
+    (doseq [getter [dtype-dt-ops/get-hours dtype-dt-ops/get-minutes
+                    dtype-dt-ops/get-seconds dtype-dt-ops/get-milliseconds]]
+      (is (= (vec (getter ldts)) (vec (getter packed-ldts)))))
+    (doseq [op [dtype-dt-ops/plus-days dtype-dt-ops/minus-days
+                dtype-dt-ops/plus-hours dtype-dt-ops/minus-seconds
+                dtype-dt-ops/plus-milliseconds dtype-dt-ops/plus-months]]
+      (is (= :packed-local-date-time (dtype/get-datatype (op packed-ldts 3))))
+      (is (= (vec (op ldts 3))
+             (vec (dtype-dt/unpack (op packed-ldts 3)))))
+      (is (= (vec (op ldts (range 50)))
+             (vec (dtype-dt/unpack (op packed-ldts (range 50)))))))
+    (is (= (vec (dtype-dt-ops/minus-weeks lds 2))
+           (vec (dtype-dt/unpack (dtype-dt-ops/minus-weeks packed-lds 2)))))))
+
+
+(deftest bulk-zone-conversion
+  (let [zone (java.time.ZoneId/of "America/New_York")
+        ;;Ten minute steps across the 2019 daylight savings transition
+        millis (long-array (map #(+ 1552200000000 (* (long %) 600000)) (range 2000)))
+        expected (mapv #(java.time.LocalDateTime/ofInstant
+                         (java.time.Instant/ofEpochMilli %) zone)
+                       millis)]
+    (is (= 1 (count (:transitions (dtype-dt-ops/zone-offset-table
+                                   zone (first millis) (last millis))))))
+    (is (= :packed-local-date-time
+           (dtype/get-datatype
+            (dtype-dt-ops/milliseconds-since-epoch->packed-local-date-time
+             millis zone))))
+    (is (= expected
+           (vec (dtype-dt/unpack
+                 (dtype-dt-ops/milliseconds-since-epoch->packed-local-date-time
+                  millis zone)))))
+    (is (= expected
+           (vec (dtype-dt/unpack
+                 (dtype-dt-ops/milliseconds-since-epoch->packed-local-date-time
+                  (mapv #(java.time.Instant/ofEpochMilli %) millis)
+                  "America/New_York")))))
+    (is (= (mapv #(.toLocalDate ^java.time.LocalDateTime %) expected)
+           (vec (dtype-dt/unpack
+                 (dtype-dt-ops/milliseconds-since-epoch->packed-local-date
+                  millis zone)))))))
+
+
+(deftest packed-parsing
+  (let [ldts (mapv #(dtype-dt-ops/plus-seconds
+                     (java.time.LocalDateTime/of 1969 12 30 23 59 58 123000000)
+                     (* (long %) 400017))
+                   (range 100))
+        strs (mapv str ldts)]
+    (is (= ldts (vec (dtype-dt/unpack
+                      (dtype-dt-parse/parse-packed-local-date-time strs)))))
+    (is (= :packed-local-date-time
+           (dtype/get-datatype (dtype-dt-parse/parse-packed-local-date-time strs))))
+    (is (= (mapv #(.toLocalDate ^java.time.LocalDateTime %) ldts)
+           (vec (dtype-dt/unpack
+                 (dtype-dt-parse/parse-packed-local-date (mapv #(subs % 0 10) strs))))))
+    (let [data (.getBytes ^String (apply str strs) "US-ASCII")
+          lengths (int-array (map count strs))
+          starts (int-array (reductions + 0 (butlast lengths)))]
+      (is (= ldts (vec (dtype-dt/unpack
+                        (dtype-dt-parse/parse-byte-ranges->packed
+                         :packed-local-date-time data starts lengths)))))))
+  (is (= [(java.time.LocalDate/of 2020 2 29) (java.time.LocalDate/of 1999 12 31)]
+         (vec (dtype-dt/unpack (dtype-dt-parse/parse-packed-local-date
+                                ["20200229" "19991231"] {:format :basic-iso})))))
+  (is (= [(java.time.LocalDate/of 2020 2 29)]
+         (vec (dtype-dt/unpack (dtype-dt-parse/parse-packed-local-date
+                                ["02/29/2020"] {:format :us})))))
+  (is (= (mapv #(java.time.LocalTime/parse %) ["13:45" "23:59:59.999" "00:00:01.5"])
+         (vec (dtype-dt/unpack (dtype-dt-parse/parse-packed-local-time
+                                ["13:45" "23:59:59.999" "00:00:01.5"])))))
+  (is (= (mapv #(.toInstant (java.time.OffsetDateTime/parse %))
+               ["2020-01-01T00:00:00Z" "2020-01-01T00:00:00.123456+05:30"
+                "1969-12-31T23:59:59.5-01:00"])
+         (vec (dtype-dt/unpack (dtype-dt-parse/parse-packed-instant
+                                ["2020-01-01T00:00:00Z"
+                                 "2020-01-01T00:00:00.123456+05:30"
+                                 "1969-12-31 23:59:59.5-0100"])))))
+  (is (thrown? java.time.format.DateTimeParseException
+               (dtype-dt-parse/parse-packed-local-date ["2019-02-29"]))))
@@ -0,0 +1,63 @@
+(ns tech.v2.datatype.dictionary-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.dictionary :as dictionary]
+            [clojure.test :refer [deftest is]]))
+
+
+(def ^:private words ["b" "a" nil "c" "a" "b" "a"])
+
+
+(deftest dictionary-buffer-read-write
+  (let [buf (dtype/make-container :dictionary :string words)]
+    (is (dictionary/dictionary-encoded? buf))
+    (is (= :string (dtype/get-datatype buf)))
+    (is (= words (vec (dtype/->reader buf))))
+    ;;nil plus three distinct strings
+    (is (= 4 (count (.dictionary-values buf))))
+    (dtype/set-value! buf 2 "d")
+    (is (= "d" (dtype/get-value buf 2)))
+    (is (= (assoc words 2 "d") (vec (dtype/clone buf))))
+    (let [small (dictionary/dictionary-buffer :keyword 3 {:code-datatype :uint8})]
+      (dtype/set-value! small 1 "k")
+      (is (= [nil :k nil] (vec small))))
+    (is (thrown? Exception
+                 (let [small (dictionary/dictionary-buffer :object 300
+                                                           {:code-datatype :uint8})]
+                   (dotimes [idx 300]
+                     (dtype/set-value! small idx idx)))))))
+
+
+(deftest dictionary-fast-paths
+  (let [buf (dtype/make-container :dictionary :string words)
+        plain (object-array words)]
+    (is (= [false true false false true false true] (vec (dfn/eq buf "a"))))
+    (is (= [true false true true false true false] (vec (dfn/not-eq buf "a"))))
+    (is (= (vec (repeat 7 false)) (vec (dfn/eq buf "missing"))))
+    (is (= [true true true true true true true]
+           (vec (dfn/eq buf (dtype/make-container :dictionary :string
+                                                  (reverse (reverse words)))))))
+    (is (= (->> (dfn/arggroup-by-stable identity plain)
+                (map (fn [[k v]] [k (vec v)]))
+                (into {}))
+           (->> (dfn/arggroup-by identity buf)
+                (map (fn [[k v]] [k (vec v)]))
+                (into {}))))
+    (is (= {1 [1 2 4 6] 0 [0 3 5]}
+           (->> (dfn/arggroup-by-int #(if (contains? #{"a" nil} %) 1 0) buf)
+                (map (fn [[k v]] [k (vec v)]))
+                (into {}))))
+    (is (= [2 1 4 6 0 5 3] (vec (dfn/argsort buf))))
+    (is (= [3 0 5 1 4 6 2] (vec (dfn/argsort buf :reverse? true))))))
+
+
+(deftest dictionary-concurrent-writes
+  (let [n-elems 20000
+        buf (dictionary/dictionary-buffer :int64 n-elems)]
+    (->> (range n-elems)
+         (pmap #(dtype/set-value! buf % (rem (long %) 997)))
+         (dorun))
+    (is (= (mapv #(rem (long %) 997) (range n-elems))
+           (vec (dtype/->reader buf))))
+    ;;nil plus each distinct value exactly once
+    (is (= 998 (count (.dictionary-values buf))))))
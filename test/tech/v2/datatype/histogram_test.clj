@@ -0,0 +1,28 @@
+(ns tech.v2.datatype.histogram-test
+  (:require [tech.v2.datatype.functional :as dfn]
+            [clojure.test :refer [deftest is]]))
+
+
+(deftest fixed-width-bins
+  (let [data (double-array (concat (range 100) [Double/NaN]))
+        {:keys [counts edges]} (dfn/histogram data {:bins 4})]
+    (is (= [25 25 25 25] (vec counts)))
+    (is (= [0.0 24.75 49.5 74.25 99.0] (vec edges)))
+    (is (= [0 1 2] (vec (dfn/bin-counts [1 2 3 10] {:bins 3 :range [0 3]}))))
+    (is (= [2.0 1.5] (vec (dfn/bin-counts [1 1 2 3] {:bins 2
+                                                       :range [1 3]
+                                                       :weights [1 1 1 0.5]}))))))
+
+
+(deftest explicit-and-log-bins
+  (is (= [2 1 2] (vec (dfn/bin-counts [-1 0 1 2 3 4 10] {:edges [0 2 3 4]}))))
+  (let [{:keys [counts edges]} (dfn/histogram [1 5 10 50 100 1000] {:bins 3
+                                                                     :scale :log})]
+    (is (= [2 2 2] (vec counts)))
+    (is (= 4 (count edges)))
+    (is (< (Math/abs (- 10.0 (aget ^doubles edges 1))) 1e-9))))
+
+
+(deftest digitize-values
+  (is (= [0 1 1 2 3 3 3]
+         (vec (dfn/digitize [-1 0 0.5 1 2 3 Double/NaN] [0 1 2])))))
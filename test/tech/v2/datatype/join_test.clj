@@ -0,0 +1,70 @@
+(ns tech.v2.datatype.join-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [clojure.test :refer [deftest is]]))
+
+
+(defn- index-pairs
+  [[lhs-indexes rhs-indexes]]
+  (is (= :int64 (dtype/get-datatype lhs-indexes)))
+  (is (= :int64 (dtype/get-datatype rhs-indexes)))
+  (sort (map vector (vec lhs-indexes) (vec rhs-indexes))))
+
+
+(deftest argjoin-inner-left
+  (doseq [algorithm [nil :hash :merge]]
+    (let [options {:algorithm algorithm}]
+      (is (= [[0 1] [0 2] [2 0] [3 0]]
+             (index-pairs (dfn/argjoin (long-array [3 1 2 2 5]) (int-array [2 3 3 7])
+                                       options))))
+      (is (= [[0 1] [0 2] [1 -1] [2 0] [3 0] [4 -1]]
+             (index-pairs (dfn/argjoin (long-array [3 1 2 2 5]) (int-array [2 3 3 7])
+                                       (assoc options :how :left)))))
+      ;;Mixed numeric keys join as doubles
+      (is (= [[1 0] [2 1] [2 2]]
+             (index-pairs (dfn/argjoin (double-array [1.5 -0.0 2]) (long-array [0 2 2])
+                                       options))))
+      (is (= [[0 1] [0 2] [1 -1] [2 0]]
+             (index-pairs (dfn/argjoin ["a" "b" "c"] ["c" "a" "a"]
+                                       (assoc options :how :left)))))
+      (is (= [] (index-pairs (dfn/argjoin (long-array 0) (long-array [1 2])
+                                          options))))))
+  ;;Large enough to be joined in several parallel chunks
+  (let [n-elems 20000
+        lhs (long-array (map #(rem (* 7919 (long %)) n-elems) (range n-elems)))
+        rhs (long-array (range 0 n-elems 3))
+        expected (sort (for [[lidx lkey] (map-indexed vector lhs)
+                             :when (= 0 (rem (long lkey) 3))]
+                         [lidx (quot (long lkey) 3)]))]
+    (is (= expected (index-pairs (dfn/argjoin lhs rhs))))
+    (is (= expected (index-pairs (dfn/argjoin lhs rhs {:algorithm :merge}))))
+    (is (= (map vector (range 0 n-elems 3) (range))
+           (index-pairs (dfn/argjoin (long-array (range n-elems)) rhs))))))
+
+
+(deftest argjoin-missing
+  ;;The missing rhs row holds 0 which must not match the lhs key 0
+  (let [lhs (dtype/make-container :missing :int64 [1 nil 3 0 2])
+        rhs (dtype/make-container :missing :int64 [nil 1 3])]
+    (doseq [algorithm [nil :hash :merge]]
+      (let [options {:algorithm algorithm}]
+        (is (= [[0 1] [2 2]]
+               (index-pairs (dfn/argjoin lhs rhs options))))
+        (is (= [[0 1] [1 -1] [2 2] [3 -1] [4 -1]]
+               (index-pairs (dfn/argjoin lhs rhs (assoc options :how :left)))))))
+    (let [[lhs-indexes rhs-indexes] (dfn/argjoin lhs rhs {:how :as-of})]
+      (is (= [0 1 2 3 4] (vec lhs-indexes)))
+      (is (= [1 -1 2 -1 1] (vec rhs-indexes))))))
+
+
+(deftest argjoin-as-of
+  (let [[lhs-indexes rhs-indexes] (dfn/argjoin (long-array [5 1 3 0 10])
+                                               (long-array [4 1 2 8])
+                                               {:how :as-of})]
+    (is (= [0 1 2 3 4] (vec lhs-indexes)))
+    (is (= [0 1 2 -1 3] (vec rhs-indexes))))
+  (is (= [-1 0 1]
+         (vec (second (dfn/argjoin (double-array [0.5 1.0 2.5])
+                                   (double-array [1.0 2.0])
+                                   {:how :as-of})))))
+  (is (thrown? Exception (dfn/argjoin [1] [1] {:how :outer}))))
@@ -0,0 +1,58 @@
+(ns tech.v2.datatype.missing-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.missing :as missing]
+            [clojure.test :refer [deftest is]])
+  (:import [org.roaringbitmap RoaringBitmap]))
+
+
+(deftest missing-container
+  (let [buf (dtype/make-container :missing :int64 [1 nil 3 nil 5])]
+    (is (missing/missing-aware? buf))
+    (is (= :int64 (dtype/get-datatype buf)))
+    (is (= [1 nil 3 nil 5] (vec buf)))
+    (is (= [1 3] (vec (.toArray (missing/->missing buf)))))
+    (is (= 3 (missing/n-valid buf)))
+    (is (= [nil 3 nil] (vec (dtype/sub-buffer buf 1 3))))
+    (is (= [1 nil 3 nil 5] (vec (dtype/clone buf))))
+    (is (= [nil nil] (vec (dtype/make-container :missing :float32 2))))
+    ;;Large enough to be encoded in several chunks
+    (let [values (mapv #(when-not (= 0 (rem % 7)) %) (range 10000))
+          buf (missing/missing-encode values {:datatype :int32})]
+      (is (= values (vec buf))))))
+
+
+(deftest missing-reductions-and-stats
+  (let [buf (dtype/make-container :missing :float64 [1 nil 3 nil 5 nil])]
+    (is (= 9.0 (dfn/reduce-+ buf)))
+    (is (= 5.0 (dfn/reduce-max buf)))
+    (is (= 3.0 (dfn/mean buf)))
+    (is (= {:min 1.0 :max 5.0 :ecount 3}
+           (dfn/descriptive-stats buf [:min :max :ecount])))
+    (is (nil? (dfn/reduce-+ (dtype/make-container :missing :int32 5)))))
+  ;;Parallel reduction over many ranges
+  (let [n-elems 100000
+        missing (RoaringBitmap/bitmapOf (int-array (range 0 n-elems 3)))
+        buf (missing/missing-buffer (long-array (range n-elems)) missing)]
+    (is (= (reduce + (remove #(= 0 (rem % 3)) (range n-elems)))
+           (dfn/reduce-+ buf)))))
+
+
+(deftest missing-ops
+  (let [lhs (dtype/make-container :missing :int32 [1 nil 3 4])
+        rhs (dtype/make-container :missing :int32 [10 20 nil 40])]
+    (is (= [2 nil 4 5] (vec (dfn/+ lhs 1))))
+    (is (= [11 nil nil 44] (vec (dfn/+ lhs rhs))))
+    (is (= [-1 nil -3 -4] (vec (dfn/- lhs))))
+    (is (= [false nil true true] (vec (dfn/> lhs 2))))
+    (is (= [0 3] (vec (dfn/argfilter #(> % 2) (dfn/+ lhs rhs)))))
+    (is (= [0 2 3 1] (vec (dfn/argsort lhs))))
+    (is (= [3 2 0 1] (vec (dfn/argsort lhs :reverse? true))))))
+
+
+(deftest missing-readers-and-scans
+  (let [buf (dtype/make-container :missing :int64 [1 nil 3 nil 5])]
+    (is (= [1 nil 3 nil 5] (vec (dtype/->reader buf))))
+    (is (= [1 nil 4 nil 9] (vec (dfn/cumsum buf))))
+    (is (= [1 nil 1 nil 1] (vec (dfn/cummin buf))))
+    (is (= [nil nil] (vec (dfn/cumsum (dtype/make-container :missing :int32 2)))))))
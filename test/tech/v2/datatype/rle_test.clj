@@ -0,0 +1,53 @@
+(ns tech.v2.datatype.rle-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.rle :as rle]
+            [clojure.test :refer [deftest is]])
+  (:import [tech.v2.datatype LongReader]
+           [org.roaringbitmap RoaringBitmap]))
+
+
+(deftest rle-encoding
+  ;;Enough elements for runs to be found in several chunks
+  (let [data (long-array (mapcat #(repeat (+ 50 (rem % 7)) %) (range 2000)))
+        buf (rle/run-length-encode data)]
+    (is (rle/rle? buf))
+    (is (= 2000 (rle/n-runs buf)))
+    (is (= (vec data) (vec buf)))
+    (is (= (range 2000) (vec (dtype/->reader (rle/run-values buf)))))
+    (is (= (aget data 54321) (.read ^LongReader (dtype/->reader buf) 54321))))
+  (is (= 3 (rle/n-runs (rle/run-length-encode (double-array [##NaN ##NaN 1.0 1.0 2.0])))))
+  (is (= 2 (rle/n-runs (dtype/make-container :rle :boolean [true true false false]))))
+  (is (= 0 (rle/n-runs (rle/run-length-encode (long-array 0))))))
+
+
+(deftest rle-ops
+  (let [data (int-array (mapcat #(repeat (inc %) (rem % 5)) (range 100)))
+        buf (rle/run-length-encode data)]
+    (is (= (dfn/reduce-+ data) (dfn/reduce-+ buf)))
+    (is (= (dfn/reduce-* (int-array [2 2 3 3 3])) (dfn/reduce-* (rle/run-length-encode
+                                                                (int-array [2 2 3 3 3])))))
+    (is (= (reduce bit-xor data) (dfn/reduce-bit-xor buf)))
+    ;;Ops that cannot be folded by doubling reduce runs as a plain reader
+    (is (= (dfn/reduce-rem (int-array [17 5 5]))
+           (dfn/reduce-rem (rle/run-length-encode (int-array [17 5 5])))))
+    (let [result (dfn/+ buf 10)]
+      (is (rle/rle? result))
+      (is (= (rle/n-runs buf) (rle/n-runs result)))
+      (is (= (vec (dfn/+ data 10)) (vec result))))
+    (is (= (vec (dfn/- 10 data)) (vec (dfn/- 10 buf))))
+    (is (= (vec (dfn/- data)) (vec (dfn/- buf))))
+    (let [result (dfn/> buf 2)]
+      (is (rle/rle? result))
+      (is (= (vec (dfn/> data 2)) (vec result)))
+      (is (= (vec (dfn/argfilter identity (dfn/> data 2)))
+             (vec (dfn/argfilter identity result)))))
+    (let [passing (dfn/argfilter #(== 4 (long %)) buf)]
+      (is (instance? RoaringBitmap passing))
+      (is (= (vec (dfn/argfilter #(== 4 (long %)) data)) (vec passing))))
+    (is (= (vec (dfn/argfilter < data 2)) (vec (dfn/argfilter < buf 2))))
+    (is (= (vec (dfn/argfilter < data 2)) (vec (dfn/argfilter :< buf 2)))))
+  (let [buf (dtype/make-container :rle :int64 [1 1 2 2 3 3 3 4])]
+    (is (= [[false [0 1 2 3]] [true [4 5 6]] [false [7]]]
+           (map (fn [[k idx]] [k (vec idx)])
+                (dfn/argpartition-by #(== 3 (long %)) buf))))))
@@ -0,0 +1,45 @@
+(ns tech.v2.datatype.rolling-test
+  (:require [tech.v2.datatype.functional :as dfn]
+            [clojure.test :refer [deftest is]]))
+
+
+(defn- close?
+  [lhs rhs]
+  (and (= (count lhs) (count rhs))
+       (every? #(< (Math/abs (double %)) 1e-9)
+               (map - lhs rhs))))
+
+
+(deftest incremental-rolling-matches-fixed-window
+  (let [data (double-array (map #(Math/sin (* 0.37 (double %))) (range 1000)))]
+    (doseq [window-size [1 2 7 20 101]]
+      (is (close? (vec (dfn/fixed-rolling-window window-size dfn/sum data))
+                  (vec (dfn/rolling-reduce :sum window-size data))))
+      (is (close? (vec (dfn/fixed-rolling-window window-size dfn/mean data))
+                  (vec (dfn/rolling-reduce :mean window-size data))))
+      (is (close? (vec (dfn/fixed-rolling-window window-size dfn/variance data))
+                  (vec (dfn/rolling-reduce :variance window-size data))))
+      (is (close? (vec (dfn/fixed-rolling-window window-size dfn/reduce-min data))
+                  (vec (dfn/rolling-reduce :min window-size data))))
+      (is (close? (vec (dfn/fixed-rolling-window window-size dfn/reduce-max data))
+                  (vec (dfn/rolling-reduce :max window-size data)))))))
+
+
+(deftest time-rolling-windows
+  (let [data (double-array (map #(Math/cos (* 0.21 (double %))) (range 500)))
+        times (long-array (reductions + (map #(inc (rem (* 7 (long %)) 5))
+                                             (range 500))))
+        window-values (fn [span idx]
+                        (let [end-time (aget times idx)]
+                          (for [j (range (inc idx))
+                                :when (> (aget times j) (- end-time span))]
+                            (aget data j))))]
+    (doseq [span [1 10 57]]
+      (is (close? (mapv #(reduce + (window-values span %)) (range 500))
+                  (vec (dfn/time-rolling-reduce :sum span times data))))
+      (is (close? (mapv #(dfn/variance (window-values span %)) (range 500))
+                  (vec (dfn/time-rolling-reduce :variance span times data))))
+      (is (close? (mapv #(apply max (window-values span %)) (range 500))
+                  (vec (dfn/time-rolling-reduce :max span times data))))
+      (is (close? (mapv #(apply min (window-values span %)) (range 500))
+                  (vec (dfn/time-rolling-reduce :min span times data)))))))
@@ -0,0 +1,37 @@
+(ns tech.v2.datatype.scan-test
+  (:require [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.binary-op :as binary-op]
+            [tech.v2.datatype :as dtype]
+            [clojure.test :refer [deftest is]]))
+
+
+(deftest cumulative-ops
+  (let [n-elems 100003
+        data (long-array (map #(- (rem (* 7919 (long %)) 1001) 500) (range n-elems)))]
+    (is (= (vec (reductions + data)) (vec (dfn/cumsum data))))
+    (is (= (vec (reductions min data)) (vec (dfn/cummin data))))
+    (is (= (vec (reductions max data)) (vec (dfn/cummax data))))
+    (is (= :int64 (dtype/get-datatype (dfn/cumsum data))))
+    (let [result (dfn/cumsum data {:datatype :float64
+                                   :container-type :native-buffer})]
+      (is (= :float64 (dtype/get-datatype result)))
+      (is (= (mapv double (reductions + data)) (vec (dtype/->reader result))))))
+  (is (= [1 2 6 24 120] (vec (dfn/cumprod (int-array [1 2 3 4 5])))))
+  ;;integer data scans in int64 so narrow inputs do not overflow
+  (let [result (dfn/cumsum (dtype/make-container :typed-buffer :uint8
+                                                 (repeat 400 200)))]
+    (is (= :int64 (dtype/get-datatype result)))
+    (is (= 80000 (last (vec result)))))
+  (is (= [2000000000 4000000000 6000000000]
+         (vec (dfn/cumsum (int-array [2000000000 2000000000 2000000000])))))
+  (is (= :float64 (dtype/get-datatype (dfn/cumsum (float-array [1 2 3])))))
+  (is (= :int32 (dtype/get-datatype (dfn/cumsum (int-array [1 2 3])
+                                                {:datatype :int32}))))
+  (is (= [] (vec (dfn/cumsum (double-array 0))))))
+
+
+(deftest scan-preserves-order
+  (let [words (mapv str (range 5000))]
+    (is (= (vec (reductions str words))
+           (vec (dfn/scan (binary-op/make-binary-op :object (str x y))
+                          words))))))
@@ -0,0 +1,91 @@
+(ns tech.v2.datatype.utf8-buffer-test
+  (:require [tech.v2.datatype :as dtype]
+            [tech.v2.datatype.functional :as dfn]
+            [tech.v2.datatype.mmap :as mmap]
+            [tech.v2.datatype.utf8-buffer :as utf8-buffer]
+            [tech.resource :as resource]
+            [clojure.test :refer [deftest is]])
+  (:import [java.io File]
+           [java.nio.file Files]))
+
+
+(def ^:private words ["apple" "" "été" "apricot" nil "𝄞clef" "banana" "apple"])
+(def ^:private decoded (assoc words 4 ""))
+
+
+(deftest utf8-buffer-read
+  (let [buf (dtype/make-container :utf8-buffer :string words)]
+    (is (utf8-buffer/utf8-buffer? buf))
+    (is (= :string (dtype/get-datatype buf)))
+    (is (= decoded (vec (dtype/->reader buf))))
+    (is (= (vec (.getBytes "été" "UTF-8"))
+           (vec (utf8-buffer/string-bytes buf 2))))
+    (is (= (subvec decoded 2 5) (vec (dtype/sub-buffer buf 2 3))))
+    (is (= (subvec decoded 2 5) (vec (dtype/clone (dtype/sub-buffer buf 2 3)))))
+    (is (thrown? IndexOutOfBoundsException (.read buf 8)))
+    (is (= 0 (dtype/ecount (utf8-buffer/utf8-buffer []))))
+    ;;Large enough to encode in several chunks
+    (let [strs (mapv #(str "s" (* 7 %)) (range 10000))]
+      (is (= strs (vec (utf8-buffer/utf8-buffer strs)))))))
+
+
+(defn- utf8-key
+  "Sort key ordering strings by their unsigned UTF-8 bytes."
+  [^String value]
+  (apply str (map #(format "%02x" (bit-and (long %) 0xFF))
+                  (.getBytes value "UTF-8"))))
+
+
+(deftest utf8-buffer-byte-ops
+  (let [buf (utf8-buffer/utf8-buffer words)
+        sorted (vec (sort-by utf8-key decoded))]
+    (is (= [true false false false false false false true]
+           (vec (dfn/eq buf "apple"))))
+    (is (= [false true true true true true true false]
+           (vec (dfn/not-eq "apple" buf))))
+    (is (= (mapv #(= % %2) decoded (reverse decoded))
+           (vec (dfn/eq buf (utf8-buffer/utf8-buffer (reverse words))))))
+    (is (= [true false false true false false false true]
+           (vec (utf8-buffer/starts-with buf "ap"))))
+    (is (= [false false false false false true false false]
+           (vec (utf8-buffer/ends-with buf "clef"))))
+    (is (neg? (utf8-buffer/compare-strings buf 0 3)))
+    (is (zero? (utf8-buffer/compare-strings buf 0 7)))
+    (is (= sorted (mapv decoded (dfn/argsort buf))))
+    (is (= (reverse sorted) (mapv decoded (dfn/argsort buf :reverse? true))))))
+
+
+(deftest utf8-buffer-file
+  (let [buf (dtype/sub-buffer (utf8-buffer/utf8-buffer words) 1 6)
+        file (File/createTempFile "utf8-buffer" ".bin")]
+    (try
+      (utf8-buffer/write-utf8-file! buf file)
+      (let [data (Files/readAllBytes (.toPath file))
+            native (mmap/malloc (alength data) {:resource-type :gc})]
+        (dtype/copy! data native)
+        (is (= (subvec decoded 1 7)
+               (vec (utf8-buffer/native-buffer->utf8-buffer native))))
+        (is (thrown? Exception (utf8-buffer/native-buffer->utf8-buffer
+                                (dtype/sub-buffer native 0 20))))
+        ;;A corrupt string count is rejected before the offsets are read
+        (let [corrupt (java.util.Arrays/copyOf data 24)
+              corrupt-native (mmap/malloc 24 {:resource-type :gc})]
+          (java.util.Arrays/fill corrupt 8 16 (byte 0x7F))
+          (dtype/copy! corrupt corrupt-native)
+          (is (thrown? Exception (utf8-buffer/native-buffer->utf8-buffer
+                                  corrupt-native)))))
+      (finally
+        (.delete file)))))
+
+
+(deftest utf8-buffer-mmap
+  (let [file (File/createTempFile "utf8-buffer" ".bin")]
+    (try
+      (utf8-buffer/write-utf8-file! (utf8-buffer/utf8-buffer words) file)
+      (resource/stack-resource-context
+       (let [buf (utf8-buffer/mmap-utf8-file (.getPath file))]
+         (is (= decoded (vec buf)))
+         (is (= [true false false false false false false true]
+                (vec (dfn/eq buf "apple"))))))
+      (finally
+        (.delete file)))))
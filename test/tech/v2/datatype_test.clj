@@ -11,7 +11,9 @@
             [tech.v2.datatype.functional :as dfn]
             [tech.v2.datatype.boolean-op :as boolean-op])
   (:import [java.nio FloatBuffer]
-           [java.util ArrayList]))
+           [java.util ArrayList]
+           [tech.v2.datatype IntMutable]
+           [it.unimi.dsi.fastutil.longs LongArrayList]))
 
 
 (deftest raw-copy-with-mutable-lazy-sequence
@@ -433,7 +435,35 @@
           [1 (range 5 10)]
           [2 (range 10 15)]
           [3 (range 15 20)]]
-         (vec (dfn/argpartition-by #(quot (long %) 5) (range 20))))))
+         (vec (dfn/argpartition-by #(quot (long %) 5) (range 20)))))
+  ;;Iterables that are not readers are partitioned lazily
+  (is (= [[true (range 3)] [false (range 3 5)]]
+         (vec (dfn/argpartition-by #(< (long %) 3) (map identity (range 5))))))
+  ;;Runs crossing the parallel chunk boundaries are stitched together
+  (let [n-elems 100000
+        data (long-array (map #(quot (long %) 7) (range n-elems)))
+        [part-keys offsets] (dfn/argpartition-by-offsets nil data)]
+    (is (= :int64 (dtype/get-datatype part-keys)))
+    (is (= (range (inc (quot (dec n-elems) 7))) (vec part-keys)))
+    (is (= (range 0 n-elems 7) (vec offsets))))
+  (let [[part-keys offsets] (dfn/argpartition-by-offsets
+                             nil (double-array [##NaN ##NaN 1.0 1.0 2.0]))]
+    (is (= [1.0 2.0] (drop 1 (vec part-keys))))
+    (is (= [0 2 4] (vec offsets))))
+  ;;:datatype is the item datatype; keys keep the type partition-fn returns
+  (let [data (long-array [1 3 2 4 5])]
+    (is (= [[false (range 2)] [true (range 2 4)] [false (range 4 5)]]
+           (vec (dfn/argpartition-by even? data {:datatype :int64}))))
+    (is (= [[:a (range 3)] [:b (range 3 5)]]
+           (vec (dfn/argpartition-by #(if (< (long %) 4) :a :b) data
+                                     {:datatype :int64}))))
+    (let [[part-keys offsets] (dfn/argpartition-by-offsets
+                               #(quot (long %) 3) data
+                               {:datatype :int64 :key-datatype :int64})]
+      (is (= :int64 (dtype/get-datatype part-keys)))
+      (is (= [0 1 0 1] (vec part-keys)))
+      (is (= [0 1 2 3] (vec offsets)))))
+  (is (= [[] []] (map vec (dfn/argpartition-by-offsets nil (int-array 0))))))
 
 
 (deftest typed-buffer-destructure
@@ -482,6 +512,25 @@
   (is (= [true 5] (dfn/binary-search (range 10) 5))))
 
 
+(deftest batch-binary-search
+  (let [values (long-array (sort (map #(rem (* 7919 (long %)) 5003) (range 20000))))
+        lower-bound (fn [target]
+                      (count (take-while #(< (long %) (long target)) values)))
+        upper-bound (fn [target]
+                      (count (take-while #(<= (long %) (long target)) values)))
+        unsorted (long-array (map #(- (rem (* 104729 (long %)) 5300) 100)
+                                  (range 500)))
+        sorted (long-array (sort unsorted))]
+    (is (= (mapv lower-bound unsorted)
+           (vec (dfn/batch-binary-search values unsorted))))
+    (is (= (mapv lower-bound sorted)
+           (vec (dfn/batch-binary-search values sorted))))
+    (is (= (mapv upper-bound sorted)
+           (vec (dfn/batch-binary-search values sorted :side :right))))
+    (is (= [0 0] (vec (dfn/batch-binary-search (long-array 0) [3 4]))))
+    (is (= [0 2 3] (vec (dfn/batch-binary-search [1.0 2.0 2.5] [0.5 2.2 9.0]))))))
+
+
 (deftest array-list-writers
   (is (not (nil? (dtype/->writer (ArrayList.)))))
   (let [new-list (ArrayList. ^java.util.Collection (repeat 10 nil))
@@ -586,6 +635,45 @@
   (is (= ["one"] (vec (dtype/clone (dtype/make-container :list :string ["one"]))))))
 
 
+(deftest append-block
+  (let [data (dtype/make-container :list :int64 [1 2])]
+    (dtype/append-block! data (long-array [3 4]))
+    (dtype/append-block! data (dtype/make-reader :int64 10 (+ idx 5)))
+    (dtype/append-block! data (list 15 16))
+    (is (= (range 1 17) (vec data))))
+  (let [data (dtype/make-container :list :float32 0)]
+    ;;Values are cast to the list datatype
+    (dtype/append-block! data (int-array (range 100000)))
+    (is (= 100000 (dtype/ecount data)))
+    (is (= 99999.0 (double (dtype/get-value data 99999)))))
+  (let [data (dtype/make-container :list :uint8 [1])]
+    (dtype/append-block! data [255 2])
+    (is (= [1 255 2] (vec (dtype/->reader data))))
+    (is (thrown? Exception (dtype/append-block! data [256]))))
+  (let [data (dtype/make-container :list :string ["a"])]
+    (dtype/append-block! data (dtype/->reader ["b" "c"]))
+    (is (= ["a" "b" "c"] (vec data))))
+  (let [data (dtype/make-container :big-list :int32 [1])]
+    (dtype/append-block! data (range 2 6))
+    (.appendReader ^IntMutable data (dtype/->reader [6 7] :int32))
+    (is (= [1 2 3 4 5 6 7] (vec data))))
+  (let [data (LongArrayList.)]
+    (dtype/append-block! data (long-array [1 2 3]))
+    (is (= [1 2 3] (vec data))))
+  ;;Many small appends grow the backing array geometrically
+  (let [data (LongArrayList.)
+        backing-arrays (->> (range 1000)
+                            (map (fn [append-idx]
+                                   (dtype/append-block!
+                                    data (dtype/make-reader :int64 10
+                                                            (+ (* 10 append-idx) idx)))
+                                   (System/identityHashCode (.elements data))))
+                            (distinct)
+                            (count))]
+    (is (= (range 10000) (vec data)))
+    (is (< backing-arrays 20))))
+
+
 (deftest fill-range
   (let [test-data [1 3 8 20]
         {:keys [result missing]} (dfn/fill-range test-data 3)
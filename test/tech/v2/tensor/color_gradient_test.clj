@@ -35,3 +35,13 @@
          (cgrad/colorize->clj [[0.0 0.2 0.4 0.6 0.8 1.0]
                                [0.0 0.2 0.4 0.6 0.8 1.0]]
                               :green-red))))
+
+
+(deftest colorize-scans-invalid-data
+  (let [img (cgrad/colorize test-nan-tens :temperature-map
+                            :alpha? true
+                            :check-invalid? true)
+        pixels (dtt/select img 0 (range 4) :all)]
+    ;;Invalid pixels are transparent, valid ones are opaque
+    (is (= [0 255 0 255] (vec (dtt/select pixels :all 0)))))
+  (is (thrown? Exception (cgrad/colorize test-nan-tens :temperature-map))))
@@ -116,6 +116,40 @@
                         [5 6 7 4 9 10 11 8 13 14 15 12 1 2 3 0]))
 
 
+(deftest class-cache-metrics
+  (let [cache-dir (-> (java.nio.file.Files/createTempDirectory
+                       "gtol-cache"
+                       (make-array java.nio.file.attribute.FileAttribute 0))
+                      (.toFile))
+        version-dir (java.io.File. cache-dir ^String gtol/class-cache-version)
+        n-sigs (count gtol/common-signatures)
+        defined-classes (java.util.HashMap. ^java.util.Map gtol/defined-classes)]
+    (try
+      (System/setProperty gtol/class-cache-property (.getPath cache-dir))
+      (.clear ^java.util.Map gtol/defined-classes)
+      (gtol/reset-class-generation-metrics!)
+      (is (= n-sigs (gtol/pregenerate!)))
+      (let [{:keys [misses generated classpath-loads disk-loads]}
+            (gtol/class-generation-metrics)]
+        (is (= n-sigs misses))
+        (is (= n-sigs (+ (long generated) (long classpath-loads) (long disk-loads))))
+        (is (= generated (count (.listFiles version-dir)))))
+      (is (= 0 (gtol/pregenerate!)))
+      (let [reduced-dims (dims-analytics/reduce-dimensionality
+                          (dims/dimensions [2 4 4] [32 4 1]))]
+        (gtol/get-or-create-reader reduced-dims)
+        (gtol/get-or-create-reader reduced-dims)
+        (is (<= 1 (long (:hits (gtol/class-generation-metrics))))))
+      (gtol/write-class-cache! (.getPath cache-dir))
+      (is (= n-sigs (count (.listFiles (java.io.File. cache-dir "tech/v2/datatype")))))
+      (finally
+        (System/clearProperty gtol/class-cache-property)
+        (.clear ^java.util.Map gtol/defined-classes)
+        (.putAll ^java.util.Map gtol/defined-classes defined-classes)
+        (doseq [^java.io.File file (reverse (file-seq cache-dir))]
+          (.delete file))))))
+
+
 (comment
   (do
     (println "Dimension indexing system reader timings")
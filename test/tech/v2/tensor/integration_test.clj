@@ -154,6 +154,23 @@
                                  [0.0 0.2 0.4 0.6 0.8 1.0]]))))
 
 
+(deftest dense-tensor-reads
+  (let [test-tens (dtt/->tensor (partition 4 (range 12)) :datatype :float64)
+        rdr (dtt-typecast/datatype->tensor-reader :float64 test-tens)
+        transposed (dtt-typecast/datatype->tensor-reader
+                    :float64 (dtt/transpose test-tens [1 0]))]
+    (is (= (mapv double (range 12)) (mapv #(.read rdr (long %)) (range 12))))
+    (is (= 6.0 (.read2d rdr 1 2)))
+    (is (= 6.0 (.read2d transposed 2 1)))
+    (is (= [1.0 5.0 9.0] (mapv #(.read2d transposed 1 (long %)) (range 3))))
+    (is (= [0.0 4.0 8.0 1.0] (mapv #(.read transposed (long %)) (range 4))))
+    ;;Rows of dense tensors share the parent's buffer
+    (let [row (second (dtt/rows test-tens))]
+      (is (= [4.0 5.0 6.0 7.0] (dtt/->jvm row)))
+      (dtype/set-value! row 0 -1.0)
+      (is (= -1.0 (.read2d rdr 1 0))))))
+
+
 (defn strided-tensor-copy-time-test
   []
   (let [src-tens (-> (dtt/new-tensor [2048 2048 4] :datatype :uint8)